@@ -0,0 +1,182 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Applies random edit sets to documents of a few bytes up to several MB
+ * and checks that output(WritableByteChannel) and
+ * output(FileChannel, WritableByteChannel) write exactly the bytes of
+ * output(OutputStream), to a FileChannel, to a plain channel and to a
+ * channel that takes a few bytes per write and often none, which makes
+ * transferTo() stop short.
+ */
+public class ChannelOutputTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 34);
+		File src = File.createTempFile("channel", ".xml"), dst = File.createTempFile("channel", ".out");
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 120; n++) {
+				int len = n < 100 ? 1 + rand.nextInt(2000) : 1 + rand.nextInt(6 << 20);
+				String name = "run " + n + " length " + len;
+				try {
+					c.check(name, run(rand, len, src, dst));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			c.check("shorter source", shorter(src));
+		} finally {
+			src.delete();
+			dst.delete();
+		}
+		c.done();
+	}
+
+	static boolean run(Random rand, int len, File src, File dst) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < len; i++)
+			sb.append((char) ('a' + rand.nextInt(26)));
+		byte[] doc = sb.append("</r>").toString().getBytes("UTF-8");
+		RandomAccessFile raf = new RandomAccessFile(src, "rw");
+		raf.setLength(0);
+		raf.write(doc);
+		raf.close();
+
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(false);
+		XMLModifier xm = new XMLModifier(vg.getNav());
+		// none, a few or many edits on bytes no other edit touches; the
+		// inserts grow large for large documents
+		boolean[] taken = new boolean[doc.length + 1];
+		int edits = rand.nextInt(3) == 0 ? 0 : rand.nextInt(rand.nextBoolean() ? 10 : 3000);
+		for (int k = 0; k < edits; k++) {
+			int o = 3 + rand.nextInt(len), l = rand.nextBoolean() ? 0 : 1 + rand.nextInt(50);
+			if (o + l > len + 3)
+				continue;
+			boolean free = true;
+			for (int i = o; i <= o + l; i++)
+				free &= !taken[i];
+			if (!free)
+				continue;
+			for (int i = o; i <= o + l; i++)
+				taken[i] = true;
+			if (l == 0) {
+				byte[] b = new byte[1 + rand.nextInt(1 + len / 100)];
+				Arrays.fill(b, (byte) ('0' + k % 10));
+				xm.insertBytesAt(o, b);
+			} else
+				xm.removeContent(o, l);
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		xm.output(expected);
+		byte[] e = expected.toByteArray();
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		xm.output(Channels.newChannel(bos));
+		if (!Arrays.equals(e, bos.toByteArray()))
+			return false;
+		bos = new ByteArrayOutputStream();
+		xm.output(new StingyChannel(rand, bos));
+		if (!Arrays.equals(e, bos.toByteArray()))
+			return false;
+		if (!Arrays.equals(e, toFile(xm, null, dst)))
+			return false;
+
+		RandomAccessFile in = new RandomAccessFile(src, "r");
+		try {
+			FileChannel fc = in.getChannel();
+			bos = new ByteArrayOutputStream();
+			xm.output(fc, Channels.newChannel(bos));
+			if (!Arrays.equals(e, bos.toByteArray()))
+				return false;
+			bos = new ByteArrayOutputStream();
+			xm.output(fc, new StingyChannel(rand, bos));
+			if (!Arrays.equals(e, bos.toByteArray()))
+				return false;
+			return Arrays.equals(e, toFile(xm, fc, dst));
+		} finally {
+			in.close();
+		}
+	}
+
+	// a source missing the end of the document fails instead of looping
+	static boolean shorter(File src) throws Exception {
+		byte[] doc = "<r>0123456789</r>".getBytes("UTF-8");
+		RandomAccessFile raf = new RandomAccessFile(src, "rw");
+		raf.setLength(0);
+		raf.write(doc, 0, 8);
+		raf.close();
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(false);
+		XMLModifier xm = new XMLModifier(vg.getNav());
+		xm.insertBytesAt(4, "x".getBytes("UTF-8"));
+		RandomAccessFile in = new RandomAccessFile(src, "r");
+		try {
+			xm.output(in.getChannel(), new StingyChannel(new Random(0), new ByteArrayOutputStream()));
+			return false;
+		} catch (IOException e) {
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	// output to the FileChannel of dst, transferring from src if not null
+	static byte[] toFile(XMLModifier xm, FileChannel src, File dst) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(dst, "rw");
+		try {
+			raf.setLength(0);
+			if (src == null)
+				xm.output(raf.getChannel());
+			else
+				xm.output(src, raf.getChannel());
+			byte[] b = new byte[(int) raf.length()];
+			raf.seek(0);
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// takes at most a few bytes per write, and nothing one time in three
+	static class StingyChannel implements WritableByteChannel {
+		Random rand;
+		ByteArrayOutputStream os;
+
+		StingyChannel(Random rand, ByteArrayOutputStream os) {
+			this.rand = rand;
+			this.os = os;
+		}
+
+		public int write(ByteBuffer bb) throws IOException {
+			if (rand.nextInt(3) == 0)
+				return 0;
+			int n = Math.min(bb.remaining(), 1 + rand.nextInt(4096));
+			for (int i = 0; i < n; i++)
+				os.write(bb.get());
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
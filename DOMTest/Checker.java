@@ -0,0 +1,45 @@
+package DOMTest;
+
+/**
+ * Keeps the tally of the checks of a test program: failed checks are
+ * printed as they come, done() prints the tally and exits with 1 if
+ * any check failed.
+ */
+class Checker {
+	private int failed, total;
+
+	/**
+	 * Record the check name, which passed if ok is true
+	 * @param name
+	 * @param ok
+	 * @return ok
+	 */
+	boolean check(String name, boolean ok) {
+		total++;
+		if (!ok) {
+			failed++;
+			System.out.println("FAIL " + name);
+		}
+		return ok;
+	}
+
+	/**
+	 * Record the check name as failed with e
+	 * @param name
+	 * @param e
+	 */
+	void fail(String name, Throwable e) {
+		total++;
+		failed++;
+		System.out.println("FAIL " + name + " : " + e);
+	}
+
+	/**
+	 * Print the tally, exit with 1 if any check failed
+	 */
+	void done() {
+		System.out.println(failed == 0 ? "passed " + total : "failed " + failed + " of " + total);
+		if (failed != 0)
+			System.exit(1);
+	}
+}
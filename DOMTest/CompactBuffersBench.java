@@ -0,0 +1,109 @@
+package DOMTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Times navigation and XPath over the VTD and LC buffers of a VTDNav,
+ * paged as parsed and after compactBuffers(). The two are timed in
+ * alternating rounds on the same document, and the median of each is
+ * printed. The document is the file given as the first argument, or a
+ * generated one of about 20MB.
+ */
+public class CompactBuffersBench {
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 15;
+		byte[] doc = args.length > 0 ? null : generate(new Random(46), 20 << 20);
+		VTDNav paged = parse(args.length > 0 ? args[0] : null, doc);
+		VTDNav flat = parse(args.length > 0 ? args[0] : null, doc);
+		flat.compactBuffers();
+		String[] xpaths = { "//*", "//text()", "//*[@a]", "count(//e1/e2)", "//*[last()]" };
+		long[][] t = new long[2][rounds];
+		long check = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (int m = 0; m < 2; m++) {
+				VTDNav vn = m == 0 ? paged : flat;
+				long start = System.nanoTime();
+				long h = walk(vn);
+				for (int i = 0; i < xpaths.length; i++)
+					h = h * 31 + eval(vn, xpaths[i]);
+				t[m][r] = System.nanoTime() - start;
+				if (r == 0 && m == 0)
+					check = h;
+				else if (h != check)
+					throw new IllegalStateException("results differ");
+			}
+		}
+		System.out.println("paged   " + median(t[0]) / 1000000 + "ms");
+		System.out.println("compact " + median(t[1]) / 1000000 + "ms");
+	}
+
+	static VTDNav parse(String file, byte[] doc) throws Exception {
+		VTDGen vg = new VTDGen();
+		if (file != null) {
+			if (!vg.parseFile(file, true))
+				throw new IllegalArgumentException(file);
+		} else {
+			vg.setDoc(doc);
+			vg.parse(true);
+		}
+		return vg.getNav();
+	}
+
+	// every element in document order, with its text and attribute count
+	static long walk(VTDNav vn) throws Exception {
+		vn.toElement(VTDNav.ROOT);
+		long h = 0;
+		while (true) {
+			h = h * 31 + vn.getCurrentIndex() + vn.getText() + vn.getAttrCount();
+			if (vn.toElement(VTDNav.FC))
+				continue;
+			while (!vn.toElement(VTDNav.NS)) {
+				if (!vn.toElement(VTDNav.P))
+					return h;
+			}
+		}
+	}
+
+	static long eval(VTDNav vn, String xpath) throws Exception {
+		vn.toElement(VTDNav.ROOT);
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath(xpath);
+		if (xpath.startsWith("count"))
+			return (long) ap.evalXPathToNumber();
+		long h = 0;
+		int i;
+		while ((i = ap.evalXPath()) != -1)
+			h = h * 31 + i;
+		return h;
+	}
+
+	static long median(long[] a) {
+		long[] b = a.clone();
+		Arrays.sort(b);
+		return b[b.length / 2];
+	}
+
+	static byte[] generate(Random rand, int size) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		while (sb.length() < size)
+			element(rand, sb, 1);
+		return sb.append("</r>").toString().getBytes("UTF-8");
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		String name = "e" + rand.nextInt(3);
+		sb.append('<').append(name);
+		if (rand.nextBoolean())
+			sb.append(" a='").append(rand.nextInt(10)).append('\'');
+		sb.append('>');
+		if (rand.nextBoolean())
+			sb.append('t').append(rand.nextInt(100));
+		if (depth < 8)
+			for (int i = rand.nextInt(depth < 3 ? 6 : 3); i > 0; i--)
+				element(rand, sb, depth + 1);
+		sb.append("</").append(name).append('>');
+	}
+}
@@ -0,0 +1,150 @@
+package DOMTest;
+
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Checks that VTDNav.compactBuffers() leaves navigation, getText() and
+ * XPath results unchanged, including on documents ending in empty
+ * elements, and that a compacted buffer still reads and appends like a
+ * paged one.
+ */
+public class CompactBuffersTest {
+	static final String[] docs = {
+		"<r/>",
+		"<r><a/></r>",
+		"<r><a/><b/></r>",
+		"<r x='1'><a y='2'/></r>",
+		"<r>t<a/></r>",
+		"<r><a>t</a><b><!--c--><c/></b></r>",
+		"<r><a><b><c><d><e><f/></e></d></c></b></a></r>",
+		"<r><a><b><c><d><e><f>t</f></e></d></c></b></a><g/></r>",
+		"<?xml version='1.0'?><r><a/></r><!--tail-->",
+	};
+
+	static final String[] xpaths = {
+		"//*", "//text()", "//@*", "//*[last()]", "/r/*[1]", "//*[not(*)]",
+		"//*/following-sibling::*", "//*/preceding::*", "count(//*)",
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 46);
+		Checker c = new Checker();
+		for (int i = 0; i < docs.length + 200; i++) {
+			String doc = i < docs.length ? docs[i] : randomDoc(rand);
+			for (int lc = 3; lc <= 5; lc += 2) {
+				String name = "lc=" + lc + " " + doc;
+				try {
+					String expected = dump(parse(doc, lc));
+					VTDNav vn = parse(doc, lc);
+					vn.compactBuffers();
+					c.check(name, expected.equals(dump(vn)));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		}
+		c.check("buffers", buffers());
+		c.done();
+	}
+
+	static VTDNav parse(String doc, int lc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.selectLcDepth(lc);
+		vg.setDoc(doc.getBytes("UTF-8"));
+		vg.parse(true);
+		return vg.getNav();
+	}
+
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		sb.append(vn.getCurrentIndex()).append(' ')
+			.append(vn.toString(vn.getCurrentIndex())).append(" text ")
+			.append(vn.getText()).append(" attrs ")
+			.append(vn.getAttrCount());
+		vn.push();
+		sb.append(" lc ").append(vn.toElement(VTDNav.LC) ? vn.getCurrentIndex() : -1);
+		vn.pop();
+		sb.append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		for (int i = rand.nextInt(4); i > 0; i--) {
+			if (rand.nextInt(4) == 0) {
+				sb.append(rand.nextBoolean() ? "t" : "<!--c-->");
+				continue;
+			}
+			String name = "e" + rand.nextInt(3);
+			sb.append('<').append(name);
+			if (rand.nextBoolean())
+				sb.append(" a='").append(i).append('\'');
+			if (depth > 7 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+
+	static boolean buffers() {
+		for (int n = 0; n < 40; n++) {
+			FastLongBuffer flb = new FastLongBuffer(4);
+			FastIntBuffer fib = new FastIntBuffer(4);
+			for (int i = 0; i < n; i++) {
+				flb.append(((long) i << 32) | i);
+				fib.append(i);
+			}
+			flb.compact();
+			fib.compact();
+			if (!flb.isCompact() || !fib.isCompact() || flb.size() != n || fib.size() != n)
+				return false;
+			// one past the end stays readable within the last page
+			if ((n & 15) != 0 && (flb.longAt(n) != 0 || fib.intAt(n) != 0))
+				return false;
+			for (int i = n; i < n + 20; i++) {
+				flb.append(((long) i << 32) | i);
+				fib.append(i);
+			}
+			for (int i = 0; i < n + 20; i++) {
+				if (flb.upper32At(i) != i || flb.lower32At(i) != i || fib.intAt(i) != i)
+					return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,129 @@
+package DOMTest;
+
+import java.io.StringReader;
+import java.util.Hashtable;
+import java.util.Random;
+
+import com.ximpleware.*;
+import com.ximpleware.xpath.parser;
+
+/**
+ * Checks that AutoPilot gives identical results with compiled location
+ * paths (setCompileThreshold(1)) and interpreted ones, for absolute paths
+ * from the root and relative paths from every element, on fixed and
+ * random documents.
+ */
+public class CompiledPathTest {
+	static final String[] absolute = {
+		"/r", "/r/e0", "/r/*", "//e1", "//*", "/descendant::e2",
+		"/r//e0", "//e0//e1", "//e1/e0", "//*[@a]", "//e0[@a='1']",
+		"//e2[@a!='0']", "//*[@a][@a!='2']/e1", "//@a", "/r/e0/@a",
+		"/descendant-or-self::node()/e1", "//e0/descendant::*",
+	};
+
+	static final String[] relative = {
+		"e0", "*", "descendant-or-self::node()/e1", "descendant::*",
+		"e1/e0", "*[@a='0']", "@a", "descendant-or-self::e2", "*/*",
+	};
+
+	static final String[] docs = {
+		"<r/>",
+		"<r><e0/></r>",
+		"<r a='1'><e0 a='1'><e1/></e0><e1 a='0'><e0/></e1></r>",
+		"<r><e0><e0><e0 a='2'><e1/></e0></e0></e0></r>",
+		"<r>t<e2 a='0'/>t<e2 a='1'><!--c--><e1 a='2'/></e2></r>",
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 29);
+		Checker c = new Checker();
+		for (int i = 0; i < absolute.length; i++)
+			c.check("compiled " + absolute[i], compilable(absolute[i]));
+		for (int i = 0; i < relative.length; i++)
+			c.check("compiled " + relative[i], compilable(relative[i]));
+		for (int i = 0; i < 300; i++) {
+			String doc = i < docs.length ? docs[i] : randomDoc(rand);
+			try {
+				c.check(doc, run(doc, 0).equals(run(doc, 1)));
+			} catch (Exception e) {
+				c.fail(doc, e);
+			}
+		}
+		c.done();
+	}
+
+	// every expression of the test has to take the compiled path
+	static boolean compilable(String s) throws Exception {
+		parser p = new parser(new StringReader(s));
+		p.nsHash = new Hashtable<Object,Object>();
+		p.symbolHash = new Hashtable<Object,Object>();
+		return CompiledPathExpr.compile((Expr) p.parse().value) != null;
+	}
+
+	static String run(String doc, int threshold) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc.getBytes("UTF-8"));
+		vg.parse(true);
+		VTDNav vn = vg.getNav();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < absolute.length; i++) {
+			AutoPilot ap = new AutoPilot(vn);
+			ap.setCompileThreshold(threshold);
+			ap.selectXPath(absolute[i]);
+			// evaluate twice, the second run reuses the compiled form
+			eval(ap, vn, sb.append(absolute[i]).append(':'));
+			eval(ap, vn, sb.append(" again:"));
+		}
+		AutoPilot all = new AutoPilot(vn);
+		all.selectXPath("//*");
+		FastIntBuffer elements = new FastIntBuffer(4);
+		int j;
+		while ((j = all.evalXPath()) != -1)
+			elements.append(j);
+		for (int i = 0; i < relative.length; i++) {
+			AutoPilot ap = new AutoPilot(vn);
+			ap.setCompileThreshold(threshold);
+			ap.selectXPath(relative[i]);
+			sb.append(relative[i]).append(':');
+			for (int k = 0; k < elements.size(); k++) {
+				vn.recoverNode(elements.intAt(k));
+				eval(ap, vn, sb.append(" from ").append(elements.intAt(k)));
+			}
+		}
+		return sb.toString();
+	}
+
+	static void eval(AutoPilot ap, VTDNav vn, StringBuilder sb) throws Exception {
+		int i;
+		while ((i = ap.evalXPath()) != -1)
+			sb.append(' ').append(i).append('@').append(vn.getCurrentIndex());
+		ap.resetXPath();
+		sb.append('\n');
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		for (int i = rand.nextInt(4); i > 0; i--) {
+			if (rand.nextInt(4) == 0) {
+				sb.append("t");
+				continue;
+			}
+			String name = "e" + rand.nextInt(3);
+			sb.append('<').append(name);
+			if (rand.nextBoolean())
+				sb.append(" a='").append(rand.nextInt(3)).append('\'');
+			if (depth > 7 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
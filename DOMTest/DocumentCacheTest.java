@@ -0,0 +1,135 @@
+package DOMTest;
+
+import java.io.File;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Stores documents in a DocumentCache, attaches to them again and checks
+ * that navigation, getText() and XPath on the attached VTDNav match the
+ * parsed document, and that overWrite() on one attached VTDNav isn't
+ * seen by another one.
+ */
+public class DocumentCacheTest {
+	static final String[] docs = {
+		"<r/>",
+		"<r><a/></r>",
+		"<r x='1'><a y='2'/></r>",
+		"<r xmlns:p='u'><p:a p:k='v'>t</p:a></r>",
+		"<r><a>t</a><b><!--c--><c/></b></r>",
+		"<r><a><b><c><d><e><f>t</f></e></d></c></b></a><g/></r>",
+		"<?xml version='1.0'?><r><a/></r><!--tail-->",
+	};
+
+	static final String[] xpaths = {
+		"//*", "//text()", "//@*", "//*[last()]", "//*[not(*)]", "count(//*)", "string(/r)",
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 48);
+		File dir = File.createTempFile("cache", "");
+		dir.delete();
+		DocumentCache dc = new DocumentCache(dir.getPath());
+		Checker c = new Checker();
+		try {
+			for (int i = 0; i < docs.length + 200; i++) {
+				String doc = i < docs.length ? docs[i] : randomDoc(rand);
+				byte[] ba = doc.getBytes("UTF-8");
+				try {
+					String expected = dump(dc.getNav(ba, true));
+					VTDNav vn = dc.attach(DocumentCache.key(ba, true));
+					c.check(doc, vn != null && expected.equals(dump(vn)));
+				} catch (Exception e) {
+					c.fail(doc, e);
+				}
+			}
+			c.check("overWrite", overWrite(dc));
+		} finally {
+			File[] fs = dir.listFiles();
+			for (int i = 0; i < fs.length; i++)
+				fs[i].delete();
+			dir.delete();
+		}
+		c.done();
+	}
+
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else if (xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToString());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		int t = vn.getText();
+		sb.append(vn.toString(vn.getCurrentIndex())).append(" text ")
+			.append(t == -1 ? "-" : vn.toString(t)).append(" attrs ")
+			.append(vn.getAttrCount()).append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		for (int i = rand.nextInt(4); i > 0; i--) {
+			if (rand.nextInt(4) == 0) {
+				sb.append("t").append(rand.nextInt(10));
+				continue;
+			}
+			String name = rand.nextBoolean() ? "e" + rand.nextInt(3) : "x:e";
+			sb.append('<').append(name);
+			if (name.startsWith("x"))
+				sb.append(" xmlns:x='u").append(depth).append('\'');
+			if (rand.nextBoolean())
+				sb.append(" a='").append(i).append('\'');
+			if (depth > 6 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+
+	static boolean overWrite(DocumentCache dc) throws Exception {
+		byte[] ba = "<r><a>text</a><b/></r>".getBytes("UTF-8");
+		String key = DocumentCache.key(ba, false);
+		dc.getNav(ba, false);
+		VTDNav vn1 = dc.attach(key);
+		VTDNav vn2 = dc.attach(key);
+		vn1.toElement(VTDNav.FC);
+		vn2.toElement(VTDNav.FC);
+		if (!vn1.overWrite(vn1.getText(), "TEXT".getBytes("UTF-8")))
+			return false;
+		return vn1.toString(vn1.getText()).equals("TEXT")
+				&& vn2.toString(vn2.getText()).equals("text")
+				&& dc.remove(key) && dc.attach(key) == null;
+	}
+}
@@ -0,0 +1,300 @@
+package DOMTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Parses random documents after setExpectedTokenCount() with no hint,
+ * hints far too small, exact, far too large and beyond the 1M entries
+ * cap, with and without LC entry counts, with 3 and 5 levels of location
+ * caches, through setDoc() and setDoc_BR(): the pages must be as large as
+ * the hint asks for, never smaller than the default ones, and the
+ * records, location caches and XPath results must be those of a parse
+ * without hint. The hint only applies to the next document, even one
+ * that setDoc_BR() parses in the buffers of the previous one, while
+ * getBytesPerToken() learns from every document parsed and sizes the
+ * next one; setBytesPerToken(0) goes back to the default sizes.
+ */
+public class ExpectedTokenCountTest {
+	static final String[] xpaths = { "//*", "//@*", "//text()", "/r/*[2]//*", "count(//*)" };
+
+	// the buffers of VTDGen are protected
+	static class Gen extends VTDGen {
+		int[] pages() {
+			return new int[] { VTDBuffer.getPageSize(), l1Buffer.getPageSize(), l2Buffer.getPageSize(),
+					shallowDepth ? l3Buffer.getPageSize() : 0 };
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 47);
+		Checker c = new Checker();
+		c.check("negative", negative());
+		for (int n = 0; n < 200; n++) {
+			int lc = n % 2 == 0 ? 3 : 5;
+			boolean br = (n / 2) % 2 == 0;
+			String name = "doc " + n + " lc " + lc + (br ? " reuse" : "");
+			try {
+				c.check(name, hint(rand, randomDoc(rand, 1 + rand.nextInt(n < 180 ? 300 : 20000)), lc, br));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		for (int n = 0; n < 20; n++) {
+			String name = "reused " + n + " lc " + (n % 2 == 0 ? 3 : 5);
+			try {
+				c.check(name, reused(randomDoc(rand, 1 + rand.nextInt(3000)), n % 2 == 0 ? 3 : 5));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		for (int n = 0; n < 20; n++) {
+			String name = "learned " + n;
+			try {
+				c.check(name, learned(rand));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		c.done();
+	}
+
+	static boolean negative() {
+		int[][] args = { { -1, 0, 0, 0 }, { 0, -1, 0, 0 }, { 0, 0, -1, 0 }, { 0, 0, 0, -1 } };
+		for (int i = 0; i < args.length; i++) {
+			try {
+				new VTDGen().setExpectedTokenCount(args[i][0], args[i][1], args[i][2], args[i][3]);
+				return false;
+			} catch (IllegalArgumentException e) {
+				// refused
+			}
+		}
+		try {
+			new VTDGen().setBytesPerToken(-1);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	static boolean hint(Random rand, byte[] doc, int lc, boolean br) throws Exception {
+		Gen plain = new Gen();
+		plain.selectLcDepth(lc);
+		// setDoc_BR() has defaults of its own
+		if (br)
+			plain.setDoc_BR(doc);
+		else
+			plain.setDoc(doc);
+		int[] defaults = plain.pages();
+		plain.parse(true);
+		VTDNav vn = plain.getNav();
+		int[] counts = counts(vn);
+		String expected = dump(vn);
+
+		// the hint for the records, then those for the LCs
+		int[] hints = new int[4];
+		int kind = rand.nextInt(5);
+		for (int i = 0; i < 4; i++) {
+			switch (kind) {
+			case 0:
+				hints[i] = 0;
+				break;
+			case 1:
+				hints[i] = Math.min(counts[i], 1 + rand.nextInt(10));
+				break;
+			case 2:
+				hints[i] = counts[i];
+				break;
+			case 3:
+				hints[i] = counts[i] * (10 + rand.nextInt(100));
+				break;
+			default:
+				hints[i] = (1 << 23) + rand.nextInt(1 << 23);
+			}
+			if (i > 0 && rand.nextBoolean())
+				hints[i] = 0;
+		}
+		Gen g = new Gen();
+		g.selectLcDepth(lc);
+		g.setExpectedTokenCount(hints[0], hints[1], hints[2], hints[3]);
+		if (br)
+			g.setDoc_BR(doc);
+		else
+			g.setDoc(doc);
+		int[] pages = g.pages();
+		// the LC depth of 5 keeps L3 in a buffer of its own
+		for (int i = 0; i < (lc == 3 ? 4 : 3); i++)
+			if (pages[i] != expectedPage(defaults[i], hints[i]))
+				return false;
+		g.parse(true);
+		if (!expected.equals(dump(g.getNav())))
+			return false;
+
+		// the next document starts from the learned density, not from the
+		// hint, and from the defaults once that is dropped
+		g.setBytesPerToken(0);
+		if (br)
+			g.setDoc_BR(doc);
+		else {
+			g.setDoc(doc);
+			int[] again = g.pages();
+			for (int i = 0; i < 4; i++)
+				if (again[i] != defaults[i])
+					return false;
+		}
+		g.parse(true);
+		return expected.equals(dump(g.getNav()));
+	}
+
+	// setDoc_BR() keeps the buffers it has, the hint is dropped all the same
+	static boolean reused(byte[] doc, int lc) throws Exception {
+		Gen plain = new Gen();
+		plain.selectLcDepth(lc);
+		plain.setDoc(doc);
+		int[] defaults = plain.pages();
+		plain.parse(true);
+		String expected = dump(plain.getNav());
+
+		Gen g = new Gen();
+		g.selectLcDepth(lc);
+		g.setDoc_BR(doc);
+		int[] pages = g.pages();
+		g.parse(true);
+		g.getNav();
+		g.setExpectedTokenCount(1 << 24, 1 << 24, 1 << 24, 1 << 24);
+		g.setDoc_BR(doc);
+		if (!Arrays.equals(pages, g.pages()))
+			return false;
+		g.parse(true);
+		if (!expected.equals(dump(g.getNav())))
+			return false;
+		g.setBytesPerToken(0);
+		g.setDoc(doc);
+		return Arrays.equals(defaults, g.pages());
+	}
+
+	// the density of each document parsed is averaged with that of the
+	// previous ones, a document of the same density gets pages sized for
+	// its records
+	static boolean learned(Random rand) throws Exception {
+		Gen g = new Gen();
+		if (g.getBytesPerToken() != 0)
+			return false;
+		byte[] first = randomDoc(rand, 2000 + rand.nextInt(20000));
+		g.setDoc(first);
+		g.parse(true);
+		double b1 = (double) first.length / g.getNav().getTokenCount();
+		if (g.getBytesPerToken() != b1)
+			return false;
+		byte[] second = randomDoc(rand, 2000 + rand.nextInt(20000));
+		g.setDoc(second);
+		g.parse(true);
+		double b2 = (b1 + (double) second.length / g.getNav().getTokenCount()) / 2;
+		if (Math.abs(g.getBytesPerToken() - b2) > 1e-9)
+			return false;
+
+		Gen plain = new Gen();
+		plain.setDoc(second);
+		int[] defaults = plain.pages();
+		g.setDoc(second);
+		long n = (long) (second.length / b2 * 1.1);
+		if (g.pages()[0] != expectedPage(defaults[0], n))
+			return false;
+		g.parse(true);
+		plain.parse(true);
+		return dump(plain.getNav()).equals(dump(g.getNav()));
+	}
+
+	// the records, then the elements of the levels of the LCs
+	static int[] counts(VTDNav vn) throws Exception {
+		int l1 = (int) count(vn, "count(/*/*)"), l2 = (int) count(vn, "count(/*/*/*)"),
+				l3 = (int) count(vn, "count(/*/*/*/*)");
+		return new int[] { vn.getTokenCount(), l1, l2, l3 };
+	}
+
+	// the default page, grown until the expected entries fit in 8 pages,
+	// up to 1M entries
+	static int expectedPage(int page, long expected) {
+		while (page < 1 << 20 && 8L * page < expected)
+			page <<= 1;
+		return page;
+	}
+
+	static double count(VTDNav vn, String xpath) throws Exception {
+		vn.toElement(VTDNav.ROOT);
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath(xpath);
+		return ap.evalXPathToNumber();
+	}
+
+	// the records, then a walk over the location caches, then the XPaths
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append('\n');
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// first and last children both ways, so that every level of the
+	// location caches is used
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		sb.append(vn.getCurrentIndex());
+		if (vn.toElement(VTDNav.LC)) {
+			sb.append(" last ").append(vn.getCurrentIndex());
+			vn.toElement(VTDNav.P);
+		}
+		sb.append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	// about the given number of elements, up to 6 levels deep
+	static byte[] randomDoc(Random rand, int elements) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		int[] left = { elements };
+		while (left[0] > 0)
+			element(rand, sb, 1, left);
+		return sb.append("</r>").toString().getBytes("UTF-8");
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth, int[] left) {
+		left[0]--;
+		String name = "e" + rand.nextInt(3);
+		sb.append('<').append(name);
+		if (rand.nextBoolean())
+			sb.append(" a='").append(left[0]).append('\'');
+		if (depth > 5 || left[0] <= 0 || rand.nextInt(3) == 0) {
+			sb.append("/>");
+			return;
+		}
+		sb.append('>');
+		if (rand.nextBoolean())
+			sb.append("t").append(rand.nextInt(100));
+		for (int i = rand.nextInt(5); i > 0 && left[0] > 0; i--)
+			element(rand, sb, depth + 1, left);
+		sb.append("</").append(name).append('>');
+	}
+}
@@ -0,0 +1,243 @@
+package DOMTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+import com.ximpleware.extended.*;
+
+/**
+ * Parses random documents nested deeper than VTDGenHuge.MAX_DEPTH and
+ * with text, CDATA, comments and attribute values longer than
+ * MAX_TOKEN_LENGTH with the extended records of VTDGenHuge, and checks
+ * them against VTDGen, whose records hold them: same records, same walk
+ * over the elements both ways with their text and attributes, same XPath
+ * results. Without the extended records, the default, deep documents and
+ * long attribute values fail to parse, while long text, CDATA and
+ * comments are split into several records which must read, navigate and
+ * select as one token.
+ */
+public class ExtendedRecordsTest {
+	static final String[] xpaths = { "//*", "//text()", "//@a", "//s[@a > 50]/text()", "//*[text()]",
+			"//*[last()]/text()", "count(//*)", "//text()[string-length(.) > 1000]",
+			"count(//text()[string-length(.) > 1000])" };
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 49);
+		Checker c = new Checker();
+		for (int n = 0; n < 40; n++) {
+			// shallow and long, deep and short, deep and long
+			boolean deep = n % 3 != 0, longTokens = n % 3 != 1, longAttr = longTokens && n % 2 == 0;
+			int depth = deep ? VTDGenHuge.MAX_DEPTH + 1 + rand.nextInt(200) : 1 + rand.nextInt(VTDGenHuge.MAX_DEPTH);
+			byte[] doc = randomDoc(rand, depth, longTokens, longAttr);
+			VTDGen vg = new VTDGen();
+			vg.setDoc(doc);
+			vg.parse(true);
+			VTDNav vn = vg.getNav();
+			String name = "doc " + n + " depth " + depth + (longTokens ? " long" : "") + (longAttr ? " attribute" : "");
+			try {
+				VTDGenHuge vgh = new VTDGenHuge();
+				vgh.enableExtendedRecords(true);
+				vgh.setDoc(new XMLBuffer(doc));
+				vgh.parse(true);
+				VTDNavHuge vnh = vgh.getNav();
+				c.check(name, records(vn).equals(records(vnh)) && dump(vn).equals(dump(vnh)));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+			name += " not extended";
+			try {
+				VTDGenHuge vgh = new VTDGenHuge();
+				vgh.setDoc(new XMLBuffer(doc));
+				try {
+					vgh.parse(true);
+				} catch (ParseExceptionHuge e) {
+					c.check(name, deep || longAttr);
+					continue;
+				}
+				VTDNavHuge vnh = vgh.getNav();
+				c.check(name, !deep && !longAttr && dump(vn).equals(dump(vnh))
+						&& (!longTokens || vnh.getTokenCount() > vn.getTokenCount()));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		c.done();
+	}
+
+	static String records(VTDNav vn) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append('\n');
+		return sb.toString();
+	}
+
+	static String records(VTDNavHuge vn) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append('\n');
+		return sb.toString();
+	}
+
+	// the walk and XPath results as strings, which split records leave
+	// alone: indexes only mark what was found
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count") || xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(vn.getCurrentDepth()).append(' ').append(text(vn.toString(j)));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static String dump(VTDNavHuge vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		vn.toElement(VTDNavHuge.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNavHuge.ROOT);
+			AutoPilotHuge ap = new AutoPilotHuge(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count") || xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(vn.getCurrentDepth()).append(' ').append(text(vn.toString(j)));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// children first to last then last to first, each with its depth,
+	// text and attribute
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		int t = vn.getText(), a = vn.getAttrVal("a");
+		sb.append(vn.getCurrentDepth()).append(' ').append(vn.toString(vn.getCurrentIndex())).append(' ')
+			.append(t == -1 ? "-" : text(vn.toString(t))).append(' ').append(a == -1 ? "-" : text(vn.toString(a)))
+			.append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+		if (vn.toElement(VTDNav.LC)) {
+			do {
+				sb.append(' ').append(vn.toString(vn.getCurrentIndex()));
+			} while (vn.toElement(VTDNav.PS));
+			sb.append('\n');
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	static void walk(VTDNavHuge vn, StringBuilder sb) throws Exception {
+		int t = vn.getText(), a = vn.getAttrVal("a");
+		sb.append(vn.getCurrentDepth()).append(' ').append(vn.toString(vn.getCurrentIndex())).append(' ')
+			.append(t == -1 ? "-" : text(vn.toString(t))).append(' ').append(a == -1 ? "-" : text(vn.toString(a)))
+			.append('\n');
+		if (vn.toElement(VTDNavHuge.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNavHuge.NS));
+			vn.toElement(VTDNavHuge.P);
+		}
+		if (vn.toElement(VTDNavHuge.LC)) {
+			do {
+				sb.append(' ').append(vn.toString(vn.getCurrentIndex()));
+			} while (vn.toElement(VTDNavHuge.PS));
+			sb.append('\n');
+			vn.toElement(VTDNavHuge.P);
+		}
+	}
+
+	// long strings by their length and ends
+	static String text(String s) {
+		if (s.length() < 100)
+			return s;
+		return s.length() + ":" + s.substring(0, 20) + "..." + s.substring(s.length() - 20);
+	}
+
+	// a chain of elements the given depth, some with siblings, text,
+	// CDATA and comments, a few of those longer than MAX_TOKEN_LENGTH
+	static byte[] randomDoc(Random rand, int depth, boolean longTokens, boolean longAttr) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		int[] longs = { longTokens ? 1 + rand.nextInt(3) : 0, longAttr ? 1 : 0 };
+		element(rand, sb, 1, depth, longs);
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	static void element(Random rand, StringBuilder sb, int level, int depth, int[] longs) {
+		String name = "e" + rand.nextInt(3);
+		sb.append('<').append(name);
+		if (rand.nextBoolean())
+			sb.append(" a='").append(level).append('\'');
+		else if (longs[1] > 0 && rand.nextInt(depth) < 3) {
+			longs[1]--;
+			sb.append(" a='").append(longString(rand, 'v')).append('\'');
+		}
+		sb.append('>');
+		content(rand, sb, depth, longs);
+		if (level < depth)
+			element(rand, sb, level + 1, depth, longs);
+		else
+			// whatever is left goes to the deepest element
+			while (longs[0] > 0 || longs[1] > 0) {
+				if (longs[1] > 0) {
+					longs[1]--;
+					sb.append("<l a='").append(longString(rand, 'w')).append("'/>");
+				} else
+					content(rand, sb, 1, longs);
+			}
+		content(rand, sb, depth, longs);
+		sb.append("</").append(name).append('>');
+	}
+
+	static void content(Random rand, StringBuilder sb, int depth, int[] longs) {
+		for (int i = rand.nextInt(3); i >= 0; i--) {
+			boolean l = longs[0] > 0 && rand.nextInt(depth) < 2;
+			if (l)
+				longs[0]--;
+			switch (rand.nextInt(4)) {
+			case 0:
+				sb.append(l ? longString(rand, 't') : "t" + rand.nextInt(100));
+				break;
+			case 1:
+				sb.append("<![CDATA[").append(l ? longString(rand, 'c') : "c" + rand.nextInt(100)).append("]]>");
+				break;
+			case 2:
+				sb.append("<!--").append(l ? longString(rand, 'm') : "m" + rand.nextInt(100)).append("-->");
+				break;
+			default:
+				sb.append("<s a='").append(rand.nextInt(100)).append("'>s").append(rand.nextInt(100)).append("</s>");
+				if (l)
+					longs[0]++;
+			}
+		}
+	}
+
+	// between MAX_TOKEN_LENGTH and 4 times that, which VTDGen records as is
+	static String longString(Random rand, char c) {
+		char[] ca = new char[VTDGenHuge.MAX_TOKEN_LENGTH + 1 + rand.nextInt(3 * VTDGenHuge.MAX_TOKEN_LENGTH)];
+		Arrays.fill(ca, c);
+		for (int i = 0; i < 100; i++)
+			ca[rand.nextInt(ca.length)] = (char) ('0' + rand.nextInt(10));
+		return new String(ca);
+	}
+}
@@ -0,0 +1,367 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.extended.*;
+
+/**
+ * Writes the separate index of documents parsed by VTDGenHuge, in UTF-8,
+ * UTF-16BE and UTF-16LE, with and without namespaces, in memory and memory
+ * mapped, into a file and into a stream, from VTDGenHuge and from
+ * VTDNavHuge, and loads it back with the XML in memory and memory mapped,
+ * verified or not: every index must have the same bytes, and every
+ * VTDNavHuge the same records, location caches, text and XPath results,
+ * and write the same index again. One document takes several pages of
+ * MappedLongBuffer, others need the extended records. A corrupted
+ * section must be rejected when verified, a corrupted header, a truncated
+ * index, or an XML file of another length or with other first or last
+ * 64KB always. MappedLongBuffer and MappedIntBuffer are also checked on
+ * their own, modifyEntry() must not write the file.
+ */
+public class HugeIndexTest {
+	static final String[] encodings = { "UTF-8", "UTF-16BE", "UTF-16LE" };
+	static final String[] xpaths = { "//*", "//x:*", "//@*", "//text()", "/r/*[2]//*", "count(//*)", "string(/r)" };
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 43);
+		File dir = File.createTempFile("hugeindex", "");
+		dir.delete();
+		dir.mkdir();
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 60; n++) {
+				String enc = encodings[n % encodings.length];
+				boolean ns = (n / 3) % 2 == 0;
+				int mode = (n / 6) % 2 == 0 ? VTDGenHuge.IN_MEMORY : VTDGenHuge.MEM_MAPPED;
+				String name = "doc " + n + " " + enc + " ns " + ns + " mode " + mode;
+				try {
+					c.check(name, run(dir, encode(randomDoc(rand, 1 + rand.nextInt(300)), enc), ns, mode, false));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			try {
+				// more than 1M records, several pages of the VTD section
+				c.check("pages", run(dir, encode(randomDoc(rand, 400000), "UTF-8"), true, VTDGenHuge.MEM_MAPPED, false));
+			} catch (Exception e) {
+				c.fail("pages", e);
+			}
+			for (int n = 0; n < 4; n++) {
+				String name = "extended " + n + " " + encodings[n % encodings.length];
+				try {
+					c.check(name, run(dir, encode(extendedDoc(rand), encodings[n % encodings.length]), true,
+							VTDGenHuge.IN_MEMORY, true));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			corrupt(c, dir, rand);
+			for (int n = 0; n < 10; n++) {
+				String name = "mapped buffers " + n;
+				try {
+					c.check(name, mapped(dir, rand, n % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		} finally {
+			File[] fs = dir.listFiles();
+			for (int i = 0; i < fs.length; i++)
+				fs[i].delete();
+			dir.delete();
+		}
+		c.done();
+	}
+
+	static boolean run(File dir, byte[] doc, boolean ns, int mode, boolean extended) throws Exception {
+		File x = write(new File(dir, "doc.xml"), doc), f = new File(dir, "doc.vxl"), g = new File(dir, "nav.vxl");
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.enableExtendedRecords(extended);
+		if (!vg.parseFile(x.getPath(), ns, mode))
+			return false;
+		vg.writeSeparateIndex(f.getPath());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		vg.writeSeparateIndex(bos);
+		byte[] index = read(f);
+		if (!Arrays.equals(index, bos.toByteArray()))
+			return false;
+		VTDNavHuge vn = vg.getNav();
+		vn.writeSeparateIndex(g.getPath());
+		if (!Arrays.equals(index, read(g)))
+			return false;
+		String expected = dump(vn);
+		if (!expected.equals(dump(new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath()))))
+			return false;
+		int[] modes = { VTDGenHuge.IN_MEMORY, VTDGenHuge.MEM_MAPPED };
+		for (int m = 0; m < modes.length; m++)
+			for (int v = 0; v < 2; v++) {
+				VTDNavHuge ln = new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath(), modes[m], v == 1);
+				if (!expected.equals(dump(ln)))
+					return false;
+				bos = new ByteArrayOutputStream();
+				ln.writeSeparateIndex(bos);
+				if (!Arrays.equals(index, bos.toByteArray()))
+					return false;
+			}
+		return true;
+	}
+
+	// a document of more than 128KB, so that its first and last 64KB
+	// don't overlap, with the extended records, whose sections get
+	// corrupted too
+	static void corrupt(Checker c, File dir, Random rand) throws Exception {
+		StringBuilder sb = new StringBuilder(extendedDoc(rand));
+		sb.insert(sb.indexOf(">") + 1, randomDoc(rand, 20000));
+		byte[] doc = encode(sb.toString(), "UTF-8");
+		File x = write(new File(dir, "corrupt.xml"), doc), f = new File(dir, "corrupt.vxl");
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.enableExtendedRecords(true);
+		if (!c.check("corrupt parse", vg.parseFile(x.getPath(), true)))
+			return;
+		vg.writeSeparateIndex(f.getPath());
+		byte[] index = read(f);
+		int[] types = { 2, 3, 4, 5, 8, 9 };
+		for (int i = 0; i < types.length; i++) {
+			write(f, index);
+			flip(f, types[i]);
+			c.check("corrupt section " + types[i] + " verified", !loads(x, f, VTDGenHuge.MEM_MAPPED, true));
+			c.check("corrupt section " + types[i] + " unverified", loads(x, f, VTDGenHuge.MEM_MAPPED, false));
+		}
+		// the root index in the header, then the count of a section entry
+		int[] offsets = { 8, 32 + 16 + 7 };
+		for (int i = 0; i < offsets.length; i++) {
+			byte[] b = (byte[]) index.clone();
+			b[offsets[i]] ^= 1;
+			write(f, b);
+			c.check("corrupt header " + offsets[i], !loads(x, f, VTDGenHuge.IN_MEMORY, false));
+		}
+		write(f, Arrays.copyOf(index, index.length - 8));
+		c.check("truncated index", !loads(x, f, VTDGenHuge.MEM_MAPPED, false));
+
+		write(f, index);
+		c.check("index restored", loads(x, f, VTDGenHuge.MEM_MAPPED, true));
+		int[] at = { 100, doc.length - 100 };
+		for (int i = 0; i < at.length; i++) {
+			byte[] b = (byte[]) doc.clone();
+			b[at[i]] = (byte) (b[at[i]] == ' ' ? 'y' : ' ');
+			write(x, b);
+			c.check("other XML at " + at[i], !loads(x, f, VTDGenHuge.MEM_MAPPED, false));
+		}
+		write(x, Arrays.copyOf(doc, doc.length + 1));
+		c.check("longer XML", !loads(x, f, VTDGenHuge.IN_MEMORY, false));
+	}
+
+	static boolean loads(File x, File f, int mode, boolean verify) throws Exception {
+		try {
+			new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath(), mode, verify);
+			return true;
+		} catch (IndexReadExceptionHuge e) {
+			return false;
+		}
+	}
+
+	// sections of random longs and ints after a few bytes of something
+	// else, across pages of 1M entries for the longs, modified at random
+	static boolean mapped(File dir, Random rand, ByteOrder order) throws Exception {
+		int ls = rand.nextInt(3) == 0 ? (1 << 20) + rand.nextInt(1000) : rand.nextInt(5000);
+		int is = rand.nextInt(5000);
+		long[] lm = new long[ls];
+		int[] im = new int[is];
+		int pos = 8 * (1 + rand.nextInt(4));
+		ByteBuffer bb = ByteBuffer.allocate(pos + ls * 8 + is * 4).order(order);
+		for (int i = 0; i < ls; i++)
+			bb.putLong(pos + i * 8, lm[i] = rand.nextLong());
+		for (int i = 0; i < is; i++)
+			bb.putInt(pos + ls * 8 + i * 4, im[i] = rand.nextInt());
+		File f = write(new File(dir, "mapped.bin"), bb.array());
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedLongBuffer mlb;
+		MappedIntBuffer mib;
+		try {
+			mlb = new MappedLongBuffer(raf.getChannel(), pos, ls, order);
+			mib = new MappedIntBuffer(raf.getChannel(), pos + ls * 8, is, order);
+		} finally {
+			raf.close();
+		}
+		for (int k = 0; k < 200; k++) {
+			if (ls > 0) {
+				int i = rand.nextInt(ls);
+				mlb.modifyEntry(i, lm[i] = rand.nextLong());
+			}
+			if (is > 0) {
+				int i = rand.nextInt(is);
+				mib.modifyEntry(i, im[i] = rand.nextInt());
+			}
+		}
+		if (mlb.size() != ls || mib.size() != is)
+			return false;
+		for (int i = 0; i < ls; i++)
+			if (mlb.longAt(i) != lm[i] || mlb.lower32At(i) != (int) lm[i] || mlb.upper32At(i) != (int) (lm[i] >>> 32))
+				return false;
+		for (int i = 0; i < is; i++)
+			if (mib.intAt(i) != im[i])
+				return false;
+		try {
+			mlb.longAt(ls);
+			return false;
+		} catch (IndexOutOfBoundsException e) {
+			// past the end
+		}
+		return Arrays.equals(bb.array(), read(f));
+	}
+
+	// flips a byte in the middle of the section of the given type
+	static void flip(File f, int type) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			byte[] header = new byte[32];
+			raf.readFully(header);
+			int n = ByteBuffer.wrap(header).getShort(6) & 0xffff;
+			byte[] table = new byte[32 + n * 40];
+			raf.seek(0);
+			raf.readFully(table);
+			ByteBuffer bb = ByteBuffer.wrap(table);
+			for (int i = 0; i < n; i++) {
+				int p = 32 + i * 40;
+				if ((bb.getShort(p) & 0xffff) != type)
+					continue;
+				long o = bb.getLong(p + 24) + bb.getLong(p + 32) / 2;
+				raf.seek(o);
+				int b = raf.read();
+				raf.seek(o);
+				raf.write(b ^ 0x10);
+				return;
+			}
+			throw new IllegalStateException("no section " + type);
+		} finally {
+			raf.close();
+		}
+	}
+
+	static File write(File f, byte[] b) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(b);
+		} finally {
+			raf.close();
+		}
+		return f;
+	}
+
+	static byte[] read(File f) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// a byte order mark, then the document
+	static byte[] encode(String doc, String enc) throws Exception {
+		if (enc.equals("UTF-8"))
+			return doc.getBytes(enc);
+		byte[] b = doc.getBytes(enc), r = new byte[b.length + 2];
+		r[0] = (byte) (enc.equals("UTF-16BE") ? 0xfe : 0xff);
+		r[1] = (byte) (enc.equals("UTF-16BE") ? 0xff : 0xfe);
+		System.arraycopy(b, 0, r, 2, b.length);
+		return r;
+	}
+
+	// the records, then a walk over the location caches, then the XPaths
+	static String dump(VTDNavHuge vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append(vn.getEncoding()).append(' ').append(vn.getTokenCount()).append('\n');
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append('\n');
+		vn.toElement(VTDNavHuge.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNavHuge.ROOT);
+			AutoPilotHuge ap = new AutoPilotHuge(vn);
+			ap.declareXPathNameSpace("x", "ux");
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else if (xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToString().length());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// first and last children both ways, so that every level of the
+	// location caches is used
+	static void walk(VTDNavHuge vn, StringBuilder sb) throws Exception {
+		int t = vn.getText();
+		sb.append(vn.toString(vn.getCurrentIndex())).append(' ').append(t == -1 ? "-" : vn.toString(t)).append('\n');
+		if (vn.toElement(VTDNavHuge.LC)) {
+			sb.append("last ").append(vn.getCurrentIndex()).append('\n');
+			vn.toElement(VTDNavHuge.P);
+		}
+		if (vn.toElement(VTDNavHuge.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNavHuge.NS));
+			vn.toElement(VTDNavHuge.P);
+		}
+	}
+
+	// deeper than VTDGenHuge.MAX_DEPTH, with a text longer than
+	// MAX_TOKEN_LENGTH
+	static String extendedDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r xmlns:x='ux'>");
+		int depth = VTDGenHuge.MAX_DEPTH + 1 + rand.nextInt(10);
+		for (int i = 0; i < depth; i++)
+			sb.append("<x:d a='").append(i).append("'>");
+		char[] ca = new char[VTDGenHuge.MAX_TOKEN_LENGTH + 1 + rand.nextInt(1000)];
+		Arrays.fill(ca, 'x');
+		sb.append(ca);
+		for (int i = 0; i < depth; i++)
+			sb.append("</x:d>");
+		return sb.append("</r>").toString();
+	}
+
+	// about the given number of elements, up to 6 levels deep
+	static String randomDoc(Random rand, int elements) {
+		StringBuilder sb = new StringBuilder("<r xmlns:x='ux'>");
+		int[] left = { elements };
+		while (left[0] > 0)
+			element(rand, sb, 1, left);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth, int[] left) {
+		left[0]--;
+		String name = rand.nextBoolean() ? "e" + rand.nextInt(3) : "x:e";
+		sb.append('<').append(name);
+		if (rand.nextBoolean())
+			sb.append(" x:a='").append(left[0]).append('\'');
+		if (depth > 5 || left[0] <= 0 || rand.nextInt(3) == 0) {
+			sb.append("/>");
+			return;
+		}
+		sb.append('>');
+		if (rand.nextBoolean())
+			sb.append("té").append(rand.nextInt(100));
+		for (int i = rand.nextInt(5); i > 0 && left[0] > 0; i--)
+			element(rand, sb, depth + 1, left);
+		sb.append("</").append(name).append('>');
+	}
+}
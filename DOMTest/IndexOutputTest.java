@@ -0,0 +1,258 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Applies random edits to namespace aware documents in UTF-8 and UTF-16LE
+ * and writes the result with outputAndWriteIndex(),
+ * outputAndWriteSeparateIndex() and outputAndWriteSectionedIndex(),
+ * compressed or not, with 3 and 5 levels of location caches. The index
+ * loaded back, in memory and, when sectioned, memory mapped, and the
+ * VTDNav returned by each call must have the same records, location
+ * caches and XPath results as a full parse of the bytes of output().
+ */
+public class IndexOutputTest {
+	static final String[] inserts = {
+		"<x:i/>", "<x:i x:v='1'>in</x:i>", "<i xmlns='n2'><j/></i>", "s<!--k--><x:i/>", "<?p d?><i/>",
+	};
+
+	static final String[] xpaths = {
+		"//*", "//x:*", "//y:*", "//@x:v", "//text()", "//comment()", "count(//*)", "string(/*)",
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 40);
+		File dir = File.createTempFile("indexout", "");
+		dir.delete();
+		dir.mkdir();
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 200; n++) {
+				String enc = n % 4 == 3 ? "UTF-16LE" : "UTF-8";
+				int lc = rand.nextBoolean() ? 3 : 5;
+				String name = "run " + n + " " + enc + " lc " + lc;
+				try {
+					c.check(name, run(rand, dir, encode(randomDoc(rand), enc), lc));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		} finally {
+			File[] fs = dir.listFiles();
+			for (int i = 0; i < fs.length; i++)
+				fs[i].delete();
+			dir.delete();
+		}
+		c.done();
+	}
+
+	static boolean run(Random rand, File dir, byte[] doc, int lc) throws Exception {
+		int elements = (int) count(parse(doc, lc), "count(//*)");
+		// the element, the kind of edit and the insert of each edit
+		int[][] edits = new int[1 + rand.nextInt(4)][];
+		for (int k = 0; k < edits.length; k++)
+			edits[k] = new int[] { 1 + rand.nextInt(elements), rand.nextInt(6), rand.nextInt(inserts.length) };
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		edit(parse(doc, lc), edits).output(bos);
+		byte[] xml = bos.toByteArray();
+		String expected = dump(parse(xml, lc));
+
+		File vxl = new File(dir, "doc.vxl");
+		FileOutputStream fos = new FileOutputStream(vxl);
+		VTDNav vn;
+		try {
+			vn = edit(parse(doc, lc), edits).outputAndWriteIndex(fos);
+		} finally {
+			fos.close();
+		}
+		if (!expected.equals(dump(vn)) || !expected.equals(dump(new VTDGen().loadIndex(vxl.getPath()))))
+			return false;
+
+		File x = new File(dir, "doc.xml"), vtd = new File(dir, "doc.vtd");
+		FileOutputStream xos = new FileOutputStream(x), ios = new FileOutputStream(vtd);
+		try {
+			vn = edit(parse(doc, lc), edits).outputAndWriteSeparateIndex(xos, ios);
+		} finally {
+			xos.close();
+			ios.close();
+		}
+		if (!Arrays.equals(xml, read(x)) || !expected.equals(dump(vn))
+				|| !expected.equals(dump(new VTDGen().loadSeparateIndex(x.getPath(), vtd.getPath()))))
+			return false;
+
+		File sec = new File(dir, "doc.sec");
+		fos = new FileOutputStream(sec);
+		try {
+			vn = edit(parse(doc, lc), edits).outputAndWriteSectionedIndex(fos, rand.nextBoolean());
+		} finally {
+			fos.close();
+		}
+		return expected.equals(dump(vn))
+				&& expected.equals(dump(new VTDGen().loadIndex(sec.getPath(), VTDGen.IN_MEMORY)))
+				&& expected.equals(dump(new VTDGen().loadIndex(sec.getPath(), VTDGen.MEM_MAPPED)));
+	}
+
+	static XMLModifier edit(VTDNav vn, int[][] edits) throws Exception {
+		XMLModifier xm = new XMLModifier(vn);
+		for (int k = 0; k < edits.length; k++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath("(//*)[" + edits[k][0] + "]");
+			ap.evalXPath();
+			boolean root = vn.getCurrentIndex() == vn.getRootIndex();
+			String s = inserts[edits[k][2]];
+			try {
+				switch (edits[k][1]) {
+				case 0:
+					if (!root)
+						xm.insertBeforeElement(s);
+					break;
+				case 1:
+					if (!root)
+						xm.insertAfterElement(s);
+					break;
+				case 2:
+					// insertAfterHead() takes the offsets of VTDNav, in
+					// units of 2 bytes, as byte offsets in UTF-16
+					if (vn.getEncoding() < VTDNav.FORMAT_UTF_16BE)
+						xm.insertAfterHead(s);
+					break;
+				case 3:
+					if (!root)
+						xm.remove();
+					break;
+				case 4:
+					xm.insertAttribute(" x:w='" + k + "'");
+					break;
+				default:
+					int t = vn.getText();
+					if (t != -1)
+						xm.updateToken(t, "upd" + k);
+				}
+			} catch (ModifyException e) {
+				// the offset already has an edit
+			}
+		}
+		return xm;
+	}
+
+	static VTDNav parse(byte[] doc, int lc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.selectLcDepth(lc);
+		vg.setDoc(doc);
+		vg.parse(true);
+		return vg.getNav();
+	}
+
+	static byte[] read(File f) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// a byte order mark, then the document
+	static byte[] encode(String doc, String enc) throws Exception {
+		if (enc.equals("UTF-8"))
+			return doc.getBytes(enc);
+		byte[] b = doc.getBytes(enc), r = new byte[b.length + 2];
+		r[0] = (byte) 0xff;
+		r[1] = (byte) 0xfe;
+		System.arraycopy(b, 0, r, 2, b.length);
+		return r;
+	}
+
+	static double count(VTDNav vn, String xpath) throws Exception {
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath(xpath);
+		return ap.evalXPathToNumber();
+	}
+
+	// the records, then a walk over the location caches, then the XPaths
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append(vn.getEncoding()).append(' ').append(vn.getTokenCount()).append('\n');
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append(' ')
+				.append(vn.toRawString(i)).append('\n');
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.declareXPathNameSpace("x", "ux");
+			ap.declareXPathNameSpace("y", "n2");
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else if (xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToString());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// first and last children both ways, so that every level of the
+	// location caches is used
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		int t = vn.getText();
+		sb.append(vn.toString(vn.getCurrentIndex())).append(' ').append(t == -1 ? "-" : vn.toString(t))
+			.append(' ').append(vn.getAttrValNS("ux", "v")).append('\n');
+		if (vn.toElement(VTDNav.LC)) {
+			sb.append("last ").append(vn.getCurrentIndex()).append('\n');
+			vn.toElement(VTDNav.P);
+		}
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<doc xmlns:x='ux'>");
+		element(rand, sb, 1);
+		return sb.append("</doc>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		if (rand.nextInt(4) == 0)
+			sb.append("<!--first-->");
+		for (int i = 1 + rand.nextInt(4); i > 0; i--) {
+			if (rand.nextInt(5) == 0) {
+				sb.append("w").append(rand.nextInt(100));
+				continue;
+			}
+			String name = rand.nextBoolean() ? "c" + rand.nextInt(3) : "x:c";
+			sb.append('<').append(name);
+			if (rand.nextBoolean())
+				sb.append(" x:v='").append(i).append('\'');
+			if (depth > 6 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
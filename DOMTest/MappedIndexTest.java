@@ -0,0 +1,267 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Round-trips documents through VTDGen.writeIndex() and
+ * loadIndex(..., MEM_MAPPED), then checks that the token accessors,
+ * navigation in every direction, fragments, TextIter, XPath and
+ * XMLModifier give the same answers as on the parsed document. The
+ * documents end in empty elements, attributes, comments and
+ * processing instructions, so that the reads one record ahead of the
+ * cursor reach the last VTD record, where the mapped buffers have no
+ * slack to read into.
+ */
+public class MappedIndexTest {
+	static final String[] docs = {
+		"<r><a/></r>",
+		"<r/>",
+		"<r x='1'/>",
+		"<r>t</r>",
+		"<r><![CDATA[c]]></r>",
+		"<r><a/><b/></r>",
+		"<r><a><b/></a></r>",
+		"<r x='1'><a y='2'/></r>",
+		"<r>t<a/></r>",
+		"<r><a>t</a><b><!--c--><c/></b></r>",
+		"<r><a><b><c><d><e><f/></e></d></c></b></a></r>",
+		"<r><a><b><c><d><e><f>t</f></e></d></c></b></a><g/></r>",
+		"<?xml version='1.0'?><r><a/></r><!--tail-->",
+		"<r/><?pi?>",
+		"<r/><?pi 5?>",
+		"<r><?pi?>5</r>",
+		"<r xmlns:p='u'><p:a p:k='v'><b/></p:a></r>",
+		"<?xml version='1.0'?><!--h--><?p 1?><r>t<?q 2?></r><?z?>",
+	};
+
+	static final String[] xpaths = {
+		"//*", "//text()", "//@*", "//*[last()]", "/r/*[1]",
+		"//*[not(*)]", "//*/following-sibling::*", "//*/preceding::*",
+		"//*[text()]", "//node()", "//comment()", "//processing-instruction()",
+		"count(//*)", "string(/r)", "number(//processing-instruction())",
+		"string(//processing-instruction())", "sum(//processing-instruction())",
+		"number(//processing-instruction() | //comment())",
+		"string((//processing-instruction())[last()])",
+		"starts-with(//processing-instruction(), '5')",
+	};
+
+	static final int[] directions = {
+		VTDNav.ROOT, VTDNav.P, VTDNav.FC, VTDNav.LC, VTDNav.NS, VTDNav.PS
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 31);
+		Checker c = new Checker();
+		for (int i = 0; i < docs.length + 200; i++) {
+			String doc = i < docs.length ? docs[i] : randomDoc(rand);
+			for (int lc = 3; lc <= 5; lc += 2) {
+				String name = "lc=" + lc + " " + doc;
+				try {
+					String expected = dump(parse(doc, lc));
+					c.check(name, expected.equals(dump(mapped(doc, lc))));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		}
+		piValues(c);
+		c.done();
+	}
+
+	// a processing instruction without a value has an empty string value,
+	// the token that follows it is not its value
+	static void piValues(Checker c) throws Exception {
+		String[] docs = { "<r><?pi?>5</r>", "<r/><?pi?>" };
+		for (int i = 0; i < docs.length; i++) {
+			for (int m = 0; m < 2; m++) {
+				VTDNav vn = m == 0 ? parse(docs[i], 3) : mapped(docs[i], 3);
+				AutoPilot ap = new AutoPilot(vn);
+				ap.selectXPath("number(//processing-instruction())");
+				c.check("number " + docs[i], Double.isNaN(ap.evalXPathToNumber()));
+				ap.selectXPath("string(//processing-instruction())");
+				c.check("string " + docs[i], ap.evalXPathToString().length() == 0);
+				ap.selectXPath("starts-with(//processing-instruction(), '5')");
+				c.check("starts-with " + docs[i], !ap.evalXPathToBoolean());
+			}
+		}
+	}
+
+	static VTDNav parse(String doc, int lc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.selectLcDepth(lc);
+		vg.setDoc(doc.getBytes("UTF-8"));
+		vg.parse(true);
+		return vg.getNav();
+	}
+
+	static VTDNav mapped(String doc, int lc) throws Exception {
+		File f = File.createTempFile("mapped", ".vxl");
+		try {
+			VTDGen vg = new VTDGen();
+			vg.selectLcDepth(lc);
+			vg.setDoc(doc.getBytes("UTF-8"));
+			vg.parse(true);
+			vg.writeIndex(f.getPath());
+			return new VTDGen().loadIndex(f.getPath(), VTDGen.MEM_MAPPED);
+		} finally {
+			f.delete();
+		}
+	}
+
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		tokens(vn, sb);
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		vn.toElement(VTDNav.ROOT);
+		if (vn.toElement(VTDNav.LC)) {
+			// climb back up from the last leaf
+			sb.append("lc ").append(vn.getCurrentIndex());
+			while (vn.toElement(VTDNav.LC))
+				sb.append(' ').append(vn.getCurrentIndex());
+			sb.append(" text ").append(vn.getText());
+			while (vn.toElement(VTDNav.P))
+				sb.append(" p ").append(vn.getCurrentIndex());
+			sb.append('\n');
+		}
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count") || xpaths[i].startsWith("number")
+					|| xpaths[i].startsWith("sum"))
+				sb.append(ap.evalXPathToNumber());
+			else if (xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToString());
+			else if (xpaths[i].startsWith("starts-with"))
+				sb.append(ap.evalXPathToBoolean());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		modify(vn, sb);
+		return sb.toString();
+	}
+
+	static void tokens(VTDNav vn, StringBuilder sb) throws Exception {
+		for (int i = 0; i < vn.getTokenCount(); i++) {
+			sb.append(i).append(' ').append(vn.getTokenType(i)).append(' ')
+				.append(vn.getTokenDepth(i)).append(' ').append(vn.getTokenOffset(i))
+				.append(' ').append(vn.getTokenLength(i)).append(' ')
+				.append(vn.toString(i)).append('|').append(vn.toRawString(i)).append('|')
+				.append(vn.toNormalizedString(i)).append(' ')
+				.append(vn.getStringLength(i)).append(' ')
+				.append(vn.getRawStringLength(i)).append('\n');
+		}
+	}
+
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		int index = vn.getCurrentIndex();
+		long l = vn.getElementFragment(), k = vn.getContentFragment();
+		sb.append(index).append(' ').append(vn.toString(index))
+			.append(" text ").append(vn.getText())
+			.append(" attrs ").append(vn.getAttrCount())
+			.append(" fragment ").append(l).append(' ').append(k)
+			.append(' ').append(new String(vn.getElementFragmentNs().toBytes(), "UTF-8"));
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectAttr("*");
+		int i;
+		while ((i = ap.iterateAttr()) != -1)
+			sb.append(' ').append(vn.toString(i)).append('=').append(vn.toString(i + 1));
+		TextIter ti = new TextIter();
+		ti.touch(vn);
+		ti.selectNode();
+		sb.append(" nodes");
+		while ((i = ti.getNext()) != -1)
+			sb.append(' ').append(i);
+		for (int d = 0; d < directions.length; d++) {
+			vn.push();
+			sb.append(" to").append(directions[d]).append(' ');
+			sb.append(vn.toElement(directions[d]) ? vn.getCurrentIndex() : -1);
+			vn.pop();
+		}
+		sb.append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	// remove the last leaf element and rewrite the last attribute value
+	static void modify(VTDNav vn, StringBuilder sb) throws Exception {
+		XMLModifier xm = new XMLModifier(vn);
+		vn.toElement(VTDNav.ROOT);
+		while (vn.toElement(VTDNav.LC))
+			;
+		int a = -1;
+		for (int i = vn.getTokenCount() - 1; i >= 0 && a == -1; i--)
+			if (vn.getTokenType(i) == VTDNav.TOKEN_ATTR_VAL)
+				a = i;
+		if (vn.getCurrentIndex() != vn.getRootIndex())
+			xm.remove();
+		if (a != -1)
+			xm.updateToken(a, "new");
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		xm.output(os);
+		sb.append(os.toString("UTF-8")).append('\n');
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1);
+		sb.append("</r>");
+		switch (rand.nextInt(4)) {
+		case 0:
+			sb.append("<?pi?>");
+			break;
+		case 1:
+			sb.append("<?pi ").append(rand.nextInt(10)).append("?>");
+			break;
+		case 2:
+			sb.append("<!--tail-->");
+			break;
+		default:
+			break;
+		}
+		return sb.toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		int n = rand.nextInt(4);
+		for (int i = 0; i < n; i++) {
+			switch (rand.nextInt(5)) {
+			case 0:
+				sb.append("t").append(i);
+				break;
+			case 1:
+				sb.append("<!--c-->");
+				break;
+			case 2:
+				sb.append(rand.nextBoolean() ? "<?p?>" : "<?p 1?>");
+				break;
+			default:
+				String name = "e" + rand.nextInt(3);
+				sb.append('<').append(name);
+				if (rand.nextBoolean())
+					sb.append(" a='").append(i).append('\'');
+				if (depth > 7 || rand.nextInt(3) == 0)
+					sb.append("/>");
+				else {
+					sb.append('>');
+					element(rand, sb, depth + 1);
+					sb.append("</").append(name).append('>');
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Checks the one-insert and one-deletion-per-offset rules of XMLModifier
+ * against a model, across transactions that are committed or rolled
+ * back. Rolling back removes the offsets of the transaction from the
+ * open addressing hash sets of the modifier, so thousands of removals
+ * run through clustered probe sequences; every offset must still be
+ * found exactly when the model holds it, and output() must apply
+ * exactly the committed edits.
+ */
+public class ModifierUniquenessTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 26);
+		Checker c = new Checker();
+		// mostly small documents, whose small tables make the probe
+		// sequences wrap around the end of the table more often
+		for (int n = 0; n < 300; n++) {
+			String name = "run " + n;
+			try {
+				c.check(name, run(rand, 50 + rand.nextInt(n < 250 ? 500 : 8000)));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		c.done();
+	}
+
+	// inserts go to even offsets, deletions of one byte to odd ones
+	static boolean run(Random rand, int len) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < len; i++)
+			sb.append((char) ('a' + i % 26));
+		byte[] doc = sb.append("</r>").toString().getBytes("UTF-8");
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(false);
+		XMLModifier xm = new XMLModifier(vg.getNav());
+		HashSet<Integer> committed = new HashSet<Integer>();
+		for (int round = 0; round < 30; round++) {
+			boolean tx = rand.nextInt(4) != 0;
+			if (tx)
+				xm.begin();
+			HashSet<Integer> pending = new HashSet<Integer>();
+			for (int k = rand.nextInt(len); k > 0; k--) {
+				int o = 3 + rand.nextInt(len);
+				boolean unique = !committed.contains(o) && !pending.contains(o);
+				if (edit(xm, o) != unique)
+					return false;
+				pending.add(o);
+			}
+			if (!tx || rand.nextBoolean()) {
+				if (tx)
+					xm.commit();
+				committed.addAll(pending);
+			} else
+				xm.rollback();
+		}
+		// every offset, then all of them removed again
+		xm.begin();
+		for (int o = 3; o < len + 3; o++)
+			if (edit(xm, o) == committed.contains(o))
+				return false;
+		xm.rollback();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		xm.output(os);
+		return os.toString("UTF-8").equals(expected(doc, committed));
+	}
+
+	// true if the edit was accepted, false if its offset was taken
+	static boolean edit(XMLModifier xm, int o) throws Exception {
+		try {
+			if ((o & 1) == 0)
+				xm.insertBytesAt(o, ("[" + o + "]").getBytes("UTF-8"));
+			else
+				xm.removeContent(o, 1);
+			return true;
+		} catch (ModifyException e) {
+			return false;
+		}
+	}
+
+	static String expected(byte[] doc, HashSet<Integer> edits) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < doc.length; i++) {
+			if (!edits.contains(i))
+				sb.append((char) doc[i]);
+			else if ((i & 1) == 0)
+				sb.append('[').append(i).append(']').append((char) doc[i]);
+		}
+		return sb.toString();
+	}
+}
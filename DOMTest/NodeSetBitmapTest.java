@@ -0,0 +1,173 @@
+package DOMTest;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import com.ximpleware.*;
+
+/**
+ * Checks NodeSetBitmap against a TreeSet model: membership, iteration
+ * and the results of or(), and() and andNot() on chunks that are empty,
+ * sparse, just below and above the switch from a sorted array to a
+ * bitmap, and dense, and that results going back under the switch are
+ * stored as arrays again. Also checks evalXPathToBitmap() against
+ * evalXPath().
+ */
+public class NodeSetBitmapTest {
+	static final int CHUNKS = 3;
+	static final int TOKENS = CHUNKS << 16;
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 27);
+		Checker c = new Checker();
+		for (int n = 0; n < 60; n++) {
+			TreeSet<Integer> ma = new TreeSet<Integer>(), mb = new TreeSet<Integer>();
+			NodeSetBitmap a = build(rand, ma), b = build(rand, mb);
+			if (!c.check("build " + n, a != null && b != null && same(rand, a, ma) && same(rand, b, mb)))
+				continue;
+			for (int op = 0; op < 3; op++) {
+				NodeSetBitmap r = copy(a);
+				TreeSet<Integer> mr = new TreeSet<Integer>(ma);
+				if (op == 0) {
+					r.or(b);
+					mr.addAll(mb);
+				} else if (op == 1) {
+					r.and(b);
+					mr.retainAll(mb);
+				} else {
+					r.andNot(b);
+					mr.removeAll(mb);
+				}
+				c.check("op " + op + " run " + n, same(rand, r, mr) && same(rand, b, mb));
+			}
+		}
+		forms(c);
+		xpath(c, rand);
+		c.done();
+	}
+
+	// chunks with a random density each, null if add() disagrees with the model
+	static NodeSetBitmap build(Random rand, TreeSet<Integer> m) {
+		NodeSetBitmap nsb = new NodeSetBitmap(TOKENS);
+		for (int k = 0; k < CHUNKS; k++) {
+			int count;
+			switch (rand.nextInt(5)) {
+			case 0:
+				count = 0;
+				break;
+			case 1:
+				count = 1 + rand.nextInt(20);
+				break;
+			case 2:
+				count = 4090 + rand.nextInt(12);
+				break;
+			case 3:
+				count = 20000 + rand.nextInt(40000);
+				break;
+			default:
+				count = rand.nextInt(8000);
+			}
+			while (count-- > 0) {
+				int i = (k << 16) | rand.nextInt(1 << 16);
+				if (nsb.add(i) != m.add(Integer.valueOf(i)))
+					return null;
+			}
+		}
+		return nsb;
+	}
+
+	static NodeSetBitmap copy(NodeSetBitmap nsb) {
+		NodeSetBitmap r = new NodeSetBitmap(TOKENS);
+		for (int i = nsb.nextNode(0); i != -1; i = nsb.nextNode(i + 1))
+			r.add(i);
+		return r;
+	}
+
+	static boolean same(Random rand, NodeSetBitmap nsb, TreeSet<Integer> m) {
+		if (nsb.cardinality() != m.size() || nsb.isEmpty() != m.isEmpty())
+			return false;
+		int[] ia = nsb.toIntArray();
+		FastIntBuffer fib = new FastIntBuffer(4);
+		nsb.appendTo(fib);
+		if (ia.length != m.size() || fib.size() != m.size())
+			return false;
+		Iterator<Integer> it = m.iterator();
+		for (int j = 0; j < ia.length; j++) {
+			int i = it.next().intValue();
+			if (ia[j] != i || fib.intAt(j) != i || !nsb.contains(i))
+				return false;
+		}
+		for (int j = 0; j < 2000; j++) {
+			int i = rand.nextInt(TOKENS + 100);
+			Integer next = m.ceiling(Integer.valueOf(i));
+			if (nsb.contains(i) != m.contains(Integer.valueOf(i))
+					|| nsb.nextNode(i) != (next == null ? -1 : next.intValue()))
+				return false;
+		}
+		return true;
+	}
+
+	// a chunk is a bitmap above 4096 members and an array at or below
+	static void forms(Checker c) {
+		long empty = new NodeSetBitmap(TOKENS).sizeInBytes(), bitmap = empty + 16 + 8 * 1024;
+		NodeSetBitmap a = new NodeSetBitmap(TOKENS), b = new NodeSetBitmap(TOKENS);
+		for (int i = 0; i < 4096; i++) {
+			a.add(2 * i);
+			b.add(2 * i + 1);
+		}
+		c.check("array at 4096", a.sizeInBytes() <= empty + 16 + 2 * 4096);
+		NodeSetBitmap d = copy(a);
+		d.add(1);
+		c.check("bitmap at 4097", d.sizeInBytes() == bitmap && d.cardinality() == 4097);
+		a.or(b);
+		c.check("or of arrays", a.cardinality() == 8192 && a.sizeInBytes() == bitmap);
+		// 4095 members, an array of 4096 chars would be as large as a bitmap
+		d = copy(a);
+		b.add(0);
+		d.andNot(b);
+		c.check("andNot to array", d.cardinality() == 4095 && d.sizeInBytes() < bitmap
+				&& d.contains(2) && !d.contains(0) && !d.contains(1));
+		d = copy(a);
+		NodeSetBitmap e = new NodeSetBitmap(TOKENS);
+		for (int i = 0; i < 8000; i += 7)
+			e.add(i);
+		d.and(e);
+		c.check("and to array", d.cardinality() == 1143 && d.sizeInBytes() < empty + 16 + 2 * 2048);
+		NodeSetBitmap f = new NodeSetBitmap(TOKENS);
+		for (int i = 3; i < 8192 + 20; i += 2)
+			f.add(i);
+		d = copy(a);
+		d.and(f);
+		c.check("and of bitmaps", d.cardinality() == 4095 && d.sizeInBytes() < bitmap
+				&& d.contains(3) && !d.contains(1) && !d.contains(2));
+		d.and(new NodeSetBitmap());
+		c.check("and with empty", d.isEmpty() && d.nextNode(0) == -1 && d.sizeInBytes() == empty);
+	}
+
+	static void xpath(Checker c, Random rand) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < 30000; i++) {
+			String name = rand.nextBoolean() ? "a" : "b";
+			sb.append('<').append(name).append(" k='").append(rand.nextInt(3))
+				.append("'>t</").append(name).append('>');
+		}
+		String doc = sb.append("</r>").toString();
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc.getBytes("UTF-8"));
+		vg.parse(false);
+		VTDNav vn = vg.getNav();
+		String[] xpaths = { "//a", "//*[@k='1']", "//text()", "//a | //b[@k='0']", "//@k" };
+		for (int x = 0; x < xpaths.length; x++) {
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[x]);
+			NodeSetBitmap nsb = ap.evalXPathToBitmap();
+			TreeSet<Integer> m = new TreeSet<Integer>();
+			vn.toElement(VTDNav.ROOT);
+			int i;
+			while ((i = ap.evalXPath()) != -1)
+				m.add(Integer.valueOf(i));
+			c.check("xpath " + xpaths[x], same(rand, nsb, m));
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package DOMTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.extended.*;
+
+/**
+ * Parses documents with VTDGenHuge keeping the VTD records and location
+ * caches in DIRECT_STORAGE and FILE_STORAGE, in memory and memory mapped,
+ * sequentially and with parse threads, and checks them against
+ * HEAP_STORAGE: same records, same walk over the location caches, same
+ * XPath results and same separate index. Some documents take several
+ * off-heap pages. FILE_STORAGE must leave nothing in its directory and
+ * no temporary file open once parsing is over. OffHeapLongBuffer and
+ * OffHeapIntBuffer are also checked on their own under random operations.
+ */
+public class OffHeapStorageTest {
+	static final String[] storages = { "HEAP", "DIRECT", "FILE" };
+	static final String[] xpaths = { "//*", "//e1/@a", "//text()", "/r/*[2]//*", "count(//*)" };
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 42);
+		File dir = File.createTempFile("offheap", "");
+		dir.delete();
+		dir.mkdir();
+		File x = File.createTempFile("offheap", ".xml"), idx = File.createTempFile("offheap", ".vxl");
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 60; n++) {
+				// the last documents have several pages of 64K records
+				int elements = n < 50 ? 1 + rand.nextInt(500) : 100000 + rand.nextInt(100000);
+				String doc = randomDoc(rand, elements);
+				RandomAccessFile raf = new RandomAccessFile(x, "rw");
+				raf.setLength(0);
+				raf.write(doc.getBytes("UTF-8"));
+				raf.close();
+				String expected = null;
+				byte[] expectedIndex = null;
+				for (int s = VTDGenHuge.HEAP_STORAGE; s <= VTDGenHuge.FILE_STORAGE; s++)
+					for (int m = 0; m < 4; m++) {
+						int mode = m % 2 == 0 ? VTDGenHuge.IN_MEMORY : VTDGenHuge.MEM_MAPPED;
+						int threads = m < 2 ? 1 : 3;
+						String name = "doc " + n + " " + storages[s] + " mode " + mode + " threads " + threads;
+						try {
+							VTDGenHuge vg = new VTDGenHuge();
+							vg.selectIndexStorage(s, dir);
+							vg.setParseThreads(threads);
+							if (!vg.parseFile(x.getPath(), true, mode)) {
+								c.check(name, false);
+								continue;
+							}
+							if (s == VTDGenHuge.FILE_STORAGE && !c.check(name + " released", released(dir)))
+								continue;
+							vg.writeSeparateIndex(idx.getPath());
+							VTDNavHuge vn = vg.getNav();
+							String d = dump(vn);
+							byte[] b = read(idx);
+							if (expected == null) {
+								expected = d;
+								expectedIndex = b;
+							} else
+								c.check(name, expected.equals(d) && Arrays.equals(expectedIndex, b));
+						} catch (Exception e) {
+							c.fail(name, e);
+						}
+					}
+			}
+			for (int n = 0; n < 20; n++) {
+				String name = "buffers " + n + (n % 2 == 0 ? " direct" : " file");
+				try {
+					c.check(name, buffers(rand, n % 2 == 0 ? null : dir) && released(dir));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		} finally {
+			File[] fs = dir.listFiles();
+			for (int i = 0; i < fs.length; i++)
+				fs[i].delete();
+			dir.delete();
+			x.delete();
+			idx.delete();
+		}
+		c.done();
+	}
+
+	// the temporary files of FILE_STORAGE are unlinked when created, and
+	// closed when parsing is over; on systems without /proc/self/fd only
+	// the directory is checked
+	static boolean released(File dir) throws Exception {
+		if (dir.list().length != 0)
+			return false;
+		File[] fds = new File("/proc/self/fd").listFiles();
+		if (fds == null)
+			return true;
+		for (int i = 0; i < fds.length; i++) {
+			// the target of a deleted file can't be canonicalized, the
+			// link is read as is, "(deleted)" appended
+			String target;
+			try {
+				target = Files.readSymbolicLink(fds[i].toPath()).toString();
+			} catch (IOException e) {
+				continue; // closed in the meantime
+			}
+			if (target.startsWith(dir.getCanonicalPath() + File.separator))
+				return false;
+		}
+		return true;
+	}
+
+	// random operations on off-heap buffers with pages of 2 to 16
+	// entries, checked against an array
+	static boolean buffers(Random rand, File dir) throws Exception {
+		int e = 1 + rand.nextInt(4);
+		OffHeapLongBuffer ol = dir == null ? new OffHeapLongBuffer(e) : new OffHeapLongBuffer(e, dir);
+		OffHeapIntBuffer oi = dir == null ? new OffHeapIntBuffer(e) : new OffHeapIntBuffer(e, dir);
+		long[] m = new long[16];
+		int size = 0;
+		for (int k = 0; k < 2000; k++) {
+			switch (rand.nextInt(10)) {
+			case 0:
+				long[] la = new long[rand.nextInt(40)];
+				int[] ia = new int[la.length];
+				for (int i = 0; i < la.length; i++) {
+					la[i] = rand.nextLong();
+					ia[i] = (int) la[i];
+				}
+				ol.append(la);
+				oi.append(ia);
+				if (size + la.length > m.length)
+					m = Arrays.copyOf(m, (size + la.length) * 2);
+				System.arraycopy(la, 0, m, size, la.length);
+				size += la.length;
+				break;
+			case 1:
+				if (size > 0) {
+					int i = rand.nextInt(size);
+					m[i] = rand.nextLong();
+					ol.modifyEntry(i, m[i]);
+					oi.modifyEntry(i, (int) m[i]);
+				}
+				break;
+			case 2:
+				if (size > 0) {
+					int i = rand.nextInt(size), l = 1 + rand.nextInt(size - i);
+					long[] ls = ol.getLongArray(i, l);
+					int[] is = oi.getIntArray(i, l);
+					for (int j = 0; j < l; j++)
+						if (ls[j] != m[i + j] || is[j] != (int) m[i + j])
+							return false;
+				}
+				break;
+			case 3:
+				if (rand.nextInt(20) == 0) {
+					ol.clear();
+					oi.clear();
+					size = 0;
+				}
+				break;
+			case 4:
+				// a page allocated after close() goes to a new file
+				if (rand.nextInt(20) == 0) {
+					ol.close();
+					oi.close();
+				}
+				break;
+			default:
+				if (size == m.length)
+					m = Arrays.copyOf(m, size * 2);
+				m[size] = rand.nextLong();
+				ol.append(m[size]);
+				oi.append((int) m[size]);
+				size++;
+			}
+			if (ol.size() != size || oi.size() != size)
+				return false;
+			for (int i = 0; i < size; i++)
+				if (ol.longAt(i) != m[i] || ol.lower32At(i) != (int) m[i]
+						|| ol.upper32At(i) != (int) (m[i] >> 32) || oi.intAt(i) != (int) m[i])
+					return false;
+		}
+		long[] ls = ol.toLongArray();
+		int[] is = oi.toIntArray();
+		ol.close();
+		oi.close();
+		if (size == 0)
+			return ls == null && is == null;
+		for (int i = 0; i < size; i++)
+			if (ls[i] != m[i] || is[i] != (int) m[i])
+				return false;
+		return ls.length == size && is.length == size;
+	}
+
+	static byte[] read(File f) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// the records, then a walk over the location caches, then the XPaths
+	static String dump(VTDNavHuge vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append('\n');
+		vn.toElement(VTDNavHuge.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNavHuge.ROOT);
+			AutoPilotHuge ap = new AutoPilotHuge(vn);
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static void walk(VTDNavHuge vn, StringBuilder sb) throws Exception {
+		sb.append(vn.getCurrentIndex()).append(' ').append(vn.getText());
+		if (vn.toElement(VTDNavHuge.LC)) {
+			sb.append(" last ").append(vn.getCurrentIndex());
+			vn.toElement(VTDNavHuge.P);
+		}
+		sb.append('\n');
+		if (vn.toElement(VTDNavHuge.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNavHuge.NS));
+			vn.toElement(VTDNavHuge.P);
+		}
+	}
+
+	// about the given number of elements, up to 6 levels deep
+	static String randomDoc(Random rand, int elements) {
+		StringBuilder sb = new StringBuilder("<r>");
+		int[] left = { elements };
+		while (left[0] > 0)
+			element(rand, sb, 1, left);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth, int[] left) {
+		left[0]--;
+		String name = "e" + rand.nextInt(3);
+		sb.append('<').append(name);
+		if (rand.nextBoolean())
+			sb.append(" a='").append(left[0]).append('\'');
+		if (depth > 5 || left[0] <= 0 || rand.nextInt(3) == 0) {
+			sb.append("/>");
+			return;
+		}
+		sb.append('>');
+		if (rand.nextBoolean())
+			sb.append("t").append(rand.nextInt(100));
+		for (int i = rand.nextInt(5); i > 0 && left[0] > 0; i--)
+			element(rand, sb, depth + 1, left);
+		sb.append("</").append(name).append('>');
+	}
+}
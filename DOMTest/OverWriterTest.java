@@ -0,0 +1,258 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Overwrites random attribute values, character data and CDATA with
+ * shorter, equal and longer contents through OverWriter, under each
+ * padding policy, in UTF-8, UTF-16BE and UTF-16LE, hands the updates that
+ * don't fit over to XMLModifier with fallBack(), and checks the result
+ * against the same updates done by XMLModifier.updateToken() alone: both
+ * documents must re-parse to the same tokens and values, white spaces
+ * padding under PAD_SPACE aside. The values updated in place are
+ * also read back from the VTDNav right away.
+ */
+public class OverWriterTest {
+	static final String[] encodings = { "UTF-8", "UTF-16BE", "UTF-16LE" };
+	static final String[] policies = { "PAD_SPACE", "PAD_AFTER_QUOTE", "PAD_CHAR_REF", "PAD_NONE" };
+	// the first character of a value is decoded by PAD_CHAR_REF, so some
+	// take 2 or 3 bytes in UTF-8; VTDNav doesn't turn characters beyond
+	// the BMP into strings, those are checked on the bytes by supplementary()
+	static final String[] chars = { "a", "b", "1", "é", "€", " " };
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 39);
+		Checker c = new Checker();
+		c.check("no PAD_AFTER_QUOTE for text", afterQuoteText());
+		c.check("counters", counters());
+		for (int e = 0; e < encodings.length; e++) {
+			try {
+				c.check("supplementary " + encodings[e], supplementary(encodings[e]));
+			} catch (Exception ex) {
+				c.fail("supplementary " + encodings[e], ex);
+			}
+		}
+		for (int n = 0; n < 600; n++) {
+			String enc = encodings[n % encodings.length];
+			int attr = OverWriter.PAD_SPACE + (n / 3) % 4;
+			int text = (n / 12) % 2 == 0 ? OverWriter.PAD_CHAR_REF : OverWriter.PAD_SPACE;
+			String name = "run " + n + " " + enc + " " + policies[attr] + " " + policies[text];
+			try {
+				c.check(name, run(rand, enc, attr, text));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		c.done();
+	}
+
+	static boolean afterQuoteText() throws Exception {
+		try {
+			new OverWriter(parse("<r/>", "UTF-8")).setTextPadding(OverWriter.PAD_AFTER_QUOTE);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	// a counter growing in the white spaces after the quote, one digit at
+	// a time, until they run out
+	static boolean counters() throws Exception {
+		VTDNav vn = parse("<r><c n='9'     m='x'/></r>", "UTF-8");
+		OverWriter ow = new OverWriter(vn);
+		vn.toElement(VTDNav.FC);
+		int i = vn.getAttrVal("n");
+		String[] values = { "10", "100", "1000", "10000", "100000" };
+		for (int k = 0; k < values.length; k++) {
+			boolean fits = k < 4;
+			if (ow.overWrite(i, values[k].getBytes("UTF-8")) != fits)
+				return false;
+			if (fits && !vn.toString(i).equals(values[k]))
+				return false;
+		}
+		if (ow.getUpdatedCount() != 4 || ow.getFailedCount() != 1
+				|| ow.getFailedIndex(0) != i || !new String(ow.getFailedValue(0), "UTF-8").equals("100000"))
+			return false;
+		XMLModifier xm = new XMLModifier(vn);
+		ow.fallBack(xm);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		xm.output(bos);
+		return ow.getFailedCount() == 0
+				&& new String(bos.toByteArray(), "UTF-8").equals("<r><c n='100000' m='x'/></r>");
+	}
+
+	// a character beyond the BMP, 4 bytes in UTF-8 or a surrogate pair in
+	// UTF-16, written as a reference
+	static boolean supplementary(String enc) throws Exception {
+		VTDNav vn = parse("<r a='0123456789ab'>0123456789ab</r>", enc);
+		OverWriter ow = new OverWriter(vn);
+		ow.setAttrValPadding(OverWriter.PAD_CHAR_REF);
+		ow.setTextPadding(OverWriter.PAD_CHAR_REF);
+		int a = vn.getAttrVal("a"), t = vn.getText();
+		byte[] v = "\ud834\udd1ea".getBytes(enc);
+		if (!ow.overWrite(a, v) || !ow.overWrite(t, v))
+			return false;
+		XMLModifier xm = new XMLModifier(vn);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		xm.output(bos);
+		VTDNav rn = parse(bos.toByteArray());
+		rn.toElement(VTDNav.ROOT);
+		return vn.toRawString(a).equals("&#00119070;a") && vn.toRawString(t).equals("&#00119070;a")
+				&& rn.toRawString(rn.getAttrVal("a")).equals("&#00119070;a")
+				&& rn.toRawString(rn.getText()).equals("&#00119070;a");
+	}
+
+	static boolean run(Random rand, String enc, int attr, int text) throws Exception {
+		String doc = randomDoc(rand);
+		VTDNav vn = parse(doc, enc);
+		OverWriter ow = new OverWriter(vn);
+		ow.setAttrValPadding(attr);
+		ow.setTextPadding(text);
+		// the last content of each token, as the expected side applies it
+		HashMap<Integer,String> last = new HashMap<Integer,String>();
+		int updated = 0;
+		for (int k = 1 + rand.nextInt(10); k > 0; k--) {
+			int i = rand.nextInt(vn.getTokenCount());
+			int type = vn.getTokenType(i);
+			if (type != VTDNav.TOKEN_ATTR_VAL && type != VTDNav.TOKEN_CHARACTER_DATA
+					&& type != VTDNav.TOKEN_CDATA_VAL)
+				continue;
+			String v = value(rand, vn.getTokenLength(i), type == VTDNav.TOKEN_ATTR_VAL);
+			if (ow.overWrite(i, v.getBytes(enc))) {
+				updated++;
+				String s = vn.toString(i);
+				int policy = type == VTDNav.TOKEN_ATTR_VAL ? attr : text;
+				if (!(policy == OverWriter.PAD_SPACE ? trim(s) : s).equals(v))
+					return false;
+			}
+			last.put(Integer.valueOf(i), v);
+		}
+		if (ow.getUpdatedCount() != updated)
+			return false;
+		XMLModifier xm = new XMLModifier(vn);
+		ow.fallBack(xm);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		xm.output(bos);
+
+		VTDNav en = parse(doc, enc);
+		XMLModifier exm = new XMLModifier(en);
+		Iterator<Map.Entry<Integer,String>> it = last.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer,String> e = it.next();
+			exm.updateToken(e.getKey().intValue(), e.getValue());
+		}
+		ByteArrayOutputStream ebos = new ByteArrayOutputStream();
+		exm.output(ebos);
+		boolean a = attr == OverWriter.PAD_SPACE, t = text == OverWriter.PAD_SPACE;
+		return dump(parse(ebos.toByteArray()), a, t).equals(dump(parse(bos.toByteArray()), a, t));
+	}
+
+	// XMLModifier.updateToken() turns a CDATA section into character data,
+	// so consecutive pieces of text are compared as one; white spaces
+	// padding attribute values are left out, and so are all those of
+	// padded text, where the padding of a piece may end up in the middle
+	// of the text
+	static String dump(VTDNav vn, boolean attr, boolean text) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		boolean inText = false;
+		for (int i = 0; i < vn.getTokenCount(); i++) {
+			int type = vn.getTokenType(i);
+			if (type == VTDNav.TOKEN_CHARACTER_DATA || type == VTDNav.TOKEN_CDATA_VAL) {
+				if (!inText)
+					sb.append("\ntext ").append(vn.getTokenDepth(i)).append(' ');
+				inText = true;
+				sb.append(text ? vn.toString(i).replace(" ", "") : vn.toString(i));
+				continue;
+			}
+			inText = false;
+			String v = vn.toString(i);
+			sb.append('\n').append(type).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(attr && type == VTDNav.TOKEN_ATTR_VAL ? trim(v) : v);
+		}
+		return sb.toString();
+	}
+
+	static String trim(String s) {
+		int l = s.length();
+		while (l > 0 && s.charAt(l - 1) == ' ')
+			l--;
+		return s.substring(0, l);
+	}
+
+	// a content around the length of the token, never ending with a white
+	// space, and never empty for text, which would drop the token
+	static String value(Random rand, int length, boolean attr) {
+		int n = Math.max(0, length - 8 + rand.nextInt(11));
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < n; k++)
+			sb.append(chars[rand.nextInt(chars.length)]);
+		if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ')
+			sb.setCharAt(sb.length() - 1, 'z');
+		if (sb.length() == 0 && (!attr || rand.nextBoolean()))
+			sb.append('y');
+		return sb.toString();
+	}
+
+	static VTDNav parse(String doc, String enc) throws Exception {
+		byte[] b = doc.getBytes(enc);
+		if (!enc.equals("UTF-8")) {
+			byte[] r = new byte[b.length + 2];
+			r[0] = (byte) (enc.equals("UTF-16BE") ? 0xfe : 0xff);
+			r[1] = (byte) (enc.equals("UTF-16BE") ? 0xff : 0xfe);
+			System.arraycopy(b, 0, r, 2, b.length);
+			b = r;
+		}
+		return parse(b);
+	}
+
+	static VTDNav parse(byte[] doc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(false);
+		return vg.getNav();
+	}
+
+	// attributes apart by one to three white spaces, so that
+	// PAD_AFTER_QUOTE sometimes has room to grow a value
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		for (int i = 1 + rand.nextInt(4); i > 0; i--) {
+			switch (rand.nextInt(5)) {
+			case 0:
+				sb.append("téxt").append(rand.nextInt(1000));
+				continue;
+			case 1:
+				sb.append("<![CDATA[d").append(rand.nextInt(1000)).append("]]>");
+				continue;
+			}
+			String name = "e" + rand.nextInt(3);
+			sb.append('<').append(name);
+			for (int a = rand.nextInt(3); a > 0; a--) {
+				sb.append("   ".substring(rand.nextInt(3))).append("a").append(a).append("='");
+				for (int k = rand.nextInt(8); k > 0; k--)
+					sb.append(chars[rand.nextInt(chars.length - 1)]);
+				sb.append('\'');
+			}
+			if (rand.nextBoolean())
+				sb.append("  ".substring(rand.nextInt(2)));
+			if (depth > 4 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Checks that outputParallel(n), into a byte array and into a FileChannel
+ * at a position, writes exactly the bytes of output() for n = 1 to 4, on
+ * random edit sets over documents up to a few MB, including documents
+ * edited only near both ends, whose unchanged middle spans the ranges of
+ * several workers. Also checks that a worker failing to write, on the
+ * calling thread or another one, makes outputParallel() throw its
+ * exception.
+ */
+public class ParallelOutputTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 36);
+		File f = File.createTempFile("parallel", ".out");
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 80; n++) {
+				int len = n < 40 ? 1 + rand.nextInt(4000) : 1 + rand.nextInt(3 << 20);
+				boolean ends = n % 3 == 0;
+				String name = "run " + n + " length " + len + (ends ? " edited at the ends" : "");
+				try {
+					c.check(name, run(rand, modifier(rand, len, ends), f));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			for (int t = 0; t < 4; t++) {
+				String name = "failing worker " + t + " of 4";
+				try {
+					c.check(name, failing(modifier(rand, 1 << 20, true), f, t));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		} finally {
+			f.delete();
+		}
+		c.done();
+	}
+
+	static XMLModifier modifier(Random rand, int len, boolean ends) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < len; i++)
+			sb.append((char) ('a' + rand.nextInt(26)));
+		byte[] doc = sb.append("</r>").toString().getBytes("UTF-8");
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(false);
+		XMLModifier xm = new XMLModifier(vg.getNav());
+		boolean[] taken = new boolean[doc.length + 1];
+		int edits = rand.nextInt(4) == 0 ? 0 : rand.nextInt(rand.nextBoolean() ? 10 : 2000);
+		for (int k = 0; k < edits; k++) {
+			int o = 3 + rand.nextInt(ends ? Math.min(len, 1000) : len);
+			if (ends && rand.nextBoolean())
+				o = len + 3 - (o - 3) - 1;
+			int l = rand.nextBoolean() ? 0 : 1 + rand.nextInt(50);
+			if (o + l > len + 3)
+				continue;
+			boolean free = true;
+			for (int i = o; i <= o + l; i++)
+				free &= !taken[i];
+			if (!free)
+				continue;
+			for (int i = o; i <= o + l; i++)
+				taken[i] = true;
+			if (l == 0) {
+				byte[] b = new byte[1 + rand.nextInt(1 + len / 1000)];
+				Arrays.fill(b, (byte) ('0' + k % 10));
+				xm.insertBytesAt(o, b);
+			} else
+				xm.removeContent(o, l);
+		}
+		return xm;
+	}
+
+	static boolean run(Random rand, XMLModifier xm, File f) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		xm.output(bos);
+		byte[] e = bos.toByteArray();
+		for (int n = 1; n <= 4; n++) {
+			if (!Arrays.equals(e, xm.outputParallel(n)))
+				return false;
+			int position = rand.nextInt(100);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(0);
+				byte[] head = new byte[position];
+				Arrays.fill(head, (byte) '#');
+				raf.write(head);
+				xm.outputParallel(raf.getChannel(), position, n);
+				byte[] b = new byte[(int) raf.length()];
+				raf.seek(0);
+				raf.readFully(b);
+				if (b.length != position + e.length
+						|| !Arrays.equals(head, Arrays.copyOfRange(b, 0, position))
+						|| !Arrays.equals(e, Arrays.copyOfRange(b, position, b.length)))
+					return false;
+			} finally {
+				raf.close();
+			}
+		}
+		return true;
+	}
+
+	// the writes of worker t fail, the others go through
+	static boolean failing(XMLModifier xm, File f, int t) throws Exception {
+		long total = xm.outputParallel(1).length;
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(0);
+			FailingChannel fc = new FailingChannel(raf.getChannel(), total * t / 4, total * (t + 1) / 4);
+			try {
+				xm.outputParallel(fc, 0, 4);
+				return false;
+			} catch (IOException e) {
+				return e.getMessage().equals("failing range") && fc.failures > 0;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	// positional writes starting in [from, to) fail
+	static class FailingChannel extends FileChannel {
+		FileChannel fc;
+		long from, to;
+		volatile int failures;
+
+		FailingChannel(FileChannel fc, long from, long to) {
+			this.fc = fc;
+			this.from = from;
+			this.to = to;
+		}
+
+		public int write(ByteBuffer src, long position) throws IOException {
+			if (position >= from && position < to) {
+				failures++;
+				throw new IOException("failing range");
+			}
+			return fc.write(src, position);
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			return fc.read(dst);
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return fc.read(dsts, offset, length);
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			return fc.write(src);
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			return fc.write(srcs, offset, length);
+		}
+
+		public long position() throws IOException {
+			return fc.position();
+		}
+
+		public FileChannel position(long newPosition) throws IOException {
+			fc.position(newPosition);
+			return this;
+		}
+
+		public long size() throws IOException {
+			return fc.size();
+		}
+
+		public FileChannel truncate(long size) throws IOException {
+			fc.truncate(size);
+			return this;
+		}
+
+		public void force(boolean metaData) throws IOException {
+			fc.force(metaData);
+		}
+
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return fc.transferTo(position, count, target);
+		}
+
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return fc.transferFrom(src, position, count);
+		}
+
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return fc.read(dst, position);
+		}
+
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return fc.map(mode, position, size);
+		}
+
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return fc.lock(position, size, shared);
+		}
+
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return fc.tryLock(position, size, shared);
+		}
+
+		protected void implCloseChannel() throws IOException {
+			fc.close();
+		}
+	}
+}
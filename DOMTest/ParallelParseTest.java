@@ -0,0 +1,147 @@
+package DOMTest;
+
+import java.util.Random;
+
+import com.ximpleware.extended.*;
+
+/**
+ * Parses generated documents of a few MB with VTDGenHuge.setParseThreads(4)
+ * and with one thread, and checks that the records, the nesting level and
+ * the root index are the same, or that both parses fail with the same
+ * error. The documents nest deeper than VTDGenHuge.MAX_DEPTH, have tokens
+ * longer than MAX_TOKEN_LENGTH, markup-like comments and CDATA sections
+ * across segments and errors in the middle. Documents of one and two
+ * segments, too small to hand any to a worker, are parsed too. No worker
+ * thread may be left running once parse() returns.
+ */
+public class ParallelParseTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 50);
+		String[] kinds = { "random", "deep", "long", "markup", "mismatch", "badchar", "unclosed", "one segment",
+				"two segments" };
+		Checker c = new Checker();
+		for (int i = 0; i < kinds.length; i++) {
+			byte[] doc = generate(rand, kinds[i]);
+			for (int e = 0; e < 2; e++) {
+				String s1 = parse(doc, 1, e == 0), s2 = parse(doc, 4, e == 0);
+				String running = workers();
+				if (!c.check(kinds[i] + (e == 0 ? "" : " no extended records"),
+						s1.equals(s2) && running == null))
+					System.out.println("  seq: " + head(s1) + "\n  par: " + head(s2)
+							+ (running == null ? "" : "\n  still running: " + running));
+			}
+		}
+		c.done();
+	}
+
+	static String parse(byte[] doc, int threads, boolean ext) throws Exception {
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.setParseThreads(threads);
+		vg.enableExtendedRecords(ext);
+		vg.setDoc(new XMLBuffer(doc));
+		try {
+			vg.parse(true);
+		} catch (ParseExceptionHuge e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+		VTDNavHuge vn = vg.getNav();
+		StringBuilder sb = new StringBuilder();
+		sb.append("root ").append(vn.getRootIndex()).append(" nesting ")
+			.append(vn.getNestingLevel()).append(" tokens ").append(vn.getTokenCount());
+		long h = 0;
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			h = h * 31 + vn.getTokenOffset(i) * 7 + vn.getTokenLength(i) * 5
+				+ vn.getTokenType(i) * 3 + vn.getTokenDepth(i);
+		sb.append(" hash ").append(h);
+		// the location caches
+		vn.toElement(VTDNavHuge.ROOT);
+		h = 0;
+		int n = 0;
+		do {
+			h = h * 31 + vn.getCurrentIndex();
+			n++;
+		} while (next(vn));
+		return sb.append(" elements ").append(n).append(" walk ").append(h).toString();
+	}
+
+	// the next element in document order
+	static boolean next(VTDNavHuge vn) throws Exception {
+		if (vn.toElement(VTDNavHuge.FC))
+			return true;
+		do {
+			if (vn.toElement(VTDNavHuge.NS))
+				return true;
+		} while (vn.toElement(VTDNavHuge.P));
+		return false;
+	}
+
+	// the names of the parser threads still alive, null if none
+	static String workers() {
+		StringBuilder sb = null;
+		Thread[] ts = new Thread[Thread.activeCount() + 8];
+		int n = Thread.enumerate(ts);
+		for (int i = 0; i < n; i++) {
+			if (ts[i].isAlive() && ts[i].getName().startsWith("VTDGenHuge parser")) {
+				sb = sb == null ? new StringBuilder() : sb.append(", ");
+				sb.append(ts[i].getName());
+			}
+		}
+		return sb == null ? null : sb.toString();
+	}
+
+	static String head(String s) {
+		return s.length() > 300 ? s.substring(0, 300) + "..." : s;
+	}
+
+	static byte[] generate(Random rand, String kind) throws Exception {
+		StringBuilder sb = new StringBuilder("<?xml version='1.0'?><root xmlns:p='u'>");
+		// segments are at least 1MB
+		int size = kind.equals("one segment") ? 1000 : kind.equals("two segments") ? 3 << 19 : 4 << 20;
+		while (sb.length() < size) {
+			if (kind.equals("deep")) {
+				int d = 20 + rand.nextInt(40);
+				for (int i = 0; i < d; i++)
+					sb.append("<d").append(i & 3).append('>');
+				sb.append("t");
+				for (int i = d - 1; i >= 0; i--)
+					sb.append("</d").append(i & 3).append('>');
+			} else if (kind.equals("long") && rand.nextInt(40) == 0) {
+				sb.append("<a k='");
+				for (int i = (1 << 17) + rand.nextInt(1000); i > 0; i--)
+					sb.append((char) ('a' + (i % 26)));
+				sb.append("'>x</a>");
+			} else if (kind.equals("markup") && rand.nextInt(4) == 0) {
+				sb.append(rand.nextBoolean() ? "<!-- <a k='1'> </b> -->"
+						: "<b><![CDATA[<a k='<'> </a>]]></b>");
+			} else
+				element(rand, sb, 1);
+			sb.append('\n');
+		}
+		int mid = sb.length() / 2;
+		mid = sb.indexOf("<", mid);
+		if (kind.equals("mismatch"))
+			sb.insert(mid, "<x></y>");
+		else if (kind.equals("badchar"))
+			sb.insert(mid, "<x>&#0;</x>");
+		sb.append(kind.equals("unclosed") ? "<open>" : "</root>");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		String name = rand.nextBoolean() ? "e" + rand.nextInt(3) : "p:c";
+		sb.append('<').append(name);
+		for (int i = rand.nextInt(3); i > 0; i--)
+			sb.append(" k").append(i).append("='v").append(rand.nextInt(10)).append('\'');
+		if (rand.nextInt(5) == 0) {
+			sb.append("/>");
+			return;
+		}
+		sb.append('>');
+		if (rand.nextBoolean())
+			sb.append("t&amp;").append(rand.nextInt(100));
+		if (depth < 12)
+			for (int i = rand.nextInt(depth < 3 ? 6 : 3); i > 0; i--)
+				element(rand, sb, depth + 1);
+		sb.append("</").append(name).append('>');
+	}
+}
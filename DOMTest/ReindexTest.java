@@ -0,0 +1,190 @@
+package DOMTest;
+
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Applies random edits to namespace aware documents, most of them inserts
+ * of namespaced fragments, and checks that the VTDNav of
+ * XMLModifier.outputAndReindex() has the same records, location caches
+ * and XPath results, namespaced ones included, as the VTDNav of
+ * outputAndReparse(), for 3 and 5 levels of location caches.
+ */
+public class ReindexTest {
+	static final String[] fragments = {
+		"<p:n/>",
+		"<p:n p:k='1'>t</p:n>",
+		"<p:n xmlns:p='u2'><p:m/></p:n>",
+		"<n xmlns='d'><m/>t</n>",
+		"<q:n xmlns:q='w' q:a='1'><q:m q:a='2'/></q:n>",
+		"<e1 xmlns:q='w'><q:n/></e1>",
+		"t<!--c--><p:n/>",
+		"<?pi v?><e2/>",
+	};
+
+	static final String[] xpaths = {
+		"//*", "//p:*", "//q:*", "//d:*", "//@q:a", "//@p:k", "//*[namespace-uri()='u2']",
+		"//text()", "//comment()", "//processing-instruction()", "count(//*)", "string(/*)",
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 33);
+		Checker c = new Checker();
+		for (int n = 0; n < 400; n++) {
+			String doc = randomDoc(rand);
+			int lc = rand.nextBoolean() ? 3 : 5;
+			String name = "run " + n + " lc " + lc;
+			try {
+				c.check(name, run(rand, doc.getBytes("UTF-8"), lc));
+			} catch (Exception e) {
+				c.fail(name + " " + doc, e);
+			}
+		}
+		c.done();
+	}
+
+	static boolean run(Random rand, byte[] doc, int lc) throws Exception {
+		int elements = (int) count(parse(doc, lc), "count(//*)");
+		// the element, the kind of edit and the fragment of each edit
+		int[][] edits = new int[1 + rand.nextInt(3)][];
+		for (int k = 0; k < edits.length; k++)
+			edits[k] = new int[] { 1 + rand.nextInt(elements), rand.nextInt(7),
+					rand.nextInt(fragments.length) };
+		String expected = dump(edit(parse(doc, lc), edits).outputAndReparse());
+		return expected.equals(dump(edit(parse(doc, lc), edits).outputAndReindex()));
+	}
+
+	static XMLModifier edit(VTDNav vn, int[][] edits) throws Exception {
+		XMLModifier xm = new XMLModifier(vn);
+		for (int k = 0; k < edits.length; k++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath("(//*)[" + edits[k][0] + "]");
+			ap.evalXPath();
+			boolean root = vn.getCurrentIndex() == vn.getRootIndex();
+			String f = fragments[edits[k][2]];
+			try {
+				switch (edits[k][1]) {
+				case 0:
+					if (!root)
+						xm.insertBeforeElement(f);
+					break;
+				case 1:
+					if (!root)
+						xm.insertAfterElement(f);
+					break;
+				case 2:
+					xm.insertAfterHead(f);
+					break;
+				case 3:
+					xm.insertBeforeTail(f);
+					break;
+				case 4:
+					if (!root)
+						xm.remove();
+					break;
+				case 5:
+					xm.insertAttribute(" xmlns:s='w2'");
+					break;
+				default:
+					int t = vn.getText();
+					if (t != -1)
+						xm.updateToken(t, "u");
+				}
+			} catch (ModifyException e) {
+				// the offset already has an edit
+			}
+		}
+		return xm;
+	}
+
+	static VTDNav parse(byte[] doc, int lc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.selectLcDepth(lc);
+		vg.setDoc(doc);
+		vg.parse(true);
+		return vg.getNav();
+	}
+
+	static double count(VTDNav vn, String xpath) throws Exception {
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath(xpath);
+		return ap.evalXPathToNumber();
+	}
+
+	// the records, then a walk over the location caches, then the XPaths
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenOffset(i)).append(' ').append(vn.getTokenLength(i)).append('\n');
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.declareXPathNameSpace("p", "u");
+			ap.declareXPathNameSpace("q", "w");
+			ap.declareXPathNameSpace("d", "d");
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append(ap.evalXPathToNumber());
+			else if (xpaths[i].startsWith("string"))
+				sb.append(ap.evalXPathToString());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		int t = vn.getText();
+		sb.append(vn.toString(vn.getCurrentIndex())).append(" text ")
+			.append(t == -1 ? "-" : vn.toString(t)).append(" q:a ")
+			.append(vn.getAttrValNS("w", "a")).append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r xmlns:p='u'>");
+		element(rand, sb, 1);
+		return sb.append("</r>").toString();
+	}
+
+	// comments come first: getElementFragment(), and so insertBeforeTail(),
+	// takes in a comment between an element and its next sibling
+	static void element(Random rand, StringBuilder sb, int depth) {
+		if (rand.nextInt(3) == 0)
+			sb.append("<!--c-->");
+		for (int i = 2 + rand.nextInt(4); i > 0; i--) {
+			if (rand.nextInt(5) == 0) {
+				sb.append("t").append(rand.nextInt(10));
+				continue;
+			}
+			String name = rand.nextBoolean() ? "e" + rand.nextInt(3) : "p:e";
+			sb.append('<').append(name);
+			if (rand.nextInt(4) == 0)
+				sb.append(" xmlns:q='w'");
+			if (rand.nextBoolean())
+				sb.append(" a='").append(i).append('\'');
+			if (depth > 7 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package DOMTest;
+
+import com.ximpleware.*;
+
+/**
+ * Checks the document-scoped XPath result cache: repeated expressions are
+ * served from it, the same expression string under different namespace
+ * bindings or variable values isn't, and XMLModifier.outputAndReparse()
+ * moves the cache from the old VTDNav to the new one.
+ */
+public class ResultCacheTest {
+	public static void main(String[] args) throws Exception {
+		Checker c = new Checker();
+		c.check("hits", hits());
+		c.check("namespaces", namespaces());
+		c.check("variables", variables());
+		c.check("reparse", reparse());
+		c.done();
+	}
+
+	static VTDNav parse(String doc, boolean ns) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc.getBytes("UTF-8"));
+		vg.parse(ns);
+		VTDNav vn = vg.getNav();
+		vn.setResultCache(new XPathResultCache(1 << 20));
+		return vn;
+	}
+
+	static int count(AutoPilot ap) throws Exception {
+		int n = 0;
+		while (ap.evalXPath() != -1)
+			n++;
+		ap.resetXPath();
+		return n;
+	}
+
+	static boolean hits() throws Exception {
+		VTDNav vn = parse("<r><a/><b/><b/></r>", false);
+		AutoPilot ap1 = new AutoPilot(vn);
+		ap1.selectXPath("/r/b");
+		AutoPilot ap2 = new AutoPilot(vn);
+		ap2.selectXPath("/r/b");
+		XPathResultCache rc = vn.getResultCache();
+		return count(ap1) == 2 && count(ap2) == 2 && count(ap1) == 2
+				&& rc.getEntryCount() == 1 && rc.getMissCount() == 1
+				&& rc.getHitCount() == 2;
+	}
+
+	static boolean namespaces() throws Exception {
+		VTDNav vn = parse("<r xmlns:a='u1' xmlns:b='u2'><a:x/><b:x/><b:x/></r>", true);
+		AutoPilot ap = new AutoPilot(vn);
+		ap.declareXPathNameSpace("p", "u1");
+		ap.selectXPath("//p:x");
+		int n1 = count(ap);
+		ap.declareXPathNameSpace("p", "u2");
+		ap.selectXPath("//p:x");
+		int n2 = count(ap);
+		ap.clearXPathNameSpaces();
+		return n1 == 1 && n2 == 2 && vn.getResultCache().getEntryCount() == 2;
+	}
+
+	static boolean variables() throws Exception {
+		VTDNav vn = parse("<r><a/><b/><b/></r>", false);
+		AutoPilot ap = new AutoPilot(vn);
+		ap.declareVariableExpr("v", "/r/a");
+		ap.selectXPath("$v");
+		int n1 = count(ap);
+		ap.declareVariableExpr("v", "/r/b");
+		ap.selectXPath("$v");
+		int n2 = count(ap);
+		ap.clearVariableExprs();
+		return n1 == 1 && n2 == 2;
+	}
+
+	static boolean reparse() throws Exception {
+		VTDNav vn = parse("<r><a/><b/><b/></r>", false);
+		XPathResultCache rc = vn.getResultCache();
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath("/r/b");
+		if (count(ap) != 2 || rc.getEntryCount() != 1)
+			return false;
+		XMLModifier xm = new XMLModifier(vn);
+		vn.toElement(VTDNav.ROOT);
+		vn.toElement(VTDNav.FC);
+		xm.remove();
+		VTDNav vn2 = xm.outputAndReparse();
+		if (vn2.getResultCache() != rc || vn.getResultCache() != null
+				|| rc.getEntryCount() != 0)
+			return false;
+		ap.bind(vn2);
+		ap.selectXPath("/r/b");
+		return count(ap) == 2 && rc.getEntryCount() == 1;
+	}
+}
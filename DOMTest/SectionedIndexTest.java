@@ -0,0 +1,281 @@
+package DOMTest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.ximpleware.*;
+import com.ximpleware.extended.*;
+
+/**
+ * Round-trips documents through the sectioned index of VTDGen, compressed
+ * or not, with 3 and 5 levels of location caches, loaded in memory and
+ * memory mapped, and through the separate index of VTDGenHuge with and
+ * without the extended records of deep documents and long tokens. Also
+ * checks that a corrupted section is detected where it is checksummed,
+ * and that neither loader accepts the index of the other.
+ */
+public class SectionedIndexTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 32);
+		File dir = File.createTempFile("sectioned", "");
+		dir.delete();
+		dir.mkdir();
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 100; n++) {
+				byte[] doc = randomDoc(rand, 12).getBytes("UTF-8");
+				boolean compressed = rand.nextBoolean();
+				int lc = rand.nextBoolean() ? 3 : 5;
+				String name = "doc " + n + " compressed " + compressed + " lc " + lc;
+				try {
+					c.check(name, standard(dir, doc, compressed, lc));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			for (int n = 0; n < 20; n++) {
+				String name = "huge " + n;
+				try {
+					c.check(name, huge(dir, rand, n % 2 == 0));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			corrupt(c, dir);
+			crossRead(c, dir);
+		} finally {
+			File[] fs = dir.listFiles();
+			for (int i = 0; i < fs.length; i++)
+				fs[i].delete();
+			dir.delete();
+		}
+		c.done();
+	}
+
+	static boolean standard(File dir, byte[] doc, boolean compressed, int lc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.selectLcDepth(lc);
+		vg.setDoc(doc);
+		vg.parse(true);
+		File f = new File(dir, "std.vxl");
+		vg.writeSectionedIndex(f.getPath(), compressed);
+		String expected = dump(vg.getNav());
+		return expected.equals(dump(new VTDGen().loadIndex(f.getPath(), VTDGen.IN_MEMORY)))
+				&& expected.equals(dump(new VTDGen().loadIndex(f.getPath(), VTDGen.MEM_MAPPED)));
+	}
+
+	// a document deeper than VTDGenHuge.MAX_DEPTH with a token longer than
+	// MAX_TOKEN_LENGTH needs the extended records, the others don't
+	static boolean huge(File dir, Random rand, boolean extended) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		int depth = extended ? VTDGenHuge.MAX_DEPTH + 2 + rand.nextInt(10) : 1 + rand.nextInt(10);
+		for (int i = 0; i < depth; i++)
+			sb.append("<d").append(i).append(" a='").append(i).append("'>");
+		sb.append(randomDoc(rand, 4));
+		if (extended) {
+			char[] ca = new char[VTDGenHuge.MAX_TOKEN_LENGTH + 1 + rand.nextInt(1000)];
+			java.util.Arrays.fill(ca, 'x');
+			sb.append(ca);
+		}
+		for (int i = depth - 1; i >= 0; i--)
+			sb.append("</d").append(i).append('>');
+		File x = new File(dir, "huge.xml"), f = new File(dir, "huge.vxl");
+		RandomAccessFile raf = new RandomAccessFile(x, "rw");
+		raf.setLength(0);
+		raf.write(sb.toString().getBytes("UTF-8"));
+		raf.close();
+
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.enableExtendedRecords(extended);
+		vg.parseFile(x.getPath(), true);
+		vg.writeSeparateIndex(f.getPath());
+		String expected = dump(vg.getNav());
+		return expected.equals(dump(new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath())))
+				&& expected.equals(dump(new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath(),
+						VTDGenHuge.IN_MEMORY, true)));
+	}
+
+	// stored sections are verified when loaded in memory, compressed ones
+	// always; the mapped stored sections of either index aren't checksummed
+	static void corrupt(Checker c, File dir) throws Exception {
+		byte[] doc = "<r><a>text</a><b x='1'/><c><d/></c></r>".getBytes("UTF-8");
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(true);
+		File f = new File(dir, "corrupt.vxl");
+		for (int z = 0; z < 2; z++) {
+			vg.writeSectionedIndex(f.getPath(), z == 1);
+			flip(f, 2);
+			int[] modes = { VTDGen.IN_MEMORY, VTDGen.MEM_MAPPED };
+			for (int m = 0; m < 2; m++) {
+				if (z == 0 && modes[m] == VTDGen.MEM_MAPPED)
+					continue;
+				String name = "corrupt VTD compressed " + (z == 1) + " mode " + modes[m];
+				try {
+					new VTDGen().loadIndex(f.getPath(), modes[m]);
+					c.check(name, false);
+				} catch (IndexReadException e) {
+					c.check(name, true);
+				}
+			}
+		}
+
+		File x = new File(dir, "corrupt.xml");
+		RandomAccessFile raf = new RandomAccessFile(x, "rw");
+		raf.setLength(0);
+		raf.write(doc);
+		raf.close();
+		VTDGenHuge vgh = new VTDGenHuge();
+		vgh.parseFile(x.getPath(), true);
+		vgh.writeSeparateIndex(f.getPath());
+		flip(f, 2);
+		try {
+			new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath(), VTDGenHuge.MEM_MAPPED, true);
+			c.check("corrupt huge VTD", false);
+		} catch (IndexReadExceptionHuge e) {
+			c.check("corrupt huge VTD", true);
+		}
+	}
+
+	// the F_HUGE flag of the header keeps either loader from the other index
+	static void crossRead(Checker c, File dir) throws Exception {
+		byte[] doc = "<r><a>text</a><b x='1'/></r>".getBytes("UTF-8");
+		File x = new File(dir, "cross.xml"), f = new File(dir, "cross.vxl");
+		RandomAccessFile raf = new RandomAccessFile(x, "rw");
+		raf.setLength(0);
+		raf.write(doc);
+		raf.close();
+		VTDGenHuge vgh = new VTDGenHuge();
+		vgh.parseFile(x.getPath(), true);
+		vgh.writeSeparateIndex(f.getPath());
+		int[] modes = { VTDGen.IN_MEMORY, VTDGen.MEM_MAPPED };
+		for (int m = 0; m < 2; m++) {
+			try {
+				new VTDGen().loadIndex(f.getPath(), modes[m]);
+				c.check("standard reads huge, mode " + modes[m], false);
+			} catch (IndexReadException e) {
+				c.check("standard reads huge, mode " + modes[m], true);
+			}
+		}
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(true);
+		vg.writeSectionedIndex(f.getPath(), false);
+		try {
+			new VTDGenHuge().loadSeparateIndex(x.getPath(), f.getPath());
+			c.check("huge reads standard", false);
+		} catch (IndexReadExceptionHuge e) {
+			c.check("huge reads standard", true);
+		}
+	}
+
+	// flips a byte in the middle of the section of the given type
+	static void flip(File f, int type) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			byte[] header = new byte[32];
+			raf.readFully(header);
+			int n = ByteBuffer.wrap(header).getShort(6) & 0xffff;
+			byte[] table = new byte[32 + n * 40];
+			raf.seek(0);
+			raf.readFully(table);
+			ByteBuffer bb = ByteBuffer.wrap(table);
+			for (int i = 0; i < n; i++) {
+				int p = 32 + i * 40;
+				if ((bb.getShort(p) & 0xffff) != type)
+					continue;
+				long o = bb.getLong(p + 24) + bb.getLong(p + 32) / 2;
+				raf.seek(o);
+				int b = raf.read();
+				raf.seek(o);
+				raf.write(b ^ 0x10);
+				return;
+			}
+			throw new IllegalStateException("no section " + type);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// the tokens, then the names, attributes and texts of a walk
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.toRawString(i)).append('\n');
+		vn.toElement(VTDNav.ROOT);
+		walk(vn, sb);
+		return sb.toString();
+	}
+
+	static void walk(VTDNav vn, StringBuilder sb) throws Exception {
+		int t = vn.getText();
+		sb.append(vn.toString(vn.getCurrentIndex())).append(" text ")
+			.append(t == -1 ? "-" : vn.toString(t)).append(" attrs ")
+			.append(vn.getAttrCount()).append('\n');
+		if (vn.toElement(VTDNav.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNav.NS));
+			vn.toElement(VTDNav.P);
+		}
+	}
+
+	static String dump(VTDNavHuge vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenLength(i)).append(' ').append(vn.toRawString(i).hashCode())
+				.append('\n');
+		vn.toElement(VTDNavHuge.ROOT);
+		walk(vn, sb);
+		return sb.toString();
+	}
+
+	static void walk(VTDNavHuge vn, StringBuilder sb) throws Exception {
+		int t = vn.getText();
+		sb.append(vn.toString(vn.getCurrentIndex())).append(" text ")
+			.append(t == -1 ? "-" : String.valueOf(vn.toString(t).hashCode())).append(" attrs ")
+			.append(vn.getAttrCount()).append('\n');
+		if (vn.toElement(VTDNavHuge.FC)) {
+			do {
+				walk(vn, sb);
+			} while (vn.toElement(VTDNavHuge.NS));
+			vn.toElement(VTDNavHuge.P);
+		}
+	}
+
+	static String randomDoc(Random rand, int maxDepth) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1, maxDepth);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth, int maxDepth) {
+		for (int i = rand.nextInt(4); i > 0; i--) {
+			switch (rand.nextInt(5)) {
+			case 0:
+				sb.append("t").append(rand.nextInt(10));
+				continue;
+			case 1:
+				sb.append("<!--c").append(i).append("-->");
+				continue;
+			}
+			String name = rand.nextBoolean() ? "e" + rand.nextInt(3) : "x:e";
+			sb.append('<').append(name);
+			if (name.startsWith("x"))
+				sb.append(" xmlns:x='u").append(depth).append('\'');
+			if (rand.nextBoolean())
+				sb.append(" a='").append(i).append('\'');
+			if (depth > maxDepth || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1, maxDepth);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package DOMTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import com.ximpleware.extended.*;
+
+/**
+ * Streams generated documents through StreamPilotHuge and checks that
+ * the IMatchHandler callbacks see the same nodes, in document order,
+ * with the same attributes and subtrees as AutoPilotHuge on the parsed
+ * document, including nested matches, attribute steps and predicates.
+ * Also checks that a handler exception aborts the parse, that matches
+ * are counted without a handler, that the retained records stay far
+ * below the size of the document and that expressions outside of the
+ * streamable subset are refused.
+ */
+public class StreamPilotHugeTest {
+	static final String[] xpaths = {
+		"/r/rec", "//rec", "//rec/v", "/r/rec/@id", "//rec[@t='x']", "//rec[@t!='x']/v",
+		"//rec[@t]//v", "/r/*/v", "//*[@id='3']", "//v/@k", "/r/rec/rec",
+	};
+
+	static final String[] refused = {
+		"/r/rec[1]", "//rec/text()", "r/rec", "/r/rec/following-sibling::rec", "//@*",
+		"/r/rec | /r/v", "count(//rec)",
+	};
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 30);
+		Checker c = new Checker();
+		for (int n = 0; n < 40; n++) {
+			byte[] doc = generate(rand, 200 + rand.nextInt(2000));
+			for (int x = 0; x < xpaths.length; x++) {
+				String name = xpaths[x] + " doc " + n;
+				try {
+					ArrayList<String> expected = parsed(doc, xpaths[x]);
+					StreamPilotHugeTest t = new StreamPilotHugeTest();
+					StreamPilotHuge sp = t.stream(doc, xpaths[x], -1);
+					c.check(name, expected.equals(t.lines) && sp.getMatchCount() == expected.size());
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		}
+		abort(c, rand);
+		bounded(c, rand);
+		for (int i = 0; i < refused.length; i++) {
+			try {
+				new StreamPilotHuge().selectXPath(refused[i]);
+				c.check("refused " + refused[i], false);
+			} catch (XPathParseExceptionHuge e) {
+				c.check("refused " + refused[i], true);
+			}
+		}
+		c.done();
+	}
+
+	ArrayList<String> lines = new ArrayList<String>();
+
+	// stream doc, the handler throws at match number stop
+	StreamPilotHuge stream(byte[] doc, String xpath, final int stop) throws Exception {
+		StreamPilotHuge sp = new StreamPilotHuge();
+		sp.selectXPath(xpath);
+		sp.setMatchHandler(new IMatchHandler() {
+			public void match(VTDNavHuge vn, int index) throws VTDExceptionHuge {
+				if (lines.size() == stop)
+					throw new VTDExceptionHuge("stop");
+				lines.add(describe(vn, index));
+			}
+		});
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.setStreamPilot(sp);
+		vg.setDoc(new XMLBuffer(doc));
+		vg.parse(false);
+		return sp;
+	}
+
+	static ArrayList<String> parsed(byte[] doc, String xpath) throws Exception {
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.setDoc(new XMLBuffer(doc));
+		vg.parse(false);
+		VTDNavHuge vn = vg.getNav();
+		AutoPilotHuge ap = new AutoPilotHuge(vn);
+		ap.selectXPath(xpath);
+		ArrayList<String> l = new ArrayList<String>();
+		int i;
+		while ((i = ap.evalXPath()) != -1)
+			l.add(describe(vn, i));
+		// AutoPilotHuge doesn't return //step in document order
+		Collections.sort(l);
+		return l;
+	}
+
+	// the offset in the document, then the name and value of an attribute,
+	// or the attributes, the string value and the element count of the
+	// subtree of an element, all seen from vn; sorting the strings puts
+	// them in document order
+	static String describe(VTDNavHuge vn, int index) throws VTDExceptionHuge {
+		String os = String.valueOf(1000000000L + vn.getTokenOffset(index));
+		if (vn.getTokenType(index) == VTDNavHuge.TOKEN_ATTR_NAME)
+			return os + " @" + vn.toString(index) + "=" + vn.toString(index + 1);
+		StringBuilder sb = new StringBuilder(os).append(' ').append(vn.toString(index));
+		String[] attrs = { "id", "t", "k" };
+		for (int j = 0; j < attrs.length; j++) {
+			int i = vn.getAttrVal(attrs[j]);
+			if (i != -1)
+				sb.append(" @").append(attrs[j]).append('=').append(vn.toString(i));
+		}
+		AutoPilotHuge ap = new AutoPilotHuge(vn);
+		ap.selectXPath("string(.)");
+		sb.append(' ').append(ap.evalXPathToString());
+		ap.selectXPath("count(descendant::*)");
+		return sb.append(' ').append(ap.evalXPathToNumber()).toString();
+	}
+
+	static void abort(Checker c, Random rand) throws Exception {
+		byte[] doc = generate(rand, 500);
+		StreamPilotHugeTest t = new StreamPilotHugeTest();
+		try {
+			t.stream(doc, "//rec", 3);
+			c.check("abort", false);
+		} catch (ParseExceptionHuge e) {
+			c.check("abort", t.lines.size() == 3);
+		}
+		// no handler, the matches are counted only
+		StreamPilotHuge sp = new StreamPilotHuge();
+		sp.selectXPath("//rec");
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.setStreamPilot(sp);
+		vg.setDoc(new XMLBuffer(doc));
+		vg.parse(false);
+		c.check("count", sp.getMatchCount() == parsed(doc, "//rec").size());
+	}
+
+	// a large document of small matches retains few records at a time
+	static void bounded(Checker c, Random rand) throws Exception {
+		byte[] doc = generate(rand, 50000);
+		VTDGenHuge vg = new VTDGenHuge();
+		vg.setDoc(new XMLBuffer(doc));
+		vg.parse(false);
+		int tokens = vg.getNav().getTokenCount();
+		StreamPilotHugeTest t = new StreamPilotHugeTest();
+		StreamPilotHuge sp = t.stream(doc, "/r/rec/v", -1);
+		c.check("bounded " + sp.getMaxRecordCount() + " of " + tokens,
+				sp.getMatchCount() > 0 && sp.getMaxRecordCount() < tokens / 100);
+	}
+
+	static byte[] generate(Random rand, int records) throws Exception {
+		StringBuilder sb = new StringBuilder("<?xml version='1.0'?><r>");
+		for (int i = 0; i < records; i++)
+			record(rand, sb, 1);
+		return sb.append("</r>").toString().getBytes("UTF-8");
+	}
+
+	static void record(Random rand, StringBuilder sb, int depth) {
+		switch (rand.nextInt(depth == 1 ? 4 : 6)) {
+		case 0:
+			sb.append("t").append(rand.nextInt(10));
+			return;
+		case 1:
+			sb.append("<v k='").append(rand.nextInt(3)).append("'>").append(rand.nextInt(100))
+				.append("</v>");
+			return;
+		case 2:
+			sb.append("<!--<rec>-->");
+			return;
+		case 3:
+		default:
+			sb.append("<rec id='").append(rand.nextInt(5)).append('\'');
+			if (rand.nextBoolean())
+				sb.append(" t='").append(rand.nextBoolean() ? "x" : "y").append('\'');
+			if (rand.nextInt(4) == 0) {
+				sb.append("/>");
+				return;
+			}
+			sb.append('>');
+			if (depth < 10)
+				for (int i = rand.nextInt(4); i > 0; i--)
+					record(rand, sb, depth + 1);
+			sb.append("</rec>");
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Applies the same random edit set to two XMLModifiers, once without
+ * transactions and once split into transactions that are committed,
+ * interleaved with edits outside of any transaction and with
+ * transactions of unrelated, often conflicting, edits that are rolled
+ * back; output() must give byte-identical documents, also when it is
+ * called half way. The edit sets have inserts and deletions sharing
+ * offsets, adjacent deletions and deletions nested in others.
+ */
+public class TransactionTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 35);
+		Checker c = new Checker();
+		for (int n = 0; n < 500; n++) {
+			String name = "run " + n;
+			try {
+				c.check(name, run(rand, 20 + rand.nextInt(n < 400 ? 200 : 5000)));
+			} catch (Exception e) {
+				c.fail(name, e);
+			}
+		}
+		c.done();
+	}
+
+	static boolean run(Random rand, int len) throws Exception {
+		StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < len; i++)
+			sb.append((char) ('a' + rand.nextInt(26)));
+		byte[] doc = sb.append("</r>").toString().getBytes("UTF-8");
+		ArrayList<int[]> edits = edits(rand, len);
+		int half = rand.nextInt(edits.size() + 1);
+
+		XMLModifier plain = modifier(doc);
+		ByteArrayOutputStream early = new ByteArrayOutputStream();
+		for (int k = 0; k <= edits.size(); k++) {
+			if (k == half)
+				plain.output(early);
+			if (k < edits.size())
+				apply(plain, edits.get(k));
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		plain.output(expected);
+
+		XMLModifier tx = modifier(doc);
+		ByteArrayOutputStream early2 = new ByteArrayOutputStream();
+		int k = 0;
+		while (k < edits.size() || k == half) {
+			if (k == half) {
+				tx.output(early2);
+				if (!Arrays.equals(early.toByteArray(), early2.toByteArray()))
+					return false;
+				half = -1;
+			}
+			if (rand.nextInt(3) == 0)
+				rolledBack(rand, tx, len);
+			// a run of edits up to the next output, in a transaction or not
+			int end = Math.min(edits.size(), k + 1 + rand.nextInt(8));
+			if (half > k && end > half)
+				end = half;
+			boolean t = rand.nextInt(4) != 0;
+			if (t)
+				tx.begin();
+			for (; k < end; k++)
+				apply(tx, edits.get(k));
+			if (t)
+				tx.commit();
+		}
+		if (rand.nextBoolean())
+			rolledBack(rand, tx, len);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		tx.output(actual);
+		return Arrays.equals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	static XMLModifier modifier(byte[] doc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(false);
+		return new XMLModifier(vg.getNav());
+	}
+
+	// inserts at distinct offsets, deletions at distinct offsets that
+	// are adjacent, nested or apart but never overlap partially
+	static ArrayList<int[]> edits(Random rand, int len) {
+		ArrayList<int[]> l = new ArrayList<int[]>();
+		boolean[] inserted = new boolean[len + 4];
+		ArrayList<int[]> deletions = new ArrayList<int[]>();
+		for (int k = rand.nextInt(len); k > 0; k--) {
+			int o = 3 + rand.nextInt(len);
+			if (rand.nextBoolean()) {
+				if (!inserted[o]) {
+					inserted[o] = true;
+					l.add(new int[] { o, 0, k });
+				}
+				continue;
+			}
+			int n = 1 + rand.nextInt(rand.nextInt(4) == 0 ? 40 : 4);
+			if (o + n > len + 3)
+				continue;
+			boolean ok = true;
+			for (int i = 0; i < deletions.size() && ok; i++) {
+				int[] d = deletions.get(i);
+				int e = o + n - 1, e2 = d[0] + d[1] - 1;
+				ok = d[0] != o && (e < d[0] || e2 < o || (d[0] < o && e <= e2)
+						|| (o < d[0] && e2 <= e));
+			}
+			if (ok) {
+				int[] d = { o, n };
+				deletions.add(d);
+				l.add(d);
+			}
+		}
+		return l;
+	}
+
+	static void apply(XMLModifier xm, int[] e) throws Exception {
+		if (e[1] == 0)
+			xm.insertBytesAt(e[0], ("[" + e[2] + "]").getBytes("UTF-8"));
+		else
+			xm.removeContent(e[0], e[1]);
+	}
+
+	// random edits in a transaction that is rolled back, or two deletions
+	// overlapping each other, which fail the commit and are rolled back
+	static void rolledBack(Random rand, XMLModifier xm, int len) throws Exception {
+		xm.begin();
+		try {
+			if (rand.nextBoolean()) {
+				int o = 3 + rand.nextInt(len - 6);
+				xm.removeContent(o, 4);
+				xm.removeContent(o + 2, 4);
+				try {
+					xm.commit();
+					throw new IllegalStateException("commit of overlapping deletions");
+				} catch (ModifyException e) {
+					return;
+				}
+			}
+			for (int k = rand.nextInt(20); k > 0; k--) {
+				int o = 3 + rand.nextInt(len);
+				if (rand.nextBoolean())
+					xm.insertBytesAt(o, "{x}".getBytes("UTF-8"));
+				else
+					xm.removeContent(o, Math.min(1 + rand.nextInt(20), len + 3 - o));
+			}
+		} catch (ModifyException e) {
+			// an offset taken, or a partial overlap with a committed deletion
+		}
+		xm.rollback();
+	}
+}
@@ -0,0 +1,47 @@
+package DOMTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+
+/**
+ * Times XPath unions, whose node sets are kept unique through the
+ * integer hash set of UnionExpr, on a generated document. The median
+ * of the rounds is printed for each expression.
+ * usage: UnionBench [number of elements] [rounds]
+ */
+public class UnionBench {
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+		Random rand = new Random(26);
+		StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < n; i++)
+			sb.append(rand.nextBoolean() ? "<a" : "<b").append(" k='")
+				.append(rand.nextInt(3)).append("'/>");
+		VTDGen vg = new VTDGen();
+		vg.setDoc(sb.append("</r>").toString().getBytes("UTF-8"));
+		vg.parse(false);
+		VTDNav vn = vg.getNav();
+		// two overlapping streams, and one stream containing the other
+		String[] xpaths = { "//*[@k='1'] | //a", "//a | //*", "//b | //a[@k='0'] | //*[@k='2']" };
+		for (int x = 0; x < xpaths.length; x++) {
+			AutoPilot ap = new AutoPilot(vn);
+			ap.selectXPath(xpaths[x]);
+			long[] t = new long[rounds];
+			int count = 0;
+			for (int r = 0; r < rounds; r++) {
+				vn.toElement(VTDNav.ROOT);
+				long l = System.nanoTime();
+				count = 0;
+				while (ap.evalXPath() != -1)
+					count++;
+				ap.resetXPath();
+				t[r] = System.nanoTime() - l;
+			}
+			Arrays.sort(t);
+			System.out.println(xpaths[x] + ": " + t[rounds / 2] / 1000000 + " ms (" + count + ")");
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+import com.ximpleware.extended.*;
+
+/**
+ * Parses random documents through VTDDocument and checks the records,
+ * the XPath results and random modifications written by output() against
+ * VTDGen and XMLModifier used directly; resetModifications() must bring
+ * back the document as parsed. The same body is then padded with white
+ * spaces past 1GB, which VTDDocument parses with VTDGenHuge: the records
+ * and XPath results must be the same, and the same modifications must
+ * give the same output, padding aside.
+ */
+public class VTDDocumentTest {
+	static final String[] xpaths = { "//*", "//x:*", "//@x:a", "//text()", "count(//*)" };
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 45);
+		File x = File.createTempFile("vtddoc", ".xml"), o = File.createTempFile("vtddoc", ".out");
+		Checker c = new Checker();
+		try {
+			for (int n = 0; n < 100; n++) {
+				String name = "standard " + n;
+				try {
+					c.check(name, standard(rand, x, o, randomDoc(rand).getBytes("UTF-8")));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+			try {
+				c.check("huge", huge(rand, x, o, randomDoc(rand).getBytes("UTF-8")));
+			} catch (Exception e) {
+				c.fail("huge", e);
+			}
+		} finally {
+			x.delete();
+			o.delete();
+		}
+		c.done();
+	}
+
+	static boolean standard(Random rand, File x, File o, byte[] doc) throws Exception {
+		write(x, doc);
+		VTDDocument d = VTDDocument.parseFile(x.getPath(), true);
+		VTDNav vn = parse(doc);
+		if (d.isHuge() || !dump(d).equals(dump(vn)))
+			return false;
+		int[][] edits = edits(rand, vn, 4);
+		XMLModifier xm = new XMLModifier(vn);
+		for (int k = 0; k < edits.length; k++) {
+			edit(d, edits[k]);
+			edit(xm, vn, edits[k]);
+		}
+		d.output(o.getPath());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		xm.output(bos);
+		if (!Arrays.equals(bos.toByteArray(), read(o)))
+			return false;
+		d.resetModifications();
+		d.output(o.getPath());
+		return Arrays.equals(doc, read(o));
+	}
+
+	// the padding goes before the end tag of the root, which no edit
+	// touches
+	static boolean huge(Random rand, File x, File o, byte[] doc) throws Exception {
+		int end = doc.length - "</r>".length();
+		long pad = (1L << 30) - end + 1 + rand.nextInt(1000);
+		FileOutputStream fos = new FileOutputStream(x);
+		try {
+			fos.write(doc, 0, end);
+			byte[] spaces = new byte[1 << 20];
+			Arrays.fill(spaces, (byte) ' ');
+			for (long l = pad; l > 0; l -= spaces.length)
+				fos.write(spaces, 0, (int) Math.min(l, spaces.length));
+			fos.write(doc, end, doc.length - end);
+		} finally {
+			fos.close();
+		}
+		VTDDocument d = VTDDocument.parseFile(x.getPath(), true);
+		VTDNav vn = parse(doc);
+		if (!d.isHuge() || !dump(d).equals(dump(vn)))
+			return false;
+		// a few rounds of edits, dropped after each output, going through
+		// the kinds of edits in turn
+		for (int round = 0, op = 0; round < 8; round++) {
+			int[][] edits = edits(rand, vn, 10);
+			XMLModifier xm = new XMLModifier(vn);
+			for (int k = 0; k < edits.length; k++) {
+				edits[k][1] = op++ % 7;
+				edit(d, edits[k]);
+				edit(xm, vn, edits[k]);
+			}
+			d.output(o.getPath());
+			d.resetModifications();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			xm.output(bos);
+			if (!padded(o, bos.toByteArray(), pad))
+				return false;
+		}
+		return true;
+	}
+
+	// the expected document with the padding before the end tag of the root
+	static boolean padded(File o, byte[] expected, long pad) throws Exception {
+		int head = expected.length - "</r>".length();
+		if (o.length() != expected.length + pad)
+			return false;
+		FileInputStream fis = new FileInputStream(o);
+		try {
+			byte[] b = new byte[1 << 20];
+			long done = 0;
+			while (done < o.length()) {
+				int r = fis.read(b);
+				for (int i = 0; i < r; i++, done++) {
+					byte e = done < head ? expected[(int) done]
+							: done < head + pad ? (byte) ' ' : expected[(int) (done - pad)];
+					if (b[i] != e)
+						return false;
+				}
+			}
+		} finally {
+			fis.close();
+		}
+		return true;
+	}
+
+	// edits of elements other than the root, none inside or
+	// right next to another, so that the edits never overlap nor insert at
+	// the same offset: the element, then the kind of edit
+	static int[][] edits(Random rand, VTDNav vn, int tries) throws Exception {
+		int elements = (int) count(vn, "count(//*)");
+		ArrayList<int[]> l = new ArrayList<int[]>();
+		ArrayList<long[]> frags = new ArrayList<long[]>();
+		for (int k = 0; k < tries && elements > 1; k++) {
+			int e = 2 + rand.nextInt(elements - 1);
+			select(vn, e);
+			long f = vn.getElementFragment();
+			long from = f & 0xffffffffL, to = from + (f >> 32);
+			boolean apart = true;
+			for (int i = 0; i < frags.size(); i++) {
+				long[] g = (long[]) frags.get(i);
+				if (from <= g[1] && g[0] <= to)
+					apart = false;
+			}
+			if (!apart)
+				continue;
+			frags.add(new long[] { from, to });
+			l.add(new int[] { e, rand.nextInt(7) });
+		}
+		return (int[][]) l.toArray(new int[l.size()][]);
+	}
+
+	static void edit(VTDDocument d, int[] edit) throws Exception {
+		d.toElement(VTDNav.ROOT);
+		d.selectXPath("(//*)[" + edit[0] + "]");
+		d.evalXPath();
+		switch (edit[1]) {
+		case 0:
+			d.remove();
+			break;
+		case 1:
+			d.insertBeforeElement("<b/>");
+			break;
+		case 2:
+			d.insertAfterElement("<a>" + edit[0] + "</a>");
+			break;
+		case 3:
+			d.insertAttribute(" n='" + edit[0] + "'");
+			break;
+		case 4:
+			int i = d.getAttrVal("x:a");
+			if (i != -1)
+				d.removeAttribute(i - 1);
+			break;
+		default:
+			int t = d.getText();
+			if (t != -1) {
+				if (edit[1] == 5)
+					d.updateToken(t, "u" + edit[0]);
+				else
+					d.removeToken(t);
+			}
+		}
+	}
+
+	static void edit(XMLModifier xm, VTDNav vn, int[] edit) throws Exception {
+		select(vn, edit[0]);
+		switch (edit[1]) {
+		case 0:
+			xm.remove();
+			break;
+		case 1:
+			xm.insertBeforeElement("<b/>");
+			break;
+		case 2:
+			xm.insertAfterElement("<a>" + edit[0] + "</a>");
+			break;
+		case 3:
+			xm.insertAttribute(" n='" + edit[0] + "'");
+			break;
+		case 4:
+			int i = vn.getAttrValNS("ux", "a");
+			if (i != -1)
+				xm.removeAttribute(i - 1);
+			break;
+		default:
+			int t = vn.getText();
+			if (t != -1) {
+				if (edit[1] == 5)
+					xm.updateToken(t, "u" + edit[0]);
+				else
+					xm.removeToken(t);
+			}
+		}
+	}
+
+	static void select(VTDNav vn, int e) throws Exception {
+		vn.toElement(VTDNav.ROOT);
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath("(//*)[" + e + "]");
+		ap.evalXPath();
+	}
+
+	static double count(VTDNav vn, String xpath) throws Exception {
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath(xpath);
+		return ap.evalXPathToNumber();
+	}
+
+	// the records but offsets, which padding moves, then the XPaths
+	static String dump(VTDDocument d) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < d.getTokenCount(); i++)
+			sb.append(d.getTokenType(i)).append(' ').append(d.getTokenDepth(i)).append(' ')
+				.append(d.getTokenLength(i)).append(' ').append(d.toString(i)).append('\n');
+		for (int i = 0; i < xpaths.length; i++) {
+			d.toElement(VTDNav.ROOT);
+			d.declareXPathNameSpace("x", "ux");
+			d.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append((int) d.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = d.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static String dump(VTDNav vn) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < vn.getTokenCount(); i++)
+			sb.append(vn.getTokenType(i)).append(' ').append(vn.getTokenDepth(i)).append(' ')
+				.append(vn.getTokenLength(i)).append(' ').append(vn.toString(i)).append('\n');
+		for (int i = 0; i < xpaths.length; i++) {
+			vn.toElement(VTDNav.ROOT);
+			AutoPilot ap = new AutoPilot(vn);
+			ap.declareXPathNameSpace("x", "ux");
+			ap.selectXPath(xpaths[i]);
+			sb.append(xpaths[i]).append(':');
+			if (xpaths[i].startsWith("count"))
+				sb.append((int) ap.evalXPathToNumber());
+			else {
+				int j;
+				while ((j = ap.evalXPath()) != -1)
+					sb.append(' ').append(j);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	static VTDNav parse(byte[] doc) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(true);
+		return vg.getNav();
+	}
+
+	static void write(File f, byte[] b) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+
+	static byte[] read(File f) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// the last element keeps text from running into the padding
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r xmlns:x='ux'>");
+		element(rand, sb, 1);
+		return sb.append("<z/></r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		for (int i = 1 + rand.nextInt(4); i > 0; i--) {
+			if (rand.nextInt(5) == 0) {
+				sb.append("té").append(rand.nextInt(100));
+				continue;
+			}
+			String name = rand.nextBoolean() ? "e" + rand.nextInt(3) : "x:e";
+			sb.append('<').append(name);
+			if (rand.nextBoolean())
+				sb.append(" x:a='").append(i).append('\'');
+			if (depth > 5 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				if (rand.nextBoolean())
+					sb.append("t").append(rand.nextInt(100));
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
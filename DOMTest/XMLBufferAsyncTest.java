@@ -0,0 +1,260 @@
+package DOMTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.ximpleware.extended.*;
+
+/**
+ * Loads files of sizes around the 16MB segments of XMLBuffer with one to
+ * four loader threads through readFileAsync(), and checks the bytes as
+ * they come in through waitFor() and loadedLength(), then all of them.
+ * Loading is cancelled by close() before the loaders start, while a
+ * reader waits, and half way: the bytes loaded stay readable, waitFor()
+ * fails for the others, and the loader threads end and close the file.
+ * A reader interrupted while it waits gets an InterruptedIOException and
+ * leaves loading going on. A buffer can be loaded again after it was
+ * cancelled, and VTDGenHuge.parseFile() stops loading a document that
+ * fails to parse.
+ */
+public class XMLBufferAsyncTest {
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 44);
+		File f = File.createTempFile("xmlbuffer", ".xml");
+		Checker c = new Checker();
+		try {
+			int seg = 1 << 24;
+			int[] sizes = { 0, 1, 1000, seg - 1, seg, seg + 1, 3 * seg + rand.nextInt(seg), 6 * seg };
+			for (int n = 0; n < sizes.length; n++) {
+				byte[] doc = randomBytes(rand, sizes[n]);
+				write(f, doc);
+				for (int t = 1; t <= 4; t++) {
+					String name = "load " + sizes[n] + " threads " + t;
+					try {
+						c.check(name, load(rand, f, doc, t));
+					} catch (Exception e) {
+						c.fail(name, e);
+					}
+				}
+			}
+			// the last document, 96MB, takes a while to load
+			byte[] doc = randomBytes(rand, 6 * seg);
+			write(f, doc);
+			for (int t = 1; t <= 4; t++) {
+				String[] names = { "cancel before start", "cancel waiting", "cancel half way", "interrupt" };
+				for (int k = 0; k < names.length; k++) {
+					String name = names[k] + " threads " + t;
+					try {
+						boolean ok;
+						switch (k) {
+						case 0:
+							ok = cancelBeforeStart(f, doc, t);
+							break;
+						case 1:
+							ok = cancelWaiting(f, t);
+							break;
+						case 2:
+							ok = cancelHalfWay(f, doc, t);
+							break;
+						default:
+							ok = interrupt(f, doc, t);
+						}
+						c.check(name, ok);
+					} catch (Exception e) {
+						c.fail(name, e);
+					}
+				}
+			}
+			try {
+				c.check("parse failure", parseFailure(f, doc));
+			} catch (Exception e) {
+				c.fail("parse failure", e);
+			}
+		} finally {
+			f.delete();
+		}
+		c.done();
+	}
+
+	// the bytes below what waitFor() returns are in as soon as it returns
+	static boolean load(Random rand, File f, byte[] doc, int threads) throws Exception {
+		XMLBuffer xb = new XMLBuffer();
+		xb.readFileAsync(f.getPath(), threads);
+		if (xb.length() != doc.length || xb.getPageCount() != (doc.length == 0 ? 0 : 1))
+			return false;
+		for (int k = 0; k < 5 && doc.length > 0; k++) {
+			int i = rand.nextInt(doc.length);
+			int l = xb.waitFor(i);
+			if (l <= i || l > doc.length || !same(xb, doc, Math.max(0, l - 1000), l))
+				return false;
+		}
+		xb.waitForAll();
+		if (doc.length > 0 && (xb.loadedLength(0) != doc.length || !xb.isPageLoaded(0)))
+			return false;
+		return same(xb, doc, 0, doc.length) && stopped(f);
+	}
+
+	// the loaders take their segments under the lock of the buffer, which
+	// keeps them from starting; the buffer can be loaded again afterwards
+	static boolean cancelBeforeStart(File f, byte[] doc, int threads) throws Exception {
+		XMLBuffer xb = new XMLBuffer();
+		synchronized (xb) {
+			xb.readFileAsync(f.getPath(), threads);
+			xb.close();
+		}
+		if (!stopped(f) || xb.loadedLength(0) != 0 || !cancelled(xb, 0))
+			return false;
+		try {
+			xb.waitForAll();
+			return false;
+		} catch (IOException e) {
+			// cancelled
+		}
+		xb.readFileAsync(f.getPath(), threads);
+		xb.waitForAll();
+		return same(xb, doc, 0, doc.length) && stopped(f);
+	}
+
+	// a reader waiting for the last byte is woken up by close()
+	static boolean cancelWaiting(File f, int threads) throws Exception {
+		final XMLBuffer xb = new XMLBuffer();
+		final Exception[] caught = new Exception[1];
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					xb.waitForAll();
+				} catch (Exception e) {
+					caught[0] = e;
+				}
+			}
+		});
+		synchronized (xb) {
+			xb.readFileAsync(f.getPath(), threads);
+			waiter.start();
+			while (waiter.getState() != Thread.State.BLOCKED)
+				Thread.sleep(1);
+			xb.close();
+		}
+		waiter.join();
+		return caught[0] instanceof IOException && !(caught[0] instanceof InterruptedIOException) && stopped(f);
+	}
+
+	// the loaders finish the chunk they read, what is loaded stays
+	static boolean cancelHalfWay(File f, byte[] doc, int threads) throws Exception {
+		XMLBuffer xb = new XMLBuffer();
+		xb.readFileAsync(f.getPath(), threads);
+		while (xb.loadedLength(0) == 0)
+			Thread.sleep(1);
+		xb.close();
+		if (!stopped(f))
+			return false;
+		int l = xb.loadedLength(0);
+		if (!same(xb, doc, 0, l))
+			return false;
+		if (l == doc.length)
+			return xb.waitFor(doc.length - 1) == doc.length;
+		return xb.waitFor(l - 1) == l && cancelled(xb, l);
+	}
+
+	// loading goes on without the interrupted reader
+	static boolean interrupt(File f, byte[] doc, int threads) throws Exception {
+		XMLBuffer xb = new XMLBuffer();
+		synchronized (xb) {
+			xb.readFileAsync(f.getPath(), threads);
+			Thread.currentThread().interrupt();
+			try {
+				xb.waitFor(0);
+				return false;
+			} catch (InterruptedIOException e) {
+				if (!Thread.interrupted())
+					return false;
+			}
+		}
+		xb.waitForAll();
+		return same(xb, doc, 0, doc.length) && stopped(f);
+	}
+
+	// the document fails at its first bytes, long before it is loaded
+	static boolean parseFailure(File f, byte[] doc) throws Exception {
+		byte[] b = (byte[]) doc.clone();
+		Arrays.fill(b, (byte) ' ');
+		System.arraycopy("<r><</r>".getBytes("UTF-8"), 0, b, 0, 8);
+		write(f, b);
+		return !new VTDGenHuge().parseFile(f.getPath(), true, VTDGenHuge.IN_MEMORY) && stopped(f);
+	}
+
+	static boolean cancelled(XMLBuffer xb, long index) {
+		try {
+			xb.waitFor(index);
+			return false;
+		} catch (IOException e) {
+			return !(e instanceof InterruptedIOException);
+		}
+	}
+
+	// no loader thread left and the file closed, within 10 seconds
+	static boolean stopped(File f) throws Exception {
+		String path = f.getCanonicalPath();
+		for (int k = 0; k < 1000; k++) {
+			if (!loaders() && !open(path))
+				return true;
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	static boolean loaders() {
+		Iterator<Thread> it = Thread.getAllStackTraces().keySet().iterator();
+		while (it.hasNext()) {
+			Thread t = it.next();
+			if (t.isAlive() && t.getName().startsWith("XMLBuffer loader"))
+				return true;
+		}
+		return false;
+	}
+
+	// on systems without /proc/self/fd only the threads are checked
+	static boolean open(String path) {
+		File[] fds = new File("/proc/self/fd").listFiles();
+		if (fds == null)
+			return false;
+		for (int i = 0; i < fds.length; i++) {
+			try {
+				if (Files.readSymbolicLink(fds[i].toPath()).toString().equals(path))
+					return true;
+			} catch (IOException e) {
+				// closed in the meantime
+			}
+		}
+		return false;
+	}
+
+	static boolean same(XMLBuffer xb, byte[] doc, int from, int to) {
+		for (int i = from; i < to; i++)
+			if (xb.byteAt(i) != doc[i])
+				return false;
+		return true;
+	}
+
+	static byte[] randomBytes(Random rand, int size) {
+		byte[] b = new byte[size];
+		rand.nextBytes(b);
+		return b;
+	}
+
+	static void write(File f, byte[] b) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package DOMTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ximpleware.*;
+import com.ximpleware.extended.*;
+
+/**
+ * Applies the same random edits through XMLModifierHuge, on documents
+ * parsed by VTDGenHuge in memory and memory mapped, and through
+ * XMLModifier on the same documents parsed by VTDGen, in UTF-8, UTF-16BE
+ * and UTF-16LE, and checks that both write the same bytes. Output is
+ * also taken half way, before the rest of the edits are applied, which
+ * covers an edit landing before edits nullified by the first output.
+ */
+public class XMLModifierHugeTest {
+	static final String[] encodings = { "UTF-8", "UTF-16BE", "UTF-16LE" };
+
+	public static void main(String[] args) throws Exception {
+		Random rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 37);
+		File x = File.createTempFile("modhuge", ".xml"), o = File.createTempFile("modhuge", ".out");
+		Checker c = new Checker();
+		try {
+			c.check("nullified then earlier", nullifiedThenEarlier(x, o));
+			for (int n = 0; n < 300; n++) {
+				String enc = encodings[n % encodings.length];
+				int mode = (n / encodings.length) % 2 == 0 ? VTDGenHuge.IN_MEMORY : VTDGenHuge.MEM_MAPPED;
+				String name = "run " + n + " " + enc + (mode == VTDGenHuge.MEM_MAPPED ? " mapped" : "");
+				try {
+					c.check(name, run(rand, encode(randomDoc(rand), enc), mode, x, o));
+				} catch (Exception e) {
+					c.fail(name, e);
+				}
+			}
+		} finally {
+			x.delete();
+			o.delete();
+		}
+		c.done();
+	}
+
+	// remove an element holding an update, output, update an element
+	// before it, output again
+	static boolean nullifiedThenEarlier(File x, File o) throws Exception {
+		String[] expected = { "<r><a>x</a><c>z</c></r>", "<r><a>X</a><c>z</c></r>" };
+		for (int e = 0; e < encodings.length; e++)
+			for (int mode = 0; mode < 2; mode++) {
+				VTDNavHuge vn = parse(encode("<r><a>x</a><b>y</b><c>z</c></r>", encodings[e]), mode, x);
+				XMLModifierHuge xm = new XMLModifierHuge(vn);
+				AutoPilotHuge ap = new AutoPilotHuge(vn);
+				ap.selectXPath("/r/b");
+				ap.evalXPath();
+				xm.updateToken(vn.getText(), "Y");
+				xm.remove();
+				if (!Arrays.equals(output(xm, o), encode(expected[0], encodings[e])))
+					return false;
+				vn.toElement(VTDNavHuge.ROOT);
+				vn.toElement(VTDNavHuge.FC);
+				xm.updateToken(vn.getText(), "X");
+				if (!Arrays.equals(output(xm, o), encode(expected[1], encodings[e])))
+					return false;
+			}
+		return true;
+	}
+
+	static boolean run(Random rand, byte[] doc, int mode, File x, File o) throws Exception {
+		VTDGen vg = new VTDGen();
+		vg.setDoc(doc);
+		vg.parse(true);
+		VTDNav vn = vg.getNav();
+		XMLModifier xm = new XMLModifier(vn);
+		VTDNavHuge vnh = parse(doc, mode, x);
+		XMLModifierHuge xmh = new XMLModifierHuge(vnh);
+		if (vn.getTokenCount() != vnh.getTokenCount())
+			return false;
+		int elements = (int) count(vn, "count(//*)");
+		int edits = 1 + rand.nextInt(12), half = rand.nextInt(edits);
+		for (int k = 0; k < edits; k++) {
+			if (k == half && !sameOutput(xm, xmh, o))
+				return false;
+			int i = rand.nextInt(vn.getTokenCount());
+			int type = vn.getTokenType(i);
+			if (type != vnh.getTokenType(i))
+				return false;
+			int e = 1 + rand.nextInt(elements);
+			int op = rand.nextInt(6);
+			// the standard modifier refuses a second edit of either kind at
+			// an offset, or a partial overlap, right away; the transaction
+			// drops the parts of a refused edit applied before, and the
+			// edit is left out of both
+			xm.begin();
+			try {
+				edit(xm, vn, op, i, type, e);
+				xm.commit();
+			} catch (ModifyException ex) {
+				xm.rollback();
+				continue;
+			}
+			editHuge(xmh, vnh, op, i, type, e);
+		}
+		return sameOutput(xm, xmh, o);
+	}
+
+	static void edit(XMLModifier xm, VTDNav vn, int op, int i, int type, int e) throws Exception {
+		switch (op) {
+		case 0:
+			if (type == VTDNav.TOKEN_CHARACTER_DATA || type == VTDNav.TOKEN_ATTR_VAL
+					|| type == VTDNav.TOKEN_COMMENT || type == VTDNav.TOKEN_CDATA_VAL)
+				xm.updateToken(i, "u" + i);
+			return;
+		case 1:
+			if (type == VTDNav.TOKEN_ATTR_NAME)
+				xm.removeAttribute(i);
+			else if (type == VTDNav.TOKEN_CHARACTER_DATA || type == VTDNav.TOKEN_COMMENT
+					|| type == VTDNav.TOKEN_CDATA_VAL)
+				xm.removeToken(i);
+			return;
+		}
+		select(vn, e);
+		if (vn.getCurrentIndex() == vn.getRootIndex())
+			return;
+		switch (op) {
+		case 2:
+			xm.remove();
+			break;
+		case 3:
+			xm.insertBeforeElement("<n" + e + "/>");
+			break;
+		case 4:
+			xm.insertAfterElement("<m>" + e + "</m>");
+			break;
+		default:
+			xm.insertAttribute(" k" + e + "='v'");
+		}
+	}
+
+	static void editHuge(XMLModifierHuge xm, VTDNavHuge vn, int op, int i, int type, int e) throws Exception {
+		switch (op) {
+		case 0:
+			if (type == VTDNavHuge.TOKEN_CHARACTER_DATA || type == VTDNavHuge.TOKEN_ATTR_VAL
+					|| type == VTDNavHuge.TOKEN_COMMENT || type == VTDNavHuge.TOKEN_CDATA_VAL)
+				xm.updateToken(i, "u" + i);
+			return;
+		case 1:
+			if (type == VTDNavHuge.TOKEN_ATTR_NAME)
+				xm.removeAttribute(i);
+			else if (type == VTDNavHuge.TOKEN_CHARACTER_DATA || type == VTDNavHuge.TOKEN_COMMENT
+					|| type == VTDNavHuge.TOKEN_CDATA_VAL)
+				xm.removeToken(i);
+			return;
+		}
+		vn.toElement(VTDNavHuge.ROOT);
+		AutoPilotHuge ap = new AutoPilotHuge(vn);
+		ap.selectXPath("(//*)[" + e + "]");
+		ap.evalXPath();
+		if (vn.getCurrentIndex() == vn.getRootIndex())
+			return;
+		switch (op) {
+		case 2:
+			xm.remove();
+			break;
+		case 3:
+			xm.insertBeforeElement("<n" + e + "/>");
+			break;
+		case 4:
+			xm.insertAfterElement("<m>" + e + "</m>");
+			break;
+		default:
+			xm.insertAttribute(" k" + e + "='v'");
+		}
+	}
+
+	static void select(VTDNav vn, int e) throws Exception {
+		vn.toElement(VTDNav.ROOT);
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath("(//*)[" + e + "]");
+		ap.evalXPath();
+	}
+
+	// the same bytes, or both refuse the edits
+	static boolean sameOutput(XMLModifier xm, XMLModifierHuge xmh, File o) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			xm.output(bos);
+		} catch (ModifyException e) {
+			try {
+				output(xmh, o);
+				return false;
+			} catch (ModifyExceptionHuge eh) {
+				return true;
+			}
+		}
+		return Arrays.equals(bos.toByteArray(), output(xmh, o));
+	}
+
+	static byte[] output(XMLModifierHuge xm, File o) throws Exception {
+		FileOutputStream fos = new FileOutputStream(o);
+		try {
+			xm.output(fos);
+		} finally {
+			fos.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(o, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	static VTDNavHuge parse(byte[] doc, int mode, File x) throws Exception {
+		VTDGenHuge vg = new VTDGenHuge();
+		if (mode == VTDGenHuge.IN_MEMORY)
+			vg.setDoc(new XMLBuffer(doc));
+		else {
+			RandomAccessFile raf = new RandomAccessFile(x, "rw");
+			raf.setLength(0);
+			raf.write(doc);
+			raf.close();
+			if (!vg.parseFile(x.getPath(), true, VTDGenHuge.MEM_MAPPED))
+				throw new IllegalStateException("parseFile");
+			return vg.getNav();
+		}
+		vg.parse(true);
+		return vg.getNav();
+	}
+
+	// a byte order mark, then the document
+	static byte[] encode(String doc, String enc) throws Exception {
+		if (enc.equals("UTF-8"))
+			return doc.getBytes(enc);
+		byte[] b = doc.getBytes(enc), r = new byte[b.length + 2];
+		r[0] = (byte) (enc.equals("UTF-16BE") ? 0xfe : 0xff);
+		r[1] = (byte) (enc.equals("UTF-16BE") ? 0xff : 0xfe);
+		System.arraycopy(b, 0, r, 2, b.length);
+		return r;
+	}
+
+	static double count(VTDNav vn, String xpath) throws Exception {
+		AutoPilot ap = new AutoPilot(vn);
+		ap.selectXPath(xpath);
+		return ap.evalXPathToNumber();
+	}
+
+	static String randomDoc(Random rand) {
+		StringBuilder sb = new StringBuilder("<r>");
+		element(rand, sb, 1);
+		return sb.append("</r>").toString();
+	}
+
+	static void element(Random rand, StringBuilder sb, int depth) {
+		for (int i = 1 + rand.nextInt(4); i > 0; i--) {
+			switch (rand.nextInt(7)) {
+			case 0:
+				sb.append("té").append(rand.nextInt(10));
+				continue;
+			case 1:
+				sb.append("<!--c").append(i).append("-->");
+				continue;
+			case 2:
+				sb.append("<![CDATA[d").append(i).append("]]>");
+				continue;
+			}
+			String name = "e" + rand.nextInt(3);
+			sb.append('<').append(name);
+			if (rand.nextBoolean())
+				sb.append(" a='").append(i).append('\'');
+			if (rand.nextBoolean())
+				sb.append(" b='€").append(i).append('\'');
+			if (depth > 5 || rand.nextInt(3) == 0)
+				sb.append("/>");
+			else {
+				sb.append('>');
+				element(rand, sb, depth + 1);
+				sb.append("</").append(name).append('>');
+			}
+		}
+	}
+}
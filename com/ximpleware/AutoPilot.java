@@ -47,6 +47,11 @@ public class AutoPilot {
     protected int size; // for iterateAttr
     
     protected Expr xpe;	// for evalXPath
+    protected CachedExpr cxpe; // xpe backed by the document's result cache
+    protected String cacheKey; // result cache key of xpe, null if not cacheable
+    protected Expr cpe; // compiled form of xpe
+    protected int compileThreshold; // 0 disables compilation
+    protected int evalCount; // number of interpreted evaluations of xpe
     
     protected int[] contextCopy;  //for preceding axis
     protected int stackSize;  // the stack size for xpath evaluation
@@ -171,6 +176,7 @@ public void declareVariableExpr(String varName, String varExpr) throws XPathPars
         xpe = (Expr) p.parse().value;
         symbolHash.put(varName, xpe);
         ft = true;
+        cacheKey = null;
      }catch(XPathParseException e){
     	 System.out.println("Syntax error after or around the end of  ==>"+varExpr.substring(0,e.getOffset()));
          throw e;
@@ -811,6 +817,9 @@ public void selectXPath(String s) throws XPathParseException {
        p.symbolHash = symbolHash;
        xpe = (com.ximpleware.Expr) p.parse().value;
        ft = true;
+       cpe = null;
+       evalCount = 0;
+       cacheKey = xpe.toString() + bindingKey();
        if (enableCaching)
     	   xpe.markCacheable();
     }catch(XPathParseException e){
@@ -821,6 +830,30 @@ public void selectXPath(String s) throws XPathParseException {
     }
 }
 
+/**
+ * The namespace bindings and variable values in effect, which are part of
+ * the result cache key since they aren't in the string form of xpe
+ * @return String
+ */
+private static String bindingKey(){
+    StringBuffer sb = new StringBuffer();
+    if (nsHash != null)
+        appendSorted(sb, nsHash, " xmlns:");
+    if (symbolHash != null)
+        appendSorted(sb, symbolHash, " $");
+    return sb.toString();
+}
+
+private static void appendSorted(StringBuffer sb, Hashtable<?,?> h, String tag){
+    String[] ka = new String[h.size()];
+    Enumeration<?> en = h.keys();
+    for (int i = 0; i < ka.length && en.hasMoreElements(); i++)
+        ka[i] = (String) en.nextElement();
+    Arrays.sort(ka);
+    for (int i = 0; i < ka.length; i++)
+        sb.append(tag).append(ka[i]).append('=').append(h.get(ka[i]));
+}
+
 /**
  * Reset the XPath so the XPath Expression can 
  * be reused and revaluated in anther context position
@@ -834,6 +867,12 @@ final public void resetXPath(){
 		vn.contextStack2.size = stackSize;
 		if (enableCaching)
 			xpe.clearCache();
+		if (cxpe != null){
+			cxpe.reset(vn);
+			cxpe.clearCache();
+		}
+		if (cpe != null)
+			cpe.reset(vn);
 	}
 }
 /**
@@ -874,13 +913,69 @@ public int evalXPath() throws XPathEvalException, NavException{
 	        }
 			ft = false;
     		xpe.adjust(vn.getTokenCount());
+    		if (vn.resultCache != null && enableCaching && cacheKey != null
+    				&& xpe.isFinal() && xpe.isNodeSet()){
+    			// absolute node sets are shared through the document's result cache
+    			if (cxpe == null || cxpe.e != xpe){
+    				cxpe = new CachedExpr(xpe);
+    				cxpe.key = cacheKey;
+    			}
+    		} else
+    			cxpe = null;
+    		if (compileThreshold > 0 && evalCount >= 0 
+    				&& ++evalCount >= compileThreshold){
+    			// hot expression, try to promote it to the compiled form
+    			cpe = CompiledPathExpr.compile(xpe);
+    			if (cpe == null)
+    				evalCount = -1; // not compilable, don't try again
+    			else
+    				cpe.adjust(vn.getTokenCount());
+    		}
 	    }
-	   
+	    if (cxpe != null)
+	    	return cxpe.evalNodeSet(vn);
+	    if (cpe != null)
+	    	return cpe.evalNodeSet(vn);
 		return xpe.evalNodeSet(vn);
 	}
 	throw new PilotException(" Null XPath expression "); 
 }
 
+/**
+ * This method evaluates the whole node set at once into a
+ * NodeSetBitmap, which supports union, intersection, difference,
+ * cardinality and document-order iteration. 
+ * The XPath is reset afterwards.
+ * @return NodeSetBitmap
+ * @throws XPathEvalException
+ * @throws NavException
+ */
+public NodeSetBitmap evalXPathToBitmap() throws XPathEvalException, NavException{
+	NodeSetBitmap nsb = new NodeSetBitmap(vn.getTokenCount());
+	evalXPathToBitmap(nsb);
+	return nsb;
+}
+
+/**
+ * This method adds the evaluated node set to an existing NodeSetBitmap
+ * @param nsb
+ * @throws XPathEvalException
+ * @throws NavException
+ */
+public void evalXPathToBitmap(NodeSetBitmap nsb) throws XPathEvalException, NavException{
+	if (xpe==null)
+		throw new PilotException(" Null XPath expression ");
+	if (!xpe.isNodeSet())
+		throw new XPathEvalException(" XPath expression doesn't evaluate to a node set ");
+	if (ft == true){
+		stackSize = vn.contextStack2.size;
+		ft = false;
+		xpe.adjust(vn.getTokenCount());
+	}
+	xpe.evalNodeSetToBitmap(vn, nsb);
+	resetXPath();
+}
+
 /**
  * Setspecial is used by XPath evaluator to distinguish between
  * node() and *
@@ -900,6 +995,22 @@ final protected void setSpecial(boolean b ){
 final public String getExprString(){
 	return xpe.toString();
 }
+/**
+ * Set the number of evaluations after which evalXPath() switches 
+ * the selected XPath expression to its compiled form (see CompiledPathExpr),
+ * which produces the same node set without going through the interpreter.
+ * Only location paths of the compilable subset are promoted. 
+ * 0, the default, disables compilation
+ * @param n
+ */
+final public void setCompileThreshold(int n){
+	if (n < 0)
+		throw new IllegalArgumentException("compile threshold can't be negative");
+	compileThreshold = n;
+	if (evalCount > 0)
+		evalCount = 0;
+}
+
 /**
  * set state to false to disable caching, which by default is enabled
  * This method will turn on the internal caching feature during xpath evaluation, which is to
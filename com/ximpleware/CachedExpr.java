@@ -27,6 +27,8 @@ public class CachedExpr extends Expr {
 	double en;
 	String es;
 	FastIntBuffer ens;
+	NodeSetBitmap ensb;
+	String key; // for the document-scoped result cache, see AutoPilot.bindingKey()
 	int count;
 	VTDNav vn1;
 
@@ -34,6 +36,7 @@ public class CachedExpr extends Expr {
 		e=e1;
 		cached = false;
 		ens=null;
+		ensb=null;
 		count=0;
 		vn1=null;
 	}
@@ -79,11 +82,24 @@ public class CachedExpr extends Expr {
 			if (ens==null){
 				ens = new FastIntBuffer(8);//page size 64
 			}
-			//record node set
-			while((i=e.evalNodeSet(vn))!=-1){
-				ens.append(i);
+			XPathResultCache rc = vn.resultCache;
+			int[] ia = null;
+			// only keyed top-level expressions use the result cache, the
+			// key of a nested one wouldn't cover the bindings it depends on
+			if (rc!=null && key!=null)
+				ia = rc.get(key);
+			if (ia!=null){
+				if (ia.length>0)
+					ens.append(ia);
+			}else{
+				//record node set
+				while((i=e.evalNodeSet(vn))!=-1){
+					ens.append(i);
+				}
+				e.reset(vn);
+				if (rc!=null && key!=null)
+					rc.put(key, ens.size>0? ens.toIntArray():new int[0]);
 			}
-			e.reset(vn);
 			if(ens.size>0){
 				i=ens.intAt(count);//count should be zero
 				vn.recoverNode(i);
@@ -95,6 +111,14 @@ public class CachedExpr extends Expr {
 	}
 
 	
+	public void evalNodeSetToBitmap(VTDNav vn, NodeSetBitmap nsb) throws XPathEvalException, NavException {
+		if (ensb==null){
+			ensb = new NodeSetBitmap(vn.getTokenCount());
+			e.evalNodeSetToBitmap(vn, ensb);
+		}
+		nsb.or(ensb);
+	}
+	
 	public String evalString(VTDNav vn) {
 		if (cached){
 			return es;
@@ -195,6 +219,7 @@ public class CachedExpr extends Expr {
 		cached = false;
 		if (ens!=null)
 			ens.clear();
+		ensb=null;
 		e.clearCache();			
 	}
 
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+import com.ximpleware.xpath.*;
+
+/**
+ * CompiledPathExpr is the compiled form of a frequently evaluated
+ * LocationPathExpr. Instead of interpreting the step list through the
+ * state machine of LocationPathExpr (axis and state switches, context size
+ * and predicate bookkeeping per step), the steps are translated once into
+ * flat arrays and evaluated by a resumable nested loop that calls VTDNav's
+ * navigation primitives directly.
+ *
+ * Only a subset of location paths is compiled: child, descendant and
+ * descendant-or-self steps with a name test (or node()), an optional final
+ * attribute step, and predicates of the form [@attr], [@attr='literal']
+ * and [@attr!='literal']. compile() returns null
+ * for anything else, in which case the expression stays interpreted.
+ * The node set and its order are identical to the interpreted one.
+ *
+ * AutoPilot promotes an expression to its compiled form once it has been
+ * evaluated a given number of times, see AutoPilot.setCompileThreshold().
+ */
+public class CompiledPathExpr extends Expr {
+	static final int CHILD = 0, DESCENDANT_OR_SELF = 1, DESCENDANT = 2, ATTRIBUTE = 3;
+	static final int ATTR_EXISTS = 0, ATTR_EQ = 1, ATTR_NE = 2;
+
+	LocationPathExpr lpe;
+	boolean absolute;
+	int stepCount;
+	int[] kinds;
+	String[] names; // null matches every element
+	boolean[] special;
+	int[][] predKinds; // per step, null if there is no predicate
+	String[][] predNames;
+	String[][] predValues;
+
+	boolean[] active; // whether step k has a pending iteration
+	int[] depths; // starting depth of descendant iterations
+	int level; // the step being iterated
+	intOpenHash ih;
+	int state;
+
+	private CompiledPathExpr(LocationPathExpr l, int n){
+		lpe = l;
+		absolute = (l.pathType == LocationPathExpr.ABSOLUTE_PATH);
+		stepCount = n;
+		kinds = new int[n];
+		names = new String[n];
+		special = new boolean[n];
+		predKinds = new int[n][];
+		predNames = new String[n][];
+		predValues = new String[n][];
+		active = new boolean[n];
+		depths = new int[n];
+		ih = new intOpenHash();
+		state = 0;
+	}
+
+	/**
+	 * Compile an expression, return null if it is outside of the
+	 * compilable subset
+	 * @param e
+	 * @return CompiledPathExpr
+	 */
+	public static CompiledPathExpr compile(Expr e){
+		if (e == null || e.getClass() != LocationPathExpr.class)
+			return null;
+		LocationPathExpr l = (LocationPathExpr) e;
+		if (l.pathType != LocationPathExpr.ABSOLUTE_PATH
+				&& l.pathType != LocationPathExpr.RELATIVE_PATH)
+			return null;
+		int n = 0;
+		for (Step st = l.s; st != null; st = st.nextS)
+			n++;
+		if (n == 0)
+			return null;
+		CompiledPathExpr c = new CompiledPathExpr(l, n);
+		int k = 0;
+		for (Step st = l.s; st != null; st = st.nextS, k++){
+			NodeTest nt = st.nt;
+			switch (st.axis_type){
+			case AxisType.CHILD0:
+				c.kinds[k] = CHILD;
+				break;
+			case AxisType.DESCENDANT_OR_SELF0:
+				c.kinds[k] = DESCENDANT_OR_SELF;
+				break;
+			case AxisType.DESCENDANT0:
+				c.kinds[k] = DESCENDANT;
+				break;
+			case AxisType.ATTRIBUTE:
+				// attribute nodes have no children
+				if (st.nextS != null || st.hasPredicate)
+					return null;
+				c.kinds[k] = ATTRIBUTE;
+				break;
+			default:
+				return null;
+			}
+			if (nt.testType == NodeTest.NODE){
+				if (c.kinds[k] == CHILD || c.kinds[k] == ATTRIBUTE)
+					return null;
+				c.names[k] = null;
+				c.special[k] = (c.kinds[k] == DESCENDANT_OR_SELF);
+			} else if (nt.testType == NodeTest.NAMETEST && nt.localName == null){
+				if (nt.type == 0){
+					if (c.kinds[k] == ATTRIBUTE)
+						return null;
+					c.names[k] = null;
+				} else
+					c.names[k] = nt.nodeName;
+			} else
+				return null;
+			if (st.hasPredicate && !c.compilePredicates(k, st.p))
+				return null;
+		}
+		return c;
+	}
+
+	private boolean compilePredicates(int k, Predicate p){
+		int n = 0;
+		for (Predicate t = p; t != null; t = t.nextP)
+			n++;
+		predKinds[k] = new int[n];
+		predNames[k] = new String[n];
+		predValues[k] = new String[n];
+		int j = 0;
+		for (Predicate t = p; t != null; t = t.nextP, j++){
+			if (t.requireContext || t.type != Predicate.complex)
+				return false;
+			Expr e = t.expr;
+			if (e.getClass() == LocationPathExpr.class){
+				String an = singleStepName((LocationPathExpr) e, AxisType.ATTRIBUTE);
+				if (an == null)
+					return false;
+				predKinds[k][j] = ATTR_EXISTS;
+				predNames[k][j] = an;
+			} else if (e instanceof BinaryExpr){
+				BinaryExpr be = (BinaryExpr) e;
+				if ((be.op != BinaryExpr.EQ && be.op != BinaryExpr.NE)
+						|| !(be.right instanceof LiteralExpr)
+						|| be.left.getClass() != LocationPathExpr.class)
+					return false;
+				LocationPathExpr l = (LocationPathExpr) be.left;
+				String an = singleStepName(l, AxisType.ATTRIBUTE);
+				if (an == null)
+					return false;
+				predKinds[k][j] = (be.op == BinaryExpr.EQ) ? ATTR_EQ : ATTR_NE;
+				predNames[k][j] = an;
+				predValues[k][j] = ((LiteralExpr) be.right).s;
+			} else
+				return false;
+		}
+		return true;
+	}
+
+	/* return the name of a relative, predicate-free, one step path
+	 * on the given axis, or null */
+	private static String singleStepName(LocationPathExpr l, int axis){
+		Step st = l.s;
+		if (l.pathType != LocationPathExpr.RELATIVE_PATH || st == null
+				|| st.nextS != null || st.hasPredicate
+				|| st.axis_type != axis
+				|| st.nt.testType != NodeTest.NAMETEST
+				|| st.nt.localName != null || st.nt.type != 1)
+			return null;
+		return st.nt.nodeName;
+	}
+
+	public int evalNodeSet(VTDNav vn) throws XPathEvalException, NavException {
+		if (state == 0){
+			if (!absolute && vn.atTerminal){
+				// the interpreter handles text/attribute contexts
+				state = 2;
+				return lpe.evalNodeSet(vn);
+			}
+			if (absolute){
+				vn.context[0] = -1;
+				vn.atTerminal = false;
+			}
+			state = 1;
+			level = 0;
+			active[0] = false;
+		}
+		switch (state){
+		case 1:
+			while (true){
+				int k = level;
+				boolean b = active[k] ? next(vn, k) : first(vn, k);
+				if (!b){
+					active[k] = false;
+					if (k == 0){
+						state = 3;
+						return -1;
+					}
+					level--;
+				} else if (predKinds[k] == null || evalPredicates(vn, k)){
+					if (k == stepCount - 1){
+						int i = (kinds[k] == ATTRIBUTE) ? vn.LN : vn.getCurrentIndex();
+						if (ih.isUnique(i))
+							return i;
+					} else {
+						level = k + 1;
+						active[k + 1] = false;
+					}
+				}
+			}
+		case 2:
+			return lpe.evalNodeSet(vn);
+		default:
+			return -1;
+		}
+	}
+
+	/* move vn to the first candidate of step k for the node vn is 
+	 * positioned at, return false (with vn back at that node) if there is none */
+	private boolean first(VTDNav vn, int k) throws NavException {
+		active[k] = true;
+		switch (kinds[k]){
+		case CHILD:
+			if (!vn.toElement(VTDNav.FIRST_CHILD))
+				return false;
+			if (names[k] == null || vn.matchElement(names[k]))
+				return true;
+			return next(vn, k);
+		case DESCENDANT_OR_SELF:
+		case DESCENDANT:
+			if (vn.atTerminal)
+				return false;
+			vn.push2();
+			depths[k] = vn.getCurrentDepth();
+			if (kinds[k] == DESCENDANT_OR_SELF 
+					&& (special[k] || names[k] == null || vn.matchElement(names[k])))
+				return true;
+			return next(vn, k);
+		default: // ATTRIBUTE
+			int i = vn.getAttrVal(names[k]);
+			if (i == -1)
+				return false;
+			vn.LN = i - 1;
+			vn.atTerminal = true;
+			return true;
+		}
+	}
+
+	/* move vn to the next candidate of step k, return false 
+	 * (with vn back at the context node of step k) if there is none */
+	private boolean next(VTDNav vn, int k) throws NavException {
+		switch (kinds[k]){
+		case CHILD:
+			String name = names[k];
+			while (vn.toElement(VTDNav.NS)){
+				if (name == null || vn.matchElement(name))
+					return true;
+			}
+			vn.toElement(VTDNav.P);
+			return false;
+		case DESCENDANT_OR_SELF:
+		case DESCENDANT:
+			if (vn.iterate(depths[k], names[k] == null ? "*" : names[k], special[k]))
+				return true;
+			vn.pop2();
+			return false;
+		default: // ATTRIBUTE
+			vn.atTerminal = false;
+			return false;
+		}
+	}
+
+	private boolean evalPredicates(VTDNav vn, int k) throws NavException {
+		int[] pk = predKinds[k];
+		String[] pn = predNames[k], pv = predValues[k];
+		for (int j = 0; j < pk.length; j++){
+			int i;
+			switch (pk[j]){
+			case ATTR_EXISTS:
+				if (vn.getAttrVal(pn[j]) == -1)
+					return false;
+				break;
+			case ATTR_EQ:
+				i = vn.getAttrVal(pn[j]);
+				if (i == -1 || vn.compareTokenString(i, pv[j]) != 0)
+					return false;
+				break;
+			default: // ATTR_NE
+				i = vn.getAttrVal(pn[j]);
+				if (i == -1 || vn.compareTokenString(i, pv[j]) == 0)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	public void reset(VTDNav vn) {
+		if (state == 2)
+			lpe.reset(vn);
+		ih.reset();
+		state = 0;
+	}
+
+	public boolean evalBoolean(VTDNav vn) {
+		return lpe.evalBoolean(vn);
+	}
+
+	public double evalNumber(VTDNav vn) {
+		return lpe.evalNumber(vn);
+	}
+
+	public String evalString(VTDNav vn) {
+		return lpe.evalString(vn);
+	}
+
+	public String toString() {
+		return lpe.toString();
+	}
+
+	public boolean isNumerical() {
+		return false;
+	}
+
+	public boolean isNodeSet() {
+		return true;
+	}
+
+	public boolean isString() {
+		return false;
+	}
+
+	public boolean isBoolean() {
+		return false;
+	}
+
+	public boolean requireContextSize() {
+		return false;
+	}
+
+	public void setContextSize(int size) {
+	}
+
+	public void setPosition(int pos) {
+	}
+
+	public int adjust(int n) {
+		int i = lpe.adjust(n);
+		if (i > ih.e)
+			ih = new intOpenHash(i);
+		return i;
+	}
+
+	public boolean isFinal() {
+		return lpe.isFinal();
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * DocumentCache keeps parsed documents in a directory shared by the
+ * processes of a host, one sectioned index file (see
+ * VTDGen.writeSectionedIndex()) per document, named after the SHA-256 of
+ * its XML. A process that finds the document in the cache maps the file,
+ * XML included, and gets a VTDNav over the mapping without parsing or
+ * copying; only the pages it navigates are read, and they are shared with
+ * the other processes through the page cache. The mapped sections aren't
+ * checksummed when attaching, the cache trusts the files it wrote.
+ * <p>
+ * Files are written to a temporary name and renamed, so a process never
+ * attaches to a partially written file. The mappings are read-only, so
+ * in-place updates of the VTDNav aren't seen by other processes: the first
+ * call asking for the XML as an array (overWrite(), getXML().getBytes(),
+ * XMLModifier) copies the whole XML into the heap, and modifyEntry() on a
+ * VTD or LC buffer copies the page holding the entry.
+ * Entries are never evicted by the cache itself, see remove().
+ * </p>
+ */
+public class DocumentCache {
+    private File dir;
+    private final static String SUFFIX = ".vxl";
+
+    /**
+     * Use the given directory for the cache, creating it if needed
+     * @param dirName
+     * @throws IOException
+     */
+    public DocumentCache(String dirName) throws IOException {
+        dir = new File(dirName);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Can't create cache directory " + dirName);
+    }
+
+    /**
+     * Compute the cache key of the XML bytes
+     * @param ba
+     * @param ns namespace aware or not
+     * @return String
+     */
+    public static String key(byte[] ba, boolean ns) {
+        MessageDigest md = digest();
+        md.update(ba);
+        return toKey(md, ns);
+    }
+
+    /**
+     * Compute the cache key of the content of an XML file
+     * @param fileName
+     * @param ns namespace aware or not
+     * @return String
+     * @throws IOException
+     */
+    public static String keyOfFile(String fileName, boolean ns) throws IOException {
+        MessageDigest md = digest();
+        InputStream is = new DigestInputStream(new FileInputStream(fileName), md);
+        try {
+            byte[] b = new byte[1 << 16];
+            while (is.read(b) >= 0)
+                ;
+        } finally {
+            is.close();
+        }
+        return toKey(md, ns);
+    }
+
+    /**
+     * Attach to a cached document
+     * @param key see key()
+     * @return VTDNav over the mapped cache file, null if the document isn't cached
+     * @throws IOException
+     * @throws IndexReadException
+     */
+    public VTDNav attach(String key) throws IOException, IndexReadException {
+        File f = file(key);
+        if (!f.isFile())
+            return null;
+        try {
+            return IndexHandler.mapSharedIndex(f.getPath());
+        } catch (FileNotFoundException e) {
+            return null; // removed in the meantime
+        }
+    }
+
+    /**
+     * Get a VTDNav over the XML, attached to the cache if another process
+     * parsed it already, otherwise parsed and added to the cache
+     * @param ba
+     * @param ns namespace aware or not
+     * @return VTDNav
+     * @throws IOException
+     * @throws ParseException
+     * @throws IndexReadException
+     * @throws IndexWriteException
+     */
+    public VTDNav getNav(byte[] ba, boolean ns)
+            throws IOException, ParseException, IndexReadException, IndexWriteException {
+        String k = key(ba, ns);
+        VTDNav vn = attach(k);
+        if (vn != null)
+            return vn;
+        VTDGen vg = new VTDGen();
+        vg.setDoc(ba);
+        vg.parse(ns);
+        store(k, vg);
+        return vg.getNav();
+    }
+
+    /**
+     * Get a VTDNav over the XML file, attached to the cache if the content
+     * was parsed already, in which case the file is only read to compute
+     * its key
+     * @param fileName
+     * @param ns namespace aware or not
+     * @return VTDNav
+     * @throws IOException
+     * @throws ParseException
+     * @throws IndexReadException
+     * @throws IndexWriteException
+     */
+    public VTDNav getNav(String fileName, boolean ns)
+            throws IOException, ParseException, IndexReadException, IndexWriteException {
+        VTDNav vn = attach(keyOfFile(fileName, ns));
+        if (vn != null)
+            return vn;
+        File f = new File(fileName);
+        byte[] b = new byte[(int) f.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(f));
+        try {
+            dis.readFully(b);
+        } finally {
+            dis.close();
+        }
+        // the file may have changed since its key was computed
+        return getNav(b, ns);
+    }
+
+    /**
+     * Remove a document from the cache, processes attached to it
+     * keep their mapping
+     * @param key
+     * @return boolean whether the document was cached
+     */
+    public boolean remove(String key) {
+        return file(key).delete();
+    }
+
+    private void store(String key, VTDGen vg) throws IOException, IndexWriteException {
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+            try {
+                vg.writeSectionedIndex(os, false);
+            } finally {
+                os.close();
+            }
+            // when the rename fails, another process may have stored the
+            // same content meanwhile, or the document just isn't cached
+            tmp.renameTo(file(key));
+        } finally {
+            if (tmp.exists())
+                tmp.delete();
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static String toKey(MessageDigest md, boolean ns) {
+        byte[] d = md.digest();
+        StringBuffer sb = new StringBuffer(d.length * 2 + 3);
+        for (int i = 0; i < d.length; i++) {
+            sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(d[i] & 0xf, 16));
+        }
+        if (ns)
+            sb.append("-ns");
+        return sb.toString();
+    }
+}
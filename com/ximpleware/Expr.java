@@ -58,6 +58,30 @@ abstract public class Expr {
 	public void markCacheable2(){}
 	//public boolean isConstant(){return false;}
 	public void clearCache(){}
+	
+	/**
+	 * Materialize the node set into nsb, the nodes are added 
+	 * in addition to the existing members of nsb.
+	 * The default implementation drains evalNodeSet(); subclasses
+	 * override it when they can do better (e.g. union without hashing)
+	 * @param vn
+	 * @param nsb
+	 * @throws XPathEvalException
+	 * @throws NavException
+	 */
+	public void evalNodeSetToBitmap(VTDNav vn, NodeSetBitmap nsb) throws XPathEvalException, NavException{
+		int i;
+		vn.push2();
+		int size = vn.contextStack2.size;
+		try{
+			while((i=evalNodeSet(vn))!=-1)
+				nsb.add(i);
+		}finally{
+			reset(vn);
+			vn.contextStack2.size = size;
+			vn.pop2();
+		}
+	}
 	// to support computer context size 
 	// needs to add 
 	//abstract public boolean needContextSize();
@@ -53,6 +53,10 @@ public class FastIntBuffer implements IIntBuffer {
     protected int size;
     private int exp;
     private int r;
+    /**
+     * The single page of a compacted buffer, see compact()
+     */
+    private int[] flat;
     /**
      * FastIntBuffer constructor comment.
      */
@@ -83,10 +87,17 @@ public class FastIntBuffer implements IIntBuffer {
  * Append an int array to the end of this buffer instance
  * @param int_array int[]
  */
-public final void append(int[] int_array) {
+public void append(int[] int_array) {
     /*if (int_array == null) {
         throw new NullPointerException();
     }*/
+    if (flat != null) {
+        if (size + int_array.length > capacity)
+            grow(size + int_array.length);
+        System.arraycopy(int_array, 0, flat, size, int_array.length);
+        size += int_array.length;
+        return;
+    }
     // no additional buffer space needed
     int lastBufferIndex;
     int[] lastBuffer;
@@ -181,7 +192,7 @@ public final void append(int[] int_array) {
  * Append a single int to the end of this buffer Instance
  * @param i int
  */
-public final void append(int i) {
+public void append(int i) {
 
     //int[] lastBuffer;
     //int lastBufferIndex;
@@ -204,6 +215,9 @@ public final void append(int i) {
     	//((int[])bufferArrayList.oa[bufferArrayList.size-1])[size & r] = i;
 //        lastBuffer[size % pageSize] = i;
         size += 1;
+    } else if (flat != null) {
+        grow(size + 1);
+        flat[size++] = i;
     } else // new buffers needed
         {
         int[] newBuffer = new int[pageSize];
@@ -302,7 +316,10 @@ public final int getPageSize() {
  * @return int
  * @param index int
  */
-public final int intAt(int index) {
+public int intAt(int index) {
+    int[] f = flat;
+    if (f != null)
+        return f[index];
     /*if (index > size-1) {
         throw new IndexOutOfBoundsException();
     }*/
@@ -318,7 +335,7 @@ public final int intAt(int index) {
  * @param index int
  * @param newValue int
  */
-public final void modifyEntry(int index, int newValue) {
+public void modifyEntry(int index, int newValue) {
 	
         /*if (index > size - 1) {
             throw new IndexOutOfBoundsException(" index out of range");
@@ -363,13 +380,56 @@ public int[] toIntArray() {
 }
 
  
+ /**
+  * Copy the ints into a single array, so that
+  * intAt() skips the page lookup. It is meant for buffers that are
+  * done growing, appending to a compacted buffer grows the array by
+  * copying it.
+  */
+ public void compact(){
+     if (flat != null)
+         return;
+     // keep the unused tail of the last page, so reads just past size()
+     // see the same slack the paged buffer has
+     int n = (int) (((size + (long) r) >> exp) << exp);
+     int[] f = new int[n];
+     for (int i = 0, pages = n >> exp; i < pages; i++)
+         System.arraycopy((int[]) bufferArrayList.get(i), 0, f, i << exp, pageSize);
+     setFlat(f);
+ }
+ 
+ /**
+  * Tell whether the buffer is a single array, see compact()
+  * @return boolean
+  */
+ public final boolean isCompact(){
+     return flat != null;
+ }
+ 
+ private void grow(int minCapacity){
+     int[] f = new int[(int)Math.min(Integer.MAX_VALUE - 8,
+             Math.max(minCapacity, capacity + (capacity >> 1) + 16L))];
+     System.arraycopy(flat, 0, f, 0, size);
+     setFlat(f);
+ }
+ 
+ // a single page covers any index
+ private void setFlat(int[] f){
+     flat = f;
+     bufferArrayList = new arrayList(1);
+     bufferArrayList.add(f);
+     capacity = pageSize = f.length;
+     exp = 31;
+     r = Integer.MAX_VALUE;
+ }
+ 
  /**
   * set the size of int buffer to zero, capacity
   * untouched so int buffer can be reused without
   * any unnecessary and additional allocation
   *
   */
- public final void clear(){
+ public void clear(){
  	size = 0;
  }
  
@@ -380,7 +440,7 @@ public int[] toIntArray() {
   * @return status of resize
   *
   */
- public final boolean resize(int newSz){     
+ public boolean resize(int newSz){     
 	 if (newSz <= capacity && newSz >=0){
 		 size = newSz;
 		 return true;
@@ -49,6 +49,10 @@ public class FastLongBuffer implements ILongBuffer {
     protected int size;
     private int exp;
     private int r;
+    /**
+     * The single page of a compacted buffer, see compact()
+     */
+    private long[] flat;
 
     /**
      * FastLongBuffer constructor comment.
@@ -99,6 +103,13 @@ public void append(long[] long_array) {
   if (long_array == null) {
         throw new NullPointerException();
     }
+    if (flat != null) {
+        if (size + long_array.length > capacity)
+            grow(size + long_array.length);
+        System.arraycopy(long_array, 0, flat, size, long_array.length);
+        size += long_array.length;
+        return;
+    }
     // no additional buffer space needed
     int lastBufferIndex;
     long[] lastBuffer;
@@ -186,7 +197,7 @@ public void append(long[] long_array) {
  * Append an integer to the end of this array buffer
  * @param i long
  */
-public final void append(long i) {
+public void append(long i) {
    //long[] lastBuffer;
    //int lastBufferIndex;
     /*if (bufferArrayList.size == 0) {
@@ -208,6 +219,9 @@ public final void append(long i) {
     	((long[]) bufferArrayList.oa[size >> exp])[size & r] = i;
         //((long[])bufferArrayList.oa[bufferArrayList.size-1])[size & r] = i;
         size += 1;
+    } else if (flat != null) {
+        grow(size + 1);
+        flat[size++] = i;
     } else // new buffers needed
         {
         long[] newBuffer = new long[pageSize];
@@ -302,7 +316,10 @@ public final int getPageSize() {
  * @return long
  * @param index int
  */
-public final long longAt(int index) {
+public long longAt(int index) {
+    long[] f = flat;
+    if (f != null)
+        return f[index];
     /*if (index >= size) {
         throw new IndexOutOfBoundsException();
     }*/
@@ -316,7 +333,10 @@ public final long longAt(int index) {
  * @return int
  * @param index int
  */
- public final int lower32At(int index) {
+ public int lower32At(int index) {
+    long[] f = flat;
+    if (f != null)
+        return (int) f[index];
     /*if ( index > size) {
         throw new IndexOutOfBoundsException();
     }*/
@@ -330,7 +350,7 @@ public final long longAt(int index) {
  * @param index int
  * @param newValue long
  */
-public final void modifyEntry(int index, long newValue) {
+public void modifyEntry(int index, long newValue) {
 
     /*if ( index > size + 1) {
         throw new IndexOutOfBoundsException();
@@ -377,7 +397,10 @@ public long[] toLongArray() {
  * @return int
  * @param index int
  */
-public final int upper32At(int index) {
+public int upper32At(int index) {
+    long[] f = flat;
+    if (f != null)
+        return (int) (f[index] >>> 32);
     /*if ( index >= size) {
         throw new IndexOutOfBoundsException();
     }*/
@@ -389,13 +412,57 @@ public final int upper32At(int index) {
 }
 
 
+ /**
+  * Copy the longs into a single array, so that longAt() and friends
+  * skip the page lookup: a test of the array and an indexed load, where
+  * the paged buffer shifts, masks and casts the page. It is meant for buffers
+  * that are done growing, e.g. the VTD of a parsed document; appending to
+  * a compacted buffer grows the array by copying it.
+  */
+ public void compact(){
+     if (flat != null)
+         return;
+     // keep the unused tail of the last page, so reads just past size()
+     // see the same slack the paged buffer has
+     int n = (int) (((size + (long) r) >> exp) << exp);
+     long[] f = new long[n];
+     for (int i = 0, pages = n >> exp; i < pages; i++)
+         System.arraycopy((long[]) bufferArrayList.oa[i], 0, f, i << exp, pageSize);
+     setFlat(f);
+ }
+ 
+ /**
+  * Tell whether the buffer is a single array, see compact()
+  * @return boolean
+  */
+ public final boolean isCompact(){
+     return flat != null;
+ }
+ 
+ private void grow(int minCapacity){
+     long[] f = new long[(int)Math.min(Integer.MAX_VALUE - 8,
+             Math.max(minCapacity, capacity + (capacity >> 1) + 16L))];
+     System.arraycopy(flat, 0, f, 0, size);
+     setFlat(f);
+ }
+ 
+ // a single page covers any index
+ private void setFlat(long[] f){
+     flat = f;
+     bufferArrayList = new arrayList(1);
+     bufferArrayList.add(f);
+     capacity = pageSize = f.length;
+     exp = 31;
+     r = Integer.MAX_VALUE;
+ }
+ 
  /**
   * set teh size of long buffer to zero, capacity
   * untouched so long buffer can be reused without
   * any unnecessary and additional allocation
   *
   */
- public final void clear(){
+ public void clear(){
  	size = 0;
  }
  
@@ -406,7 +473,7 @@ public final int upper32At(int index) {
   * @return status of resize
   *
   */
- public final boolean resize(int newSz){     
+ public boolean resize(int newSz){     
 	 if (newSz <= capacity && newSz >=0){
 		 size = newSz;
 		 return true;
@@ -97,7 +97,7 @@ public class FilterExpr extends Expr {
                     //String s = vn.getXPathStringVal();
                     d  = vn.XPathStringVal2Double(a);// Double.parseDouble(s);
                 }else if (t == VTDNav.TOKEN_PI_NAME) {
-                	if (a+1 < vn.vtdSize || vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
+                	if (a+1 < vn.vtdSize && vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
 	                	//s = vn.toString(a+1); 	
                 	d = vn.parseDouble(a+1);                	
                 }else 
@@ -178,8 +178,8 @@ public class FilterExpr extends Expr {
 					s = vn.toString(a + 1);
 					break;
 				case VTDNav.TOKEN_PI_NAME:
-					//if (a + 1 < vn.vtdSize
-					//		|| vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
+					if (a + 1 < vn.vtdSize
+							&& vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
 						s = vn.toString(a + 1);
 					break;
 				default:
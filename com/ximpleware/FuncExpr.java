@@ -43,6 +43,7 @@ public class FuncExpr extends Expr{
 	int state;
 	VTDGen vg;
 	String s;
+	NodeSetBitmap nsb; // for count() over unions
 	//VTDNav vn;
 	public static final int START = 0, // initial state
 			END = 1, // return to begin
@@ -496,10 +497,10 @@ public class FuncExpr extends Expr{
                 /*else if (t == VTDNav.TOKEN_STARTING_TAG) {
                    // a = vn.getText();
                 }*/else if (t == VTDNav.TOKEN_PI_NAME){
-                	//if (a+1 < vn.vtdSize || vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
-                	a++;
-                	//else 
-                	//	a=-1;
+                	if (a+1 < vn.vtdSize && vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
+                		a++;
+                	else 
+                		a=-1;
                 }
                  
                 //else if (t== VTDNav.T)
@@ -1224,9 +1225,19 @@ public class FuncExpr extends Expr{
 		try{
 			a = 0;
 			argumentList.e.adjust(vn.getTokenCount());
-			while(argumentList.e.evalNodeSet(vn)!=-1){
-				//System.out.println(" ===>"+vn.getCurrentIndex());
-				a ++;
+			if (argumentList.e instanceof UnionExpr 
+					&& ((UnionExpr)argumentList.e).next!=null){
+				// count the union on a bitmap instead of hashing every node
+				if (nsb==null)
+					nsb = new NodeSetBitmap(vn.getTokenCount());
+				nsb.clear();
+				argumentList.e.evalNodeSetToBitmap(vn,nsb);
+				a = nsb.cardinality();
+			}else{
+				while(argumentList.e.evalNodeSet(vn)!=-1){
+					//System.out.println(" ===>"+vn.getCurrentIndex());
+					a ++;
+				}
 			}
 		}catch(Exception e){
 			System.out.println("exception in count");
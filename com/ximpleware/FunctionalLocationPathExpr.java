@@ -35,7 +35,7 @@ public class FunctionalLocationPathExpr extends LocationPathExpr {
 		currentStep = null;
 		fne = fne1;
 		//fib = new FastIntBuffer(8);// page size 256 = 2^ 8
-		ih = new intHash();
+		ih = new intOpenHash();
 	}
 	public String toString(){
 		String st = "";
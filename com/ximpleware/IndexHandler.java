@@ -21,6 +21,14 @@
 package com.ximpleware;
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 /**
  * IndexWrite adjusts the offset so that the XML segment
  * contains only the XML document
@@ -29,6 +37,21 @@ import java.nio.*;
  */
 class IndexHandler {
     public static final int OFFSET_ADJUSTMENT =32;
+    // the sectioned index format, version 2 is taken by separate indices
+    public static final byte SECTIONED_VERSION = 3;
+    static final int HEADER_SIZE = 32, ENTRY_SIZE = 40;
+    // header flags
+    static final int F_NS = 0x40, F_BIG_ENDIAN = 0x20, F_HUGE = 0x10;
+    // section types, readers skip the types they don't know
+    static final int S_XML = 1, S_VTD = 2, S_L1 = 3, S_L2 = 4, S_L3 = 5,
+        S_L4 = 6, S_L5 = 7;
+    // 8 and 9 hold the extended records of IndexHandlerHuge
+    // reserved for side indexes
+    static final int S_NAME_IDS = 16, S_PARENTS = 17, S_VALUE_INDEX = 18;
+    // section codecs, LZ4 is reserved
+    static final int C_STORED = 0, C_DEFLATE = 1, C_LZ4 = 2;
+    // section flags
+    static final int SF_DELTA_OFFSETS = 1;
     
     /**
      * Write VTD+XML index to OutputStream
@@ -548,6 +571,16 @@ class IndexHandler {
         if (ba == null || vg == null)
             throw new IllegalArgumentException("Invalid argument(s) for readIndex()");
 
+        if (ba.length > 0 && ba[0] == SECTIONED_VERSION){
+            // sections may be compressed, so the XML is copied out of ba
+            try {
+                readSectionedIndex(new DataInputStream(
+                        new ByteArrayInputStream(ba, 1, ba.length-1)), vg);
+            } catch (IOException e){
+                throw new IndexReadException(e.toString());
+            }
+            return;
+        }
         ByteBuffer bb = ByteBuffer.wrap(ba);
         byte b= bb.get(); // first byte
         if (b!=1) throw new IndexReadException("Invalid version number for readIndex()");
@@ -758,6 +791,10 @@ class IndexHandler {
             throw new IndexReadException("Invalid argument(s) for readIndex()");
         DataInputStream dis = new DataInputStream(is);
         byte b= dis.readByte(); // first byte
+        if (b==SECTIONED_VERSION){
+            readSectionedIndex(dis, vg);
+            return;
+        }
         if (b!=1) throw new IndexReadException("Invalid version number for readIndex()");
         // no check on version number for now
         // second byte
@@ -946,6 +983,123 @@ class IndexHandler {
 			}
         }
     }
+
+
+    /**
+     * Memory-map a VTD+XML index file. VTD and LC records are not copied,
+     * the VTDNav uses them in place through MappedLongBuffer and
+     * MappedIntBuffer views; only the XML bytes are read into memory
+     * so that they can be modified.
+     * @param fileName
+     * @return VTDNav
+     * @throws IndexReadException
+     * @throws IOException
+     *
+     */
+    public static VTDNav mapIndex(String fileName)
+    throws IndexReadException,IOException{
+        if (fileName == null)
+            throw new IllegalArgumentException("Invalid argument(s) for mapIndex()");
+        RandomAccessFile raf = new RandomAccessFile(fileName,"r");
+        try{
+            FileChannel fc = raf.getChannel();
+            ByteBuffer bb = ByteBuffer.allocate(OFFSET_ADJUSTMENT);
+            readFully(fc,bb,0);
+            bb.flip();
+            byte b = bb.get(); // first byte
+            if (b==SECTIONED_VERSION)
+                return mapSectionedIndex(fc, false);
+            if (b!=1) throw new IndexReadException("Invalid version number for mapIndex()");
+            int encoding = bb.get();
+            b = bb.get();
+            boolean ints = (b & 0x80)!=0;
+            boolean ns = (b & 0x40)!=0;
+            ByteOrder order = ((b & 0x20)!=0)? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+            if ((b & 0x1f) != 0)
+                throw new IndexReadException("Last 5 bits of the third byte should be zero");
+            int depth = bb.get();
+            int LCLevel = ((bb.get() & 0xff)<<8) | (bb.get() & 0xff);
+            if (LCLevel != 4 &&  LCLevel !=6)
+                throw new IndexReadException("LC levels must be at least 3");
+            int rootIndex = ((bb.get() & 0xff)<<8) | (bb.get() & 0xff);
+            bb.order(order);
+            int size = (int) bb.getLong(24);
+            if (size <= 0 || OFFSET_ADJUSTMENT + (long)size > fc.size())
+                throw new IndexReadException("Invalid XML size in the index file");
+            byte[] XMLDoc = new byte[size];
+            readFully(fc,ByteBuffer.wrap(XMLDoc),OFFSET_ADJUSTMENT);
+            long pos = OFFSET_ADJUSTMENT + (((size + 7L)>>3)<<3);
+            // VTD offsets are written relative to the start of the XML
+            int vtdSize = readSize(fc, pos, order, 8);
+            MappedLongBuffer vtd = new MappedLongBuffer(fc, pos+8, vtdSize, order);
+            pos += 8 + ((long)vtdSize<<3);
+            int l1Size = readSize(fc, pos, order, 8);
+            MappedLongBuffer l1 = new MappedLongBuffer(fc, pos+8, l1Size, order);
+            pos += 8 + ((long)l1Size<<3);
+            int l2Size = readSize(fc, pos, order, 8);
+            MappedLongBuffer l2 = new MappedLongBuffer(fc, pos+8, l2Size, order);
+            pos += 8 + ((long)l2Size<<3);
+            if (LCLevel == 4){
+                FastIntBuffer l3 = mapInts(fc, pos, order, ints);
+                return new VTDNav(rootIndex, encoding, ns, depth,
+                        new UniByteBuffer(XMLDoc), vtd, l1, l2, l3, 0, size);
+            }
+            int l3Size = readSize(fc, pos, order, 8);
+            MappedLongBuffer l3 = new MappedLongBuffer(fc, pos+8, l3Size, order);
+            pos += 8 + ((long)l3Size<<3);
+            int l4Size = readSize(fc, pos, order, 8);
+            MappedLongBuffer l4 = new MappedLongBuffer(fc, pos+8, l4Size, order);
+            pos += 8 + ((long)l4Size<<3);
+            FastIntBuffer l5 = mapInts(fc, pos, order, ints);
+            return new VTDNav_L5(rootIndex, encoding, ns, depth,
+                    new UniByteBuffer(XMLDoc), vtd, l1, l2, l3, l4, l5, 0, size);
+        } finally {
+            // the mappings stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * map the last LC level, stored either as ints or
+     * as longs carrying the int in their upper 32 bits
+     */
+    private static FastIntBuffer mapInts(FileChannel fc, long pos, ByteOrder order, boolean ints)
+    throws IndexReadException,IOException{
+        if (ints){
+            int n = readSize(fc, pos, order, 4);
+            return new MappedIntBuffer(fc, pos+8, n, order);
+        }
+        int n = readSize(fc, pos, order, 8);
+        MappedLongBuffer mlb = new MappedLongBuffer(fc, pos+8, n, order);
+        FastIntBuffer fib = new FastIntBuffer();
+        for (int i=0;i<n;i++)
+            fib.append(mlb.upper32At(i));
+        return fib;
+    }
+
+    /**
+     * read the entry count of the section at pos, and check the section
+     * fits in the file
+     */
+    private static int readSize(FileChannel fc, long pos, ByteOrder order, int entrySize)
+    throws IndexReadException,IOException{
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        readFully(fc,bb,pos);
+        long l = bb.order(order).getLong(0);
+        if (l < 0 || l > Integer.MAX_VALUE || pos + 8 + l*entrySize > fc.size())
+            throw new IndexReadException("Invalid section size in the index file");
+        return (int)l;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer bb, long pos)
+    throws IndexReadException,IOException{
+        while (bb.hasRemaining()){
+            int i = fc.read(bb, pos);
+            if (i < 0)
+                throw new IndexReadException("Premature end of the index file");
+            pos += i;
+        }
+    }
     
 /**
  * read in XML and index file  separately 
@@ -1066,14 +1220,14 @@ class IndexHandler {
 				}
 				
 				int l4Size = (int)dis.readLong();
-	            while(l2Size > 0){
+	            while(l4Size > 0){
 	                vg._l4Buffer.append(dis.readLong());
 	                l4Size--;
 	            }
 	            
 	            int l5Size = (int)dis.readLong();
 	            if (intLongSwitch == 1) { // l5 uses ints
-	            	while(l2Size > 0){
+	            	while(l5Size > 0){
 	            		vg._l5Buffer.append(dis.readInt());
 	            		l5Size--;
 	            	}
@@ -1150,6 +1304,615 @@ class IndexHandler {
 			}
         }
     }
+    /**
+     * Write VTD+XML into the sectioned index format (version 3).
+     * The file starts with a 32-byte header followed by a table of 40-byte
+     * section entries, each giving the type, codec, flags, element size,
+     * CRC-32C, element count, file offset and stored length of a section,
+     * so that a reader can locate, verify, map or skip every section on its own.
+     * Sections are 8-byte aligned and written in big endian.
+     * When compress is true, the XML and VTD sections are deflated and
+     * the VTD offsets are delta-encoded; the LC sections are always stored
+     * so that they can be memory-mapped.
+     * @param encodingType
+     * @param ns
+     * @param nestDepth
+     * @param LCLevel 3 or 5
+     * @param rootIndex
+     * @param xmlDoc
+     * @param docOffset
+     * @param docLen
+     * @param vtdBuffer
+     * @param l1Buffer
+     * @param l2Buffer
+     * @param l3Buffer the long L3 buffer of a 5 level LC, null otherwise
+     * @param l4Buffer the L4 buffer of a 5 level LC, null otherwise
+     * @param lastBuffer the last (int) LC level, L3 or L5
+     * @param compress
+     * @param os
+     * @throws IndexWriteException
+     * @throws IOException
+     *
+     */
+    public static void writeSectionedIndex(int encodingType,
+            boolean ns,
+            int nestDepth,
+            int LCLevel,
+            int rootIndex,
+            byte[] xmlDoc,
+            int docOffset,
+            int docLen,
+            ILongBuffer vtdBuffer,
+            ILongBuffer l1Buffer,
+            ILongBuffer l2Buffer,
+            ILongBuffer l3Buffer,
+            ILongBuffer l4Buffer,
+            IIntBuffer lastBuffer,
+            boolean compress,
+            OutputStream os
+            ) throws IndexWriteException,
+            IOException{
+        if ( xmlDoc == null
+                || docLen <=0
+                || vtdBuffer == null
+                || l1Buffer == null
+                || l2Buffer == null
+                || lastBuffer == null
+                || (LCLevel != 3 && LCLevel != 5)
+                || (LCLevel == 5 && (l3Buffer == null || l4Buffer == null))
+                ){
+            throw new IndexWriteException("Invalid VTD index ");
+        }
+        if (vtdBuffer.size()==0)
+            throw new IndexWriteException("VTDBuffer can't be zero length");
+
+        int n = (LCLevel == 3)? 5 : 7;
+        int[] types = new int[n];
+        Object[] sources = new Object[n];
+        types[0] = S_XML;
+        types[1] = S_VTD; sources[1] = vtdBuffer;
+        types[2] = S_L1;  sources[2] = l1Buffer;
+        types[3] = S_L2;  sources[3] = l2Buffer;
+        if (LCLevel == 3){
+            types[4] = S_L3; sources[4] = lastBuffer;
+        } else {
+            types[4] = S_L3; sources[4] = l3Buffer;
+            types[5] = S_L4; sources[5] = l4Buffer;
+            types[6] = S_L5; sources[6] = lastBuffer;
+        }
+
+        byte[] table = new byte[HEADER_SIZE + n*ENTRY_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(table);
+        bb.put(0, SECTIONED_VERSION);
+        bb.put(1, (byte)encodingType);
+        bb.put(2, (byte)(ns? F_NS|F_BIG_ENDIAN : F_BIG_ENDIAN));
+        bb.put(3, (byte)nestDepth);
+        bb.put(4, (byte)LCLevel);
+        bb.putShort(6, (short)n);
+        bb.putInt(8, rootIndex);
+        bb.putLong(16, docLen);
+
+        // compressed sections are encoded up front, stored ones
+        // are encoded twice: once for the checksum, once for the output
+        byte[][] compressed = new byte[n][];
+        long pos = table.length;
+        for (int i=0;i<n;i++){
+            int p = HEADER_SIZE + i*ENTRY_SIZE;
+            boolean deflate = compress && (types[i] == S_XML || types[i] == S_VTD);
+            boolean delta = deflate && types[i] == S_VTD;
+            long count, length;
+            int elementSize;
+            crc32c crc = new crc32c();
+            if (types[i] == S_XML){
+                elementSize = 1;
+                count = docLen;
+            } else if (sources[i] instanceof ILongBuffer){
+                elementSize = 8;
+                count = ((ILongBuffer)sources[i]).size();
+            } else {
+                elementSize = 4;
+                count = ((IIntBuffer)sources[i]).size();
+            }
+            if (deflate){
+                ByteArrayOutputStream baos = new ByteArrayOutputStream((int)Math.min(count*elementSize/4+64, Integer.MAX_VALUE-8));
+                Deflater d = new Deflater(Deflater.BEST_SPEED);
+                DeflaterOutputStream dos = new DeflaterOutputStream(baos, d, 1<<16);
+                encodeSection(types[i], sources[i], xmlDoc, docOffset, docLen, delta, dos);
+                dos.finish();
+                d.end();
+                compressed[i] = baos.toByteArray();
+                crc.update(compressed[i], 0, compressed[i].length);
+                length = compressed[i].length;
+            } else {
+                encodeSection(types[i], sources[i], xmlDoc, docOffset, docLen, false,
+                        new CheckedOutputStream(new sectionOutputStream(), crc));
+                length = count*elementSize;
+            }
+            bb.putShort(p, (short)types[i]);
+            bb.put(p+2, (byte)(deflate? C_DEFLATE : C_STORED));
+            bb.put(p+3, (byte)(delta? SF_DELTA_OFFSETS : 0));
+            bb.put(p+4, (byte)elementSize);
+            bb.putInt(p+8, (int)crc.getValue());
+            bb.putLong(p+16, count);
+            bb.putLong(p+24, pos);
+            bb.putLong(p+32, length);
+            pos += ((length+7)>>3)<<3;
+        }
+        crc32c crc = new crc32c();
+        crc.update(table, 0, table.length);
+        bb.putInt(28, (int)crc.getValue());
+
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.write(table);
+        for (int i=0;i<n;i++){
+            long length;
+            if (compressed[i] != null){
+                dos.write(compressed[i]);
+                length = compressed[i].length;
+            } else {
+                encodeSection(types[i], sources[i], xmlDoc, docOffset, docLen, false, dos);
+                length = bb.getLong(HEADER_SIZE + i*ENTRY_SIZE + 32);
+            }
+            // zero padding to make it integer multiple of 64 bits
+            for (int t = (int)(((length+7)>>3<<3) - length);t>0;t--)
+                dos.write(0);
+        }
+        dos.close();
+    }
+
+    /**
+     * encode the content of a section in big endian, VTD offsets are
+     * adjusted to be relative to the start of the XML and optionally
+     * replaced by their difference to the previous record's offset
+     */
+    private static void encodeSection(int type, Object src,
+            byte[] xmlDoc, int docOffset, int docLen,
+            boolean delta, OutputStream os) throws IOException{
+        if (type == S_XML){
+            os.write(xmlDoc, docOffset, docLen);
+            return;
+        }
+        byte[] chunk = new byte[1<<16];
+        ByteBuffer bb = ByteBuffer.wrap(chunk);
+        int k = 0;
+        if (src instanceof ILongBuffer){
+            ILongBuffer lb = (ILongBuffer)src;
+            int size = lb.size();
+            long prev = 0;
+            for (int i=0;i<size;i++){
+                long l = lb.longAt(i);
+                if (type == S_VTD){
+                    // the document record's offset is always 0
+                    if (docOffset != 0 && (int)(l>>>60) != VTDNav.TOKEN_DOCUMENT)
+                        l = adjust(l, -docOffset);
+                    if (delta){
+                        long o = l & 0xffffffffL;
+                        l = (l & 0xffffffff00000000L) | ((o - prev) & 0xffffffffL);
+                        prev = o;
+                    }
+                }
+                bb.putLong(k, l);
+                k += 8;
+                if (k == chunk.length){
+                    os.write(chunk, 0, k);
+                    k = 0;
+                }
+            }
+        } else {
+            IIntBuffer ib = (IIntBuffer)src;
+            int size = ib.size();
+            for (int i=0;i<size;i++){
+                bb.putInt(k, ib.intAt(i));
+                k += 4;
+                if (k == chunk.length){
+                    os.write(chunk, 0, k);
+                    k = 0;
+                }
+            }
+        }
+        if (k > 0)
+            os.write(chunk, 0, k);
+    }
+
+    /**
+     * Read a sectioned VTD+XML index (version 3) whose
+     * version byte has already been consumed
+     * @param dis
+     * @param vg
+     * @throws IndexReadException
+     * @throws IOException
+     *
+     */
+    private static void readSectionedIndex(DataInputStream dis, VTDGen vg)
+    throws IndexReadException, IOException{
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = SECTIONED_VERSION;
+        dis.readFully(header, 1, HEADER_SIZE-1);
+        int n = ByteBuffer.wrap(header).getShort(6) & 0xffff;
+        byte[] table = new byte[HEADER_SIZE + n*ENTRY_SIZE];
+        System.arraycopy(header, 0, table, 0, HEADER_SIZE);
+        dis.readFully(table, HEADER_SIZE, n*ENTRY_SIZE);
+        sectionTable st = new sectionTable(table);
+
+        vg.encoding = st.encoding;
+        vg.ns = st.ns;
+        vg.VTDDepth = st.depth;
+        vg.shallowDepth = (st.LCLevel == 3);
+        vg.rootIndex = st.rootIndex;
+        long pos = table.length;
+        boolean xml = false;
+        int[] order = st.order();
+        for (int j=0;j<n;j++){
+            int i = order[j];
+            long offset = st.offset[i];
+            if (offset < pos)
+                throw new IndexReadException("Overlapping sections in the index file");
+            skipFully(dis, offset - pos);
+            pos = offset + st.length[i];
+            int type = st.type[i];
+            if (type > S_L5){
+                // unknown types (e.g. side indexes) are skipped
+                skipFully(dis, st.length[i]);
+                continue;
+            }
+            if (type != S_XML && !xml)
+                throw new IndexReadException("The XML section must precede the other sections");
+            try {
+                sectionInputStream sis = new sectionInputStream(dis, st.length[i]);
+                DataInputStream in = st.open(sis, i);
+                switch(type){
+                case S_XML:
+                    byte[] XMLDoc = new byte[(int)st.count[i]];
+                    in.readFully(XMLDoc);
+                    vg.setDoc(XMLDoc);
+                    xml = true;
+                    break;
+                case S_VTD:
+                    readLongs(in, st.count[i], (st.flags[i] & SF_DELTA_OFFSETS)!=0, vg.VTDBuffer);
+                    break;
+                case S_L1:
+                    readLongs(in, st.count[i], false, vg.l1Buffer);
+                    break;
+                case S_L2:
+                    readLongs(in, st.count[i], false, vg.l2Buffer);
+                    break;
+                case S_L3:
+                    if (vg.shallowDepth)
+                        readInts(in, st.count[i], vg.l3Buffer);
+                    else
+                        readLongs(in, st.count[i], false, vg._l3Buffer);
+                    break;
+                case S_L4:
+                    readLongs(in, st.count[i], false, vg._l4Buffer);
+                    break;
+                default:
+                    readInts(in, st.count[i], vg._l5Buffer);
+                }
+                sis.finish(st.crc[i]);
+            } catch (ZipException e) {
+                throw new IndexReadException("Corrupt compressed section in the index file");
+            } catch (java.io.EOFException e) {
+                // the section decodes to fewer bytes than it should
+                throw new IndexReadException("Truncated section in the index file");
+            }
+        }
+        if (!xml)
+            throw new IndexReadException("Missing XML section in the index file");
+    }
+
+    /**
+     * Memory-map a sectioned VTD+XML index (version 3) including its XML
+     * section when it is stored, see DocumentCache
+     */
+    static VTDNav mapSharedIndex(String fileName)
+    throws IndexReadException,IOException{
+        RandomAccessFile raf = new RandomAccessFile(fileName,"r");
+        try{
+            FileChannel fc = raf.getChannel();
+            ByteBuffer bb = ByteBuffer.allocate(1);
+            readFully(fc,bb,0);
+            if (bb.get(0) != SECTIONED_VERSION)
+                throw new IndexReadException("Invalid version number for mapSharedIndex()");
+            return mapSectionedIndex(fc, true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Memory-map a sectioned VTD+XML index (version 3). Stored VTD and LC
+     * sections are mapped in place and aren't checksummed, so that loading
+     * doesn't touch their pages; so is a stored XML section when mapXML is
+     * true. The XML and compressed or delta-encoded sections are otherwise
+     * decoded into memory and verified.
+     */
+    private static VTDNav mapSectionedIndex(FileChannel fc, boolean mapXML)
+    throws IndexReadException,IOException{
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(fc, bb, 0);
+        int n = bb.getShort(6) & 0xffff;
+        byte[] table = new byte[HEADER_SIZE + n*ENTRY_SIZE];
+        readFully(fc, ByteBuffer.wrap(table), 0);
+        sectionTable st = new sectionTable(table);
+        Object[] sections = new Object[S_L5+1];
+        for (int i=0;i<n;i++){
+            int type = st.type[i];
+            if (type > S_L5)
+                continue;
+            if (st.offset[i] + st.length[i] > fc.size())
+                throw new IndexReadException("Invalid section size in the index file");
+            if (type == S_XML && mapXML && st.codec[i] == C_STORED){
+                sections[type] = new mappedXMLBuffer(
+                        fc.map(FileChannel.MapMode.READ_ONLY, st.offset[i], st.count[i]));
+                continue;
+            }
+            if (type != S_XML && st.codec[i] == C_STORED
+                    && (st.flags[i] & SF_DELTA_OFFSETS) == 0){
+                if (st.elementSize[i] == 8)
+                    sections[type] = new MappedLongBuffer(fc, st.offset[i], (int)st.count[i], ByteOrder.BIG_ENDIAN);
+                else
+                    sections[type] = new MappedIntBuffer(fc, st.offset[i], (int)st.count[i], ByteOrder.BIG_ENDIAN);
+                continue;
+            }
+            fc.position(st.offset[i]);
+            try {
+                sectionInputStream sis = new sectionInputStream(Channels.newInputStream(fc), st.length[i]);
+                DataInputStream in = st.open(sis, i);
+                if (type == S_XML){
+                    byte[] XMLDoc = new byte[(int)st.count[i]];
+                    in.readFully(XMLDoc);
+                    sections[type] = XMLDoc;
+                } else if (st.elementSize[i] == 8){
+                    FastLongBuffer flb = new FastLongBuffer();
+                    readLongs(in, st.count[i], (st.flags[i] & SF_DELTA_OFFSETS)!=0, flb);
+                    sections[type] = flb;
+                } else {
+                    FastIntBuffer fib = new FastIntBuffer();
+                    readInts(in, st.count[i], fib);
+                    sections[type] = fib;
+                }
+                sis.finish(st.crc[i]);
+            } catch (ZipException e) {
+                throw new IndexReadException("Corrupt compressed section in the index file");
+            } catch (java.io.EOFException e) {
+                // the section decodes to fewer bytes than it should
+                throw new IndexReadException("Truncated section in the index file");
+            }
+        }
+        int last = (st.LCLevel == 3)? S_L3 : S_L5;
+        for (int type = S_XML; type <= last; type++)
+            if (sections[type] == null)
+                throw new IndexReadException("Missing section "+type+" in the index file");
+        IByteBuffer XMLDoc = (sections[S_XML] instanceof byte[])?
+                new UniByteBuffer((byte[])sections[S_XML]) : (IByteBuffer)sections[S_XML];
+        if (st.LCLevel == 3)
+            return new VTDNav(st.rootIndex, st.encoding, st.ns, st.depth,
+                    XMLDoc, (FastLongBuffer)sections[S_VTD],
+                    (FastLongBuffer)sections[S_L1], (FastLongBuffer)sections[S_L2],
+                    (FastIntBuffer)sections[S_L3], 0, XMLDoc.length());
+        return new VTDNav_L5(st.rootIndex, st.encoding, st.ns, st.depth,
+                XMLDoc, (FastLongBuffer)sections[S_VTD],
+                (FastLongBuffer)sections[S_L1], (FastLongBuffer)sections[S_L2],
+                (FastLongBuffer)sections[S_L3], (FastLongBuffer)sections[S_L4],
+                (FastIntBuffer)sections[S_L5], 0, XMLDoc.length());
+    }
+
+    private static void readLongs(DataInputStream in, long count, boolean delta, FastLongBuffer flb)
+    throws IOException{
+        byte[] chunk = new byte[1<<16];
+        ByteBuffer bb = ByteBuffer.wrap(chunk);
+        long prev = 0;
+        while (count > 0){
+            int k = (int)Math.min(count, chunk.length>>3);
+            in.readFully(chunk, 0, k<<3);
+            for (int i=0;i<k;i++){
+                long l = bb.getLong(i<<3);
+                if (delta){
+                    prev = (prev + l) & 0xffffffffL;
+                    l = (l & 0xffffffff00000000L) | prev;
+                }
+                flb.append(l);
+            }
+            count -= k;
+        }
+    }
+
+    private static void readInts(DataInputStream in, long count, FastIntBuffer fib)
+    throws IOException{
+        byte[] chunk = new byte[1<<16];
+        ByteBuffer bb = ByteBuffer.wrap(chunk);
+        while (count > 0){
+            int k = (int)Math.min(count, chunk.length>>2);
+            in.readFully(chunk, 0, k<<2);
+            for (int i=0;i<k;i++)
+                fib.append(bb.getInt(i<<2));
+            count -= k;
+        }
+    }
+
+    private static void skipFully(DataInputStream dis, long l) throws IOException{
+        while (l > 0){
+            int i = dis.skipBytes((int)Math.min(l, Integer.MAX_VALUE));
+            if (i <= 0){
+                dis.readByte(); // throws EOFException at the end of the stream
+                i = 1;
+            }
+            l -= i;
+        }
+    }
+
+    /**
+     * The parsed and validated header and section table
+     * of a sectioned index
+     */
+    static class sectionTable {
+        int encoding, depth, LCLevel, rootIndex;
+        boolean ns;
+        long docLen;
+        int[] type, codec, flags, elementSize, crc;
+        long[] count, offset, length;
+
+        sectionTable(byte[] table) throws IndexReadException{
+            ByteBuffer bb = ByteBuffer.wrap(table);
+            int c = bb.getInt(28);
+            bb.putInt(28, 0);
+            crc32c crc = new crc32c();
+            crc.update(table, 0, table.length);
+            bb.putInt(28, c);
+            if ((int)crc.getValue() != c)
+                throw new IndexReadException("Checksum mismatch in the index header");
+            encoding = bb.get(1);
+            int f = bb.get(2);
+            if ((f & F_HUGE) != 0)
+                throw new IndexReadException("The index was written by VTDGenHuge");
+            if ((f & F_BIG_ENDIAN) == 0 || (f & 0x8f) != 0)
+                throw new IndexReadException("Invalid flags in the index header");
+            ns = (f & F_NS) != 0;
+            depth = bb.get(3);
+            LCLevel = bb.get(4);
+            if (LCLevel != 3 && LCLevel != 5)
+                throw new IndexReadException("LC levels must be 3 or 5");
+            rootIndex = bb.getInt(8);
+            docLen = bb.getLong(16);
+            if (docLen <= 0 || docLen > Integer.MAX_VALUE)
+                throw new IndexReadException("Invalid XML size in the index file");
+            int n = bb.getShort(6) & 0xffff;
+            type = new int[n]; codec = new int[n]; flags = new int[n];
+            elementSize = new int[n]; this.crc = new int[n];
+            count = new long[n]; offset = new long[n]; length = new long[n];
+            for (int i=0;i<n;i++){
+                int p = HEADER_SIZE + i*ENTRY_SIZE;
+                type[i] = bb.getShort(p) & 0xffff;
+                codec[i] = bb.get(p+2) & 0xff;
+                flags[i] = bb.get(p+3) & 0xff;
+                elementSize[i] = bb.get(p+4) & 0xff;
+                this.crc[i] = bb.getInt(p+8);
+                count[i] = bb.getLong(p+16);
+                offset[i] = bb.getLong(p+24);
+                length[i] = bb.getLong(p+32);
+                if (offset[i] < table.length || length[i] < 0)
+                    throw new IndexReadException("Invalid section entry in the index file");
+                if (type[i] > S_L5)
+                    continue;
+                if (LCLevel == 3 && type[i] > S_L3)
+                    throw new IndexReadException("Invalid section entry in the index file");
+                int es = (type[i] == S_XML)? 1
+                    : (type[i] == S_L5 || (type[i] == S_L3 && LCLevel == 3))? 4 : 8;
+                if (elementSize[i] != es || count[i] < 0 || count[i] > Integer.MAX_VALUE
+                        || (type[i] == S_XML && count[i] != docLen)
+                        || (codec[i] == C_STORED && length[i] != count[i]*es))
+                    throw new IndexReadException("Invalid section entry in the index file");
+            }
+        }
+
+        /**
+         * return the section indices sorted by file offset
+         */
+        int[] order(){
+            int[] o = new int[type.length];
+            for (int i=0;i<o.length;i++){
+                int j = i;
+                for (;j>0 && offset[o[j-1]] > offset[i];j--)
+                    o[j] = o[j-1];
+                o[j] = i;
+            }
+            return o;
+        }
+
+        /**
+         * return the decoded content of section i
+         */
+        DataInputStream open(sectionInputStream sis, int i) throws IndexReadException{
+            switch(codec[i]){
+            case C_STORED:
+                return new DataInputStream(sis);
+            case C_DEFLATE:
+                sis.inf = new Inflater();
+                sis.data = new InflaterInputStream(sis, sis.inf, 1<<16);
+                return new DataInputStream(sis.data);
+            default:
+                throw new IndexReadException("Unsupported section codec "+codec[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads the stored bytes of one section and computes their checksum
+     */
+    static class sectionInputStream extends FilterInputStream {
+        long remaining;
+        crc32c crc;
+        Inflater inf;
+        InputStream data;
+
+        sectionInputStream(InputStream is, long length){
+            super(is);
+            remaining = length;
+            crc = new crc32c();
+        }
+
+        public int read() throws IOException{
+            if (remaining <= 0)
+                return -1;
+            int i = in.read();
+            if (i < 0)
+                throw new java.io.EOFException("Premature end of the index file");
+            remaining--;
+            crc.update(i);
+            return i;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException{
+            if (remaining <= 0)
+                return -1;
+            int i = in.read(b, off, (int)Math.min(len, remaining));
+            if (i < 0)
+                throw new java.io.EOFException("Premature end of the index file");
+            remaining -= i;
+            crc.update(b, off, i);
+            return i;
+        }
+
+        public long skip(long n) throws IOException{
+            return read(new byte[(int)Math.min(n, 1<<12)]);
+        }
+
+        public boolean markSupported(){
+            return false;
+        }
+
+        public void close(){
+        }
+
+        /**
+         * consume the rest of the section and verify its checksum
+         */
+        void finish(int c) throws IndexReadException, IOException{
+            if (inf != null){
+                // reach the end of the deflate stream
+                boolean b = data.read() < 0 && inf.finished();
+                inf.end();
+                if (!b)
+                    throw new IndexReadException("Corrupt compressed section in the index file");
+            }
+            byte[] b = new byte[1<<12];
+            while (read(b, 0, b.length) > 0)
+                ;
+            if ((int)crc.getValue() != c)
+                throw new IndexReadException("Checksum mismatch in an index section");
+        }
+    }
+
+    /**
+     * An OutputStream that discards its input, used to checksum stored sections
+     */
+    static class sectionOutputStream extends OutputStream {
+        public void write(int b){
+        }
+        public void write(byte[] b, int off, int len){
+        }
+    }
+
     /**
      * reverse a long's endianess
      * @param l
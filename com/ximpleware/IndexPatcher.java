@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+import java.util.HashMap;
+
+import com.ximpleware.parser.XMLChar;
+
+/**
+ * IndexPatcher builds the VTD index of a modified document from the index
+ * of the master document, used by XMLModifier.outputAndReindex().
+ * The edits are grouped into regions: a region is a run of complete child
+ * nodes of the innermost element whose content contains the edits,
+ * delimited by markup on both sides, so that it is tokenized exactly the
+ * same way alone (wrapped in a dummy element) as in the whole document.
+ * Only the regions are tokenized again, the VTD records of the rest of
+ * the document are copied with their offsets shifted, and the location
+ * caches are either patched (when the regions are deeper than the cached
+ * levels) or rebuilt from the new VTD records.
+ * patch() returns null whenever the document has to be parsed again in
+ * full instead.
+ */
+class IndexPatcher {
+    private final static long MASK_LEN = 0x000fffff00000000L;
+    private VTDNav md;
+    private ILongBuffer vtd;
+    private int vtdSize;
+    private byte[] ba;
+    private int docEnd;
+    private HashMap<Integer,Integer> subtreeEnds;
+    // the regions in document order: the byte range, the record range,
+    // the parent element and the first edit
+    private FastIntBuffer ras, rbs, rs, rt, rp, rj;
+    private int ra, rb, ps;
+
+    private IndexPatcher(VTDNav vn){
+        md = vn;
+        vtd = vn.vtdBuffer;
+        vtdSize = vtd.size();
+        ba = vn.getXML().getBytes();
+        subtreeEnds = new HashMap<Integer,Integer>();
+        ras = new FastIntBuffer(4);
+        rbs = new FastIntBuffer(4);
+        rs = new FastIntBuffer(4);
+        rt = new FastIntBuffer(4);
+        rp = new FastIntBuffer(4);
+        rj = new FastIntBuffer(4);
+    }
+
+    /**
+     * Build the VTDNav of the updated document
+     * @param vn the master document
+     * @param eo byte offsets of the edits, in ascending order
+     * @param el number of bytes each edit removes
+     * @param ed change in document size caused by each edit
+     * @param ne number of edits
+     * @param xml the updated document
+     * @return the VTDNav of xml, or null if it needs a full parse
+     */
+    static VTDNav patch(VTDNav vn, int[] eo, int[] el, int[] ed, int ne, byte[] xml){
+        // regions are tokenized without an XML declaration
+        if (vn.encoding != VTDNav.FORMAT_UTF8 && vn.encoding != VTDNav.FORMAT_ASCII)
+            return null;
+        IndexPatcher ip = new IndexPatcher(vn);
+        return ip.patch(eo, el, ed, ne, xml);
+    }
+
+    private VTDNav patch(int[] eo, int[] el, int[] ed, int ne, byte[] xml){
+        int base = (vtd.lower32At(0) == 0) ? md.docOffset : 32;
+        int len = (vtd.lower32At(0) == 0) ? md.docLen : md.docLen - 32;
+        docEnd = base + len;
+        long total = len;
+        for (int j = 0; j < ne; j++)
+            total += ed[j];
+        if (total != xml.length)
+            return null;
+
+        // group the edits into regions
+        for (int j = 0; j < ne; j++){
+            int a = eo[j], b = eo[j] + el[j];
+            int k = ras.size() - 1;
+            if (k >= 0 && ras.intAt(k) <= a && b <= rbs.intAt(k))
+                continue;
+            int first = j, amin = a, bmax = b;
+            while (true){
+                if (!findRegion(amin, bmax))
+                    return null;
+                k = ras.size() - 1;
+                if (k < 0 || ra > rbs.intAt(k))
+                    break;
+                // overlaps or touches the previous region, merge them
+                first = rj.intAt(k);
+                amin = eo[first];
+                if (ras.intAt(k) < amin)
+                    amin = ras.intAt(k);
+                if (rbs.intAt(k) > bmax)
+                    bmax = rbs.intAt(k);
+                ras.size = rbs.size = rs.size = rt.size = rp.size = rj.size = k;
+            }
+            ras.append(ra);
+            rbs.append(rb);
+            rs.append(firstAtOrAfter(ra));
+            int t = firstAtOrAfter(rb);
+            // the empty text token of an element without content
+            if (t < vtdSize && md.getTokenType(t) == VTDNav.TOKEN_CHARACTER_DATA
+                    && md.getTokenOffset(t) == rb && recordLength(t) == 0)
+                t++;
+            rt.append(t);
+            rp.append(ps);
+            rj.append(first);
+        }
+        int n = ras.size();
+        long regionSize = 0;
+        for (int k = 0; k < n; k++)
+            regionSize += rbs.intAt(k) - ras.intAt(k);
+        if (regionSize > (len >> 2))
+            return null; // cheaper to parse everything
+
+        FastLongBuffer nvtd = new FastLongBuffer(14);
+        int[] countDelta = new int[n];
+        int maxDepth = md.nestingLevel - 1;
+        VTDGen vg = new VTDGen();
+        int delta = 0, prev = 1;
+        // the document record always has a zero offset
+        nvtd.append(vtd.longAt(0) & 0xffffffff00000000L);
+        for (int k = 0; k < n; k++){
+            int s = rs.intAt(k), t = rt.intAt(k), p = rp.intAt(k);
+            int d = md.getTokenDepth(p);
+            copy(nvtd, prev, s, delta - base);
+            int regionDelta = 0;
+            int jEnd = (k + 1 < n) ? rj.intAt(k + 1) : ne;
+            for (int j = rj.intAt(k); j < jEnd; j++)
+                regionDelta += ed[j];
+            int nra = ras.intAt(k) - base + delta;
+            int nlen = rbs.intAt(k) - ras.intAt(k) + regionDelta;
+            int count = 0;
+            // VTDGen records the white spaces (or nothing) between a starting
+            // tag and an ending tag as a text token, but white spaces between
+            // any other markup are ignored
+            boolean whole = ras.intAt(k) == startTagEnd(p)
+                && rbs.intAt(k) == endTagStart(p);
+            if (nlen > 0 || whole){
+                // wrap the region in a dummy element
+                byte[] w = new byte[nlen + 7];
+                w[0] = '<'; w[1] = 'r'; w[2] = '>';
+                System.arraycopy(xml, nra, w, 3, nlen);
+                w[nlen + 3] = '<'; w[nlen + 4] = '/'; w[nlen + 5] = 'r'; w[nlen + 6] = '>';
+                try {
+                    vg.setDoc(w);
+                    vg.parse(false);
+                } catch (VTDException e){
+                    return null;
+                }
+                FastLongBuffer fv = vg.VTDBuffer;
+                if (d + vg.VTDDepth > VTDGen.MAX_DEPTH || fv.size() < 2 || vg.rootIndex != 1)
+                    return null;
+                int size = fv.size();
+                if (!whole && size == 3 && isWhiteSpace(fv.longAt(2), w))
+                    size = 2;
+                for (int i = 2; i < size; i++){
+                    long l = fv.longAt(i);
+                    if ((l & VTDNav.MASK_TOKEN_DEPTH) == VTDNav.MASK_TOKEN_DEPTH)
+                        return null; // the region closes the dummy element
+                    nvtd.append(((l & 0xffffffff00000000L) + (((long) d) << 52))
+                            | ((l + nra - 3) & 0xffffffffL));
+                }
+                if (d + vg.VTDDepth > maxDepth)
+                    maxDepth = d + vg.VTDDepth;
+                count = size - 2;
+            }
+            countDelta[k] = count - (t - s);
+            delta += regionDelta;
+            prev = t;
+        }
+        copy(nvtd, prev, vtdSize, delta - base);
+
+        UniByteBuffer xb = new UniByteBuffer(xml);
+        boolean shallow = !(md instanceof VTDNav_L5);
+        int levels = shallow ? 3 : 5;
+        // children of the parent elements aren't in the location caches
+        boolean deep = true;
+        for (int k = 0; k < n; k++)
+            if (md.getTokenDepth(rp.intAt(k)) < levels)
+                deep = false;
+        if (shallow){
+            FastLongBuffer l1 = new FastLongBuffer(7), l2 = new FastLongBuffer(9);
+            FastIntBuffer l3 = new FastIntBuffer(11);
+            if (deep){
+                shift(md.l1Buffer, l1, countDelta);
+                shift(md.l2Buffer, l2, countDelta);
+                shift(md.l3Buffer, l3, countDelta);
+            } else
+                buildLC(nvtd, new FastLongBuffer[]{l1, l2}, l3);
+            return new VTDNav(md.rootIndex, md.encoding, md.ns, maxDepth,
+                    xb, nvtd, l1, l2, l3, 0, xml.length);
+        }
+        VTDNav_L5 m = (VTDNav_L5) md;
+        FastLongBuffer l1 = new FastLongBuffer(7), l2 = new FastLongBuffer(9),
+            l3 = new FastLongBuffer(11), l4 = new FastLongBuffer(11);
+        FastIntBuffer l5 = new FastIntBuffer(11);
+        if (deep){
+            shift(m.l1Buffer, l1, countDelta);
+            shift(m.l2Buffer, l2, countDelta);
+            shift(m.l3Buffer, l3, countDelta);
+            shift(m.l4Buffer, l4, countDelta);
+            shift(m.l5Buffer, l5, countDelta);
+        } else
+            buildLC(nvtd, new FastLongBuffer[]{l1, l2, l3, l4}, l5);
+        return new VTDNav_L5(md.rootIndex, md.encoding, md.ns, maxDepth,
+                xb, nvtd, l1, l2, l3, l4, l5, 0, xml.length);
+    }
+
+    /* find the innermost element whose content contains the byte range
+     * [a, b), and the child nodes of it covering the range, the result
+     * is left in ra, rb and ps */
+    private boolean findRegion(int a, int b){
+        int i = firstAtOrAfter(a + 1) - 1; // the last token starting at or before a
+        if (i < 1)
+            return false;
+        int p = i;
+        while (p > 0 && md.getTokenType(p) != VTDNav.TOKEN_STARTING_TAG)
+            p--;
+        while (true){
+            if (p <= 0)
+                return false;
+            int d = md.getTokenDepth(p);
+            int ste = startTagEnd(p);
+            if (ste < 0)
+                return false;
+            if (ba[ste - 2] != '/' && ste <= a && b <= endTagStart(p))
+                break;
+            if (d == 0)
+                return false;
+            // move on to the parent element
+            do {
+                p--;
+            } while (p > 0 && !(md.getTokenType(p) == VTDNav.TOKEN_STARTING_TAG
+                    && md.getTokenDepth(p) < d));
+        }
+        ps = p;
+        int dp = md.getTokenDepth(p);
+
+        // walk backwards to the end of a markup node before a
+        int j = firstAtOrAfter(a) - 1;
+        while (true){
+            if (j <= p){
+                ra = startTagEnd(p);
+                break;
+            }
+            int d = md.getTokenDepth(j), type = md.getTokenType(j);
+            if (d == dp){
+                if (type == VTDNav.TOKEN_CHARACTER_DATA){
+                    j--;
+                    continue;
+                }
+                if (type == VTDNav.TOKEN_COMMENT || type == VTDNav.TOKEN_CDATA_VAL){
+                    int e = md.getTokenOffset(j) + recordLength(j) + 3;
+                    if (e <= a){
+                        ra = e;
+                        break;
+                    }
+                    j--;
+                    continue;
+                }
+                if (type == VTDNav.TOKEN_PI_NAME || type == VTDNav.TOKEN_PI_VAL){
+                    int pn = (type == VTDNav.TOKEN_PI_VAL) ? j - 1 : j;
+                    int e = piEnd(pn);
+                    if (e < 0)
+                        return false;
+                    if (e <= a){
+                        ra = e;
+                        break;
+                    }
+                    j = pn - 1;
+                    continue;
+                }
+                // the attributes of p
+                ra = startTagEnd(p);
+                break;
+            }
+            if (d > dp){
+                // inside a child element
+                int c = j;
+                while (c > p && !(md.getTokenType(c) == VTDNav.TOKEN_STARTING_TAG
+                        && md.getTokenDepth(c) == dp + 1))
+                    c--;
+                if (c <= p)
+                    return false;
+                int e = elementEnd(c);
+                if (e <= a){
+                    ra = e;
+                    break;
+                }
+                j = c - 1;
+                continue;
+            }
+            return false;
+        }
+
+        // walk forward to the start of a markup node after b
+        int k = firstAtOrAfter(ra);
+        while (true){
+            if (k >= vtdSize){
+                rb = endTagStart(p);
+                break;
+            }
+            int d = md.getTokenDepth(k), type = md.getTokenType(k);
+            if (d < dp || (d == dp && type == VTDNav.TOKEN_STARTING_TAG)){
+                rb = endTagStart(p);
+                break;
+            }
+            if (d == dp && type == VTDNav.TOKEN_CHARACTER_DATA){
+                k++;
+                continue;
+            }
+            if (d == dp && (type == VTDNav.TOKEN_COMMENT || type == VTDNav.TOKEN_CDATA_VAL)){
+                int st = md.getTokenOffset(k) - (type == VTDNav.TOKEN_COMMENT ? 4 : 9);
+                if (st >= b){
+                    rb = st;
+                    break;
+                }
+                // skip the rest of a token split in several records
+                int e = md.getTokenOffset(k) + recordLength(k);
+                k++;
+                while (k < vtdSize && md.getTokenType(k) == type
+                        && md.getTokenDepth(k) == dp && md.getTokenOffset(k) == e){
+                    e += recordLength(k);
+                    k++;
+                }
+                continue;
+            }
+            if (d == dp && type == VTDNav.TOKEN_PI_NAME){
+                int st = md.getTokenOffset(k) - 2;
+                if (st >= b){
+                    rb = st;
+                    break;
+                }
+                k++;
+                if (k < vtdSize && md.getTokenType(k) == VTDNav.TOKEN_PI_VAL)
+                    k++;
+                continue;
+            }
+            if (d == dp + 1 && type == VTDNav.TOKEN_STARTING_TAG){
+                int st = md.getTokenOffset(k) - 1;
+                if (st >= b){
+                    rb = st;
+                    break;
+                }
+                k = subtreeEnd(k);
+                continue;
+            }
+            return false;
+        }
+        return ra <= a && b <= rb;
+    }
+
+    /* whether the record of the dummy element's content is white spaces only */
+    private boolean isWhiteSpace(long l, byte[] w){
+        if ((int) (l >>> 60) != VTDNav.TOKEN_CHARACTER_DATA
+                || (l & VTDNav.MASK_TOKEN_DEPTH) != 0)
+            return false;
+        int off = (int) l, len = (int) ((l & MASK_LEN) >> 32);
+        for (int i = off; i < off + len; i++)
+            if (!XMLChar.isSpaceChar(w[i]))
+                return false;
+        return true;
+    }
+
+    /* the first record at or after byte offset off */
+    private int firstAtOrAfter(int off){
+        int lo = 1, hi = vtdSize;
+        while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if (md.getTokenOffset(mid) < off)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int recordLength(int i){
+        return (int) ((vtd.longAt(i) & MASK_LEN) >> 32);
+    }
+
+    /* the first record after the subtree of element s */
+    private int subtreeEnd(int s){
+        Integer key = Integer.valueOf(s);
+        Integer v = subtreeEnds.get(key);
+        if (v != null)
+            return v.intValue();
+        int d = md.getTokenDepth(s);
+        int t = s + 1;
+        while (t < vtdSize){
+            int d2 = md.getTokenDepth(t);
+            if (d2 < d || (d2 == d && md.getTokenType(t) == VTDNav.TOKEN_STARTING_TAG))
+                break;
+            t++;
+        }
+        subtreeEnds.put(key, Integer.valueOf(t));
+        return t;
+    }
+
+    /* the byte offset after the last '>' of element s: only ending tags
+     * and white spaces are between it and the next token, so count the
+     * ending tags backwards from the next token */
+    private int elementEnd(int s){
+        int t = subtreeEnd(s);
+        int d = md.getTokenDepth(s);
+        int e, m;
+        if (t < vtdSize){
+            int type = md.getTokenType(t);
+            int off = md.getTokenOffset(t);
+            m = d - md.getTokenDepth(t);
+            switch (type){
+                case VTDNav.TOKEN_STARTING_TAG: e = off - 1; m++; break;
+                case VTDNav.TOKEN_COMMENT: e = off - 4; break;
+                case VTDNav.TOKEN_CDATA_VAL: e = off - 9; break;
+                case VTDNav.TOKEN_PI_NAME: e = off - 2; break;
+                default: e = off;
+            }
+        } else {
+            e = docEnd;
+            m = d + 1;
+        }
+        while (m > 0 && e > 0){
+            e--;
+            if (ba[e] == '>')
+                m--;
+        }
+        return e + 1;
+    }
+
+    /* the byte offset after the '>' of the starting tag of element s */
+    private int startTagEnd(int s){
+        int d = md.getTokenDepth(s);
+        int j = s + 1;
+        while (j < vtdSize && md.getTokenDepth(j) == d){
+            int type = md.getTokenType(j);
+            if (type != VTDNav.TOKEN_ATTR_NAME && type != VTDNav.TOKEN_ATTR_NS
+                    && type != VTDNav.TOKEN_ATTR_VAL)
+                break;
+            j++;
+        }
+        // skip the closing quote of the last attribute value
+        int e = (j > s + 1) ? md.getTokenOffset(j - 1) + recordLength(j - 1) + 1
+                : md.getTokenOffset(s) + (md.getTokenLength(s) & 0xffff);
+        while (e < docEnd && ba[e] != '>')
+            e++;
+        return (e < docEnd) ? e + 1 : -1;
+    }
+
+    /* the byte offset of the '<' of the ending tag of element s */
+    private int endTagStart(int s){
+        int e = elementEnd(s) - 1;
+        while (e > 0 && ba[e] != '<')
+            e--;
+        return e;
+    }
+
+    /* the byte offset after the "?>" of the PI whose name is record i */
+    private int piEnd(int i){
+        int e = md.getTokenOffset(i) + recordLength(i);
+        if (i + 1 < vtdSize && md.getTokenType(i + 1) == VTDNav.TOKEN_PI_VAL)
+            e = md.getTokenOffset(i + 1) + recordLength(i + 1);
+        while (e + 1 < docEnd && !(ba[e] == '?' && ba[e + 1] == '>'))
+            e++;
+        return (e + 1 < docEnd) ? e + 2 : -1;
+    }
+
+    /* copy the records [from, to) of the master document, shifting their offsets */
+    private void copy(FastLongBuffer nvtd, int from, int to, int shift){
+        for (int i = from; i < to; i++){
+            long l = vtd.longAt(i);
+            nvtd.append((l & 0xffffffff00000000L) | ((l + shift) & 0xffffffffL));
+        }
+    }
+
+    /* the VTD index v moves by the record count changes of
+     * the regions ending at or before it */
+    private void shift(ILongBuffer src, FastLongBuffer dst, int[] countDelta){
+        int k = 0, delta = 0, size = src.size();
+        for (int i = 0; i < size; i++){
+            long l = src.longAt(i);
+            int v = (int) (l >> 32);
+            while (k < countDelta.length && rt.intAt(k) <= v)
+                delta += countDelta[k++];
+            dst.append(l + (((long) delta) << 32));
+        }
+    }
+
+    private void shift(IIntBuffer src, FastIntBuffer dst, int[] countDelta){
+        int k = 0, delta = 0, size = src.size();
+        for (int i = 0; i < size; i++){
+            int v = src.intAt(i);
+            while (k < countDelta.length && rt.intAt(k) <= v)
+                delta += countDelta[k++];
+            dst.append(v + delta);
+        }
+    }
+    /* build the location caches the way VTDGen.writeVTD()
+     * and writeVTD_L5() do while parsing */
+    private static void buildLC(FastLongBuffer nvtd, FastLongBuffer[] lb, FastIntBuffer last){
+        int levels = lb.length + 1;
+        int[] lastIndex = new int[levels];
+        int lastDepth = 0;
+        int size = nvtd.size();
+        for (int i = 0; i < size; i++){
+            long l = nvtd.longAt(i);
+            if ((int) (l >>> 60) != VTDNav.TOKEN_STARTING_TAG)
+                continue;
+            int d = (int) ((l & VTDNav.MASK_TOKEN_DEPTH) >> 52);
+            if (d < 1 || d > levels)
+                continue;
+            if (d == levels){
+                last.append(i);
+                if (lastDepth == levels - 1)
+                    lb[levels - 2].append(((long) lastIndex[levels - 1] << 32)
+                            + last.size() - 1);
+            } else {
+                if (lastDepth == d - 1 && d > 1)
+                    lb[d - 2].append(((long) lastIndex[d - 1] << 32) + lb[d - 1].size());
+                else if (lastDepth >= d && lastDepth < levels)
+                    lb[lastDepth - 1].append(((long) lastIndex[lastDepth] << 32) | 0xffffffffL);
+                lastIndex[d] = i;
+            }
+            lastDepth = d;
+        }
+        if (lastDepth >= 1 && lastDepth < levels)
+            lb[lastDepth - 1].append(((long) lastIndex[lastDepth] << 32) | 0xffffffffL);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * InsertionTemplate is an XML fragment with named slots, compiled once
+ * into the encoding of the documents it will be inserted into.
+ * A slot is written as ${name} and may appear in text content or inside
+ * a quoted attribute value; "$${" stands for a literal "${".
+ * XMLModifier keeps a reference to the template and a copy of the slot
+ * values passed to its insert methods and renders them during output(),
+ * so the literal parts are never copied or transcoded again; the values
+ * are escaped for the context of their slot while they are being written.
+ * A template is immutable and can be shared by several XMLModifiers
+ * and threads.
+ */
+public class InsertionTemplate {
+    // slot contexts
+    final static int TEXT = 0;
+    final static int ATTR_QUOT = 1;
+    final static int ATTR_APOS = 2;
+
+    final static int SCRATCH_SIZE = 4096;
+    // longest escape sequence (&#x10FFFF; in UTF-16) fits in the margin
+    private final static int MARGIN = 32;
+
+    private int encoding;
+    // literals[i] precedes slot i, literals[n] follows the last slot
+    private byte[][] literals;
+    private int[] slots;     // slot occurrence -> value index
+    private int[] contexts;  // slot occurrence -> TEXT, ATTR_QUOT or ATTR_APOS
+    private String[] names;
+    private int literalSize;
+
+    /**
+     * A template together with the values of its slots, as stored
+     * by XMLModifier
+     */
+    static class Bound {
+        final InsertionTemplate t;
+        final String[] values;
+        Bound(InsertionTemplate t, String[] values) {
+            this.t = t;
+            this.values = values;
+        }
+        int getSize() {
+            return t.getSize(values);
+        }
+        void writeToOutputStream(OutputStream os, byte[] buf)
+                throws IOException {
+            t.writeToOutputStream(os, values, buf);
+        }
+    }
+
+    /**
+     * Compile the template for documents in the given encoding
+     * @param template the XML fragment with ${name} slots
+     * @param encoding one of VTDNav.FORMAT_ASCII, FORMAT_ISO_8859_1,
+     * FORMAT_UTF8, FORMAT_UTF_16BE or FORMAT_UTF_16LE (see VTDNav.getEncoding())
+     * @throws ModifyException if a slot is placed anywhere else than in
+     * text or an attribute value, or if the fragment can't be encoded
+     */
+    public InsertionTemplate(String template, int encoding) throws ModifyException {
+        if (template == null)
+            throw new IllegalArgumentException("template can't be null");
+        if (encoding != VTDNav.FORMAT_ASCII && encoding != VTDNav.FORMAT_ISO_8859_1
+                && encoding != VTDNav.FORMAT_UTF8 && encoding != VTDNav.FORMAT_UTF_16BE
+                && encoding != VTDNav.FORMAT_UTF_16LE)
+            throw new ModifyException("Unsupported encoding for insertion template");
+        this.encoding = encoding;
+        compile(template);
+    }
+
+    /**
+     * Get the encoding the template has been compiled for
+     * @return int
+     */
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Get the number of distinct slots, i.e. the length of the value array
+     * expected by the insert methods of XMLModifier
+     * @return int
+     */
+    public int getSlotCount() {
+        return names.length;
+    }
+
+    /**
+     * Get the position of the named slot in the value array, -1 if
+     * the template doesn't have it. Slots are numbered in the order of
+     * their first occurrence.
+     * @param name
+     * @return int
+     */
+    public int getSlotIndex(String name) {
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Get the name of the i-th slot
+     * @param i
+     * @return String
+     */
+    public String getSlotName(int i) {
+        return names[i];
+    }
+
+    /**
+     * Render the template into a byte array, mostly useful for debugging
+     * and for the callers of XMLModifier.insertBytesAt()
+     * @param values slot values, null being the same as the empty string
+     * @return byte[]
+     * @throws ModifyException
+     */
+    public byte[] toBytes(String[] values) throws ModifyException {
+        checkValues(values);
+        try {
+            java.io.ByteArrayOutputStream os =
+                new java.io.ByteArrayOutputStream(getSize(values));
+            writeToOutputStream(os, values, new byte[SCRATCH_SIZE]);
+            return os.toByteArray();
+        } catch (IOException e) {
+            throw new ModifyException(e.toString());
+        }
+    }
+
+    void checkValues(String[] values) throws ModifyException {
+        if (names.length == 0 ? (values != null && values.length != 0)
+                : (values == null || values.length != names.length))
+            throw new ModifyException("Insertion template expects "
+                    + names.length + " values");
+    }
+
+    int getSize(String[] values) {
+        int size = literalSize;
+        for (int i = 0; i < slots.length; i++) {
+            String s = values[slots[i]];
+            if (s == null)
+                continue;
+            int c = contexts[i];
+            for (int j = 0; j < s.length();) {
+                int ch = s.codePointAt(j);
+                j += (ch > 0xffff) ? 2 : 1;
+                size += escapedLen(ch, c);
+            }
+        }
+        return size;
+    }
+
+    void writeToOutputStream(OutputStream os, String[] values, byte[] buf)
+            throws IOException {
+        int limit = buf.length - MARGIN;
+        for (int i = 0; i < slots.length; i++) {
+            os.write(literals[i]);
+            String s = values[slots[i]];
+            if (s == null)
+                continue;
+            int c = contexts[i], k = 0;
+            for (int j = 0; j < s.length();) {
+                int ch = s.codePointAt(j);
+                j += (ch > 0xffff) ? 2 : 1;
+                k = escape(buf, k, ch, c);
+                if (k > limit) {
+                    os.write(buf, 0, k);
+                    k = 0;
+                }
+            }
+            os.write(buf, 0, k);
+        }
+        os.write(literals[slots.length]);
+    }
+
+    private void compile(String s) throws ModifyException {
+        FastIntBuffer occ = new FastIntBuffer(3);
+        java.util.ArrayList<String> nl = new java.util.ArrayList<String>();
+        java.util.ArrayList<byte[]> lits = new java.util.ArrayList<byte[]>();
+        literalBuffer lit = new literalBuffer();
+        // 0 text, 1 tag, 2 attr value, 3 comment/PI/CDATA/DOCTYPE
+        int state = 0;
+        char quote = 0;
+        String close = null;
+        int i = 0, n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == '$' && state != 3 && s.startsWith("$${", i)) {
+                lit.encode('$');
+                lit.encode('{');
+                i += 3;
+                continue;
+            }
+            if (c == '$' && s.startsWith("${", i) && state != 3) {
+                int e = s.indexOf('}', i + 2);
+                if (e < 0)
+                    throw new ModifyException("Unterminated slot at " + i);
+                String name = s.substring(i + 2, e);
+                if (name.length() == 0)
+                    throw new ModifyException("Empty slot name at " + i);
+                int ctx;
+                if (state == 0)
+                    ctx = TEXT;
+                else if (state == 2)
+                    ctx = (quote == '"') ? ATTR_QUOT : ATTR_APOS;
+                else
+                    throw new ModifyException("Slot ${" + name
+                            + "} is not in text or an attribute value");
+                int idx = nl.indexOf(name);
+                if (idx < 0) {
+                    idx = nl.size();
+                    nl.add(name);
+                }
+                occ.append(idx);
+                occ.append(ctx);
+                lits.add(lit.toByteArray());
+                lit.reset();
+                i = e + 1;
+                continue;
+            }
+            switch (state) {
+            case 0:
+                if (c == '<') {
+                    if (s.startsWith("<!--", i)) {
+                        state = 3; close = "-->";
+                    } else if (s.startsWith("<![CDATA[", i)) {
+                        state = 3; close = "]]>";
+                    } else if (s.startsWith("<?", i)) {
+                        state = 3; close = "?>";
+                    } else if (s.startsWith("<!", i)) {
+                        state = 3; close = ">";
+                    } else
+                        state = 1;
+                }
+                break;
+            case 1:
+                if (c == '"' || c == '\'') {
+                    state = 2; quote = c;
+                } else if (c == '>')
+                    state = 0;
+                break;
+            case 2:
+                if (c == quote)
+                    state = 1;
+                break;
+            default:
+                if (s.startsWith(close, i)) {
+                    for (int k = 0; k < close.length(); k++)
+                        lit.encode(close.charAt(k));
+                    i += close.length();
+                    state = 0;
+                    continue;
+                }
+            }
+            int ch = s.codePointAt(i);
+            i += (ch > 0xffff) ? 2 : 1;
+            if (!encodable(ch)) {
+                // only text and attribute values can carry a character reference
+                if (state != 0 && state != 2)
+                    throw new ModifyException("Character 0x"
+                            + Integer.toHexString(ch)
+                            + " can't be encoded in markup");
+                lit.charRef(ch);
+            } else
+                lit.encode(ch);
+        }
+        lits.add(lit.toByteArray());
+        int m = occ.size() / 2;
+        slots = new int[m];
+        contexts = new int[m];
+        for (int k = 0; k < m; k++) {
+            slots[k] = occ.intAt(2 * k);
+            contexts[k] = occ.intAt(2 * k + 1);
+        }
+        names = nl.toArray(new String[nl.size()]);
+        literals = lits.toArray(new byte[lits.size()][]);
+        literalSize = 0;
+        for (int k = 0; k < literals.length; k++)
+            literalSize += literals[k].length;
+    }
+
+    private boolean encodable(int ch) {
+        if (encoding == VTDNav.FORMAT_ASCII)
+            return ch < 0x80;
+        if (encoding == VTDNav.FORMAT_ISO_8859_1)
+            return ch < 0x100;
+        return true;
+    }
+
+    // the replacement text of ch in the given slot context, null if ch
+    // is written as is
+    private String entity(int ch, int ctx) {
+        switch (ch) {
+        case '&':
+            return "&amp;";
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '"':
+            return ctx == ATTR_QUOT ? "&quot;" : null;
+        case '\'':
+            return ctx == ATTR_APOS ? "&apos;" : null;
+        case '\t':
+            return ctx != TEXT ? "&#9;" : null;
+        case '\n':
+            return ctx != TEXT ? "&#10;" : null;
+        case '\r':
+            return "&#13;";
+        default:
+            return null;
+        }
+    }
+
+    private int unitLen() {
+        return encoding < VTDNav.FORMAT_UTF_16BE ? 1 : 2;
+    }
+
+    private int escapedLen(int ch, int ctx) {
+        String e = entity(ch, ctx);
+        if (e != null)
+            return e.length() * unitLen();
+        if (!encodable(ch))
+            return (Integer.toHexString(ch).length() + 4) * unitLen();
+        switch (encoding) {
+        case VTDNav.FORMAT_UTF8:
+            return ch < 0x80 ? 1 : ch < 0x800 ? 2 : ch < 0x10000 ? 3 : 4;
+        case VTDNav.FORMAT_UTF_16BE:
+        case VTDNav.FORMAT_UTF_16LE:
+            return ch < 0x10000 ? 2 : 4;
+        default:
+            return 1;
+        }
+    }
+
+    private int escape(byte[] buf, int k, int ch, int ctx) {
+        String e = entity(ch, ctx);
+        if (e != null) {
+            for (int j = 0; j < e.length(); j++)
+                k = encodeChar(buf, k, e.charAt(j));
+            return k;
+        }
+        if (!encodable(ch)) {
+            k = encodeChar(buf, k, '&');
+            k = encodeChar(buf, k, '#');
+            k = encodeChar(buf, k, 'x');
+            String h = Integer.toHexString(ch);
+            for (int j = 0; j < h.length(); j++)
+                k = encodeChar(buf, k, h.charAt(j));
+            return encodeChar(buf, k, ';');
+        }
+        return encodeChar(buf, k, ch);
+    }
+
+    // encode a code point, the surrogate pair being written for UTF-16
+    private int encodeChar(byte[] buf, int k, int ch) {
+        switch (encoding) {
+        case VTDNav.FORMAT_UTF8:
+            if (ch < 0x80) {
+                buf[k] = (byte) ch;
+                return k + 1;
+            } else if (ch < 0x800) {
+                buf[k] = (byte) (0xc0 | (ch >> 6));
+                buf[k + 1] = (byte) (0x80 | (ch & 0x3f));
+                return k + 2;
+            } else if (ch < 0x10000) {
+                buf[k] = (byte) (0xe0 | (ch >> 12));
+                buf[k + 1] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buf[k + 2] = (byte) (0x80 | (ch & 0x3f));
+                return k + 3;
+            }
+            buf[k] = (byte) (0xf0 | (ch >> 18));
+            buf[k + 1] = (byte) (0x80 | ((ch >> 12) & 0x3f));
+            buf[k + 2] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+            buf[k + 3] = (byte) (0x80 | (ch & 0x3f));
+            return k + 4;
+        case VTDNav.FORMAT_UTF_16BE:
+        case VTDNav.FORMAT_UTF_16LE:
+            if (ch >= 0x10000) {
+                int t = ch - 0x10000;
+                k = encodeUnit(buf, k, 0xd800 | (t >> 10));
+                return encodeUnit(buf, k, 0xdc00 | (t & 0x3ff));
+            }
+            return encodeUnit(buf, k, ch);
+        default:
+            buf[k] = (byte) ch;
+            return k + 1;
+        }
+    }
+
+    private int encodeUnit(byte[] buf, int k, int u) {
+        if (encoding == VTDNav.FORMAT_UTF_16BE) {
+            buf[k] = (byte) (u >> 8);
+            buf[k + 1] = (byte) u;
+        } else {
+            buf[k] = (byte) u;
+            buf[k + 1] = (byte) (u >> 8);
+        }
+        return k + 2;
+    }
+
+    /**
+     * Growable byte array the literal parts are compiled into
+     */
+    private class literalBuffer {
+        byte[] b = new byte[64];
+        int size;
+
+        void encode(int ch) {
+            if (size + 4 > b.length) {
+                byte[] t = new byte[b.length << 1];
+                System.arraycopy(b, 0, t, 0, size);
+                b = t;
+            }
+            size = encodeChar(b, size, ch);
+        }
+
+        void charRef(int ch) {
+            String r = "&#x" + Integer.toHexString(ch) + ";";
+            for (int j = 0; j < r.length(); j++)
+                encode(r.charAt(j));
+        }
+
+        byte[] toByteArray() {
+            byte[] t = new byte[size];
+            System.arraycopy(b, 0, t, 0, size);
+            return t;
+        }
+
+        void reset() {
+            size = 0;
+        }
+    }
+}
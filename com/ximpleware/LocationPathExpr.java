@@ -35,7 +35,7 @@ public class LocationPathExpr extends Expr{
 		int pathType;
 		int state;
 	    //FastIntBuffer fib; // for uniqueness checking
-	    intHash ih;
+	    intOpenHash ih;
 	    
 		public static final int START = 0, // initial state
 					   END= 1,   // return to begin
@@ -50,7 +50,7 @@ public class LocationPathExpr extends Expr{
 			pathType = RELATIVE_PATH;
 			currentStep = null;
 			//fib = new FastIntBuffer(8);// page size 256 = 2^ 8
-			ih = new intHash();
+			ih = new intOpenHash();
 		}
 		final public void optimize2(){}
 		final public void optimize(){
@@ -222,7 +222,7 @@ public class LocationPathExpr extends Expr{
 	                    //d  = Double.parseDouble(s);
 	                	d = vn.XPathStringVal2Double(a);
 	                }else if (t == VTDNav.TOKEN_PI_NAME) {
-	                	if (a+1 < vn.vtdSize || vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
+	                	if (a+1 < vn.vtdSize && vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
 	                		d = vn.parseDouble(a+1);               
 	                }else 
 	                	d = vn.parseDouble(a);
@@ -267,8 +267,8 @@ public class LocationPathExpr extends Expr{
 						s = vn.toString(a + 1);
 						break;
 					case VTDNav.TOKEN_PI_NAME:
-						//if (a + 1 < vn.vtdSize
-						//		|| vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
+						if (a + 1 < vn.vtdSize
+								&& vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
 							s = vn.toString(a + 1);
 						break;
 					default:
@@ -3297,7 +3297,7 @@ public class LocationPathExpr extends Expr{
         if (ih!=null && i<= ih.e)
         {}
         else 
-            ih = new intHash(i);
+            ih = new intOpenHash(i);
         Step temp = s;
         while(temp!=null){
 			temp.adjust(n);
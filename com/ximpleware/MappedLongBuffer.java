@@ -0,0 +1,163 @@
+/* 
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license, 
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-mostly FastLongBuffer that is a view over a section of a
+ * memory-mapped file, so that VTD and LC records of an index file are used
+ * in place instead of being copied into the pages of a FastLongBuffer. The
+ * section is divided into pages of 1M longs; modifyEntry() copies the page
+ * it changes to the heap, the file itself is never written. The view has
+ * a fixed size: it can't be appended to, cleared or resized.
+ */
+public class MappedLongBuffer extends FastLongBuffer {
+    private final static int EXP = 20;
+    private final static int MASK = (1 << EXP) - 1;
+    private LongBuffer[] pages;
+
+    /**
+     * Map size longs starting at the given position of the channel
+     * @param fc the channel, which can be closed once the constructor returns
+     * @param position the byte offset of the first long
+     * @param size the number of longs
+     * @param order the byte order of the longs
+     * @throws IOException
+     */
+    public MappedLongBuffer(FileChannel fc, long position, int size, ByteOrder order)
+        throws IOException {
+        super(EXP);
+        if (size < 0 || position < 0)
+            throw new IllegalArgumentException("Invalid argument(s) for MappedLongBuffer");
+        this.size = size;
+        pages = new LongBuffer[(size + MASK) >>> EXP];
+        // mappings are limited to 2GB, map 128 pages (1GB) at a time
+        for (int i = 0; i < pages.length; i += 128) {
+            long l = Math.min((long) size - ((long) i << EXP), 1L << (EXP + 7));
+            MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY,
+                    position + ((long) i << (EXP + 3)), l << 3);
+            for (int j = i; j < pages.length && j < i + 128; j++) {
+                int s = (j - i) << (EXP + 3);
+                ByteBuffer bb = mb.duplicate();
+                bb.position(s);
+                bb.limit((int) Math.min(l << 3, (long) s + (1 << (EXP + 3))));
+                pages[j] = bb.slice().order(order).asLongBuffer();
+            }
+        }
+    }
+
+    /**
+     * Get the long at the given index
+     * @param index
+     * @return long
+     */
+    public long longAt(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+        return pages[index >>> EXP].get(index & MASK);
+    }
+
+    /**
+     * Get the lower 32 bits of the long at the given index
+     * @param index
+     * @return int
+     */
+    public int lower32At(int index) {
+        return (int) longAt(index);
+    }
+
+    /**
+     * Get the upper 32 bits of the long at the given index
+     * @param index
+     * @return int
+     */
+    public int upper32At(int index) {
+        return (int) (longAt(index) >>> 32);
+    }
+
+    /**
+     * Modify the entry at the given index, the page containing it
+     * is copied to the heap first
+     * @param index
+     * @param newValue
+     */
+    public void modifyEntry(int index, long newValue) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+        LongBuffer lb = pages[index >>> EXP];
+        if (lb.isReadOnly() || lb.isDirect()) {
+            LongBuffer t = LongBuffer.allocate(lb.capacity());
+            t.put(lb.duplicate());
+            pages[index >>> EXP] = lb = t;
+        }
+        lb.put(index & MASK, newValue);
+    }
+
+    /**
+     * Get the longs from startingOffset to startingOffset+len
+     * @param startingOffset
+     * @param len
+     * @return long[]
+     */
+    public long[] getLongArray(int startingOffset, int len) {
+        if (startingOffset < 0 || len < 0 || startingOffset + len > size)
+            throw new IndexOutOfBoundsException();
+        long[] result = new long[len];
+        for (int i = 0; i < len; i++)
+            result[i] = longAt(startingOffset + i);
+        return result;
+    }
+
+    /**
+     * Copy all the longs into a long array, null if there is none
+     * @return long[]
+     */
+    public long[] toLongArray() {
+        return size > 0 ? getLongArray(0, size) : null;
+    }
+
+    /**
+     * The mapping is already a single view, there is nothing to compact
+     */
+    public void compact() {
+    }
+
+    public void append(long i) {
+        throw new UnsupportedOperationException("A mapped buffer can't grow");
+    }
+
+    public void append(long[] long_array) {
+        throw new UnsupportedOperationException("A mapped buffer can't grow");
+    }
+
+    public void clear() {
+        throw new UnsupportedOperationException("A mapped buffer can't be cleared");
+    }
+
+    public boolean resize(int newSz) {
+        return newSz == size;
+    }
+}
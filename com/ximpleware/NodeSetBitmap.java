@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+/**
+ * NodeSetBitmap is a compressed bitmap representation of a node set.
+ * Because VTD indices are dense in [0, vtdSize), the index space is cut
+ * into chunks of 64K tokens; each non-empty chunk is stored either as a
+ * sorted char array (sparse chunk) or as a 1024-word bitmap (dense chunk),
+ * switching at 4096 entries. Iterating a NodeSetBitmap always yields the
+ * nodes in document order without duplicates.
+ * Use AutoPilot.evalXPathToBitmap() to materialize an XPath node set.
+ */
+public class NodeSetBitmap {
+    static final int ARRAY_MAX = 4096;
+    static final int BITMAP_WORDS = 1024;
+
+    /* containers[k] holds members whose upper 16 bits are k,
+     * it is either a char[] or a long[] */
+    private Object[] containers;
+    private int[] cards;
+    private int cardinality;
+
+    /**
+     * Constructor
+     */
+    public NodeSetBitmap(){
+        containers = new Object[1];
+        cards = new int[1];
+        cardinality = 0;
+    }
+
+    /**
+     * Constructor sized for a document of the given token count
+     * @param tokenCount the vtdSize of the document
+     */
+    public NodeSetBitmap(int tokenCount){
+        if (tokenCount < 0)
+            throw new IllegalArgumentException("tokenCount can't be negative");
+        int n = (tokenCount >>> 16) + 1;
+        containers = new Object[n];
+        cards = new int[n];
+        cardinality = 0;
+    }
+
+    private void ensureChunks(int n){
+        if (n > containers.length){
+            int l = Math.max(n, containers.length << 1);
+            Object[] o = new Object[l];
+            int[] c = new int[l];
+            System.arraycopy(containers, 0, o, 0, containers.length);
+            System.arraycopy(cards, 0, c, 0, cards.length);
+            containers = o;
+            cards = c;
+        }
+    }
+
+    /**
+     * Add a VTD index to the node set
+     * @param i VTD index (non-negative)
+     * @return true if i was not a member before
+     */
+    public final boolean add(int i){
+        if (i < 0)
+            throw new IllegalArgumentException("Invalid VTD index "+i);
+        int k = i >>> 16;
+        char lo = (char) i;
+        ensureChunks(k+1);
+        Object o = containers[k];
+        if (o == null){
+            char[] ca = new char[4];
+            ca[0] = lo;
+            containers[k] = ca;
+            cards[k] = 1;
+            cardinality++;
+            return true;
+        }
+        if (o instanceof long[]){
+            long[] la = (long[]) o;
+            long m = 1L << lo;
+            if ((la[lo>>>6] & m) != 0)
+                return false;
+            la[lo>>>6] |= m;
+        } else {
+            char[] ca = (char[]) o;
+            int c = cards[k];
+            int p = binarySearch(ca, c, lo);
+            if (p >= 0)
+                return false;
+            if (c == ARRAY_MAX){
+                long[] la = toBitmap(ca, c);
+                la[lo>>>6] |= 1L << lo;
+                containers[k] = la;
+            } else {
+                p = -p - 1;
+                if (c == ca.length){
+                    char[] t = new char[Math.min(ca.length << 1, ARRAY_MAX)];
+                    System.arraycopy(ca, 0, t, 0, p);
+                    System.arraycopy(ca, p, t, p+1, c-p);
+                    ca = t;
+                    containers[k] = ca;
+                } else
+                    System.arraycopy(ca, p, ca, p+1, c-p);
+                ca[p] = lo;
+            }
+        }
+        cards[k]++;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * Test whether the VTD index i is in the node set
+     * @param i
+     * @return boolean
+     */
+    public final boolean contains(int i){
+        if (i < 0)
+            return false;
+        int k = i >>> 16;
+        if (k >= containers.length)
+            return false;
+        Object o = containers[k];
+        if (o == null)
+            return false;
+        char lo = (char) i;
+        if (o instanceof long[])
+            return (((long[]) o)[lo>>>6] & (1L << lo)) != 0;
+        return binarySearch((char[]) o, cards[k], lo) >= 0;
+    }
+
+    /**
+     * Return the number of nodes in the node set
+     * @return int
+     */
+    public final int cardinality(){
+        return cardinality;
+    }
+
+    /**
+     * Test whether the node set is empty
+     * @return boolean
+     */
+    public final boolean isEmpty(){
+        return cardinality == 0;
+    }
+
+    /**
+     * Remove all members
+     */
+    public final void clear(){
+        for (int k=0;k<containers.length;k++){
+            containers[k] = null;
+            cards[k] = 0;
+        }
+        cardinality = 0;
+    }
+
+    /**
+     * Return the first member greater than or equal to fromIndex,
+     * or -1 if there is none; members are returned in document order
+     * <pre>
+     *   for (int i = nsb.nextNode(0); i != -1; i = nsb.nextNode(i + 1)) ...
+     * </pre>
+     * @param fromIndex
+     * @return int
+     */
+    public final int nextNode(int fromIndex){
+        if (fromIndex < 0)
+            fromIndex = 0;
+        int k = fromIndex >>> 16;
+        int lo = fromIndex & 0xffff;
+        for (;k<containers.length;k++,lo=0){
+            Object o = containers[k];
+            if (o == null || cards[k] == 0)
+                continue;
+            if (o instanceof long[]){
+                long[] la = (long[]) o;
+                int w = lo >>> 6;
+                long word = la[w] & (-1L << lo);
+                while (true){
+                    if (word != 0)
+                        return (k << 16) | (w << 6) | Long.numberOfTrailingZeros(word);
+                    if (++w == BITMAP_WORDS)
+                        break;
+                    word = la[w];
+                }
+            } else {
+                char[] ca = (char[]) o;
+                int p = binarySearch(ca, cards[k], (char) lo);
+                if (p < 0)
+                    p = -p - 1;
+                if (p < cards[k])
+                    return (k << 16) | ca[p];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return all members in document order
+     * @return int[]
+     */
+    public final int[] toIntArray(){
+        int[] ia = new int[cardinality];
+        int j = 0;
+        for (int i = nextNode(0); i != -1; i = nextNode(i + 1))
+            ia[j++] = i;
+        return ia;
+    }
+
+    /**
+     * Append all members in document order to a FastIntBuffer
+     * @param fib
+     */
+    public final void appendTo(FastIntBuffer fib){
+        for (int i = nextNode(0); i != -1; i = nextNode(i + 1))
+            fib.append(i);
+    }
+
+    /**
+     * Union: add every member of nsb to this node set
+     * @param nsb
+     */
+    public final void or(NodeSetBitmap nsb){
+        ensureChunks(nsb.containers.length);
+        for (int k=0;k<nsb.containers.length;k++){
+            Object b = nsb.containers[k];
+            if (b == null || nsb.cards[k] == 0)
+                continue;
+            Object a = containers[k];
+            if (a == null || cards[k] == 0){
+                containers[k] = copy(b, nsb.cards[k]);
+                cardinality += nsb.cards[k];
+                cards[k] = nsb.cards[k];
+                continue;
+            }
+            long[] la;
+            if (a instanceof long[])
+                la = (long[]) a;
+            else if (b instanceof char[]){
+                if (cards[k] + nsb.cards[k] <= ARRAY_MAX){
+                    mergeArrays(k, (char[]) b, nsb.cards[k]);
+                    continue;
+                }
+                la = toBitmap((char[]) a, cards[k]);
+            } else
+                la = toBitmap((char[]) a, cards[k]);
+            if (b instanceof long[]){
+                long[] lb = (long[]) b;
+                for (int w=0;w<BITMAP_WORDS;w++)
+                    la[w] |= lb[w];
+            } else {
+                char[] cb = (char[]) b;
+                for (int j=0;j<nsb.cards[k];j++)
+                    la[cb[j]>>>6] |= 1L << cb[j];
+            }
+            setBitmap(k, la);
+        }
+    }
+
+    /**
+     * Intersection: retain only the members that are also in nsb
+     * @param nsb
+     */
+    public final void and(NodeSetBitmap nsb){
+        for (int k=0;k<containers.length;k++){
+            Object a = containers[k];
+            if (a == null || cards[k] == 0)
+                continue;
+            Object b = k < nsb.containers.length ? nsb.containers[k] : null;
+            if (b == null || nsb.cards[k] == 0){
+                cardinality -= cards[k];
+                containers[k] = null;
+                cards[k] = 0;
+            } else if (a instanceof long[] && b instanceof long[]){
+                long[] la = (long[]) a, lb = (long[]) b;
+                for (int w=0;w<BITMAP_WORDS;w++)
+                    la[w] &= lb[w];
+                setBitmap(k, la);
+            } else if (a instanceof long[]){
+                // the result can't be larger than the array
+                char[] cb = (char[]) b;
+                long[] la = (long[]) a;
+                char[] r = new char[nsb.cards[k]];
+                int c = 0;
+                for (int j=0;j<nsb.cards[k];j++)
+                    if ((la[cb[j]>>>6] & (1L << cb[j])) != 0)
+                        r[c++] = cb[j];
+                setArray(k, r, c);
+            } else
+                filterArray(k, nsb, true);
+        }
+    }
+
+    /**
+     * Difference: remove every member of nsb from this node set
+     * @param nsb
+     */
+    public final void andNot(NodeSetBitmap nsb){
+        int n = Math.min(containers.length, nsb.containers.length);
+        for (int k=0;k<n;k++){
+            Object a = containers[k];
+            Object b = nsb.containers[k];
+            if (a == null || cards[k] == 0 || b == null || nsb.cards[k] == 0)
+                continue;
+            if (a instanceof long[]){
+                long[] la = (long[]) a;
+                if (b instanceof long[]){
+                    long[] lb = (long[]) b;
+                    for (int w=0;w<BITMAP_WORDS;w++)
+                        la[w] &= ~lb[w];
+                } else {
+                    char[] cb = (char[]) b;
+                    for (int j=0;j<nsb.cards[k];j++)
+                        la[cb[j]>>>6] &= ~(1L << cb[j]);
+                }
+                setBitmap(k, la);
+            } else
+                filterArray(k, nsb, false);
+        }
+    }
+
+    /**
+     * Return an estimate of the heap memory held by this node set in bytes
+     * @return long
+     */
+    public final long sizeInBytes(){
+        long l = 32 + 12L * containers.length;
+        for (int k=0;k<containers.length;k++){
+            Object o = containers[k];
+            if (o instanceof long[])
+                l += 16 + 8 * BITMAP_WORDS;
+            else if (o != null)
+                l += 16 + 2 * ((char[]) o).length;
+        }
+        return l;
+    }
+
+    /* keep array members of chunk k that are (keep==true) or
+     * aren't (keep==false) members of nsb */
+    private void filterArray(int k, NodeSetBitmap nsb, boolean keep){
+        char[] ca = (char[]) containers[k];
+        int c = 0, base = k << 16;
+        for (int j=0;j<cards[k];j++){
+            if (nsb.contains(base | ca[j]) == keep)
+                ca[c++] = ca[j];
+        }
+        setArray(k, ca, c);
+    }
+
+    private void mergeArrays(int k, char[] cb, int cl){
+        char[] ca = (char[]) containers[k];
+        int al = cards[k];
+        char[] r = new char[al + cl];
+        int i = 0, j = 0, c = 0;
+        while (i < al && j < cl){
+            if (ca[i] < cb[j])
+                r[c++] = ca[i++];
+            else if (ca[i] > cb[j])
+                r[c++] = cb[j++];
+            else {
+                r[c++] = ca[i++];
+                j++;
+            }
+        }
+        while (i < al)
+            r[c++] = ca[i++];
+        while (j < cl)
+            r[c++] = cb[j++];
+        setArray(k, r, c);
+    }
+
+    private void setArray(int k, char[] ca, int c){
+        cardinality += c - cards[k];
+        cards[k] = c;
+        containers[k] = (c == 0) ? null : ca;
+    }
+
+    /* recount a bitmap chunk, demote it to an array when sparse */
+    private void setBitmap(int k, long[] la){
+        int c = 0;
+        for (int w=0;w<BITMAP_WORDS;w++)
+            c += Long.bitCount(la[w]);
+        if (c <= ARRAY_MAX){
+            char[] ca = new char[Math.max(c,4)];
+            int j = 0;
+            for (int w=0;w<BITMAP_WORDS;w++){
+                long word = la[w];
+                while (word != 0){
+                    ca[j++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            setArray(k, ca, c);
+        } else {
+            cardinality += c - cards[k];
+            cards[k] = c;
+            containers[k] = la;
+        }
+    }
+
+    private static long[] toBitmap(char[] ca, int c){
+        long[] la = new long[BITMAP_WORDS];
+        for (int j=0;j<c;j++)
+            la[ca[j]>>>6] |= 1L << ca[j];
+        return la;
+    }
+
+    private static Object copy(Object o, int c){
+        if (o instanceof long[])
+            return ((long[]) o).clone();
+        char[] ca = new char[Math.max(c,4)];
+        System.arraycopy((char[]) o, 0, ca, 0, c);
+        return ca;
+    }
+
+    private static int binarySearch(char[] ca, int c, char key){
+        int lo = 0, hi = c - 1;
+        while (lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            char v = ca[mid];
+            if (v < key)
+                lo = mid + 1;
+            else if (v > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+}
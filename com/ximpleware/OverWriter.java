@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * OverWriter applies many in-place updates of attribute values, character
+ * data and CDATA directly on the XML buffer of a VTDNav, the way
+ * VTDNav.overWrite() does, without building an edit list or regenerating
+ * VTD and LCs. The new content (already in the document's encoding and
+ * escaped) must fit in the space of the token; how the unused space is
+ * filled is chosen by a padding policy, separately for attribute values
+ * and for text:
+ * <ul>
+ * <li>PAD_SPACE: trailing white spaces inside the token, as VTDNav.overWrite()
+ * does, the value becomes the new content followed by spaces</li>
+ * <li>PAD_AFTER_QUOTE (attribute values only): the closing quote is moved
+ * right after the new content and the white spaces go between the
+ * attributes, so the value is exact. The record length in the VTD is updated,
+ * and a later update may reclaim the white spaces to grow the value again,
+ * which suits counters</li>
+ * <li>PAD_CHAR_REF: the first character of the new content is written as a
+ * character reference padded with leading zeros (e.g. &amp;#00049;), so the
+ * value is exact. Needs at least 3 spare units and doesn't apply to CDATA</li>
+ * <li>PAD_NONE: only content of the exact token length is accepted</li>
+ * </ul>
+ * Updates that can't be done in place are recorded, with their content, so
+ * that they can be handed over to XMLModifier by fallBack().
+ */
+public class OverWriter {
+    public final static int PAD_SPACE = 0;
+    public final static int PAD_AFTER_QUOTE = 1;
+    public final static int PAD_CHAR_REF = 2;
+    public final static int PAD_NONE = 3;
+
+    private final static long MASK_LEN = 0x000fffff00000000L;
+
+    private VTDNav vn;
+    private int attrValPadding;
+    private int textPadding;
+    private FastIntBuffer failedIndices;
+    private ArrayList<byte[]> failedValues;
+    private HashMap<Integer,Integer> pending; // VTD index -> position in failedIndices
+    private int updated;
+
+    /**
+     * Constructor, attribute values are padded with PAD_AFTER_QUOTE and
+     * text with PAD_SPACE
+     * @param vn the VTDNav whose XML buffer is updated
+     */
+    public OverWriter(VTDNav vn) {
+        if (vn == null)
+            throw new IllegalArgumentException("VTDNav can't be null");
+        this.vn = vn;
+        attrValPadding = PAD_AFTER_QUOTE;
+        textPadding = PAD_SPACE;
+        failedIndices = new FastIntBuffer(4);
+        failedValues = new ArrayList<byte[]>();
+        pending = new HashMap<Integer,Integer>();
+    }
+
+    /**
+     * Set the padding policy of attribute values
+     * @param p one of PAD_SPACE, PAD_AFTER_QUOTE, PAD_CHAR_REF or PAD_NONE
+     */
+    public void setAttrValPadding(int p) {
+        if (p < PAD_SPACE || p > PAD_NONE)
+            throw new IllegalArgumentException("Invalid padding policy");
+        attrValPadding = p;
+    }
+
+    /**
+     * Set the padding policy of character data and CDATA
+     * @param p one of PAD_SPACE, PAD_CHAR_REF or PAD_NONE
+     */
+    public void setTextPadding(int p) {
+        if (p < PAD_SPACE || p > PAD_NONE || p == PAD_AFTER_QUOTE)
+            throw new IllegalArgumentException("Invalid padding policy");
+        textPadding = p;
+    }
+
+    /**
+     * Overwrite the token with the new content, recording the update for
+     * fallBack() if it can't be done in place
+     * @param index the VTD index of an attribute value, character data or CDATA
+     * @param ba the new content in the encoding of the document
+     * @return true if the XML buffer has been updated
+     */
+    public boolean overWrite(int index, byte[] ba) {
+        return overWrite(index, ba, 0, ba.length);
+    }
+
+    /**
+     * Overwrite the token with a segment of ba, recording the update for
+     * fallBack() if it can't be done in place. A token that already has a
+     * failed update is never written in place again, its recorded
+     * content is replaced instead, so that the last update wins.
+     * @param index
+     * @param ba
+     * @param offset
+     * @param len
+     * @return true if the XML buffer has been updated
+     */
+    public boolean overWrite(int index, byte[] ba, int offset, int len) {
+        if (ba == null || index < 0 || index >= vn.vtdSize || offset < 0
+                || len < 0 || offset + len > ba.length)
+            throw new IllegalArgumentException("Illegal argument for overwrite");
+        Integer p = pending.get(Integer.valueOf(index));
+        if (p == null && write(index, ba, offset, len)) {
+            updated++;
+            if (vn.resultCache != null)
+                vn.resultCache.invalidate();
+            return true;
+        }
+        byte[] b = new byte[len];
+        System.arraycopy(ba, offset, b, 0, len);
+        if (p != null) {
+            failedValues.set(p.intValue(), b);
+        } else {
+            pending.put(Integer.valueOf(index), Integer.valueOf(failedIndices.size()));
+            failedIndices.append(index);
+            failedValues.add(b);
+        }
+        return false;
+    }
+
+    /**
+     * Overwrite a batch of tokens, indices[i] with values[i]
+     * @param indices
+     * @param values
+     * @return the number of updates that couldn't be done in place
+     */
+    public int overWrite(int[] indices, byte[][] values) {
+        if (indices.length != values.length)
+            throw new IllegalArgumentException("indices and values differ in length");
+        int f = 0;
+        for (int i = 0; i < indices.length; i++)
+            if (!overWrite(indices[i], values[i], 0, values[i].length))
+                f++;
+        return f;
+    }
+
+    /**
+     * Get the number of updates done in place since the last reset()
+     * @return int
+     */
+    public int getUpdatedCount() {
+        return updated;
+    }
+
+    /**
+     * Get the number of updates that couldn't be done in place
+     * @return int
+     */
+    public int getFailedCount() {
+        return failedIndices.size();
+    }
+
+    /**
+     * Get the VTD index of the i-th failed update
+     * @param i
+     * @return int
+     */
+    public int getFailedIndex(int i) {
+        return failedIndices.intAt(i);
+    }
+
+    /**
+     * Get the content of the i-th failed update
+     * @param i
+     * @return byte[]
+     */
+    public byte[] getFailedValue(int i) {
+        return failedValues.get(i);
+    }
+
+    /**
+     * Hand the failed updates over to XMLModifier.updateToken(), then forget
+     * them. xm must be bound to the same VTDNav.
+     * @param xm
+     * @throws ModifyException
+     * @throws UnsupportedEncodingException
+     */
+    public void fallBack(XMLModifier xm) throws ModifyException,
+            UnsupportedEncodingException {
+        for (int i = 0; i < failedIndices.size(); i++)
+            xm.updateToken(failedIndices.intAt(i), failedValues.get(i));
+        failedIndices.clear();
+        failedValues.clear();
+        pending.clear();
+    }
+
+    /**
+     * Forget the failed updates and reset the counters
+     */
+    public void reset() {
+        failedIndices.clear();
+        failedValues.clear();
+        pending.clear();
+        updated = 0;
+    }
+
+    private boolean write(int index, byte[] ba, int offset, int len) {
+        int type = vn.getTokenType(index);
+        int policy;
+        if (type == VTDNav.TOKEN_ATTR_VAL)
+            policy = attrValPadding;
+        else if (type == VTDNav.TOKEN_CHARACTER_DATA
+                || type == VTDNav.TOKEN_CDATA_VAL)
+            policy = textPadding;
+        else
+            return false;
+        // offsets and lengths of VTD records are in units of 2 bytes for UTF-16
+        int u = (vn.encoding < VTDNav.FORMAT_UTF_16BE) ? 1 : 2;
+        if ((len & (u - 1)) != 0)
+            return false;
+        int n = len / u;
+        int os = vn.getTokenOffset(index);
+        int length = vn.getTokenLength(index);
+        byte[] xml = vn.XMLDoc.getBytes();
+        if (n == length) {
+            System.arraycopy(ba, offset, xml, os * u, len);
+            return true;
+        }
+        switch (policy) {
+        case PAD_SPACE:
+            if (n > length)
+                return false;
+            System.arraycopy(ba, offset, xml, os * u, len);
+            for (int k = os + n; k < os + length; k++)
+                putUnit(xml, k, ' ');
+            return true;
+        case PAD_AFTER_QUOTE:
+            return moveQuote(index, ba, offset, n, os, length, xml);
+        case PAD_CHAR_REF:
+            if (n > length || type == VTDNav.TOKEN_CDATA_VAL)
+                return false;
+            return writeCharRef(ba, offset, n, os, length, xml);
+        default:
+            return false;
+        }
+    }
+
+    private boolean moveQuote(int index, byte[] ba, int offset, int n, int os,
+            int length, byte[] xml) {
+        int q = os + length; // closing quote
+        int quote = getUnit(xml, q);
+        int avail = length;
+        if (n > length) {
+            // reclaim the white spaces following the closing quote
+            int k = q + 1, end = (vn.docOffset + vn.docLen) / unitSize();
+            while (k < end && isWS(getUnit(xml, k)))
+                k++;
+            if (k == end)
+                return false;
+            int c = getUnit(xml, k);
+            // keep one white space in front of the next attribute
+            avail = k - 1 - os - ((c == '>' || c == '/') ? 0 : 1);
+            if (n > avail)
+                return false;
+        }
+        int u = unitSize();
+        System.arraycopy(ba, offset, xml, os * u, n * u);
+        putUnit(xml, os + n, quote);
+        for (int k = os + n + 1; k <= os + Math.max(length, n); k++)
+            putUnit(xml, k, ' ');
+        long l = vn.vtdBuffer.longAt(index);
+        vn.vtdBuffer.modifyEntry(index, (l & ~MASK_LEN) | (((long) n) << 32));
+        return true;
+    }
+
+    private boolean writeCharRef(byte[] ba, int offset, int n, int os,
+            int length, byte[] xml) {
+        if (n == 0)
+            return false;
+        int u = unitSize();
+        // decode the first character of the new content, never part of a
+        // reference unless it is '&'
+        int ch, w;
+        switch (vn.encoding) {
+        case VTDNav.FORMAT_UTF8:
+            ch = ba[offset] & 0xff;
+            w = ch < 0x80 ? 1 : ch < 0xe0 ? 2 : ch < 0xf0 ? 3 : 4;
+            if (w > n)
+                return false;
+            if (w > 1) {
+                ch &= (0x7f >> w);
+                for (int k = 1; k < w; k++)
+                    ch = (ch << 6) | (ba[offset + k] & 0x3f);
+            }
+            break;
+        case VTDNav.FORMAT_UTF_16BE:
+        case VTDNav.FORMAT_UTF_16LE:
+            ch = unitAt(ba, offset);
+            w = 1;
+            if (ch >= 0xd800 && ch < 0xdc00 && n > 1) {
+                ch = 0x10000 + ((ch - 0xd800) << 10)
+                        + (unitAt(ba, offset + 2) - 0xdc00);
+                w = 2;
+            }
+            break;
+        case VTDNav.FORMAT_ASCII:
+        case VTDNav.FORMAT_ISO_8859_1:
+            ch = ba[offset] & 0xff;
+            w = 1;
+            break;
+        default:
+            // the digits of a reference can't be written in other encodings
+            return false;
+        }
+        if (ch == '&')
+            return false;
+        String digits = Integer.toString(ch);
+        int r = w + length - n; // units available for the reference
+        if (r < digits.length() + 3)
+            return false;
+        int k = os;
+        putUnit(xml, k++, '&');
+        putUnit(xml, k++, '#');
+        for (int z = r - digits.length() - 3; z > 0; z--)
+            putUnit(xml, k++, '0');
+        for (int d = 0; d < digits.length(); d++)
+            putUnit(xml, k++, digits.charAt(d));
+        putUnit(xml, k++, ';');
+        System.arraycopy(ba, offset + w * u, xml, k * u, (n - w) * u);
+        return true;
+    }
+
+    private int unitSize() {
+        return (vn.encoding < VTDNav.FORMAT_UTF_16BE) ? 1 : 2;
+    }
+
+    private static boolean isWS(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private int unitAt(byte[] b, int i) {
+        if (vn.encoding == VTDNav.FORMAT_UTF_16BE)
+            return ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+        return ((b[i + 1] & 0xff) << 8) | (b[i] & 0xff);
+    }
+
+    // k is in units of the VTD offsets
+    private int getUnit(byte[] xml, int k) {
+        if (vn.encoding < VTDNav.FORMAT_UTF_16BE)
+            return xml[k] & 0xff;
+        return unitAt(xml, k << 1);
+    }
+
+    private void putUnit(byte[] xml, int k, int c) {
+        switch (vn.encoding) {
+        case VTDNav.FORMAT_UTF_16BE:
+            xml[k << 1] = (byte) (c >> 8);
+            xml[(k << 1) + 1] = (byte) c;
+            return;
+        case VTDNav.FORMAT_UTF_16LE:
+            xml[k << 1] = (byte) c;
+            xml[(k << 1) + 1] = (byte) (c >> 8);
+            return;
+        default:
+            xml[k] = (byte) c;
+        }
+    }
+}
@@ -34,7 +34,7 @@ public class PathExpr extends Expr {
 	//boolean first_time;
 	int evalState;
 	//FastIntBuffer fib;
-	intHash ih;
+	intOpenHash ih;
 	
 	//public int getPositon(){
 	//	return fib.size();
@@ -46,7 +46,7 @@ public class PathExpr extends Expr {
 		//first_time = true;
 		evalState = 0;
 		//fib = new FastIntBuffer(8);
-		ih = new intHash();
+		ih = new intOpenHash();
 	}
 	
 	final public boolean evalBoolean(VTDNav vn) {
@@ -87,7 +87,7 @@ public class PathExpr extends Expr {
                     //String s = vn.getXPathStringVal();
                     d  =  vn.XPathStringVal2Double(a);//Double.parseDouble(s);
                 }else if (t == VTDNav.TOKEN_PI_NAME) {
-                	if (a+1 < vn.vtdSize || vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
+                	if (a+1 < vn.vtdSize && vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
 	                	//s = vn.toString(a+1); 	
                 	    d = vn.parseDouble(a+1);
                 	else 
@@ -185,8 +185,8 @@ public class PathExpr extends Expr {
 					s = vn.toString(a + 1);
 					break;
 				case VTDNav.TOKEN_PI_NAME:
-					//if (a + 1 < vn.vtdSize
-					//		|| vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
+					if (a + 1 < vn.vtdSize
+							&& vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
 						s = vn.toString(a + 1);
 					break;
 				default:
@@ -262,7 +262,7 @@ public class PathExpr extends Expr {
         if (ih!=null && i==ih.e)
         {}
 	    else 
-	        ih = new intHash(i);
+	        ih = new intOpenHash(i);
 	    return i;
 	}
 	
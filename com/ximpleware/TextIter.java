@@ -364,6 +364,8 @@ public int getNext() {
                     return sp;
                 }
                 sp++;
+                if (sp >= vn.vtdSize)
+                    return -1;
                 d = vn.getTokenDepth(sp);
                 type = vn.getTokenType(sp);
                 
@@ -453,6 +455,8 @@ public int getNext() {
                     return sp;
                 }
                 sp++;
+                if (sp >= vn.vtdSize)
+                    return -1;
                 d = vn.getTokenDepth(sp);
                 type = vn.getTokenType(sp);
                 
@@ -543,6 +547,8 @@ public int getNext() {
                     return sp;
                 }
                 sp++;
+                if (sp >= vn.vtdSize)
+                    return -1;
                 d = vn.getTokenDepth(sp);
                 type = vn.getTokenType(sp);
                 
@@ -636,6 +642,8 @@ public int getNext() {
                     return sp;
                 }
                 sp++;
+                if (sp >= vn.vtdSize)
+                    return -1;
                 d = vn.getTokenDepth(sp);
                 type = vn.getTokenType(sp);
                 
@@ -727,6 +735,8 @@ public int getNext() {
                     return sp;
                 }
                 sp++;
+                if (sp >= vn.vtdSize)
+                    return -1;
                 d = vn.getTokenDepth(sp);
                 type = vn.getTokenType(sp);
                 
@@ -23,7 +23,7 @@ package com.ximpleware;
 import com.ximpleware.xpath.*;
 
 public class UnionExpr extends Expr {
-    public intHash ih;
+    public intOpenHash ih;
 
     public Expr e;
 
@@ -109,7 +109,7 @@ public class UnionExpr extends Expr {
                     //String s = vn.getXPathStringVal();
                     d  = vn.XPathStringVal2Double(a);//Double.parseDouble(s);
                 }else if (t == VTDNav.TOKEN_PI_NAME) {
-                	if (a+1 < vn.vtdSize || vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
+                	if (a+1 < vn.vtdSize && vn.getTokenType(a+1)==VTDNav.TOKEN_PI_VAL)
 	                	//s = vn.toString(a+1); 	
                 		d = vn.parseDouble(a+1);               
                 }else 
@@ -139,7 +139,7 @@ public class UnionExpr extends Expr {
                 switch (state) {
                 case 0:
                     if (ih==null) 
-                        ih = new intHash();
+                        ih = new intOpenHash();
                     if (current != null) {
                         vn.push2();
                         while ((a = current.e.evalNodeSet(vn)) != -1) {
@@ -229,8 +229,8 @@ public class UnionExpr extends Expr {
 						s = vn.toString(a + 1);
 						break;
 					case VTDNav.TOKEN_PI_NAME:
-						//if (a + 1 < vn.vtdSize
-						//		|| vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
+						if (a + 1 < vn.vtdSize
+								&& vn.getTokenType(a + 1) == VTDNav.TOKEN_PI_VAL)
 							s = vn.toString(a + 1);
 						break;
 					default:
@@ -377,6 +377,22 @@ public class UnionExpr extends Expr {
 
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ximpleware.Expr#evalNodeSetToBitmap(com.ximpleware.VTDNav, com.ximpleware.NodeSetBitmap)
+     * every branch is materialized into the same bitmap, so duplicates
+     * are eliminated without going through the hash table
+     */
+    final public void evalNodeSetToBitmap(VTDNav vn, NodeSetBitmap nsb) throws XPathEvalException, NavException {
+        UnionExpr tmp = this;
+        while (tmp != null) {
+            tmp.e.evalNodeSetToBitmap(vn, nsb);
+            tmp = tmp.next;
+        }
+        reset(vn);
+    }
+
     final public boolean isUnique(int i) {
         return ih.isUnique(i);
 
@@ -389,7 +405,7 @@ public class UnionExpr extends Expr {
 	    if (ih!=null && i==ih.e)
         {}
 	    else
-	    ih = new intHash(i);
+	    ih = new intOpenHash(i);
         UnionExpr tmp = this.next;
         while (tmp != null) {
             tmp.e.adjust(n);
@@ -1246,6 +1246,9 @@ public class VTDGen {
 	public final static int TOKEN_PI_NAME = 7;
 	public final static int TOKEN_PI_VAL = 8;
 	//private final static int STATE_END_PI_VAL = 17;
+	// loadIndex modes
+	public final static int IN_MEMORY = 0;
+	public final static int MEM_MAPPED = 1;
 
 	// token type
 	public final static int TOKEN_STARTING_TAG = 0;
@@ -1263,6 +1266,10 @@ public class VTDGen {
 	protected boolean shallowDepth; // true if lc depth is 3
 	protected boolean ns,is_ns;
 	protected boolean br; //buffer reuse
+	// buffer sizes expected for the next document, see setExpectedTokenCount()
+	private int expectedTokens, expectedL1, expectedL2, expectedL3;
+	// learned from the documents parsed so far, see getBytesPerToken()
+	private double bytesPerToken, l1PerToken, l2PerToken, l3PerToken;
 	
 	private int temp_offset;
 	protected int endOffset;
@@ -1391,6 +1398,108 @@ public class VTDGen {
 		if (i==5)
 			shallowDepth = false;
 	}
+	/**
+	 * Tell the next setDoc() how many VTD records to expect, so that
+	 * VTDBuffer is allocated in a few large pages instead of growing 32K
+	 * records at a time. The LC buffers are sized from the ratios learned
+	 * from the previous documents, if any. The hint applies to one
+	 * document only.
+	 * @param tokens
+	 */
+	public void setExpectedTokenCount(int tokens){
+	    setExpectedTokenCount(tokens, 0, 0, 0);
+	}
+	
+	/**
+	 * Tell the next setDoc() how many VTD records and LC entries to
+	 * expect, l3 applies when the LC depth is 3. Zero means unknown.
+	 * The hint applies to one document only.
+	 * @param tokens
+	 * @param l1
+	 * @param l2
+	 * @param l3
+	 */
+	public void setExpectedTokenCount(int tokens, int l1, int l2, int l3){
+	    if (tokens < 0 || l1 < 0 || l2 < 0 || l3 < 0)
+	        throw new IllegalArgumentException("Invalid expected token count");
+	    expectedTokens = tokens;
+	    expectedL1 = l1;
+	    expectedL2 = l2;
+	    expectedL3 = l3;
+	}
+	
+	/**
+	 * Get the average number of bytes per VTD record of the documents
+	 * parsed so far by this VTDGen, which setDoc() uses to size the
+	 * buffers when no token count is given. Callers parsing several feeds
+	 * can keep one value per feed and restore it with setBytesPerToken().
+	 * @return double, 0 if nothing has been parsed
+	 */
+	public double getBytesPerToken(){
+	    return bytesPerToken;
+	}
+	
+	/**
+	 * Set the number of bytes per VTD record setDoc() sizes the buffers by,
+	 * 0 goes back to the default sizes
+	 * @param b
+	 */
+	public void setBytesPerToken(double b){
+	    if (b < 0)
+	        throw new IllegalArgumentException("bytes per token can't be negative");
+	    bytesPerToken = b;
+	}
+	
+	/**
+	 * Keep the density of the document just parsed for sizing the
+	 * buffers of the next one
+	 */
+	private void learnDensity(){
+	    int n = VTDBuffer.size();
+	    if (n == 0)
+	        return;
+	    double b = (double) docLen / n;
+	    double b1 = (double) l1Buffer.size() / n;
+	    double b2 = (double) l2Buffer.size() / n;
+	    double b3 = shallowDepth ? (double) l3Buffer.size() / n : 0;
+	    if (bytesPerToken == 0){
+	        bytesPerToken = b;
+	        l1PerToken = b1;
+	        l2PerToken = b2;
+	        l3PerToken = b3;
+	    } else {
+	        bytesPerToken = (bytesPerToken + b) / 2;
+	        l1PerToken = (l1PerToken + b1) / 2;
+	        l2PerToken = (l2PerToken + b2) / 2;
+	        l3PerToken = (l3PerToken + b3) / 2;
+	    }
+	}
+	
+	// the number of VTD records expected for a document of len bytes, 0 if unknown
+	private long predictTokens(int len){
+	    if (expectedTokens > 0)
+	        return expectedTokens;
+	    if (bytesPerToken > 0)
+	        return (long) (len / bytesPerToken * 1.1);
+	    return 0;
+	}
+	
+	private static long predict(int expected, double perToken, long tokens){
+	    return expected > 0 ? expected : (long) (tokens * perToken * 1.1);
+	}
+	
+	// grow the page exponent e so that count entries take about 8 pages
+	private static int pageExp(long count, int e){
+	    while (e < 20 && (1L << (e + 3)) < count)
+	        e++;
+	    return e;
+	}
+	
+	// initial capacity of the page list of VTDBuffer
+	private static int pageCount(long tokens, int a, int len){
+	    return (int) Math.max(len >> (a + 1), (tokens >> a) + 2);
+	}
+	
 	/**
 	 * Write white space records that are ignored by default 
 	 */
@@ -1588,6 +1697,7 @@ public class VTDGen {
 				_l4Buffer.append(((long) last_l4_index << 32) | 0xffffffffL);
 			}
 		}
+		learnDensity();
 	}
 	/**
 	 * Format the string indicating the position (line number:offset)of the offset if 
@@ -1854,6 +1964,27 @@ public class VTDGen {
                 fis.close();
         }
 	}
+	/**
+	 * This method loads the VTD+XML from a file, either in memory
+	 * or memory-mapped; when memory-mapped, VTD and LC records are used in
+	 * place so loading costs next to nothing regardless of the index size,
+	 * and processes mapping the same index file share it in the page cache;
+	 * the mapped VTD and LC sections of a sectioned index aren't checksummed,
+	 * load it IN_MEMORY to verify them
+	 * @return VTDNav
+	 * @param fileName
+	 * @param mode IN_MEMORY or MEM_MAPPED
+	 * @throws IOException
+	 * @throws IndexReadException
+	 *
+	 */
+	public VTDNav loadIndex(String fileName, int mode)throws IOException,IndexReadException{
+	    if (mode == MEM_MAPPED)
+	        return IndexHandler.mapIndex(fileName);
+	    else if (mode == IN_MEMORY)
+	        return loadIndex(fileName);
+	    throw new IllegalArgumentException("Invalid mode for loadIndex()");
+	}
 	
 
 	
@@ -4305,7 +4436,12 @@ public class VTDGen {
 				a = 15;
 			}
 
-			VTDBuffer = new FastLongBuffer(a, len >> (a + 1));
+			long n = predictTokens(len);
+			a = pageExp(n, a);
+			i1 = pageExp(predict(expectedL1, l1PerToken, n), i1);
+			i2 = pageExp(predict(expectedL2, l2PerToken, n), i2);
+			i3 = pageExp(predict(expectedL3, l3PerToken, n), i3);
+			VTDBuffer = new FastLongBuffer(a, pageCount(n, a, len));
 			l1Buffer = new FastLongBuffer(i1);
 			l2Buffer = new FastLongBuffer(i2);
 			l3Buffer = new FastIntBuffer(i3);
@@ -4354,13 +4490,18 @@ public class VTDGen {
 				a = 15;
 			}
 
-			VTDBuffer = new FastLongBuffer(a, len >> (a + 1));
+			long n = predictTokens(len);
+			a = pageExp(n, a);
+			i1 = pageExp(predict(expectedL1, l1PerToken, n), i1);
+			i2 = pageExp(predict(expectedL2, l2PerToken, n), i2);
+			VTDBuffer = new FastLongBuffer(a, pageCount(n, a, len));
 			l1Buffer = new FastLongBuffer(i1);
 			l2Buffer = new FastLongBuffer(i2);
 			_l3Buffer = new FastLongBuffer(i3);
 			_l4Buffer = new FastLongBuffer(i4);
 			_l5Buffer = new FastIntBuffer(i5);
 		}
+		expectedTokens = expectedL1 = expectedL2 = expectedL3 = 0;
 	}
 	/**
 	 * The buffer-reuse version of setDoc
@@ -4435,7 +4576,12 @@ public class VTDGen {
 				a = 15;
 			}
 			if (VTDBuffer == null) {
-				VTDBuffer = new FastLongBuffer(a, len >> (a + 1));
+				long n = predictTokens(len);
+				a = pageExp(n, a);
+				i1 = pageExp(predict(expectedL1, l1PerToken, n), i1);
+				i2 = pageExp(predict(expectedL2, l2PerToken, n), i2);
+				i3 = pageExp(predict(expectedL3, l3PerToken, n), i3);
+				VTDBuffer = new FastLongBuffer(a, pageCount(n, a, len));
 				l1Buffer = new FastLongBuffer(i1);
 				l2Buffer = new FastLongBuffer(i2);
 				l3Buffer = new FastIntBuffer(i3);
@@ -4495,7 +4641,11 @@ public class VTDGen {
 				i1 = 8;
 			}
 			if (VTDBuffer == null) {
-				VTDBuffer = new FastLongBuffer(a, len >> (a + 1));
+				long n = predictTokens(len);
+				a = pageExp(n, a);
+				i1 = pageExp(predict(expectedL1, l1PerToken, n), i1);
+				i2 = pageExp(predict(expectedL2, l2PerToken, n), i2);
+				VTDBuffer = new FastLongBuffer(a, pageCount(n, a, len));
 				l1Buffer = new FastLongBuffer(i1);
 				l2Buffer = new FastLongBuffer(i2);
 				_l3Buffer = new FastLongBuffer(i3);
@@ -4510,6 +4660,7 @@ public class VTDGen {
 				_l5Buffer.size = 0;
 			}
 		}
+		expectedTokens = expectedL1 = expectedL2 = expectedL3 = 0;
 	}
 	/**
 	 * This method writes the VTD+XML into an outputStream
@@ -4611,6 +4762,69 @@ public class VTDGen {
 	    writeIndex(fos);
 	    fos.close();
 	}
+
+	/**
+	 * This method writes the VTD+XML into an outputStream in the sectioned
+	 * index format: a section table locates the XML, VTD and LC sections,
+	 * each of which carries a CRC-32C checksum. loadIndex() reads both formats.
+	 * @param os
+	 * @param compressed whether to deflate the XML and VTD sections
+	 * (the VTD offsets are then delta-encoded)
+	 * @throws IOException
+	 * @throws IndexWriteException
+	 *
+	 */
+	public void writeSectionedIndex(OutputStream os, boolean compressed) throws IOException,IndexWriteException{
+	    if (shallowDepth)
+	    	IndexHandler.writeSectionedIndex(this.encoding,
+	            this.ns,
+	            this.VTDDepth,
+	            3,
+	            this.rootIndex,
+	            this.XMLDoc,
+	            this.docOffset,
+	            this.docLen,
+	            this.VTDBuffer,
+	            this.l1Buffer,
+	            this.l2Buffer,
+	            null,
+	            null,
+	            this.l3Buffer,
+	            compressed,
+	            os);
+	    else
+	    	IndexHandler.writeSectionedIndex(this.encoding,
+		            this.ns,
+		            this.VTDDepth,
+		            5,
+		            this.rootIndex,
+		            this.XMLDoc,
+		            this.docOffset,
+		            this.docLen,
+		            this.VTDBuffer,
+		            this.l1Buffer,
+		            this.l2Buffer,
+		            this._l3Buffer,
+		            this._l4Buffer,
+		            this._l5Buffer,
+		            compressed,
+		            os);
+	}
+
+	/**
+	 * This method writes the VTD+XML into a file of the given name
+	 * in the sectioned index format
+	 * @param fileName
+	 * @param compressed whether to deflate the XML and VTD sections
+	 * @throws IOException
+	 * @throws IndexWriteException
+	 *
+	 */
+	public void writeSectionedIndex(String fileName, boolean compressed) throws IOException,IndexWriteException{
+	    FileOutputStream fos = new FileOutputStream(fileName);
+	    writeSectionedIndex(fos, compressed);
+	    fos.close();
+	}
 	
 	/**
 	 * This method writes the VTDs and LCs into a file of the given name
@@ -204,6 +204,7 @@ public class VTDNav {
 	protected BookMark currentNode;
 	protected String URIName;
 	protected int count;
+	protected XPathResultCache resultCache; // document-scoped XPath results
 	
 	protected VTDNav(){}
 	
@@ -1290,7 +1291,7 @@ public class VTDNav {
 		int index = (context[0] != 0) ? context[context[0]] + 1 : rootIndex + 1;
 		int depth = getCurrentDepth();
 		int type; 
-		if (index<vtdSize || !atTerminal)
+		if (index<vtdSize)
 			type = getTokenType(index);
 		else 
 			return -1;
@@ -2581,6 +2582,8 @@ public class VTDNav {
 	                k += 2;
 	            }
 	        }    
+	        if (resultCache!=null)
+	            resultCache.invalidate();
 	        return true;
 	    }	    
 	    return false;
@@ -5584,6 +5587,49 @@ public class VTDNav {
 	    writeSeparateIndex(fos);
 	    fos.close();
 	}
+
+	/**
+	 * Write VTDNav's internal structure into an OutputStream in the sectioned
+	 * index format, which carries a section table and per-section checksums
+	 * and can be loaded by VTDGen.loadIndex() as well
+	 * @param os
+	 * @param compressed whether to deflate the XML and VTD sections
+	 * @throws IndexWriteException
+	 * @throws IOException
+	 *
+	 */
+	public void writeSectionedIndex(OutputStream os, boolean compressed) throws IndexWriteException, IOException{
+	    IndexHandler.writeSectionedIndex(this.encoding,
+	            this.ns,
+	            this.nestingLevel-1,
+	            3,
+	            this.rootIndex,
+	            this.XMLDoc.getBytes(),
+	            this.docOffset,
+	            this.docLen,
+	            this.vtdBuffer,
+	            this.l1Buffer,
+	            this.l2Buffer,
+	            null,
+	            null,
+	            this.l3Buffer,
+	            compressed,
+	            os);
+	}
+
+	/**
+	 * Write VTDNav's internal structure into a file in the sectioned index format
+	 * @param fileName
+	 * @param compressed whether to deflate the XML and VTD sections
+	 * @throws IOException
+	 * @throws IndexWriteException
+	 *
+	 */
+	public void writeSectionedIndex(String fileName, boolean compressed) throws IOException,IndexWriteException{
+	    FileOutputStream fos = new FileOutputStream(fileName);
+	    writeSectionedIndex(fos, compressed);
+	    fos.close();
+	}
 	
 	/**
      * Precompute the size of VTD+XML index
@@ -5611,6 +5657,21 @@ public class VTDNav {
 	    return size+64;
 	}
 	
+	/**
+	 * Compact the VTD and LC buffers into single arrays (see
+	 * FastLongBuffer.compact()), so that record accesses skip the page
+	 * lookup. Worth it for documents that are navigated a lot once parsed or
+	 * loaded; the buffers are shared with VTDGen and duplicated VTDNavs,
+	 * which see the compacted buffers. Memory mapped buffers are left as
+	 * they are.
+	 */
+	public void compactBuffers(){
+	    vtdBuffer.compact();
+	    l1Buffer.compact();
+	    l2Buffer.compact();
+	    l3Buffer.compact();
+	}
+	
 	/**
 	 * Duplicate the VTDNav instance with shared XML, VTD and LC buffers
 	 * This method may be useful for parallel XPath evaluation
@@ -5619,7 +5680,7 @@ public class VTDNav {
 	 *
 	 */
 	public VTDNav duplicateNav(){
-	    return new VTDNav(rootIndex,
+	    VTDNav vn = new VTDNav(rootIndex,
 	            encoding,
 	            ns,
 	            nestingLevel-1,
@@ -5631,6 +5692,28 @@ public class VTDNav {
 	            docOffset,
 	            docLen
 	            );
+	    vn.resultCache = resultCache;
+	    return vn;
+	}
+	
+	/**
+	 * Attach a document-scoped XPath result cache to this VTDNav, 
+	 * the node sets of absolute XPath expressions evaluated by any AutoPilot
+	 * bound to this VTDNav (or its duplicates and clones created afterwards)
+	 * are cached across evaluations. Set it to null to disable.
+	 * @param rc
+	 */
+	public void setResultCache(XPathResultCache rc){
+	    resultCache = rc;
+	}
+	
+	/**
+	 * Return the document-scoped XPath result cache, or null 
+	 * if there isn't one
+	 * @return XPathResultCache
+	 */
+	public XPathResultCache getResultCache(){
+	    return resultCache;
 	}
 	
 	/**
@@ -5653,6 +5736,7 @@ public class VTDNav {
 	            );
 		vn.atTerminal = this.atTerminal;
 		vn.LN = this.LN;
+		vn.resultCache = resultCache;
 		if (this.context[0]!=-1)
 			System.arraycopy(this.context, 0, vn.context, 0, this.context[0]+1 );
 		else 
@@ -7084,7 +7168,8 @@ public class VTDNav {
 					case TOKEN_CDATA_VAL:
 						depth =
 							(int) ((MASK_TOKEN_DEPTH & temp) >> 52);
-						if (depth < context[0]){
+						if (depth < context[0] || depth == 255){
+							// 255 is the depth -1 of the nodes after the root
 							return false;
 						}else if (depth == (context[0])) {
 							//System.out.println("inside to Node next sibling");
@@ -7096,7 +7181,7 @@ public class VTDNav {
 					case TOKEN_PI_NAME:
 						depth =
 							(int) ((MASK_TOKEN_DEPTH & temp) >> 52);
-						if (depth < context[0]){
+						if (depth < context[0] || depth == 255){
 							return false;
 						}else if (depth == (context[0])) {
 							LN = index;
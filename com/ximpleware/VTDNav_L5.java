@@ -175,6 +175,7 @@ public class VTDNav_L5 extends VTDNav {
 	            );
 		vn.atTerminal = this.atTerminal;
 		vn.LN = this.LN;
+		vn.resultCache = resultCache;
 		if (this.context[0]!=-1)
 			System.arraycopy(this.context, 0, vn.context, 0, this.context[0]+1 );
 		else 
@@ -203,6 +204,19 @@ public class VTDNav_L5 extends VTDNav {
 		return vn;
 	}
 	
+	/**
+	 * Compact the VTD and LC buffers into single arrays, see
+	 * VTDNav.compactBuffers()
+	 */
+	public void compactBuffers(){
+	    vtdBuffer.compact();
+	    l1Buffer.compact();
+	    l2Buffer.compact();
+	    l3Buffer.compact();
+	    l4Buffer.compact();
+	    l5Buffer.compact();
+	}
+	
 	/**
 	 * Duplicate the VTDNav instance with shared XML, VTD and LC buffers
 	 * This method may be useful for parallel XPath evaluation
@@ -211,7 +225,7 @@ public class VTDNav_L5 extends VTDNav {
 	 *
 	 */
 	final public VTDNav duplicateNav(){
-	    return new VTDNav_L5(rootIndex,
+	    VTDNav vn = new VTDNav_L5(rootIndex,
 	            encoding,
 	            ns,
 	            nestingLevel-1,
@@ -225,6 +239,8 @@ public class VTDNav_L5 extends VTDNav {
 	            docOffset,
 	            docLen
 	            );
+	    vn.resultCache = resultCache;
+	    return vn;
 	}
 	
 	/**
@@ -1980,6 +1996,25 @@ public class VTDNav_L5 extends VTDNav {
 	            (FastIntBuffer)this.l5Buffer,
 	            os);
 	}
+
+	public void writeSectionedIndex(OutputStream os, boolean compressed) throws IndexWriteException, IOException{
+	    IndexHandler.writeSectionedIndex(this.encoding,
+	            this.ns,
+	            this.nestingLevel-1,
+	            5,
+	            this.rootIndex,
+	            this.XMLDoc.getBytes(),
+	            this.docOffset,
+	            this.docLen,
+	            this.vtdBuffer,
+	            this.l1Buffer,
+	            this.l2Buffer,
+	            this.l3Buffer,
+	            this.l4Buffer,
+	            this.l5Buffer,
+	            compressed,
+	            os);
+	}
 	
 	/**
 	 * Write VTDNav's VTD and LCs into an OutputStream (XML not written out)
@@ -2372,7 +2407,8 @@ public class VTDNav_L5 extends VTDNav {
 					case TOKEN_CDATA_VAL:
 						depth =
 							(int) ((MASK_TOKEN_DEPTH & temp) >> 52);
-						if (depth < context[0]){
+						if (depth < context[0] || depth == 255){
+							// 255 is the depth -1 of the nodes after the root
 							return false;
 						}else if (depth == (context[0])) {
 							LN = index;
@@ -2383,7 +2419,7 @@ public class VTDNav_L5 extends VTDNav {
 					case TOKEN_PI_NAME:
 						depth =
 							(int) ((MASK_TOKEN_DEPTH & temp) >> 52);
-						if (depth < context[0]){
+						if (depth < context[0] || depth == 255){
 							return false;
 						}else if (depth == (context[0])) {
 							LN = index;
@@ -20,6 +20,10 @@
  * is granted to those parties as a result of re-downloading software from this or any other website*/
 package com.ximpleware;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import com.ximpleware.transcode.*;
 /**
@@ -55,10 +59,18 @@ public class XMLModifier {
     
     protected FastObjectBuffer fob;
     protected FastLongBuffer flb;
-    protected intHash deleteHash; // one deletion per offset val
-    protected intHash insertHash;   // one insert per offset val
+    protected intOpenHash deleteHash; // one deletion per offset val
+    protected intOpenHash insertHash;   // one insert per offset val
     protected String charSet;
     int encoding;
+    // flb and fob entries below sortedSize are sorted and checked
+    private int sortedSize;
+    // first entry of the pending edit transaction, -1 if there is none
+    private int txMark = -1;
+    // offsets added to insertHash and deleteHash by the transaction
+    private FastIntBuffer txInserts, txDeletes;
+    // buffer used to encode template values during output()
+    private byte[] scratch;
     
     public class ByteSegment{
         byte[] ba;
@@ -97,8 +109,10 @@ public class XMLModifier {
         flb = new FastLongBuffer();
         fob = new FastObjectBuffer();
         int i = intHash.determineHashWidth(md.vtdSize);
-        insertHash = new intHash(i);
-        deleteHash = new intHash(i);    
+        insertHash = new intOpenHash(i);
+        deleteHash = new intOpenHash(i);    
+        sortedSize = 0;
+        txMark = -1;
         //determine encoding charset string here
         encoding = md.getEncoding();
         switch(encoding){
@@ -305,8 +319,9 @@ public class XMLModifier {
                 || offset + len > md.docOffset + md.docLen){
             throw new ModifyException("Invalid offset or length for removeContent");
         }
-        if (deleteHash.isUnique(offset)==false)
-            throw new ModifyException("There can be only one deletion per offset value");
+        if (txMark >= 0)
+            checkOverlap(offset, len);
+        uniqueDelete(offset);
         while(len > (1<<29)-1){
         	flb.append(((long)((1<<29)-1))<<32 | offset | MASK_DELETE);
         	fob.append((Object)null);
@@ -325,9 +340,7 @@ public class XMLModifier {
      */
     private void insertBytesEnclosedAt(int offset, byte[] content) throws ModifyException{
 
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+        uniqueInsert(offset);
         flb.append( (long)offset | MASK_INSERT_BYTE_ENCLOSED);
         fob.append(content);
     }
@@ -340,31 +353,26 @@ public class XMLModifier {
      */
     public void insertBytesAt(int offset, byte[] content) throws ModifyException{
 
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+        uniqueInsert(offset);
         flb.append( (long)offset | MASK_INSERT_BYTE);
         fob.append(content);
     }
     
     
     /**
-     * Insert ns compensated element fragment into the document
+     * Insert ns compensated element fragment (or a bound insertion template)
+     * into the document
      * @param ef
      *
      */
-    private void insertElementFragmentNsAt(int offset, ElementFragmentNs ef) throws ModifyException{
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+    private void insertElementFragmentNsAt(int offset, Object ef) throws ModifyException{
+        uniqueInsert(offset);
         flb.append((long)offset | MASK_INSERT_FRAGMENT_NS);
         fob.append(ef);
     }
     
-    private void insertElementFragmentNsEnclosedAt(int offset, ElementFragmentNs ef) throws ModifyException{
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+    private void insertElementFragmentNsEnclosedAt(int offset, Object ef) throws ModifyException{
+        uniqueInsert(offset);
         flb.append((long)offset | MASK_INSERT_FRAGMENT_NS_ENCLOSED);
         fob.append(ef);
     }
@@ -380,9 +388,7 @@ public class XMLModifier {
      */
     public  void insertBytesAt(int offset, byte[] content, int contentOffset, int contentLen) 
     throws ModifyException {
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+        uniqueInsert(offset);
         if (contentOffset < 0 
                 || contentLen <0 
                 || contentOffset+contentLen > content.length){
@@ -407,9 +413,7 @@ public class XMLModifier {
      */
     private  void insertBytesEnclosedAt(int offset, byte[] content, int contentOffset, int contentLen) 
     throws ModifyException {
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+        uniqueInsert(offset);
         if (contentOffset < 0 
                 || contentLen <0 
                 || contentOffset+contentLen > content.length){
@@ -434,9 +438,7 @@ public class XMLModifier {
      */
     private void insertBytesAt(int offset, byte[] content, long l)
     throws ModifyException {
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+        uniqueInsert(offset);
         int contentOffset = (int)l;
         int contentLen = (int)(l>>32); 
         if (contentOffset < 0 
@@ -454,9 +456,7 @@ public class XMLModifier {
     
     private void insertBytesEnclosedAt(int offset, byte[] content, long l)
     throws ModifyException {
-        if (insertHash.isUnique(offset)==false){
-            throw new ModifyException("There can be only one insert per offset");
-        }
+        uniqueInsert(offset);
         int contentOffset = (int)l;
         int contentLen = (int)(l>>32); 
         if (contentOffset < 0 
@@ -500,13 +500,13 @@ public class XMLModifier {
         	    if (encoding < VTDNav.FORMAT_UTF_16BE)
         	        insertBytesAt(offset-9,newContentBytes);
         	    else 
-        	        insertBytesAt((offset-9)>>1,newContentBytes);
+        	        insertBytesAt((offset-9)<<1,newContentBytes);
         		break;
         	case VTDNav.TOKEN_COMMENT:
            	    if (encoding < VTDNav.FORMAT_UTF_16BE)
         	        insertBytesAt(offset-4,newContentBytes);
         	    else 
-        	        insertBytesAt((offset-4)>>1,newContentBytes);
+        	        insertBytesAt((offset-4)<<1,newContentBytes);
         		break;
         	    
         	default: 
@@ -555,13 +555,13 @@ public class XMLModifier {
          	    if (encoding < VTDNav.FORMAT_UTF_16BE)
          	        insertBytesAt(offset-9, bo);
          	    else 
-         	        insertBytesAt((offset-9)>>1, bo);
+         	        insertBytesAt((offset-9)<<1, bo);
          		break;
          	case VTDNav.TOKEN_COMMENT:
             	    if (encoding < VTDNav.FORMAT_UTF_16BE)
          	        insertBytesAt(offset-4, bo);
          	    else 
-         	        insertBytesAt((offset-4)>>1, bo);
+         	        insertBytesAt((offset-4)<<1, bo);
          		break;
          	    
          	default: 
@@ -763,8 +763,196 @@ public class XMLModifier {
      *
      */
     protected void sort(){
-        if (flb.size>0)
-            quickSort(0,flb.size-1);        
+        int size = flb.size;
+        if (sortedSize == size)
+            return;
+        if (sortedSize == 0)
+            quickSort(0, size-1);
+        else {
+            // only the edits added since the last sort need sorting,
+            // they are then merged with the sorted ones
+            quickSort(sortedSize, size-1);
+            merge(sortedSize);
+        }
+        sortedSize = flb.size;
+    }
+    
+    /**
+     * Merge the sorted edits [mark, flb.size) into the sorted edits [0, mark),
+     * in the order of quickSort(); only the entries after the first
+     * new edit are moved
+     * @param mark
+     */
+    private void merge(int mark){
+        int size = flb.size;
+        long x = sortKey(flb.longAt(mark));
+        int lo = 0, hi = mark;
+        while (lo < hi){
+            int m = (lo + hi) >>> 1;
+            if (sortKey(flb.longAt(m)) <= x)
+                lo = m + 1;
+            else
+                hi = m;
+        }
+        int p = lo;
+        int n = size - p;
+        long[] la = new long[n];
+        Object[] oa = new Object[n];
+        for (int i = 0; i < n; i++){
+            la[i] = flb.longAt(p + i);
+            oa[i] = fob.objectAt(p + i);
+        }
+        int i = 0, j = mark - p, k = p;
+        while (i < mark - p || j < n){
+            int q;
+            if (j == n || (i < mark - p && sortKey(la[i]) <= sortKey(la[j])))
+                q = i++;
+            else
+                q = j++;
+            flb.modifyEntry(k, la[q]);
+            fob.modifyEntry(k, oa[q]);
+            k++;
+        }
+    }
+
+    /**
+     * The order of the edits: by offset, then a deletion (or a nullified
+     * edit) before the insert sharing its offset, so that the edits sort
+     * the same way whether they are sorted at once or merged
+     * @param l
+     * @return long
+     */
+    private static long sortKey(long l){
+        long m = l & (~0x1fffffffffffffffL);
+        return (((long) (int) l) << 1) | ((m == MASK_DELETE || m == MASK_NULL) ? 0 : 1);
+    }
+
+    /**
+     * Start an edit transaction: the edits applied until commit() or
+     * rollback() are kept apart from the committed ones, so that they
+     * can be discarded together. Any deletion overlapping a committed
+     * deletion is rejected as soon as it is applied. 
+     * Committed edits are kept in document order, so output() doesn't
+     * need to sort them again.
+     * Transactions can't be nested.
+     * @throws ModifyException if a transaction is pending, or if the
+     * edits applied so far conflict
+     */
+    public void begin() throws ModifyException{
+        if (txMark >= 0)
+            throw new ModifyException("An edit transaction is already pending");
+        sort();
+        check2();
+        txMark = flb.size;
+        if (txInserts == null){
+            txInserts = new FastIntBuffer(8);
+            txDeletes = new FastIntBuffer(8);
+        }
+        txInserts.size = 0;
+        txDeletes.size = 0;
+    }
+
+    /**
+     * Commit the edits of the pending transaction: they are sorted, checked
+     * against each other and the committed edits, and merged into the
+     * committed edits. If they conflict,
+     * the whole transaction is rolled back and ModifyException is thrown.
+     * @throws ModifyException
+     */
+    public void commit() throws ModifyException{
+        if (txMark < 0)
+            throw new ModifyException("No edit transaction is pending");
+        int size = flb.size;
+        if (size > txMark){
+            quickSort(txMark, size - 1);
+            // check the new edits among themselves before touching
+            // the committed ones
+            int os1 = -1, os2 = -1;
+            for (int i = txMark; i < size; i++){
+                long l = flb.longAt(i);
+                if ((l & (~0x1fffffffffffffffL)) != MASK_DELETE)
+                    continue;
+                int o = (int) l, e = o + ((int) (l >> 32) & 0x1fffffff) - 1;
+                if (o <= os2 && e > os2){
+                    rollback();
+                    throw new ModifyException
+                    ("Invalid insertion/deletion condition detected between offset "
+                            +os1 + " and offset "+os2);
+                }
+                if (e > os2){
+                    os1 = o;
+                    os2 = e;
+                }
+            }
+            merge(txMark);
+            check2();
+        }
+        sortedSize = flb.size;
+        txMark = -1;
+    }
+
+    /**
+     * Discard the edits of the pending transaction
+     */
+    public void rollback(){
+        if (txMark < 0)
+            return;
+        for (int i = 0; i < txInserts.size; i++)
+            insertHash.remove(txInserts.intAt(i));
+        for (int i = 0; i < txDeletes.size; i++)
+            deleteHash.remove(txDeletes.intAt(i));
+        for (int i = txMark; i < fob.size; i++)
+            fob.modifyEntry(i, null);
+        flb.size = txMark;
+        fob.size = txMark;
+        sortedSize = txMark;
+        txMark = -1;
+    }
+
+    private void uniqueInsert(int offset) throws ModifyException{
+        if (insertHash.isUnique(offset)==false)
+            throw new ModifyException("There can be only one insert per offset");
+        if (txMark >= 0)
+            txInserts.append(offset);
+    }
+
+    private void uniqueDelete(int offset) throws ModifyException{
+        if (deleteHash.isUnique(offset)==false)
+            throw new ModifyException("There can be only one deletion per offset value");
+        if (txMark >= 0)
+            txDeletes.append(offset);
+    }
+
+    /**
+     * Reject a deletion partially overlapping a committed deletion,
+     * committed deletions are sorted and don't overlap each other
+     * once they are checked (contained edits are nullified)
+     */
+    private void checkOverlap(int offset, int len) throws ModifyException{
+        int b = offset + len - 1;
+        // the last committed edit starting at or before b
+        int lo = 0, hi = txMark;
+        while (lo < hi){
+            int m = (lo + hi) >>> 1;
+            if (flb.lower32At(m) <= b)
+                lo = m + 1;
+            else
+                hi = m;
+        }
+        for (int i = lo - 1; i >= 0; i--){
+            long l = flb.longAt(i);
+            if ((l & (~0x1fffffffffffffffL)) != MASK_DELETE)
+                continue;
+            int os1 = (int) l, os2 = os1 + ((int) (l >> 32) & 0x1fffffff) - 1;
+            if (os2 < offset)
+                break; // the deletions before it end even earlier
+            if ((os1 < offset && os2 < b) || (os1 > offset && os2 > b))
+                throw new ModifyException
+                ("Invalid insertion/deletion condition detected between offset "
+                        +os1 + " and offset "+os2);
+            if (os1 <= offset)
+                break;
+        }
     }
     
     /**
@@ -830,33 +1018,68 @@ public class XMLModifier {
      *
      */
     public int getUpdatedDocumentSize() throws ModifyException,TranscodeException{
-        int size = flb.size;
+        if (txMark >= 0)
+            throw new ModifyException("An edit transaction is pending");
         int docSize = md.getXML().getBytes().length;
-        int inc = (md.encoding<VTDNav.FORMAT_UTF_16BE)?2:4;
-        long l;
         sort();
         check2();
+        int size = flb.size;
         for (int i=0;i<size;i++){
-            l= flb.longAt(i);
-            if ((l & (~0x1fffffffffffffffL)) == MASK_DELETE) {
-                docSize -= (int) ((l & (0x1fffffffffffffffL))>> 32);
-            } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE){
-                docSize += ((byte[])fob.objectAt(i)).length;
-            } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_SEGMENT_BYTE){ 
-                // MASK_INSERT_SEGMENT_BYTE
-                docSize += ((ByteSegment)fob.objectAt(i)).len;
-            } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS) { 
-                docSize += ((ElementFragmentNs)fob.objectAt(i)).getSize(md.encoding);
-            }  else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE_ENCLOSED){
-            	docSize += ((byte[])fob.objectAt(i)).length+inc;
-            } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_SEGMENT_BYTE_ENCLOSED){
-            	docSize += ((ByteSegment)fob.objectAt(i)).len+inc;
-            } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS_ENCLOSED) { 
-            	docSize += ((ElementFragmentNs)fob.objectAt(i)).getSize(md.encoding)+inc;
-            }
+            docSize += sizeDelta(i);
         }
         return docSize;
     }
+    
+    /**
+     * Compute the change in document size caused by the i-th edit,
+     * only valid after sort() and check2()
+     * @param i
+     * @return int
+     */
+    private int sizeDelta(int i) throws TranscodeException{
+        int inc = (md.encoding<VTDNav.FORMAT_UTF_16BE)?2:4;
+        long l= flb.longAt(i);
+        if ((l & (~0x1fffffffffffffffL)) == MASK_DELETE) {
+            return -(int) ((l & (0x1fffffffffffffffL))>> 32);
+        } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE){
+            return ((byte[])fob.objectAt(i)).length;
+        } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_SEGMENT_BYTE){ 
+            // MASK_INSERT_SEGMENT_BYTE
+            return ((ByteSegment)fob.objectAt(i)).len;
+        } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS) { 
+            return fragmentSize(fob.objectAt(i));
+        }  else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE_ENCLOSED){
+        	return ((byte[])fob.objectAt(i)).length+inc;
+        } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_SEGMENT_BYTE_ENCLOSED){
+        	return ((ByteSegment)fob.objectAt(i)).len+inc;
+        } else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS_ENCLOSED) { 
+        	return fragmentSize(fob.objectAt(i))+inc;
+        }
+        return 0;
+    }
+
+    /**
+     * Size in bytes of an ElementFragmentNs or a bound InsertionTemplate
+     * once written in the document's encoding
+     */
+    private int fragmentSize(Object o) throws TranscodeException{
+        if (o instanceof InsertionTemplate.Bound)
+            return ((InsertionTemplate.Bound)o).getSize();
+        return ((ElementFragmentNs)o).getSize(md.encoding);
+    }
+
+    /**
+     * Write an ElementFragmentNs or render a bound InsertionTemplate
+     * into the output
+     */
+    private void writeFragment(Object o, OutputStream os) throws IOException, TranscodeException{
+        if (o instanceof InsertionTemplate.Bound){
+            if (scratch == null)
+                scratch = new byte[InsertionTemplate.SCRATCH_SIZE];
+            ((InsertionTemplate.Bound)o).writeToOutputStream(os, scratch);
+        } else
+            ((ElementFragmentNs)o).writeToOutputStream(os, md.encoding);
+    }
     /**
      * This method will first call getCurrentIndex() to get the cursor index value
      * then insert the byte array b after the element
@@ -1643,6 +1866,97 @@ public class XMLModifier {
         else
             insertElementFragmentNsAt((offset)<<1,ef);        
     }
+
+    /**
+     * Insert an InsertionTemplate after the cursor element, its slots 
+     * being filled by values. The template is rendered during output(),
+     * so neither the template nor values may change until then.
+     * @param t a template compiled for the encoding of the master document
+     * @param values slot values indexed as in t.getSlotIndex(), null entries
+     * being written as empty strings
+     * @throws ModifyException
+     * @throws NavException
+     */
+    public void insertAfterElement(InsertionTemplate t, String[] values)
+            throws ModifyException, NavException {
+        int startTagIndex = md.getCurrentIndex();
+        int type = md.getTokenType(startTagIndex);
+        if (type != VTDNav.TOKEN_STARTING_TAG)
+            throw new ModifyException("Token type is not a starting tag");
+        Object o = bind(t, values);
+        long l = md.getElementFragment();
+        int offset = (int) l;
+        int len = (int) (l >> 32);
+        insertElementFragmentNsAt(offset + len, o);
+    }
+
+    /**
+     * Insert an InsertionTemplate before the cursor element, its slots 
+     * being filled by values
+     * @param t a template compiled for the encoding of the master document
+     * @param values
+     * @throws ModifyException
+     */
+    public void insertBeforeElement(InsertionTemplate t, String[] values)
+            throws ModifyException {
+        int startTagIndex = md.getCurrentIndex();
+        int type = md.getTokenType(startTagIndex);
+        if (type != VTDNav.TOKEN_STARTING_TAG)
+            throw new ModifyException("Token type is not a starting tag");
+        Object o = bind(t, values);
+        int offset = md.getTokenOffset(startTagIndex) - 1;
+        if (encoding < VTDNav.FORMAT_UTF_16BE)
+            insertElementFragmentNsAt(offset, o);
+        else
+            insertElementFragmentNsAt((offset) << 1, o);
+    }
+
+    /**
+     * Insert an InsertionTemplate after the head of the cursor element,
+     * its slots being filled by values
+     * @param t a template compiled for the encoding of the master document
+     * @param values
+     * @throws ModifyException
+     * @throws NavException
+     */
+    public void insertAfterHead(InsertionTemplate t, String[] values)
+            throws ModifyException, NavException {
+        Object o = bind(t, values);
+        long i = md.getOffsetAfterHead();
+        if (i < 0) {
+            insertElementFragmentNsEnclosedAt((int) i - 1, o);
+            insertEndingTag(i);
+            return;
+        }
+        insertElementFragmentNsAt((int) i, o);
+    }
+
+    /**
+     * Insert an InsertionTemplate before the tail of the cursor element,
+     * its slots being filled by values
+     * @param t a template compiled for the encoding of the master document
+     * @param values
+     * @throws ModifyException
+     * @throws NavException
+     */
+    public void insertBeforeTail(InsertionTemplate t, String[] values)
+            throws ModifyException, NavException {
+        long i = md.getOffsetBeforeTail();
+        if (i < 0) {
+            insertAfterHead(t, values);
+            return;
+        }
+        insertElementFragmentNsAt((int) i, bind(t, values));
+    }
+
+    private Object bind(InsertionTemplate t, String[] values)
+            throws ModifyException {
+        if (t.getEncoding() != encoding)
+            throw new ModifyException("Insertion template and master document have different encodings");
+        t.checkValues(values);
+        // the caller may reuse the array for the next insert
+        return new InsertionTemplate.Bound(t, values == null ? null : (String[]) values.clone());
+    }
     
     
     /**
@@ -1899,6 +2213,8 @@ public class XMLModifier {
 			TranscodeException {
 		if (os == null)
 			throw new IllegalArgumentException("OutputStream can't be null");
+		if (txMark >= 0)
+			throw new ModifyException("An edit transaction is pending");
 		sort();
 		check2();
 		long l;
@@ -1946,9 +2262,7 @@ public class XMLModifier {
 					} else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS) {
 						// ElementFragmentNs
 						os.write(ba, offset, flb.lower32At(i) - offset);
-						ElementFragmentNs ef = (ElementFragmentNs) fob
-								.objectAt(i);
-						ef.writeToOutputStream(os, md.encoding);
+						writeFragment(fob.objectAt(i), os);
 						offset = flb.lower32At(i);
 					} else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE_ENCLOSED) { // insert
 						os.write(ba, offset, flb.lower32At(i) - offset);
@@ -1967,10 +2281,8 @@ public class XMLModifier {
 					} else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS_ENCLOSED) {
 						// ElementFragmentNs
 						os.write(ba, offset, flb.lower32At(i) - offset);
-						ElementFragmentNs ef = (ElementFragmentNs) fob
-								.objectAt(i);
 						os.write(0x3e);
-						ef.writeToOutputStream(os, md.encoding);
+						writeFragment(fob.objectAt(i), os);
 						os.write(0x3c);
 						offset = flb.lower32At(i);
 					}
@@ -2011,9 +2323,7 @@ public class XMLModifier {
 						} else if ((k & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS) {
 							// ElementFragmentNs
 							// os.write(ba,offset, flb.lower32At(i2)-offset);
-							ElementFragmentNs ef = (ElementFragmentNs) fob
-									.objectAt(i2);
-							ef.writeToOutputStream(os, md.encoding);
+							writeFragment(fob.objectAt(i2), os);
 							offset = flb.lower32At(i1)
 									+ (flb.upper32At(i1) & 0x1fffffff);
 						} else if ((k & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE_ENCLOSED) { // insert
@@ -2032,10 +2342,8 @@ public class XMLModifier {
 									+ (flb.upper32At(i1) & 0x1fffffff);
 						} else if ((k & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS_ENCLOSED) {
 							// ElementFragmentNs
-							ElementFragmentNs ef = (ElementFragmentNs) fob
-									.objectAt(i2);
 							os.write(0x3e);
-							ef.writeToOutputStream(os, md.encoding);
+							writeFragment(fob.objectAt(i2), os);
 							os.write(0x3c);
 							offset = flb.lower32At(i1)
 									+ (flb.upper32At(i1) & 0x1fffffff);
@@ -2083,9 +2391,7 @@ public class XMLModifier {
 					} else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS) {
 						// ElementFragmentNs
 						os.write(ba, offset, (flb.lower32At(i)) - offset);
-						ElementFragmentNs ef = (ElementFragmentNs) fob
-								.objectAt(i);
-						ef.writeToOutputStream(os, md.encoding);
+						writeFragment(fob.objectAt(i), os);
 						offset = flb.lower32At(i);
 					} else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE_ENCLOSED) { // insert
 						// XML_INSERT_SEGMENT_BYTE
@@ -2105,10 +2411,8 @@ public class XMLModifier {
 					} else if ((l & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS_ENCLOSED) {
 						// ElementFragmentNs
 						os.write(ba, offset, (flb.lower32At(i)) - offset);
-						ElementFragmentNs ef = (ElementFragmentNs) fob
-								.objectAt(i);
 						os.write(b1);
-						ef.writeToOutputStream(os, md.encoding);
+						writeFragment(fob.objectAt(i), os);
 						os.write(b2);
 						offset = flb.lower32At(i);
 					}
@@ -2148,9 +2452,7 @@ public class XMLModifier {
 						} else if ((k & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS) {
 							// ElementFragmentNs
 							// os.write(ba,offset, flb.lower32At(i2)-offset);
-							ElementFragmentNs ef = (ElementFragmentNs) fob
-									.objectAt(i2);
-							ef.writeToOutputStream(os, md.encoding);
+							writeFragment(fob.objectAt(i2), os);
 							offset = (flb.lower32At(i1) + (flb.upper32At(i1) & 0x1fffffff));
 						} else if ((k & (~0x1fffffffffffffffL)) == MASK_INSERT_BYTE_ENCLOSED) { // insert
 							// XML_INSERT_SEGMENT_BYTE
@@ -2169,10 +2471,8 @@ public class XMLModifier {
 						} else if ((k & (~0x1fffffffffffffffL)) == MASK_INSERT_FRAGMENT_NS_ENCLOSED) {
 							// ElementFragmentNs
 							// os.write(ba,offset, flb.lower32At(i2)-offset);
-							ElementFragmentNs ef = (ElementFragmentNs) fob
-									.objectAt(i2);
 							os.write(b1);
-							ef.writeToOutputStream(os, md.encoding);
+							writeFragment(fob.objectAt(i2), os);
 							os.write(b2);
 							offset = (flb.lower32At(i1) + (flb.upper32At(i1) & 0x1fffffff));
 						}
@@ -2183,6 +2483,349 @@ public class XMLModifier {
 		}
 	}
 
+    /**
+     * This method applies the modification to the XML document and
+     * writes the output to a channel. The unchanged parts of the document
+     * aren't copied: they are written as slices of the master document's
+     * byte array, together with the inserted content, using gathering writes
+     * when the channel is a GatheringByteChannel (e.g. a FileChannel or a
+     * SocketChannel). 
+     * Notice that output is not guaranteed to be well-formed 
+     * @param ch
+     * @throws IOException
+     * @throws ModifyException
+     * @throws TranscodeException
+     */
+    public void output(WritableByteChannel ch) throws IOException, ModifyException,
+            TranscodeException {
+        if (ch == null)
+            throw new IllegalArgumentException("WritableByteChannel can't be null");
+        byte[] ba = md.getXML().getBytes();
+        segmentOutputStream sos = segments(ba);
+        int n = sos.offsets.size;
+        ByteBuffer[] bbs = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            Object o = sos.inserts.objectAt(i);
+            bbs[i] = (o == null)
+                ? ByteBuffer.wrap(ba, sos.offsets.intAt(i), sos.lengths.intAt(i))
+                : ByteBuffer.wrap((byte[]) o, 0, sos.lengths.intAt(i));
+        }
+        if (ch instanceof GatheringByteChannel) {
+            GatheringByteChannel gch = (GatheringByteChannel) ch;
+            int i = 0;
+            while (i < n) {
+                // heap buffers are copied to temporary direct buffers by the
+                // channel, so each call is bounded in count and in bytes
+                int j = i;
+                long total = 0;
+                while (j < n && j - i < MAX_GATHER && total < MAX_GATHER_BYTES)
+                    total += bbs[j++].remaining();
+                while (bbs[j - 1].hasRemaining()) {
+                    gch.write(bbs, i, j - i);
+                    while (i < j && !bbs[i].hasRemaining())
+                        i++;
+                }
+                i = j;
+            }
+        } else {
+            for (int i = 0; i < n; i++)
+                while (bbs[i].hasRemaining())
+                    ch.write(bbs[i]);
+        }
+    }
+
+    /**
+     * This method applies the modification to the XML document and
+     * writes the output to a channel, transferring the unchanged parts
+     * of the document directly from src with FileChannel.transferTo(), so
+     * they don't go through the Java heap (for instance, the file given to
+     * VTDGen.parseFile() or a memory-mapped copy of it).
+     * src must contain the master document's bytes at the same positions
+     * as its byte array, i.e. the byte at offset i of getXML() is at
+     * position i of src.
+     * Notice that output is not guaranteed to be well-formed 
+     * @param src the file containing the master document
+     * @param ch
+     * @throws IOException
+     * @throws ModifyException
+     * @throws TranscodeException
+     */
+    public void output(FileChannel src, WritableByteChannel ch) throws IOException,
+            ModifyException, TranscodeException {
+        if (src == null || ch == null)
+            throw new IllegalArgumentException("FileChannel or WritableByteChannel can't be null");
+        segmentOutputStream sos = segments(md.getXML().getBytes());
+        int n = sos.offsets.size;
+        for (int i = 0; i < n; i++) {
+            Object o = sos.inserts.objectAt(i);
+            if (o == null) {
+                long pos = sos.offsets.intAt(i);
+                long len = sos.lengths.intAt(i);
+                while (len > 0) {
+                    long l = src.transferTo(pos, len, ch);
+                    if (l <= 0)
+                        // nothing was taken (e.g. a non-blocking channel),
+                        // copy the rest of the slice through the heap
+                        l = copy(src, pos, len, ch);
+                    pos += l;
+                    len -= l;
+                }
+            } else {
+                ByteBuffer bb = ByteBuffer.wrap((byte[]) o, 0, sos.lengths.intAt(i));
+                while (bb.hasRemaining())
+                    ch.write(bb);
+            }
+        }
+    }
+
+    /**
+     * Copy len bytes of src from position pos to ch by reading and writing
+     * them, the fallback of output(FileChannel, WritableByteChannel) when
+     * transferTo() makes no progress
+     * @return len
+     */
+    private static long copy(FileChannel src, long pos, long len,
+            WritableByteChannel ch) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(len, 1 << 16));
+        long left = len;
+        while (left > 0) {
+            bb.clear();
+            if (left < bb.capacity())
+                bb.limit((int) left);
+            int r = src.read(bb, pos);
+            if (r < 0)
+                throw new IOException("FileChannel shorter than the master document");
+            bb.flip();
+            while (bb.hasRemaining())
+                ch.write(bb);
+            pos += r;
+            left -= r;
+        }
+        return len;
+    }
+
+    /**
+     * Apply the modification and compose the output document in a new byte
+     * array using nThreads threads. The output is described first (this
+     * pass copies only the inserted content), so that the destination offset
+     * of every unchanged slice of the master document is known; the output
+     * is then split in nThreads ranges of equal size filled concurrently.
+     * Notice that output is not guaranteed to be well-formed 
+     * @param nThreads number of threads, including the calling one
+     * @return the updated document
+     * @throws ModifyException
+     * @throws TranscodeException
+     * @throws IOException
+     */
+    public byte[] outputParallel(int nThreads) throws ModifyException,
+            TranscodeException, IOException {
+        segmentOutputStream sos = segments(md.getXML().getBytes());
+        if (sos.total > Integer.MAX_VALUE)
+            throw new ModifyException("Updated document exceeds 2GB");
+        byte[] out = new byte[(int) sos.total];
+        runWorkers(sos, out, null, 0, nThreads);
+        return out;
+    }
+
+    /**
+     * Apply the modification and write the output into fc at the given
+     * position with positional writes issued by nThreads threads, each one
+     * writing a range of the output at its final offset. 
+     * Notice that output is not guaranteed to be well-formed 
+     * @param fc
+     * @param position file position of the first byte of the output
+     * @param nThreads number of threads, including the calling one
+     * @throws ModifyException
+     * @throws TranscodeException
+     * @throws IOException
+     */
+    public void outputParallel(FileChannel fc, long position, int nThreads)
+            throws ModifyException, TranscodeException, IOException {
+        if (fc == null)
+            throw new IllegalArgumentException("FileChannel can't be null");
+        segmentOutputStream sos = segments(md.getXML().getBytes());
+        runWorkers(sos, null, fc, position, nThreads);
+    }
+
+    private segmentOutputStream segments(byte[] ba) throws IOException,
+            ModifyException, TranscodeException {
+        segmentOutputStream sos = new segmentOutputStream(ba);
+        output(sos);
+        sos.flush();
+        return sos;
+    }
+
+    private void runWorkers(segmentOutputStream sos, byte[] out, FileChannel fc,
+            long position, int nThreads) throws IOException {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads must be positive");
+        int n = sos.offsets.size;
+        // destination offset of every segment
+        long[] dst = new long[n + 1];
+        for (int i = 0; i < n; i++)
+            dst[i + 1] = dst[i] + sos.lengths.intAt(i);
+        long total = dst[n];
+        // small outputs aren't worth a thread
+        if (total < ((long) nThreads) << 16)
+            nThreads = (int) Math.max(1, total >> 16);
+        outputWorker[] ws = new outputWorker[nThreads];
+        for (int t = 0; t < nThreads; t++)
+            ws[t] = new outputWorker(sos, dst, out, fc, position,
+                    total * t / nThreads, total * (t + 1) / nThreads);
+        for (int t = 1; t < nThreads; t++)
+            ws[t].start();
+        ws[0].run();
+        Throwable e = ws[0].e;
+        for (int t = 1; t < nThreads; t++) {
+            try {
+                ws[t].join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing output");
+            }
+            if (e == null)
+                e = ws[t].e;
+        }
+        // rethrow what a worker ran into on the calling thread
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+    }
+
+    /**
+     * outputWorker copies the range [from, to) of the output, described by
+     * the segments of a segmentOutputStream, either into a byte array or
+     * into a FileChannel with positional writes
+     */
+    static class outputWorker extends Thread {
+        final segmentOutputStream sos;
+        final long[] dst;
+        final byte[] out;
+        final FileChannel fc;
+        final long position, from, to;
+        Throwable e; // whatever stopped the worker, rethrown by runWorkers()
+
+        outputWorker(segmentOutputStream sos, long[] dst, byte[] out,
+                FileChannel fc, long position, long from, long to) {
+            this.sos = sos;
+            this.dst = dst;
+            this.out = out;
+            this.fc = fc;
+            this.position = position;
+            this.from = from;
+            this.to = to;
+        }
+
+        public void run() {
+            try {
+                // the segment containing from
+                int lo = 0, hi = dst.length - 1;
+                while (lo < hi) {
+                    int m = (lo + hi + 1) >>> 1;
+                    if (dst[m] <= from)
+                        lo = m;
+                    else
+                        hi = m - 1;
+                }
+                long d = from;
+                for (int i = lo; d < to; i++) {
+                    int skip = (int) (d - dst[i]);
+                    int len = (int) (Math.min(dst[i + 1], to) - d);
+                    Object o = sos.inserts.objectAt(i);
+                    byte[] b = (o == null) ? sos.src : (byte[]) o;
+                    int off = ((o == null) ? sos.offsets.intAt(i) : 0) + skip;
+                    if (out != null)
+                        System.arraycopy(b, off, out, (int) d, len);
+                    else {
+                        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                        long p = position + d;
+                        while (bb.hasRemaining())
+                            p += fc.write(bb, p);
+                    }
+                    d += len;
+                }
+            } catch (Throwable ex) {
+                e = ex;
+            }
+        }
+    }
+
+    private final static int MAX_GATHER = 1024;
+    private final static long MAX_GATHER_BYTES = 1 << 22;
+
+    /**
+     * segmentOutputStream records what output(OutputStream) writes as a
+     * list of segments: slices of the master document's byte array are
+     * recorded as offset/length pairs, everything else is copied and
+     * coalesced into byte arrays.
+     */
+    static class segmentOutputStream extends OutputStream {
+        final byte[] src;
+        FastIntBuffer offsets = new FastIntBuffer(8);
+        FastIntBuffer lengths = new FastIntBuffer(8);
+        FastObjectBuffer inserts = new FastObjectBuffer(8);
+        private byte[] pending = new byte[64];
+        private int pendingSize;
+        long total;
+
+        segmentOutputStream(byte[] ba) {
+            src = ba;
+        }
+
+        public void write(int b) {
+            if (pendingSize == pending.length)
+                grow(1);
+            pending[pendingSize++] = (byte) b;
+            total++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            if (len <= 0)
+                return;
+            total += len;
+            if (b == src) {
+                flush();
+                int n = offsets.size;
+                // merge with the previous slice if contiguous
+                if (n > 0 && inserts.objectAt(n - 1) == null
+                        && offsets.intAt(n - 1) + lengths.intAt(n - 1) == off) {
+                    lengths.modifyEntry(n - 1, lengths.intAt(n - 1) + len);
+                    return;
+                }
+                offsets.append(off);
+                lengths.append(len);
+                inserts.append((Object) null);
+                return;
+            }
+            if (pendingSize + len > pending.length)
+                grow(len);
+            System.arraycopy(b, off, pending, pendingSize, len);
+            pendingSize += len;
+        }
+
+        public void flush() {
+            if (pendingSize == 0)
+                return;
+            offsets.append(0);
+            lengths.append(pendingSize);
+            inserts.append(pending);
+            pending = new byte[64];
+            pendingSize = 0;
+        }
+
+        private void grow(int len) {
+            int l = pending.length << 1;
+            if (l < pendingSize + len)
+                l = pendingSize + len;
+            byte[] b = new byte[l];
+            System.arraycopy(pending, 0, b, 0, pendingSize);
+            pending = b;
+        }
+    }
+
     /**
      * Generate the updated output XML document and write it into 
      * a file of given name
@@ -2206,13 +2849,13 @@ public class XMLModifier {
         int i=lo, j=hi; 
         long h;
         Object o;
-        int x=flb.lower32At((lo+hi)/2);
+        long x=sortKey(flb.longAt((lo+hi)/2));
 
         //  partition
         do
         {    
-            while (flb.lower32At(i)<x) i++; 
-            while (flb.lower32At(j)>x) j--;
+            while (sortKey(flb.longAt(i))<x) i++; 
+            while (sortKey(flb.longAt(j))>x) j--;
             if (i<=j)
             {
                 h=flb.longAt(i); 
@@ -2246,6 +2889,8 @@ public class XMLModifier {
             insertHash.reset();
         if (deleteHash!=null)
             deleteHash.reset();
+        sortedSize = 0;
+        txMark = -1;
     }
     
      /**
@@ -2325,7 +2970,127 @@ public class XMLModifier {
     	VTDGen vg = new VTDGen();
     	vg.setDoc(xbos.getXML());
     	vg.parse(this.md.ns);
-    	return vg.getNav();
+    	return moveResultCache(vg.getNav());
+    }
+    
+    /**
+     * outputAndReindex writes updated XML content into a new byte array,
+     * like outputAndReparse(), but instead of parsing the whole document
+     * it only tokenizes again the child nodes of the innermost elements
+     * enclosing the edits. The VTD records of the rest of the document are
+     * copied with their offsets shifted, and the location caches are
+     * patched (or rebuilt when the edits are shallower than the cached
+     * levels), so the tokenizing cost is proportional to the size of the
+     * edited nodes rather than the size of the document. The returned
+     * VTDNav has the same location cache depth as the master document.
+     * It falls back to a full parse when the edited nodes make up more
+     * than a quarter of the document, when the encoding isn't UTF-8 or
+     * ASCII, or when the edited nodes no longer parse on their own.
+     * Notice that namespace prefixes of the edited nodes aren't checked
+     * against the declarations of their ancestors.
+     * @return VTDNav encapsulating update XML documents
+     * @throws ParseException
+     * @throws IOException
+     * @throws TranscodeException
+     * @throws ModifyException
+     */
+    public VTDNav outputAndReindex() throws ParseException, IOException,TranscodeException,ModifyException{
+    	XMLByteOutputStream xbos = new XMLByteOutputStream(getUpdatedDocumentSize());
+    	output(xbos);
+    	// output() leaves the edits sorted and checked
+    	int n = flb.size;
+    	int[] eo = new int[n], el = new int[n], ed = new int[n];
+    	for (int i=0;i<n;i++){
+    		long l = flb.longAt(i);
+    		eo[i] = flb.lower32At(i);
+    		if ((l & (~0x1fffffffffffffffL)) == MASK_DELETE
+    				|| (l & (~0x1fffffffffffffffL)) == MASK_NULL)
+    			el[i] = flb.upper32At(i) & 0x1fffffff;
+    		ed[i] = sizeDelta(i);
+    	}
+    	VTDNav vn = IndexPatcher.patch(md, eo, el, ed, n, xbos.getXML());
+    	if (vn == null){
+    		VTDGen vg = new VTDGen();
+    		if (md instanceof VTDNav_L5)
+    			vg.selectLcDepth(5);
+    		vg.setDoc(xbos.getXML());
+    		vg.parse(this.md.ns);
+    		vn = vg.getNav();
+    	}
+    	return moveResultCache(vn);
+    }
+    
+    /**
+     * Write the updated document and its VTD+LC index into os as a VTD+XML
+     * index (the format of VTDNav.writeIndex()), the index being obtained
+     * with outputAndReindex() instead of a full parse
+     * @param os
+     * @return VTDNav encapsulating update XML documents
+     * @throws ParseException
+     * @throws IOException
+     * @throws TranscodeException
+     * @throws ModifyException
+     * @throws IndexWriteException
+     */
+    public VTDNav outputAndWriteIndex(OutputStream os) throws ParseException,
+            IOException, TranscodeException, ModifyException, IndexWriteException{
+    	VTDNav vn = outputAndReindex();
+    	vn.writeIndex(os);
+    	return vn;
+    }
+
+    /**
+     * Write the updated document into xmlOs and its VTD+LC index into 
+     * indexOs (the format of VTDNav.writeSeparateIndex()), the index being
+     * obtained with outputAndReindex() instead of a full parse
+     * @param xmlOs
+     * @param indexOs
+     * @return VTDNav encapsulating update XML documents
+     * @throws ParseException
+     * @throws IOException
+     * @throws TranscodeException
+     * @throws ModifyException
+     * @throws IndexWriteException
+     */
+    public VTDNav outputAndWriteSeparateIndex(OutputStream xmlOs, OutputStream indexOs)
+            throws ParseException, IOException, TranscodeException,
+            ModifyException, IndexWriteException{
+    	VTDNav vn = outputAndReindex();
+    	xmlOs.write(vn.XMLDoc.getBytes(), vn.docOffset, vn.docLen);
+    	vn.writeSeparateIndex(indexOs);
+    	return vn;
+    }
+
+    /**
+     * Write the updated document and its VTD+LC index into os in the
+     * sectioned index format (see VTDNav.writeSectionedIndex()), the index
+     * being obtained with outputAndReindex() instead of a full parse
+     * @param os
+     * @param compressed whether to deflate the XML and VTD sections
+     * @return VTDNav encapsulating update XML documents
+     * @throws ParseException
+     * @throws IOException
+     * @throws TranscodeException
+     * @throws ModifyException
+     * @throws IndexWriteException
+     */
+    public VTDNav outputAndWriteSectionedIndex(OutputStream os, boolean compressed)
+            throws ParseException, IOException, TranscodeException,
+            ModifyException, IndexWriteException{
+    	VTDNav vn = outputAndReindex();
+    	vn.writeSectionedIndex(os, compressed);
+    	return vn;
+    }
+    
+    private VTDNav moveResultCache(VTDNav vn){
+    	if (md.resultCache != null){
+    		// cached results refer to the old document
+    		md.resultCache.invalidate();
+    		vn.resultCache = md.resultCache;
+    		// the old document must not fill the cache of the new one
+    		md.resultCache = null;
+    	}
+    	return vn;
     }
     
     
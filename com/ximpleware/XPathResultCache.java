@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * XPathResultCache is a document-scoped cache of the node sets of absolute
+ * XPath expressions (e.g. //Currency[@code='EUR']). It is attached to a VTDNav
+ * with VTDNav.setResultCache() and is shared by every AutoPilot evaluating on
+ * that VTDNav (and its duplicates/clones), so that the same absolute
+ * expression is evaluated only once per document, instead of once per
+ * AutoPilot evaluation.
+ * Entries are keyed by the string form of the compiled expression together
+ * with the namespace bindings and variable values it was compiled with, and
+ * evicted in least-recently-used order once the total estimated
+ * memory size exceeds the limit.
+ * The cache is invalidated when the document content changes through
+ * VTDNav.overWrite(), and XMLModifier.outputAndReparse() invalidates it
+ * and moves it to the newly parsed VTDNav, detaching it from the old one.
+ * This class is thread-safe.
+ */
+public class XPathResultCache {
+    private LinkedHashMap<String,int[]> map;
+    private long maxSize;
+    private long size;
+    private int hits, misses;
+
+    /**
+     * Constructor
+     * @param maxSize the maximum estimated memory size in bytes
+     */
+    public XPathResultCache(long maxSize){
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be positive");
+        this.maxSize = maxSize;
+        map = new LinkedHashMap<String,int[]>(16, 0.75f, true);
+        size = 0;
+    }
+
+    /**
+     * Return the cached node set (VTD indices in evaluation order)
+     * of the expression, or null if it isn't cached
+     * @param expr the cache key of the compiled expression
+     * @return int[]
+     */
+    public synchronized int[] get(String expr){
+        int[] ia = map.get(expr);
+        if (ia == null)
+            misses++;
+        else
+            hits++;
+        return ia;
+    }
+
+    /**
+     * Store the node set of an expression, evicting least recently
+     * used entries if the memory limit is exceeded
+     * @param expr the cache key of the compiled expression
+     * @param nodes the VTD indices in evaluation order
+     */
+    public synchronized void put(String expr, int[] nodes){
+        long l = entrySize(expr, nodes);
+        if (l > maxSize)
+            return;
+        int[] old = map.put(expr, nodes);
+        if (old != null)
+            size -= entrySize(expr, old);
+        size += l;
+        Iterator<Map.Entry<String,int[]>> it = map.entrySet().iterator();
+        while (size > maxSize && it.hasNext()){
+            Map.Entry<String,int[]> me = it.next();
+            size -= entrySize(me.getKey(), me.getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Remove all the entries, called when the underlying document changes
+     */
+    public synchronized void invalidate(){
+        map.clear();
+        size = 0;
+    }
+
+    /**
+     * Return the estimated memory size of the cached entries in bytes
+     * @return long
+     */
+    public synchronized long getSize(){
+        return size;
+    }
+
+    /**
+     * Return the memory limit in bytes
+     * @return long
+     */
+    public long getMaxSize(){
+        return maxSize;
+    }
+
+    /**
+     * Return the number of cached expressions
+     * @return int
+     */
+    public synchronized int getEntryCount(){
+        return map.size();
+    }
+
+    /**
+     * Return the number of lookups that found an entry
+     * @return int
+     */
+    public synchronized int getHitCount(){
+        return hits;
+    }
+
+    /**
+     * Return the number of lookups that didn't find an entry
+     * @return int
+     */
+    public synchronized int getMissCount(){
+        return misses;
+    }
+
+    private static long entrySize(String expr, int[] nodes){
+        // map entry + key string + int array
+        return 64 + 2L * expr.length() + 16 + 4L * nodes.length;
+    }
+}
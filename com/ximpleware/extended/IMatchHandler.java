@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+/**
+ * Callback interface of StreamPilotHuge, invoked once per match
+ * while VTDGenHuge is still parsing the document.
+ */
+public interface IMatchHandler {
+
+	/**
+	 * Called for every node matching the streaming XPath expression,
+	 * in document order.
+	 * vn navigates the matched element's subtree only: its root element is
+	 * the matched element (or the owner element of the matched attribute,
+	 * in which case only the starting tag is available).
+	 * vn and its buffers are reused for the next match, so they must not be
+	 * retained after this method returns.
+	 * @param vn the navigator positioned at the root of the subtree
+	 * @param index the VTD index of the matched element or attribute name in vn
+	 * @throws VTDExceptionHuge aborts parsing, rethrown as ParseExceptionHuge
+	 */
+	public void match(VTDNavHuge vn, int index) throws VTDExceptionHuge;
+}
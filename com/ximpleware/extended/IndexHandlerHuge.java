@@ -0,0 +1,421 @@
+/* 
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * IndexHandlerHuge writes and maps the separate index (VTD and LCs, but
+ * not XML) of VTDGenHuge. It uses the sectioned layout (version 3) of the
+ * standard index: a 32-byte header, a table of 40-byte section entries,
+ * then the VTD, L1, L2 and L3 sections, each stored in big endian, aligned
+ * to 8 bytes and checksummed with CRC-32C. The records keep VTDGenHuge's
+ * own layout (38-bit offsets), the F_HUGE flag in the header keeps
+ * VTDGen and VTDGenHuge from loading each other's index.
+ * Instead of the XML, the header carries its length and a checksum of its
+ * first and last 64KB, so that an index isn't used with a different
+ * document.
+ * The side tables of extended records, if any, follow as two more
+ * sections; F_OVERFLOW marks them so that a reader that doesn't know
+ * them rejects the index rather than truncating lengths and depths.
+ * A depth of 255 or more is kept in bytes 24-27 of the header.
+ */
+class IndexHandlerHuge {
+    static final byte SECTIONED_VERSION = 3;
+    static final int HEADER_SIZE = 32, ENTRY_SIZE = 40;
+    // flags of the third byte of the header
+    static final int F_NS = 0x40, F_BIG_ENDIAN = 0x20, F_HUGE = 0x10,
+            F_OVERFLOW = 0x08;
+    // section types; 6 and 7 are L4 and L5 in the standard index,
+    // so the tables of extended records take 8 and 9
+    static final int S_VTD = 2, S_L1 = 3, S_L2 = 4, S_L3 = 5,
+            S_LEN_OVERFLOW = 8, S_DEPTH_OVERFLOW = 9;
+    static final int C_STORED = 0;
+    static final int SAMPLE_SIZE = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Write the VTD and LCs into an output stream. The sections
+     * are encoded twice: once for the checksums in the section table,
+     * once for the output
+     * @param encoding
+     * @param ns
+     * @param depth
+     * @param rootIndex
+     * @param xb the XML document, only sampled for its checksum
+     * @param vtdBuffer
+     * @param l1Buffer
+     * @param l2Buffer
+     * @param l3Buffer
+     * @param lenOverflow the side table of token lengths, may be null
+     * @param depthOverflow the side table of depths, may be null
+     * @param os
+     * @throws IndexWriteExceptionHuge
+     * @throws IOException
+     */
+    static void writeSeparateIndex(int encoding,
+            boolean ns,
+            int depth,
+            int rootIndex,
+            IByteBuffer xb,
+            ILongBuffer vtdBuffer,
+            ILongBuffer l1Buffer,
+            ILongBuffer l2Buffer,
+            IIntBuffer l3Buffer,
+            ILongBuffer lenOverflow,
+            ILongBuffer depthOverflow,
+            OutputStream os) throws IndexWriteExceptionHuge, IOException {
+        Object[] sources = sources(xb, vtdBuffer, l1Buffer, l2Buffer, l3Buffer,
+                lenOverflow, depthOverflow);
+        byte[] table = header(encoding, ns, depth, rootIndex, xb, sources);
+        for (int i = 0; i < sources.length; i++) {
+            crc32c crc = new crc32c();
+            encodeSection(sources[i], crc, null);
+            ByteBuffer.wrap(table).putInt(HEADER_SIZE + i * ENTRY_SIZE + 8,
+                    (int) crc.getValue());
+        }
+        finish(table);
+        os.write(table);
+        for (int i = 0; i < sources.length; i++)
+            encodeSection(sources[i], null, os);
+        os.flush();
+    }
+
+    /**
+     * Write the VTD and LCs into a file in one pass over the sections, the
+     * section table is written again once their checksums are known
+     * @param encoding
+     * @param ns
+     * @param depth
+     * @param rootIndex
+     * @param xb the XML document, only sampled for its checksum
+     * @param vtdBuffer
+     * @param l1Buffer
+     * @param l2Buffer
+     * @param l3Buffer
+     * @param lenOverflow the side table of token lengths, may be null
+     * @param depthOverflow the side table of depths, may be null
+     * @param fileName
+     * @throws IndexWriteExceptionHuge
+     * @throws IOException
+     */
+    static void writeSeparateIndex(int encoding,
+            boolean ns,
+            int depth,
+            int rootIndex,
+            IByteBuffer xb,
+            ILongBuffer vtdBuffer,
+            ILongBuffer l1Buffer,
+            ILongBuffer l2Buffer,
+            IIntBuffer l3Buffer,
+            ILongBuffer lenOverflow,
+            ILongBuffer depthOverflow,
+            String fileName) throws IndexWriteExceptionHuge, IOException {
+        Object[] sources = sources(xb, vtdBuffer, l1Buffer, l2Buffer, l3Buffer,
+                lenOverflow, depthOverflow);
+        byte[] table = header(encoding, ns, depth, rootIndex, xb, sources);
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            OutputStream os = new BufferedOutputStream(fos, CHUNK_SIZE);
+            os.write(table);
+            for (int i = 0; i < sources.length; i++) {
+                crc32c crc = new crc32c();
+                encodeSection(sources[i], crc, os);
+                ByteBuffer.wrap(table).putInt(HEADER_SIZE + i * ENTRY_SIZE + 8,
+                        (int) crc.getValue());
+            }
+            os.flush();
+            finish(table);
+            ByteBuffer bb = ByteBuffer.wrap(table);
+            FileChannel fc = fos.getChannel();
+            long pos = 0;
+            while (bb.hasRemaining())
+                pos += fc.write(bb, pos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Map a separate index written by writeSeparateIndex() and
+     * return the VTDNavHuge over it and the XML document. The sections are
+     * used in place, and are only read to verify their checksums
+     * when verify is true
+     * @param xb the XML document the index was written for
+     * @param indexName
+     * @param verify
+     * @return VTDNavHuge
+     * @throws IndexReadExceptionHuge
+     * @throws IOException
+     */
+    static VTDNavHuge mapSeparateIndex(IByteBuffer xb, String indexName, boolean verify)
+            throws IndexReadExceptionHuge, IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexName, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(fc, bb, 0);
+            if (bb.get(0) != SECTIONED_VERSION)
+                throw new IndexReadExceptionHuge("Invalid version number in the index file");
+            int n = bb.getShort(6) & 0xffff;
+            byte[] table = new byte[HEADER_SIZE + n * ENTRY_SIZE];
+            readFully(fc, ByteBuffer.wrap(table), 0);
+            bb = ByteBuffer.wrap(table);
+            int c = bb.getInt(28);
+            bb.putInt(28, 0);
+            crc32c crc = new crc32c();
+            crc.update(table, 0, table.length);
+            if ((int) crc.getValue() != c)
+                throw new IndexReadExceptionHuge("Checksum mismatch in the index header");
+            int encoding = bb.get(1);
+            int f = bb.get(2);
+            if ((f & F_HUGE) == 0)
+                throw new IndexReadExceptionHuge("The index wasn't written by VTDGenHuge");
+            if ((f & F_BIG_ENDIAN) == 0 || (f & 0x87) != 0)
+                throw new IndexReadExceptionHuge("Invalid flags in the index header");
+            boolean ns = (f & F_NS) != 0;
+            int last = ((f & F_OVERFLOW) != 0) ? S_DEPTH_OVERFLOW : S_L3;
+            int depth = bb.get(3) & 0xff;
+            if (depth == 0xff)
+                depth = bb.getInt(24);
+            if (bb.get(4) != 3)
+                throw new IndexReadExceptionHuge("LC levels must be 3");
+            int rootIndex = bb.getInt(8);
+            if (bb.getLong(16) != xb.length() || bb.getInt(12) != sample(xb))
+                throw new IndexReadExceptionHuge("The index doesn't match the XML document");
+
+            Object[] sections = new Object[S_DEPTH_OVERFLOW + 1];
+            for (int i = 0; i < n; i++) {
+                int p = HEADER_SIZE + i * ENTRY_SIZE;
+                int type = bb.getShort(p) & 0xffff;
+                if (type > last || (type > S_L3 && type < S_LEN_OVERFLOW))
+                    continue; // reserved for future sections
+                int es = (type == S_L3) ? 4 : 8;
+                long count = bb.getLong(p + 16);
+                long offset = bb.getLong(p + 24);
+                long length = bb.getLong(p + 32);
+                if (type < S_VTD || sections[type] != null
+                        || bb.get(p + 2) != C_STORED || bb.get(p + 3) != 0
+                        || bb.get(p + 4) != es
+                        || count < 0 || count > Integer.MAX_VALUE
+                        || length != count * es || offset < table.length
+                        || offset + length > fc.size())
+                    throw new IndexReadExceptionHuge("Invalid section entry in the index file");
+                if (verify && checksum(fc, offset, length) != bb.getInt(p + 8))
+                    throw new IndexReadExceptionHuge("Checksum mismatch in section " + type);
+                if (es == 8)
+                    sections[type] = new MappedLongBuffer(fc, offset, (int) count, ByteOrder.BIG_ENDIAN);
+                else
+                    sections[type] = new MappedIntBuffer(fc, offset, (int) count, ByteOrder.BIG_ENDIAN);
+            }
+            for (int type = S_VTD; type <= last; type++)
+                if (sections[type] == null && (type <= S_L3 || type >= S_LEN_OVERFLOW))
+                    throw new IndexReadExceptionHuge("Missing section " + type + " in the index file");
+            ILongBuffer vtd = (ILongBuffer) sections[S_VTD];
+            if (rootIndex < 0 || rootIndex >= vtd.size())
+                throw new IndexReadExceptionHuge("Invalid root index in the index file");
+            VTDNavHuge vn = new VTDNavHuge(rootIndex, encoding, ns, depth, xb, vtd,
+                    (ILongBuffer) sections[S_L1], (ILongBuffer) sections[S_L2],
+                    (IIntBuffer) sections[S_L3], 0, xb.length());
+            if (last == S_DEPTH_OVERFLOW) {
+                ILongBuffer lb = (ILongBuffer) sections[S_LEN_OVERFLOW];
+                vn.lenOverflow = (lb.size() > 0) ? lb : null;
+                lb = (ILongBuffer) sections[S_DEPTH_OVERFLOW];
+                vn.depthOverflow = (lb.size() > 0) ? lb : null;
+            }
+            return vn;
+        } finally {
+            // the mappings stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    private static Object[] sources(IByteBuffer xb,
+            ILongBuffer vtdBuffer,
+            ILongBuffer l1Buffer,
+            ILongBuffer l2Buffer,
+            IIntBuffer l3Buffer,
+            ILongBuffer lenOverflow,
+            ILongBuffer depthOverflow) throws IndexWriteExceptionHuge {
+        if (xb == null || xb.length() <= 0
+                || vtdBuffer == null
+                || l1Buffer == null
+                || l2Buffer == null
+                || l3Buffer == null)
+            throw new IndexWriteExceptionHuge("Invalid VTD index ");
+        if (vtdBuffer.size() == 0)
+            throw new IndexWriteExceptionHuge("VTDBuffer can't be zero length");
+        if (lenOverflow == null && depthOverflow == null)
+            return new Object[] { vtdBuffer, l1Buffer, l2Buffer, l3Buffer };
+        // both sections are written once there is either of them
+        return new Object[] { vtdBuffer, l1Buffer, l2Buffer, l3Buffer,
+                (lenOverflow != null) ? lenOverflow : new FastLongBuffer(1),
+                (depthOverflow != null) ? depthOverflow : new FastLongBuffer(1) };
+    }
+
+    /**
+     * fill in the header and the section table, except for the checksums
+     */
+    private static byte[] header(int encoding, boolean ns, int depth,
+            int rootIndex, IByteBuffer xb, Object[] sources) {
+        int n = sources.length;
+        byte[] table = new byte[HEADER_SIZE + n * ENTRY_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(table);
+        bb.put(0, SECTIONED_VERSION);
+        bb.put(1, (byte) encoding);
+        int f = ns ? F_NS | F_BIG_ENDIAN | F_HUGE : F_BIG_ENDIAN | F_HUGE;
+        if (n > S_L3 - S_VTD + 1)
+            f |= F_OVERFLOW;
+        bb.put(2, (byte) f);
+        if (depth < 0xff)
+            bb.put(3, (byte) depth);
+        else {
+            bb.put(3, (byte) 0xff);
+            bb.putInt(24, depth);
+        }
+        bb.put(4, (byte) 3);
+        bb.putShort(6, (short) n);
+        bb.putInt(8, rootIndex);
+        bb.putInt(12, sample(xb));
+        bb.putLong(16, xb.length());
+        long pos = table.length;
+        for (int i = 0; i < n; i++) {
+            int p = HEADER_SIZE + i * ENTRY_SIZE;
+            int elementSize;
+            long count;
+            if (sources[i] instanceof ILongBuffer) {
+                elementSize = 8;
+                count = ((ILongBuffer) sources[i]).size();
+            } else {
+                elementSize = 4;
+                count = ((IIntBuffer) sources[i]).size();
+            }
+            bb.putShort(p, (short) (i <= S_L3 - S_VTD ? S_VTD + i
+                    : S_LEN_OVERFLOW + i - (S_L3 - S_VTD + 1)));
+            bb.put(p + 2, (byte) C_STORED);
+            bb.put(p + 4, (byte) elementSize);
+            bb.putLong(p + 16, count);
+            bb.putLong(p + 24, pos);
+            bb.putLong(p + 32, count * elementSize);
+            pos += ((count * elementSize + 7) >> 3) << 3;
+        }
+        return table;
+    }
+
+    /**
+     * compute the header checksum, with the checksum field zeroed
+     */
+    private static void finish(byte[] table) {
+        crc32c crc = new crc32c();
+        crc.update(table, 0, table.length);
+        ByteBuffer.wrap(table).putInt(28, (int) crc.getValue());
+    }
+
+    /**
+     * encode a section in big endian followed by its zero padding,
+     * into the checksum and/or the output stream
+     */
+    private static void encodeSection(Object src, crc32c crc, OutputStream os)
+            throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(chunk);
+        int k = 0;
+        if (src instanceof ILongBuffer) {
+            ILongBuffer lb = (ILongBuffer) src;
+            int size = lb.size();
+            for (int i = 0; i < size; i++) {
+                bb.putLong(k, lb.longAt(i));
+                k += 8;
+                if (k == CHUNK_SIZE) {
+                    flush(chunk, k, crc, os);
+                    k = 0;
+                }
+            }
+        } else {
+            IIntBuffer ib = (IIntBuffer) src;
+            int size = ib.size();
+            for (int i = 0; i < size; i++) {
+                bb.putInt(k, ib.intAt(i));
+                k += 4;
+                if (k == CHUNK_SIZE) {
+                    flush(chunk, k, crc, os);
+                    k = 0;
+                }
+            }
+            if ((size & 1) != 0)
+                bb.putInt(k, 0); // padding, not part of the checksum
+        }
+        flush(chunk, k, crc, null);
+        if (os != null)
+            os.write(chunk, 0, ((k + 7) >> 3) << 3);
+    }
+
+    private static void flush(byte[] chunk, int k, crc32c crc, OutputStream os)
+            throws IOException {
+        if (crc != null)
+            crc.update(chunk, 0, k);
+        if (os != null)
+            os.write(chunk, 0, k);
+    }
+
+    /**
+     * checksum of the first and last 64KB of the XML document
+     */
+    private static int sample(IByteBuffer xb) {
+        long len = xb.length();
+        crc32c crc = new crc32c();
+        long l = Math.min(len, SAMPLE_SIZE);
+        for (long i = 0; i < l; i++)
+            crc.update(xb.byteAt(i));
+        for (long i = Math.max(l, len - SAMPLE_SIZE); i < len; i++)
+            crc.update(xb.byteAt(i));
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(FileChannel fc, long pos, long length)
+            throws IndexReadExceptionHuge, IOException {
+        crc32c crc = new crc32c();
+        ByteBuffer bb = ByteBuffer.allocate(CHUNK_SIZE);
+        while (length > 0) {
+            bb.clear();
+            bb.limit((int) Math.min(length, CHUNK_SIZE));
+            readFully(fc, bb, pos);
+            crc.update(bb.array(), 0, bb.limit());
+            pos += bb.limit();
+            length -= bb.limit();
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer bb, long pos)
+            throws IndexReadExceptionHuge, IOException {
+        while (bb.hasRemaining()) {
+            int i = fc.read(bb, pos);
+            if (i < 0)
+                throw new IndexReadExceptionHuge("Premature end of the index file");
+            pos += i;
+        }
+    }
+}
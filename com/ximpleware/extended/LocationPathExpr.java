@@ -470,6 +470,7 @@ public class LocationPathExpr extends Expr{
 					    TextIterHuge ti = (TextIterHuge) currentStep.o;
 					    int i = -1;
 					    while ((i=ti.getNext())!=-1) {
+					        vn.LN = i;
 					        if (currentStep.evalPredicates(vn)) {
 					            return i;
 					        }
@@ -0,0 +1,102 @@
+/* 
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-mostly int buffer that is a view over a section of a memory-mapped
+ * file, it is the IIntBuffer counterpart of MappedLongBuffer.
+ */
+public class MappedIntBuffer implements IIntBuffer {
+    private final static int EXP = 20;
+    private final static int MASK = (1 << EXP) - 1;
+    private IntBuffer[] pages;
+    private int size;
+
+    /**
+     * Map size ints starting at the given position of the channel
+     * @param fc the channel, which can be closed once the constructor returns
+     * @param position the byte offset of the first int
+     * @param size the number of ints
+     * @param order the byte order of the ints
+     * @throws IOException
+     */
+    public MappedIntBuffer(FileChannel fc, long position, int size, ByteOrder order)
+        throws IOException {
+        if (size < 0 || position < 0)
+            throw new IllegalArgumentException("Invalid argument(s) for MappedIntBuffer");
+        this.size = size;
+        pages = new IntBuffer[(size + MASK) >>> EXP];
+        // mappings are limited to 2GB, map 256 pages (1GB) at a time
+        for (int i = 0; i < pages.length; i += 256) {
+            long l = Math.min((long) size - ((long) i << EXP), 1L << (EXP + 8));
+            MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY,
+                    position + ((long) i << (EXP + 2)), l << 2);
+            for (int j = i; j < pages.length && j < i + 256; j++) {
+                int s = (j - i) << (EXP + 2);
+                ByteBuffer bb = mb.duplicate();
+                bb.position(s);
+                bb.limit((int) Math.min(l << 2, (long) s + (1 << (EXP + 2))));
+                pages[j] = bb.slice().order(order).asIntBuffer();
+            }
+        }
+    }
+
+    /**
+     * Get the int at the given index
+     * @param index
+     * @return int
+     */
+    public final int intAt(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+        return pages[index >>> EXP].get(index & MASK);
+    }
+
+    /**
+     * Modify the entry at the given index, the page containing it
+     * is copied to the heap first
+     * @param index
+     * @param newValue
+     */
+    public final void modifyEntry(int index, int newValue) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+        IntBuffer ib = pages[index >>> EXP];
+        if (ib.isReadOnly() || ib.isDirect()) {
+            IntBuffer t = IntBuffer.allocate(ib.capacity());
+            t.put(ib.duplicate());
+            pages[index >>> EXP] = ib = t;
+        }
+        ib.put(index & MASK, newValue);
+    }
+
+    /**
+     * Get the number of ints
+     * @return int
+     */
+    public final int size() {
+        return size;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+import java.io.File;
+import java.nio.IntBuffer;
+
+/**
+ * OffHeapIntBuffer is the FastIntBuffer counterpart of OffHeapIntBuffer,
+ * used for the level 3 location cache of VTDGenHuge.
+ */
+public class OffHeapIntBuffer extends FastIntBuffer {
+    private offHeapPages pages;
+    private IntBuffer[] bufs;
+    private int pageCount;
+    private int pageSize;
+    private int exp;
+    private int r;
+    private int size;
+
+    /**
+     * Construct an OffHeapIntBuffer in direct memory
+     * @param e int (so that pageSize = (1<<e))
+     */
+    public OffHeapIntBuffer(int e) {
+        this(e, false, null);
+    }
+
+    /**
+     * Construct an OffHeapIntBuffer backed by a temporary file
+     * @param e int (so that pageSize = (1<<e))
+     * @param dir the directory of the temporary file, null for the default one
+     */
+    public OffHeapIntBuffer(int e, File dir) {
+        this(e, true, dir);
+    }
+
+    private OffHeapIntBuffer(int e, boolean fileBacked, File dir) {
+        super(e);
+        if (e > 27)
+            throw new IllegalArgumentException("page size can't exceed 1<<27");
+        pages = new offHeapPages(fileBacked, dir);
+        pageSize = 1 << e;
+        exp = e;
+        r = pageSize - 1;
+        bufs = new IntBuffer[8];
+    }
+
+    private void addPage() {
+        if (pageCount == bufs.length) {
+            IntBuffer[] t = new IntBuffer[pageCount << 1];
+            System.arraycopy(bufs, 0, t, 0, pageCount);
+            bufs = t;
+        }
+        bufs[pageCount] = pages.allocate(((long) pageCount) << (exp + 2),
+                pageSize << 2).asIntBuffer();
+        pageCount++;
+    }
+
+    public void append(int i) {
+        if (size == (pageCount << exp))
+            addPage();
+        bufs[size >> exp].put(size & r, i);
+        size++;
+    }
+
+    public void append(int[] int_array) {
+        if (int_array == null)
+            throw new NullPointerException();
+        for (int i = 0; i < int_array.length; i++)
+            append(int_array[i]);
+    }
+
+    public int getCapacity() {
+        return pageCount << exp;
+    }
+
+    public int[] getIntArray(int startingOffset, int len) {
+        if (size <= 0 || startingOffset < 0)
+            throw new IllegalArgumentException();
+        if (startingOffset + len > size)
+            throw new IndexOutOfBoundsException();
+        int[] result = new int[len];
+        for (int i = 0; i < len; i++)
+            result[i] = intAt(startingOffset + i);
+        return result;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int intAt(int index) {
+        if (index < 0 || index > size - 1)
+            throw new IndexOutOfBoundsException();
+        return bufs[index >> exp].get(index & r);
+    }
+
+    public void modifyEntry(int index, int newValue) {
+        if (index < 0 || index > size - 1)
+            throw new IndexOutOfBoundsException();
+        bufs[index >> exp].put(index & r, newValue);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean resize(int newSz) {
+        if (newSz <= (pageCount << exp) && newSz >= 0) {
+            size = newSz;
+            return true;
+        }
+        return false;
+    }
+
+    public int[] toIntArray() {
+        if (size > 0)
+            return getIntArray(0, size);
+        return null;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Release the temporary file handle of a file-backed buffer, the
+     * pages stay readable and writable; called by VTDGenHuge once
+     * parsing is over
+     */
+    public void close() {
+        pages.close();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+import java.io.File;
+import java.nio.LongBuffer;
+
+/**
+ * OffHeapLongBuffer is a FastLongBuffer whose pages live outside of the
+ * Java heap, either in direct memory or in a memory mapped temporary file,
+ * so that the VTD records of huge documents are bounded by direct memory
+ * or disk space rather than -Xmx.
+ */
+public class OffHeapLongBuffer extends FastLongBuffer {
+    private offHeapPages pages;
+    private LongBuffer[] bufs;
+    private int pageCount;
+    private int pageSize;
+    private int exp;
+    private int r;
+    private int size;
+
+    /**
+     * Construct an OffHeapLongBuffer in direct memory
+     * @param e int (so that pageSize = (1<<e))
+     */
+    public OffHeapLongBuffer(int e) {
+        this(e, false, null);
+    }
+
+    /**
+     * Construct an OffHeapLongBuffer backed by a temporary file
+     * @param e int (so that pageSize = (1<<e))
+     * @param dir the directory of the temporary file, null for the default one
+     */
+    public OffHeapLongBuffer(int e, File dir) {
+        this(e, true, dir);
+    }
+
+    private OffHeapLongBuffer(int e, boolean fileBacked, File dir) {
+        super(e);
+        if (e > 27)
+            throw new IllegalArgumentException("page size can't exceed 1<<27");
+        pages = new offHeapPages(fileBacked, dir);
+        pageSize = 1 << e;
+        exp = e;
+        r = pageSize - 1;
+        bufs = new LongBuffer[8];
+    }
+
+    private void addPage() {
+        if (pageCount == bufs.length) {
+            LongBuffer[] t = new LongBuffer[pageCount << 1];
+            System.arraycopy(bufs, 0, t, 0, pageCount);
+            bufs = t;
+        }
+        bufs[pageCount] = pages.allocate(((long) pageCount) << (exp + 3),
+                pageSize << 3).asLongBuffer();
+        pageCount++;
+    }
+
+    public void append(long i) {
+        if (size == (pageCount << exp))
+            addPage();
+        bufs[size >> exp].put(size & r, i);
+        size++;
+    }
+
+    public void append(long[] long_array) {
+        if (long_array == null)
+            throw new NullPointerException();
+        for (int i = 0; i < long_array.length; i++)
+            append(long_array[i]);
+    }
+
+    public int getCapacity() {
+        return pageCount << exp;
+    }
+
+    public long[] getLongArray(int startingOffset, int len) {
+        if (size <= 0 || startingOffset < 0)
+            throw new IllegalArgumentException();
+        if (startingOffset + len > size)
+            throw new IndexOutOfBoundsException();
+        long[] result = new long[len];
+        for (int i = 0; i < len; i++)
+            result[i] = longAt(startingOffset + i);
+        return result;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public long longAt(int index) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException();
+        return bufs[index >> exp].get(index & r);
+    }
+
+    public int lower32At(int index) {
+        return (int) longAt(index);
+    }
+
+    public int upper32At(int index) {
+        return (int) (longAt(index) >> 32);
+    }
+
+    public void modifyEntry(int index, long newValue) {
+        if (index < 0 || index >= (pageCount << exp))
+            throw new IndexOutOfBoundsException();
+        bufs[index >> exp].put(index & r, newValue);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long[] toLongArray() {
+        if (size > 0)
+            return getLongArray(0, size);
+        return null;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Release the temporary file handle of a file-backed buffer, the
+     * pages stay readable and writable; called by VTDGenHuge once
+     * parsing is over
+     */
+    public void close() {
+        pages.close();
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+import java.io.StringReader;
+import com.ximpleware.extended.xpath.*;
+
+/**
+ * StreamPilotHuge evaluates a forward-only XPath expression against the
+ * tokens VTDGenHuge produces, while the document is being parsed.
+ * Matches are handed to an IMatchHandler as soon as the matched element is
+ * complete, and the VTD records of subtrees that can no longer match are
+ * discarded, so the memory used by VTD records is bounded by the largest
+ * matched subtree instead of the size of the document. No location cache
+ * is built and VTDGenHuge.getNav() is meaningless after a streaming parse.
+ *
+ * The supported subset is absolute location paths made of child (/) and
+ * descendant (//) element steps with name tests (or *), an optional final
+ * attribute step, and predicates of the form [@attr], [@attr='literal'] and
+ * [@attr!='literal'], e.g. /root/record[@type='x']/value or //record/@id.
+ * Usage:
+ * <pre>
+ * StreamPilotHuge sp = new StreamPilotHuge();
+ * sp.selectXPath("/root/record[@type='x']/value");
+ * sp.setMatchHandler(h);
+ * VTDGenHuge vg = new VTDGenHuge();
+ * vg.setStreamPilot(sp);
+ * vg.parseFile("big.xml", false, VTDGenHuge.MEM_MAPPED);
+ * </pre>
+ */
+public class StreamPilotHuge {
+	private final static long MASK_TOKEN_DEPTH = 0x0f80000000000000L;
+	private final static long MASK_TOKEN_OFFSET = 0x0000003fffffffffL;
+
+	private String xpath;
+	private int stepCount; // element steps
+	private String[] names;
+	private long childMask, descMask; // bit k set if step k is a child/descendant step
+	private String[][] predNames;
+	private String[][] predValues; // null for [@attr]
+	private boolean[][] predNE;
+	private String attrName; // final attribute step, or null
+
+	private IMatchHandler handler;
+	private VTDGenHuge vg;
+	private FastLongBuffer vtd;
+	private VTDNavHuge scratch; // evaluates predicates on the records being parsed
+	private FastLongBuffer fvtd, fl1, fl2; // records and LC of the emitted subtree
+	private FastIntBuffer fl3;
+	private int lastDepth, lastL1, lastL2;
+
+	// per depth (offset by one, 0 is the document) state of open elements
+	private int[] starts;
+	private long[] matched; // bit k set if the element matched step k-1
+	private long[] active; // descendant steps active for the descendants
+	private int top;
+	private boolean pending; // the attributes of the top element are incomplete
+	private int openMatches;
+
+	// completed matches nested in an open match, sorted by starting index
+	private int[] qs, qe;
+	private long[] qo;
+	private int qSize;
+
+	private long matchCount;
+	private int maxRecordCount;
+
+	/**
+	 * StreamPilotHuge constructor
+	 */
+	public StreamPilotHuge(){
+		starts = new int[VTDGenHuge.MAX_DEPTH + 3];
+		matched = new long[VTDGenHuge.MAX_DEPTH + 3];
+		active = new long[VTDGenHuge.MAX_DEPTH + 3];
+		qs = new int[8];
+		qe = new int[8];
+		qo = new long[8];
+		xpath = null;
+		handler = null;
+	}
+
+	/**
+	 * Select the XPath expression to evaluate during the next streaming parse
+	 * @param s
+	 * @throws XPathParseExceptionHuge if s is invalid or outside of the streamable subset
+	 */
+	public void selectXPath(String s) throws XPathParseExceptionHuge {
+		Expr e;
+		try {
+			parser p = new parser(new StringReader(s));
+			e = (Expr) p.parse().value;
+		} catch (XPathParseExceptionHuge ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new XPathParseExceptionHuge("Error occurred");
+		}
+		e = unwrap(e);
+		if (e.getClass() != LocationPathExpr.class
+				|| ((LocationPathExpr) e).pathType != LocationPathExpr.ABSOLUTE_PATH)
+			throw new XPathParseExceptionHuge(
+					"Streaming XPath must be an absolute location path: " + s);
+		compile(((LocationPathExpr) e).s, s);
+		xpath = s;
+	}
+
+	private void compile(Step st, String s) throws XPathParseExceptionHuge {
+		int n = 0;
+		for (Step t = st; t != null; t = t.nextS)
+			n++;
+		if (n == 0 || n > 62)
+			throw new XPathParseExceptionHuge("Unsupported streaming XPath: " + s);
+		names = new String[n];
+		predNames = new String[n][];
+		predValues = new String[n][];
+		predNE = new boolean[n][];
+		childMask = descMask = 0;
+		attrName = null;
+		int k = 0;
+		boolean desc = false;
+		for (; st != null; st = st.nextS) {
+			NodeTest nt = st.nt;
+			if (st.axis_type == AxisType.DESCENDANT_OR_SELF
+					&& nt.testType == NodeTest.NODE && st.p == null
+					&& st.nextS != null && st.nextS.axis_type == AxisType.CHILD
+					&& !desc) {
+				// the abbreviated //
+				desc = true;
+				continue;
+			}
+			if (nt.testType != NodeTest.NAMETEST || nt.localName != null)
+				throw new XPathParseExceptionHuge(
+						"Unsupported node test in streaming XPath: " + s);
+			if (st.axis_type == AxisType.ATTRIBUTE && st.nextS == null
+					&& !desc && st.p == null && !nt.nodeName.equals("*")) {
+				attrName = nt.nodeName;
+				break;
+			}
+			if (st.axis_type == AxisType.DESCENDANT)
+				desc = true;
+			else if (st.axis_type != AxisType.CHILD)
+				throw new XPathParseExceptionHuge(
+						"Unsupported axis in streaming XPath: " + s);
+			names[k] = nt.nodeName;
+			if (desc)
+				descMask |= 1L << k;
+			else
+				childMask |= 1L << k;
+			if (st.p != null)
+				compilePredicates(k, st.p, s);
+			desc = false;
+			k++;
+		}
+		if (k == 0)
+			throw new XPathParseExceptionHuge("Unsupported streaming XPath: " + s);
+		stepCount = k;
+	}
+
+	private void compilePredicates(int k, Predicate p, String s)
+			throws XPathParseExceptionHuge {
+		int n = 0;
+		for (Predicate t = p; t != null; t = t.nextP)
+			n++;
+		predNames[k] = new String[n];
+		predValues[k] = new String[n];
+		predNE[k] = new boolean[n];
+		int j = 0;
+		for (Predicate t = p; t != null; t = t.nextP, j++) {
+			Expr e = unwrap(t.expr);
+			if (e.getClass() == LocationPathExpr.class) {
+				predNames[k][j] = attributeName((LocationPathExpr) e, s);
+			} else if (e instanceof BinaryExpr
+					&& (((BinaryExpr) e).op == BinaryExpr.EQ || ((BinaryExpr) e).op == BinaryExpr.NE)
+					&& unwrap(((BinaryExpr) e).left).getClass() == LocationPathExpr.class
+					&& unwrap(((BinaryExpr) e).right) instanceof LiteralExpr) {
+				BinaryExpr be = (BinaryExpr) e;
+				predNames[k][j] = attributeName((LocationPathExpr) unwrap(be.left), s);
+				predValues[k][j] = ((LiteralExpr) unwrap(be.right)).s;
+				predNE[k][j] = (be.op == BinaryExpr.NE);
+			} else
+				throw new XPathParseExceptionHuge(
+						"Unsupported predicate in streaming XPath: " + s);
+		}
+	}
+
+	/* the parser wraps every path in a UnionExpr */
+	private static Expr unwrap(Expr e) {
+		while (e instanceof UnionExpr && ((UnionExpr) e).next == null)
+			e = ((UnionExpr) e).e;
+		return e;
+	}
+
+	private static String attributeName(LocationPathExpr l, String s)
+			throws XPathParseExceptionHuge {
+		Step st = l.s;
+		if (l.pathType != LocationPathExpr.RELATIVE_PATH || st == null
+				|| st.nextS != null || st.p != null
+				|| st.axis_type != AxisType.ATTRIBUTE
+				|| st.nt.testType != NodeTest.NAMETEST
+				|| st.nt.localName != null || st.nt.nodeName.equals("*"))
+			throw new XPathParseExceptionHuge(
+					"Unsupported predicate in streaming XPath: " + s);
+		return st.nt.nodeName;
+	}
+
+	/**
+	 * Set the handler receiving the matches; when it is null,
+	 * matches are only counted
+	 * @param h
+	 */
+	public void setMatchHandler(IMatchHandler h){
+		handler = h;
+	}
+
+	/**
+	 * Get the string form of the selected XPath expression
+	 * @return String
+	 */
+	public String getExprString(){
+		return xpath;
+	}
+
+	/**
+	 * Return the number of matches of the last (or current) streaming parse
+	 * @return long
+	 */
+	public long getMatchCount(){
+		return matchCount;
+	}
+
+	/**
+	 * Return the maximum number of VTD records retained at any point of the
+	 * last (or current) streaming parse
+	 * @return int
+	 */
+	public int getMaxRecordCount(){
+		return maxRecordCount;
+	}
+
+	/**
+	 * Called by VTDGenHuge at the beginning of parse()
+	 * @param g
+	 */
+	void start(VTDGenHuge g) {
+		if (xpath == null)
+			throw new IllegalArgumentException("No XPath selected for streaming");
+		vg = g;
+		vtd = g.VTDBuffer;
+		scratch = new VTDNavHuge(0, g.encoding, g.ns, 1, g.xb, vtd,
+				new FastLongBuffer(4), new FastLongBuffer(4), new FastIntBuffer(4),
+				0, g.docLen);
+		scratch.context[0] = 1;
+		if (fvtd == null) {
+			fvtd = new FastLongBuffer(12);
+			fl1 = new FastLongBuffer(7);
+			fl2 = new FastLongBuffer(7);
+			fl3 = new FastIntBuffer(7);
+		}
+		top = 0;
+		matched[0] = 1;
+		active[0] = 1 & descMask;
+		pending = false;
+		openMatches = 0;
+		qSize = 0;
+		matchCount = 0;
+		maxRecordCount = 0;
+	}
+
+	/**
+	 * Called by VTDGenHuge before a token of the given type is written
+	 * @param type
+	 * @throws ParseExceptionHuge
+	 */
+	void token(int type) throws ParseExceptionHuge {
+		if (pending) {
+			if (type == VTDGenHuge.TOKEN_ATTR_NAME
+					|| type == VTDGenHuge.TOKEN_ATTR_VAL
+					|| type == VTDGenHuge.TOKEN_ATTR_NS)
+				return;
+			qualify();
+		}
+		if (openMatches == 0)
+			vtd.clear(); // nothing before this token can be part of a match
+		if (type == VTDGenHuge.TOKEN_STARTING_TAG) {
+			top++;
+			starts[top] = vtd.size();
+			pending = true;
+		}
+	}
+
+	/**
+	 * Called by VTDGenHuge after the ending tag (or the /> of an empty element)
+	 * of the current element
+	 * @param offset the byte offset right after the element
+	 * @throws ParseExceptionHuge
+	 */
+	void endElement(long offset) throws ParseExceptionHuge {
+		if (pending)
+			qualify();
+		int d = top--;
+		if (attrName != null || (matched[d] & (1L << stepCount)) == 0)
+			return;
+		int s = starts[d], e = vtd.size();
+		if (e > maxRecordCount)
+			maxRecordCount = e;
+		if (--openMatches > 0) {
+			// a nested match is delivered after its enclosing match
+			enqueue(s, e, offset);
+			return;
+		}
+		emit(s, e, offset, -1);
+		for (int i = 0; i < qSize; i++)
+			emit(qs[i], qe[i], qo[i], -1);
+		qSize = 0;
+	}
+
+	/* evaluate the steps for the top element once its attributes are known */
+	private void qualify() throws ParseExceptionHuge {
+		pending = false;
+		int d = top;
+		long c = (matched[d - 1] & childMask) | active[d - 1];
+		long m = 0;
+		if (c != 0) {
+			scratch.context[1] = starts[d];
+			scratch.vtdSize = vtd.size();
+			scratch.encoding = vg.encoding;
+			try {
+				for (int k = 0; k < stepCount; k++) {
+					if ((c & (1L << k)) != 0 && scratch.matchElement(names[k])
+							&& (predNames[k] == null || evalPredicates(k)))
+						m |= 1L << (k + 1);
+				}
+			} catch (NavExceptionHuge e) {
+				throw new ParseExceptionHuge("Streaming XPath error: " + e.getMessage());
+			}
+		}
+		matched[d] = m;
+		active[d] = active[d - 1] | (m & descMask);
+		if ((m & (1L << stepCount)) == 0)
+			return;
+		if (attrName == null) {
+			openMatches++;
+			return;
+		}
+		int i;
+		try {
+			i = scratch.getAttrVal(attrName);
+		} catch (NavExceptionHuge e) {
+			throw new ParseExceptionHuge("Streaming XPath error: " + e.getMessage());
+		}
+		if (i != -1) {
+			int e = vtd.size();
+			if (e > maxRecordCount)
+				maxRecordCount = e;
+			// the closing quote of the last attribute value
+			emit(starts[d], e, byteOffset(e - 1, true) + vg.increment, i - 1);
+		}
+	}
+
+	private boolean evalPredicates(int k) throws NavExceptionHuge {
+		String[] pn = predNames[k], pv = predValues[k];
+		boolean[] ne = predNE[k];
+		for (int j = 0; j < pn.length; j++) {
+			int i = scratch.getAttrVal(pn[j]);
+			if (i == -1)
+				return false;
+			if (pv[j] != null && (scratch.compareTokenString(i, pv[j]) == 0) == ne[j])
+				return false;
+		}
+		return true;
+	}
+
+	private void enqueue(int s, int e, long o) {
+		if (qSize == qs.length) {
+			int[] t1 = new int[qSize << 1], t2 = new int[qSize << 1];
+			long[] t3 = new long[qSize << 1];
+			System.arraycopy(qs, 0, t1, 0, qSize);
+			System.arraycopy(qe, 0, t2, 0, qSize);
+			System.arraycopy(qo, 0, t3, 0, qSize);
+			qs = t1;
+			qe = t2;
+			qo = t3;
+		}
+		int i = qSize++;
+		while (i > 0 && qs[i - 1] > s) {
+			qs[i] = qs[i - 1];
+			qe[i] = qe[i - 1];
+			qo[i] = qo[i - 1];
+			i--;
+		}
+		qs[i] = s;
+		qe[i] = e;
+		qo[i] = o;
+	}
+
+	/* byte offset of the beginning (the '<' for starting tags) or the end of a record */
+	private long byteOffset(int i, boolean end) {
+		long l = vtd.longAt(i);
+		long o = l & MASK_TOKEN_OFFSET;
+		if (end)
+			o += (l >>> 38) & 0x1ffff;
+		o = o << (vg.increment - 1);
+		return end ? o : o - vg.increment;
+	}
+
+	/* copy the records [s,e) into a standalone subtree, rebuild its LC
+	 * and hand it to the handler; ai is the attribute name to report, or -1 */
+	private void emit(int s, int e, long endOffset, int ai) throws ParseExceptionHuge {
+		matchCount++;
+		if (handler == null)
+			return;
+		fvtd.clear();
+		fl1.clear();
+		fl2.clear();
+		fl3.clear();
+		lastDepth = lastL1 = lastL2 = 0;
+		long d0 = vtd.longAt(s) & MASK_TOKEN_DEPTH;
+		int maxDepth = 0;
+		fvtd.append(((long) ((VTDGenHuge.TOKEN_DOCUMENT << 22) | (0x1f << 17)) << 38));
+		for (int i = s; i < e; i++) {
+			long l = vtd.longAt(i);
+			long dp = (l & MASK_TOKEN_DEPTH) - d0;
+			fvtd.append((l & ~MASK_TOKEN_DEPTH) | dp);
+			if ((l >>> 60) == VTDGenHuge.TOKEN_STARTING_TAG) {
+				int depth = (int) (dp >>> 55);
+				if (depth > maxDepth)
+					maxDepth = depth;
+				writeLC(depth);
+			}
+		}
+		if (lastDepth == 1)
+			fl1.append(((long) lastL1 << 32) | 0xffffffffL);
+		else if (lastDepth == 2)
+			fl2.append(((long) lastL2 << 32) | 0xffffffffL);
+		long so = byteOffset(s, false);
+		VTDNavHuge nv = new VTDNavHuge(1, vg.encoding, vg.ns, maxDepth, vg.xb,
+				fvtd, fl1, fl2, fl3, so, endOffset - so);
+		try {
+			handler.match(nv, ai == -1 ? 1 : ai - s + 1);
+		} catch (ParseExceptionHuge ex) {
+			throw ex;
+		} catch (VTDExceptionHuge ex) {
+			throw new ParseExceptionHuge("Streaming XPath error: " + ex.getMessage());
+		}
+	}
+
+	/* same as the LC part of VTDGenHuge.writeVTD() */
+	private void writeLC(int depth) {
+		int index = fvtd.size() - 1;
+		switch (depth) {
+		case 1:
+			if (lastDepth == 1)
+				fl1.append(((long) lastL1 << 32) | 0xffffffffL);
+			else if (lastDepth == 2)
+				fl2.append(((long) lastL2 << 32) | 0xffffffffL);
+			lastL1 = index;
+			lastDepth = 1;
+			break;
+		case 2:
+			if (lastDepth == 1)
+				fl1.append(((long) lastL1 << 32) + fl2.size());
+			else if (lastDepth == 2)
+				fl2.append(((long) lastL2 << 32) | 0xffffffffL);
+			lastL2 = index;
+			lastDepth = 2;
+			break;
+		case 3:
+			fl3.append(index);
+			if (lastDepth == 2)
+				fl2.append(((long) lastL2 << 32) + fl3.size() - 1);
+			lastDepth = 3;
+			break;
+		default:
+		}
+	}
+}
@@ -69,11 +69,14 @@ public int getNext() {
                         if (sp == s) { // get to the next l1 element then do a rewind
                             lcIndex++;
                             sp = vn.l1Buffer.upper32At(lcIndex)-1;
+                            boolean b = false;
                             while (vn.getTokenDepth(sp) == 0
                                 && vn.getTokenType(sp) != VTDNavHuge.TOKEN_STARTING_TAG) { //probe depth in here
+                                b = true;
                                 sp--;
                             }
-                            sp++; // point to the first possible node  
+                            if (b)
+                                sp++; // point to the first possible node  
                         }
                         if (isText(sp) == true && vn.getTokenDepth(sp)==0) {
                             prevLocation = sp;
@@ -197,6 +200,8 @@ public int getNext() {
                         return sp;
                     }
                     sp++;
+                    if (sp >= vtdSize)
+                        return -1;
                     d = vn.getTokenDepth(sp);
                     type = vn.getTokenType(sp);
                     
@@ -281,6 +286,8 @@ public int getNext() {
                         return sp;
                     }
                     sp++;
+                    if (sp >= vtdSize)
+                        return -1;
                     d = vn.getTokenDepth(sp);
                     type = vn.getTokenType(sp);
                     
@@ -355,7 +362,7 @@ final private boolean isText(int index) {
       while(i<vtdSize && 
       		depth == vn.getTokenDepth(i) && 
 			type == vn.getTokenType(i)&&
-			(vn.getTokenOffset(i-1)+ (int)((vn.vtdBuffer.longAt(i-1) & VTDNavHuge.MASK_TOKEN_FULL_LEN)>>32) 
+			(vn.getTokenOffset(i-1)+ vn.getRawLength(i-1) 
 			        == vn.getTokenOffset(i))
 			        ){          
              i++;
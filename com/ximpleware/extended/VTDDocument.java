@@ -0,0 +1,669 @@
+/* 
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+import java.io.*;
+import com.ximpleware.AutoPilot;
+import com.ximpleware.ModifyException;
+import com.ximpleware.NavException;
+import com.ximpleware.ParseException;
+import com.ximpleware.TranscodeException;
+import com.ximpleware.VTDGen;
+import com.ximpleware.VTDNav;
+import com.ximpleware.XMLModifier;
+import com.ximpleware.XPathEvalException;
+import com.ximpleware.XPathParseException;
+
+/**
+ * VTDDocument parses an XML document with VTDGen when it is small enough
+ * for the standard VTD records (less than 1GB when namespace aware, 2GB
+ * otherwise), and with VTDGenHuge when it isn't, so that callers don't
+ * have to pick the engine up front. It exposes the navigation and XPath
+ * methods the two share; the exceptions of the standard engine are
+ * reported as their com.ximpleware.extended counterparts.
+ * getNav() and getNavHuge() give access to the rest of the engine in use.
+ * Modifications go through the XMLModifier or XMLModifierHuge of the
+ * document, and are written by output().
+ * XPath expressions are compiled and evaluated by the engine in use, and
+ * the two XPath implementations differ: functions only the standard one
+ * has (e.g. round-half-to-even()) fail on a Huge document, and numbers
+ * may be formatted differently by evalXPathToString().
+ * Like VTDNav, a VTDDocument has a single cursor and isn't thread-safe.
+ */
+public class VTDDocument {
+    private VTDNav vn;
+    private VTDNavHuge vnh;
+    private AutoPilot ap;
+    private AutoPilotHuge aph;
+    private XMLModifier xm;
+    private XMLModifierHuge xmh;
+
+    private VTDDocument(VTDNav vn) {
+        this.vn = vn;
+        ap = new AutoPilot(vn);
+    }
+
+    private VTDDocument(VTDNavHuge vnh) {
+        this.vnh = vnh;
+        aph = new AutoPilotHuge(vnh);
+    }
+
+    /**
+     * Tell whether a document of the given size is parsed with VTDGen
+     * @param length document size in bytes
+     * @param ns namespace aware or not
+     * @return boolean
+     */
+    public static boolean fitsStandard(long length, boolean ns) {
+        // VTDGen's offsets are 30 bits with namespaces, 31 bits without,
+        // and the document has to fit in a byte array
+        return length < (ns ? 1L << 30 : Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Parse the file, large files are memory mapped
+     * @param fileName
+     * @param ns namespace aware or not
+     * @return VTDDocument
+     * @throws IOException
+     * @throws ParseExceptionHuge
+     */
+    public static VTDDocument parseFile(String fileName, boolean ns)
+            throws IOException, ParseExceptionHuge {
+        return parseFile(fileName, ns, VTDGenHuge.MEM_MAPPED);
+    }
+
+    /**
+     * Parse the file
+     * @param fileName
+     * @param ns namespace aware or not
+     * @param hugeMode VTDGenHuge.IN_MEMORY or VTDGenHuge.MEM_MAPPED, how
+     *        a file too large for VTDGen is loaded
+     * @return VTDDocument
+     * @throws IOException
+     * @throws ParseExceptionHuge
+     */
+    public static VTDDocument parseFile(String fileName, boolean ns, int hugeMode)
+            throws IOException, ParseExceptionHuge {
+        File f = new File(fileName);
+        long l = f.length();
+        if (!fitsStandard(l, ns)) {
+            VTDGenHuge vg = new VTDGenHuge();
+            if (hugeMode == VTDGenHuge.IN_MEMORY) {
+                XMLBuffer xb = new XMLBuffer();
+                xb.readFileAsync(fileName);
+                vg.setDoc(xb);
+            } else if (hugeMode == VTDGenHuge.MEM_MAPPED) {
+                XMLMemMappedBuffer xb = new XMLMemMappedBuffer();
+                xb.readFile(fileName);
+                vg.setDoc(xb);
+            } else
+                throw new IllegalArgumentException("Invalid mode for parseFile()");
+            try {
+                vg.parse(ns);
+            } catch (IllegalStateException e) {
+                throw new ParseExceptionHuge(e.getMessage());
+            }
+            return new VTDDocument(vg.getNav());
+        }
+        byte[] b = new byte[(int) l];
+        DataInputStream dis = new DataInputStream(new FileInputStream(f));
+        try {
+            dis.readFully(b);
+        } finally {
+            dis.close();
+        }
+        return parse(b, ns);
+    }
+
+    /**
+     * Parse the XML in a byte array, always with VTDGen
+     * @param ba
+     * @param ns namespace aware or not
+     * @return VTDDocument
+     * @throws ParseExceptionHuge
+     */
+    public static VTDDocument parse(byte[] ba, boolean ns) throws ParseExceptionHuge {
+        VTDGen vg = new VTDGen();
+        vg.setDoc(ba);
+        try {
+            vg.parse(ns);
+        } catch (ParseException e) {
+            throw new ParseExceptionHuge(e.getMessage());
+        }
+        return new VTDDocument(vg.getNav());
+    }
+
+    /**
+     * Tell whether the document is parsed with VTDGenHuge
+     * @return boolean
+     */
+    public boolean isHuge() {
+        return vnh != null;
+    }
+
+    /**
+     * Get the VTDNav of a document parsed with VTDGen
+     * @return VTDNav, or null for a huge document
+     */
+    public VTDNav getNav() {
+        return vn;
+    }
+
+    /**
+     * Get the VTDNavHuge of a document parsed with VTDGenHuge
+     * @return VTDNavHuge, or null for a standard document
+     */
+    public VTDNavHuge getNavHuge() {
+        return vnh;
+    }
+
+    /**
+     * Get the total number of tokens
+     * @return int
+     */
+    public int getTokenCount() {
+        return vn != null ? vn.getTokenCount() : vnh.getTokenCount();
+    }
+
+    /**
+     * Get the token type of the token at the given index
+     * @param index
+     * @return int
+     */
+    public int getTokenType(int index) {
+        return vn != null ? vn.getTokenType(index) : vnh.getTokenType(index);
+    }
+
+    /**
+     * Get the depth of the token at the given index
+     * @param index
+     * @return int
+     */
+    public int getTokenDepth(int index) {
+        return vn != null ? vn.getTokenDepth(index) : vnh.getTokenDepth(index);
+    }
+
+    /**
+     * Get the starting offset of the token at the given index
+     * @param index
+     * @return long
+     */
+    public long getTokenOffset(int index) {
+        return vn != null ? vn.getTokenOffset(index) : vnh.getTokenOffset(index);
+    }
+
+    /**
+     * Get the length of the token at the given index
+     * @param index
+     * @return int
+     */
+    public int getTokenLength(int index) {
+        return vn != null ? vn.getTokenLength(index) : vnh.getTokenLength(index);
+    }
+
+    /**
+     * Get the index of the root element
+     * @return int
+     */
+    public int getRootIndex() {
+        return vn != null ? vn.getRootIndex() : vnh.getRootIndex();
+    }
+
+    /**
+     * Get the index of the cursor element
+     * @return int
+     */
+    public int getCurrentIndex() {
+        return vn != null ? vn.getCurrentIndex() : vnh.getCurrentIndex();
+    }
+
+    /**
+     * Get the depth of the cursor element
+     * @return int
+     */
+    public int getCurrentDepth() {
+        return vn != null ? vn.getCurrentDepth() : vnh.getCurrentDepth();
+    }
+
+    /**
+     * Get the index of the text of the cursor element
+     * @return int, -1 if there isn't any
+     */
+    public int getText() {
+        return vn != null ? vn.getText() : vnh.getText();
+    }
+
+    /**
+     * Get the index of the value of the named attribute of the cursor element
+     * @param an attribute name
+     * @return int, -1 if there isn't any
+     * @throws NavExceptionHuge
+     */
+    public int getAttrVal(String an) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.getAttrVal(an);
+        try {
+            return vn.getAttrVal(an);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Tell whether the cursor element has the named attribute
+     * @param an attribute name
+     * @return boolean
+     * @throws NavExceptionHuge
+     */
+    public boolean hasAttr(String an) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.hasAttr(an);
+        try {
+            return vn.hasAttr(an);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Move the cursor to the element in the given direction
+     * (VTDNav.ROOT, PARENT, FIRST_CHILD, LAST_CHILD, NEXT_SIBLING or PREV_SIBLING)
+     * @param direction
+     * @return boolean whether the cursor moved
+     * @throws NavExceptionHuge
+     */
+    public boolean toElement(int direction) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.toElement(direction);
+        try {
+            return vn.toElement(direction);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Move the cursor to the element of the given name in the given direction
+     * @param direction
+     * @param en element name, "*" matches any
+     * @return boolean whether the cursor moved
+     * @throws NavExceptionHuge
+     */
+    public boolean toElement(int direction, String en) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.toElement(direction, en);
+        try {
+            return vn.toElement(direction, en);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Save the cursor position
+     */
+    public void push() {
+        if (vn != null)
+            vn.push();
+        else
+            vnh.push();
+    }
+
+    /**
+     * Restore the cursor position saved by push()
+     * @return boolean
+     */
+    public boolean pop() {
+        return vn != null ? vn.pop() : vnh.pop();
+    }
+
+    /**
+     * Get the string of the token at the given index, entities resolved
+     * @param index
+     * @return String
+     * @throws NavExceptionHuge
+     */
+    public String toString(int index) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.toString(index);
+        try {
+            return vn.toString(index);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the string of the token at the given index, entities resolved
+     * and white spaces normalized
+     * @param index
+     * @return String
+     * @throws NavExceptionHuge
+     */
+    public String toNormalizedString(int index) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.toNormalizedString(index);
+        try {
+            return vn.toNormalizedString(index);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the string of the token at the given index, entities not resolved
+     * @param index
+     * @return String
+     * @throws NavExceptionHuge
+     */
+    public String toRawString(int index) throws NavExceptionHuge {
+        if (vnh != null)
+            return vnh.toRawString(index);
+        try {
+            return vn.toRawString(index);
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Bind a prefix used by XPath expressions to a namespace URL
+     * @param prefix
+     * @param URL
+     */
+    public void declareXPathNameSpace(String prefix, String URL) {
+        if (ap != null)
+            ap.declareXPathNameSpace(prefix, URL);
+        else
+            aph.declareXPathNameSpace(prefix, URL);
+    }
+
+    /**
+     * Select the XPath expression evaluated by evalXPath(), compiled by
+     * the XPath of the engine in use
+     * @param s
+     * @throws XPathParseExceptionHuge
+     */
+    public void selectXPath(String s) throws XPathParseExceptionHuge {
+        if (aph != null) {
+            aph.selectXPath(s);
+            return;
+        }
+        try {
+            ap.selectXPath(s);
+        } catch (XPathParseException e) {
+            throw new XPathParseExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Move the cursor to the next node of the selected XPath
+     * @return int the index of the node, -1 when there is no more
+     * @throws XPathEvalExceptionHuge
+     * @throws NavExceptionHuge
+     */
+    public int evalXPath() throws XPathEvalExceptionHuge, NavExceptionHuge {
+        if (aph != null)
+            return aph.evalXPath();
+        try {
+            return ap.evalXPath();
+        } catch (XPathEvalException e) {
+            throw new XPathEvalExceptionHuge(e.getMessage());
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Reset the selected XPath so that evalXPath() starts over
+     */
+    public void resetXPath() {
+        if (ap != null)
+            ap.resetXPath();
+        else
+            aph.resetXPath();
+    }
+
+    /**
+     * Evaluate the selected XPath to a string
+     * @return String
+     */
+    public String evalXPathToString() {
+        return ap != null ? ap.evalXPathToString() : aph.evalXPathToString();
+    }
+
+    /**
+     * Evaluate the selected XPath to a number
+     * @return double
+     */
+    public double evalXPathToNumber() {
+        return ap != null ? ap.evalXPathToNumber() : aph.evalXPathToNumber();
+    }
+
+    /**
+     * Evaluate the selected XPath to a boolean
+     * @return boolean
+     */
+    public boolean evalXPathToBoolean() {
+        return ap != null ? ap.evalXPathToBoolean() : aph.evalXPathToBoolean();
+    }
+
+    // the modifier is bound on the first modification
+    private void bindModifier() throws ModifyExceptionHuge {
+        if (vnh != null) {
+            if (xmh == null)
+                xmh = new XMLModifierHuge(vnh);
+            return;
+        }
+        if (xm == null) {
+            try {
+                xm = new XMLModifier(vn);
+            } catch (ModifyException e) {
+                throw new ModifyExceptionHuge(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replace the content of the token at the given index
+     * @param index
+     * @param newContent
+     * @throws ModifyExceptionHuge
+     * @throws UnsupportedEncodingException
+     */
+    public void updateToken(int index, String newContent)
+            throws ModifyExceptionHuge, UnsupportedEncodingException {
+        bindModifier();
+        if (xmh != null) {
+            xmh.updateToken(index, newContent);
+            return;
+        }
+        try {
+            xm.updateToken(index, newContent);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the token at the given index
+     * @param index
+     * @throws ModifyExceptionHuge
+     */
+    public void removeToken(int index) throws ModifyExceptionHuge {
+        bindModifier();
+        if (xmh != null) {
+            xmh.removeToken(index);
+            return;
+        }
+        try {
+            xm.removeToken(index);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the attribute of the given name index, with its value
+     * @param attrNameIndex
+     * @throws ModifyExceptionHuge
+     */
+    public void removeAttribute(int attrNameIndex) throws ModifyExceptionHuge {
+        bindModifier();
+        if (xmh != null) {
+            xmh.removeAttribute(attrNameIndex);
+            return;
+        }
+        try {
+            xm.removeAttribute(attrNameIndex);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the cursor element
+     * @throws ModifyExceptionHuge
+     * @throws NavExceptionHuge
+     */
+    public void remove() throws ModifyExceptionHuge, NavExceptionHuge {
+        bindModifier();
+        if (xmh != null) {
+            xmh.remove();
+            return;
+        }
+        try {
+            xm.remove();
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Insert a fragment before the cursor element
+     * @param s
+     * @throws ModifyExceptionHuge
+     * @throws UnsupportedEncodingException
+     */
+    public void insertBeforeElement(String s)
+            throws ModifyExceptionHuge, UnsupportedEncodingException {
+        bindModifier();
+        if (xmh != null) {
+            xmh.insertBeforeElement(s);
+            return;
+        }
+        try {
+            xm.insertBeforeElement(s);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Insert a fragment after the cursor element
+     * @param s
+     * @throws ModifyExceptionHuge
+     * @throws NavExceptionHuge
+     * @throws UnsupportedEncodingException
+     */
+    public void insertAfterElement(String s)
+            throws ModifyExceptionHuge, NavExceptionHuge, UnsupportedEncodingException {
+        bindModifier();
+        if (xmh != null) {
+            xmh.insertAfterElement(s);
+            return;
+        }
+        try {
+            xm.insertAfterElement(s);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        } catch (NavException e) {
+            throw new NavExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Insert an attribute into the starting tag of the cursor element
+     * @param attr e.g. " name='value'", with the leading white space
+     * @throws ModifyExceptionHuge
+     * @throws UnsupportedEncodingException
+     */
+    public void insertAttribute(String attr)
+            throws ModifyExceptionHuge, UnsupportedEncodingException {
+        bindModifier();
+        if (xmh != null) {
+            xmh.insertAttribute(attr);
+            return;
+        }
+        try {
+            xm.insertAttribute(attr);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the document with the modifications made so far, the
+     * document as parsed if there isn't any
+     * @param fos
+     * @throws IOException
+     * @throws ModifyExceptionHuge
+     */
+    public void output(FileOutputStream fos) throws IOException, ModifyExceptionHuge {
+        bindModifier();
+        if (xmh != null) {
+            xmh.output(fos);
+            return;
+        }
+        try {
+            xm.output(fos);
+        } catch (ModifyException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        } catch (TranscodeException e) {
+            throw new ModifyExceptionHuge(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the document with the modifications made so far into a file
+     * @param fileName
+     * @throws IOException
+     * @throws ModifyExceptionHuge
+     */
+    public void output(String fileName) throws IOException, ModifyExceptionHuge {
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            output(fos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Drop the modifications made so far
+     */
+    public void resetModifications() {
+        if (xm != null)
+            xm.reset();
+        if (xmh != null)
+            xmh.reset();
+    }
+}
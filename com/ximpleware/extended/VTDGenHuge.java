@@ -52,6 +52,11 @@ public class VTDGenHuge {
 
 	public final static int IN_MEMORY = 0;
 	public final static int MEM_MAPPED = 1;
+
+	// storage of VTD records and LCs, see selectIndexStorage()
+	public final static int HEAP_STORAGE = 0;
+	public final static int DIRECT_STORAGE = 1;
+	public final static int FILE_STORAGE = 2;
 	
 	// token type
 	public final static int TOKEN_STARTING_TAG = 0;
@@ -109,7 +114,7 @@ public class VTDGenHuge {
 	private int last_l1_index;
 	private int last_l2_index;
 	private int last_l3_index;
-	private int increment;
+	protected int increment;
 	private boolean BOM_detected;
 	private boolean must_utf_8;
 	private int ch;
@@ -122,10 +127,39 @@ public class VTDGenHuge {
 	protected long prev_offset;
 	protected int rootIndex;
 	protected IByteBuffer xb;
+	// window over xb the readers get their bytes from, see byteAt()
+	private byte[] win;
+	private boolean paged; // xb is an XMLBuffer
+	private long winBase;
+	private int winLen;
 	protected FastLongBuffer VTDBuffer;
 	protected FastLongBuffer l1Buffer;
 	protected FastLongBuffer l2Buffer;
 	protected FastIntBuffer l3Buffer;
+	// side tables of the extended records, each entry is
+	// (token index << 32 | actual length or depth), see enableExtendedRecords()
+	protected FastLongBuffer lenOverflow;
+	protected FastLongBuffer depthOverflow;
+	private boolean extended;
+	private boolean ext; // extended records are written by the current parse
+	private long maxTokenLength;
+	// parallel parse, see setParseThreads()
+	private int parseThreads = 1;
+	// tokenize() stops at the first starting tag from there
+	private long stopOffset = Long.MAX_VALUE;
+	// the state of a fragment, a segment of the document tokenized
+	// without knowing which elements are open where it starts
+	private FastIntBuffer fragDepths; // record depths relative to the start
+	private FastLongBuffer fragCloses; // ending tags of the elements open at the start
+	private int shift; // the number of fragCloses so far
+	private int maxRel; // the max relative depth
+	private long fragStart; // the '<' the fragment starts at, -1 if not found
+	private Throwable fragError;
+	private fragments frags; // the parallel parse a worker's fragment is for
+	// the smallest segment of a parallel parse is 2^MIN_SEG_EXP bytes,
+	// the largest a page of XMLBuffer
+	private final static int MIN_SEG_EXP = 20;
+	private final static int MAX_SEG_EXP = 30;
 	protected boolean br; //buffer reuse
 
 
@@ -136,6 +170,9 @@ public class VTDGenHuge {
 	public long[] attr_name_array;
 	public final static int MAX_DEPTH = 30; // maximum depth value
 	protected long docOffset;
+	protected StreamPilotHuge sp; // streaming XPath evaluation, see setStreamPilot
+	private int storage; // HEAP_STORAGE, DIRECT_STORAGE or FILE_STORAGE
+	private java.io.File storageDir;
 
 	// attr_name_array size
 	private final static int ATTR_NAME_ARRAY_SIZE = 16;
@@ -150,6 +187,38 @@ public class VTDGenHuge {
 
 
 	
+	/**
+	 * Get the byte at index from the current window of the document,
+	 * the window being moved by fill() when index falls outside of it.
+	 * For in-memory documents the window is the loaded part of a page of
+	 * XMLBuffer, so the readers wait for readFileAsync() only when they
+	 * reach the end of it; other buffers are read through xb.byteAt(),
+	 * copying chunks out of a memory mapped document is no faster.
+	 */
+	final byte byteAt(long index){
+		if (!paged)
+			return xb.byteAt(index);
+		long d = index - winBase;
+		if (d >= 0 && d < winLen)
+			return win[(int) d];
+		return fill(index);
+	}
+
+	private byte fill(long index){
+		if (index < 0 || index >= xb.length())
+			return xb.byteAt(index); // let xb report it
+		// the window ends where the loader threads are, see readFileAsync()
+		XMLBuffer b = (XMLBuffer) xb;
+		try {
+			winLen = b.waitFor(index);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to load the document: " + e.getMessage());
+		}
+		win = b.bufferArray[(int) (index >> 30)];
+		winBase = index & ~0x3fffffffL;
+		return win[(int) (index - winBase)];
+	}
+
 	class UTF8Reader implements IReader {
 		public UTF8Reader() {
 		}
@@ -157,7 +226,7 @@ public class VTDGenHuge {
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			int temp = xb.byteAt(offset);
+			int temp = byteAt(offset);
 			//int a = 0, c = 0, d = 0, val = 0;
 			if (temp >= 0) {
 				offset++;
@@ -203,7 +272,7 @@ public class VTDGenHuge {
 			val = (temp & c) << d;
 			i = a - 1;
 			while (i >= 0) {
-				temp = xb.byteAt(offset + a - i);
+				temp = byteAt(offset + a - i);
 				if ((temp & 0xc0) != 0x80)
 					throw new ParseExceptionHuge(
 							"UTF 8 encoding error: should never happen");
@@ -216,7 +285,7 @@ public class VTDGenHuge {
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, EncodingExceptionHuge, ParseExceptionHuge {
 			//int a = 0, c = 0, d = 0, val = 0;
-			int temp = xb.byteAt(offset);
+			int temp = byteAt(offset);
 			if (temp >= 0)
 				if (ch == temp) {
 					offset++;
@@ -263,7 +332,7 @@ public class VTDGenHuge {
 			val = (temp & c) << d;
 			i = a - 1;
 			while (i >= 0) {
-				temp = xb.byteAt(offset + a - i);
+				temp = byteAt(offset + a - i);
 				if ((temp & 0xc0) != 0x80)
 					throw new ParseExceptionHuge(
 							"UTF 8 encoding error: should never happen");
@@ -287,7 +356,7 @@ public class VTDGenHuge {
 			int val = 0;
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			int temp = (xb.byteAt(offset)&0xff) << 8 | (xb.byteAt(offset+1)&0xff);
+			int temp = (byteAt(offset)&0xff) << 8 | (byteAt(offset+1)&0xff);
 			if ((temp < 0xd800) || (temp > 0xdfff)) { // not a high surrogate
 				offset += 2;
 				return temp;
@@ -295,7 +364,7 @@ public class VTDGenHuge {
 				if (temp<0xd800 || temp>0xdbff)				
 					throw new EncodingExceptionHuge("UTF 16 BE encoding error: should never happen");
 				val = temp;
-				temp = (xb.byteAt(offset+2)&0xff) << 8 | (xb.byteAt(offset+3)&0xff);
+				temp = (byteAt(offset+2)&0xff) << 8 | (byteAt(offset+3)&0xff);
 				if (temp < 0xdc00 || temp > 0xdfff) {
 					// has to be a low surrogate here
 					throw new EncodingExceptionHuge("UTF 16 BE encoding error: should never happen");
@@ -309,7 +378,7 @@ public class VTDGenHuge {
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
 			// implement UTF-16BE to UCS4 conversion
-			int temp = (xb.byteAt(offset)&0xff) << 8 | (xb.byteAt(offset+1)&0xff);
+			int temp = (byteAt(offset)&0xff) << 8 | (byteAt(offset+1)&0xff);
 			if ((temp < 0xd800) || (temp > 0xdfff)) { // not a high surrogate
 				//offset += 2;
 				if (temp == ch) {
@@ -321,7 +390,7 @@ public class VTDGenHuge {
 				if (temp<0xd800 || temp>0xdbff)				
 					throw new EncodingExceptionHuge("UTF 16 BE encoding error: should never happen");
 				int val = temp;
-				temp = (xb.byteAt(offset+2)&0xff) << 8 | (xb.byteAt(offset+3)&0xff);
+				temp = (byteAt(offset+2)&0xff) << 8 | (byteAt(offset+3)&0xff);
 				if (temp < 0xdc00 || temp > 0xdfff) {
 					// has to be a low surrogate here
 					throw new EncodingExceptionHuge("UTF 16 BE encoding error: should never happen");
@@ -344,7 +413,7 @@ public class VTDGenHuge {
 			int val = 0;
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			int temp = (xb.byteAt(offset+1) &0xff) << 8 | (xb.byteAt(offset)& 0xff);
+			int temp = (byteAt(offset+1) &0xff) << 8 | (byteAt(offset)& 0xff);
 			if (temp < 0xd800 || temp > 0xdfff) { // check for low surrogate
 				offset += 2;
 				return temp;
@@ -352,7 +421,7 @@ public class VTDGenHuge {
 				if (temp<0xd800 || temp>0xdbff)				
 					throw new EncodingExceptionHuge("UTF 16 LE encoding error: should never happen");
 				val = temp;
-				temp = (xb.byteAt(offset+3) &0xff) << 8 | (xb.byteAt(offset+2)&0xff);
+				temp = (byteAt(offset+3) &0xff) << 8 | (byteAt(offset+2)&0xff);
 				if (temp < 0xdc00 || temp > 0xdfff) {
 					// has to be high surrogate
 					throw new EncodingExceptionHuge("UTF 16 LE encoding error: should never happen");
@@ -365,7 +434,7 @@ public class VTDGenHuge {
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, EncodingExceptionHuge, ParseExceptionHuge {
 
-			int temp = (xb.byteAt(offset+1)&0xff) << 8 | (xb.byteAt(offset)&0xff);
+			int temp = (byteAt(offset+1)&0xff) << 8 | (byteAt(offset)&0xff);
 			if (temp < 0xd800 ||temp > 0xdfff) { // check for low surrogate
 				if (temp == ch) {
 					offset += 2;
@@ -377,7 +446,7 @@ public class VTDGenHuge {
 				if (temp<0xd800 || temp>0xdbff)				
 					throw new EncodingExceptionHuge("UTF 16 LE encoding error: should never happen");
 				int val = temp;
-				temp = (xb.byteAt(offset+3)&0xff)<< 8 | (xb.byteAt(offset+2)&0xff);
+				temp = (byteAt(offset+3)&0xff)<< 8 | (byteAt(offset+2)&0xff);
 				if (temp < 0xdc00 || temp > 0xdfff) {
 					// has to be high surrogate
 					throw new EncodingExceptionHuge("UTF 16 LE encoding error: should never happen");
@@ -401,7 +470,7 @@ public class VTDGenHuge {
 			int a;
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			a= xb.byteAt(offset++);
+			a= byteAt(offset++);
 			if (a<0)
 				throw new ParseExceptionHuge(
 				"ASCII encoding error: invalid ASCII Char");
@@ -410,7 +479,7 @@ public class VTDGenHuge {
 		public boolean skipChar(int ch)
 			throws ParseExceptionHuge, EOFExceptionHuge, EncodingExceptionHuge {
 
-			if (ch == xb.byteAt(offset)) {
+			if (ch == byteAt(offset)) {
 				offset++;
 				return true;
 			} else {
@@ -427,11 +496,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return xb.byteAt(offset++) & 0xff;
+			return byteAt(offset++) & 0xff;
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == xb.byteAt(offset)) {
+			if (ch == byteAt(offset)) {
 				offset++;
 				return true;
 			} else {
@@ -448,11 +517,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_2.decode(xb.byteAt(offset++));
+			return ISO8859_2.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_2.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_2.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -468,11 +537,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_3.decode(xb.byteAt(offset++));
+			return ISO8859_3.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_3.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_3.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -489,11 +558,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_4.decode(xb.byteAt(offset++));
+			return ISO8859_4.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_4.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_4.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -510,11 +579,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_5.decode(xb.byteAt(offset++));
+			return ISO8859_5.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_5.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_5.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -531,11 +600,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_6.decode(xb.byteAt(offset++));
+			return ISO8859_6.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_6.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_6.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -551,11 +620,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_7.decode(xb.byteAt(offset++));
+			return ISO8859_7.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_7.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_7.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -572,11 +641,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_8.decode(xb.byteAt(offset++));
+			return ISO8859_8.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_8.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_8.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -593,11 +662,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_9.decode(xb.byteAt(offset++));
+			return ISO8859_9.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_9.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_9.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -615,11 +684,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_10.decode(xb.byteAt(offset++));
+			return ISO8859_10.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_10.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_10.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -636,11 +705,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_11.decode(xb.byteAt(offset++));
+			return ISO8859_11.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_11.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_11.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -657,11 +726,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_13.decode(xb.byteAt(offset++));
+			return ISO8859_13.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_13.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_13.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -678,11 +747,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_14.decode(xb.byteAt(offset++));
+			return ISO8859_14.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_14.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_14.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -699,11 +768,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return ISO8859_15.decode(xb.byteAt(offset++));
+			return ISO8859_15.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == ISO8859_15.decode(xb.byteAt(offset))) {
+			if (ch == ISO8859_15.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -719,11 +788,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1250.decode(xb.byteAt(offset++));
+			return WIN1250.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1250.decode(xb.byteAt(offset))) {
+			if (ch == WIN1250.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -739,11 +808,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1251.decode(xb.byteAt(offset++));
+			return WIN1251.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1251.decode(xb.byteAt(offset))) {
+			if (ch == WIN1251.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -763,11 +832,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1252.decode(xb.byteAt(offset++));
+			return WIN1252.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1252.decode(xb.byteAt(offset))) {
+			if (ch == WIN1252.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -784,11 +853,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1253.decode(xb.byteAt(offset++));
+			return WIN1253.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1253.decode(xb.byteAt(offset))) {
+			if (ch == WIN1253.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -805,11 +874,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1254.decode(xb.byteAt(offset++));
+			return WIN1254.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1254.decode(xb.byteAt(offset))) {
+			if (ch == WIN1254.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -826,11 +895,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1255.decode(xb.byteAt(offset++));
+			return WIN1255.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1255.decode(xb.byteAt(offset))) {
+			if (ch == WIN1255.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -847,11 +916,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1256.decode(xb.byteAt(offset++));
+			return WIN1256.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1256.decode(xb.byteAt(offset))) {
+			if (ch == WIN1256.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -868,11 +937,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1257.decode(xb.byteAt(offset++));
+			return WIN1257.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1257.decode(xb.byteAt(offset))) {
+			if (ch == WIN1257.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -889,11 +958,11 @@ public class VTDGenHuge {
 
 			if (offset >= endOffset)
 				throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-			return WIN1258.decode(xb.byteAt(offset++));
+			return WIN1258.decode(byteAt(offset++));
 		}
 		public boolean skipChar(int ch)
 			throws EOFExceptionHuge, ParseExceptionHuge, EncodingExceptionHuge {
-			if (ch == WIN1258.decode(xb.byteAt(offset))) {
+			if (ch == WIN1258.decode(byteAt(offset))) {
 				offset++;
 				return true;
 			} else {
@@ -924,8 +993,12 @@ public class VTDGenHuge {
 	        l2Buffer = null;
 	        l3Buffer = null;
 	    }
+	    lenOverflow = depthOverflow = null;
 	    if(xb!=null)xb.close();
 		xb = null;
+		win = null;
+		paged = false;
+		winLen = 0;
 		offset = temp_offset =0;
 		last_depth = last_l1_index = last_l2_index = 0;
 		rootIndex = 0;
@@ -1031,6 +1104,8 @@ public class VTDGenHuge {
 	 * @return java.lang.String indicating the line number and offset of the exception
 	 */
 	private String formatLineNumber() {
+		if (fragDepths != null)
+			return ""; // the error of a fragment is reported by the sequential parse
 		long so = docOffset;
 		int lineNumber = 0;
 		long lineOffset = 0;
@@ -1038,7 +1113,7 @@ public class VTDGenHuge {
 
 		if (encoding < FORMAT_UTF_16BE) {
 			while (so <= offset-1) {
-				if (xb.byteAt(so) == '\n') {
+				if (byteAt(so) == '\n') {
 					lineNumber++;
 					lineOffset = so;
 				}
@@ -1048,7 +1123,7 @@ public class VTDGenHuge {
 			lineOffset = offset - lineOffset;
 		} else if (encoding == FORMAT_UTF_16BE) {
 			while (so <= offset-2) {
-				if (xb.byteAt(so + 1) == '\n' && xb.byteAt(so) == 0) {
+				if (byteAt(so + 1) == '\n' && byteAt(so) == 0) {
 					lineNumber++;
 					lineOffset = so;
 				}
@@ -1057,7 +1132,7 @@ public class VTDGenHuge {
 			lineOffset = (offset - lineOffset) >> 1;
 		} else {
 			while (so <= offset-2) {
-				if (xb.byteAt(so) == '\n' && xb.byteAt(so + 1) == 0) {
+				if (byteAt(so) == '\n' && byteAt(so + 1) == 0) {
 					lineNumber++;
 					lineOffset = so;
 				}
@@ -1144,6 +1219,8 @@ public class VTDGenHuge {
 				l3Buffer,
 				docOffset,
 				docLen);
+		vn.lenOverflow = lenOverflow;
+		vn.depthOverflow = depthOverflow;
 		clear();
 		return vn;
 	}
@@ -1159,8 +1236,8 @@ public class VTDGenHuge {
 			case FORMAT_UTF8 :
 				do {
 					prevOffset--;
-				} while (xb.byteAt(prevOffset) <0 && 
-				        (xb.byteAt(prevOffset) & (byte)0xc0) == (byte)0x80);
+				} while (byteAt(prevOffset) <0 && 
+				        (byteAt(prevOffset) & (byte)0xc0) == (byte)0x80);
 				
 				return prevOffset;
 			case FORMAT_ASCII :
@@ -1185,13 +1262,13 @@ public class VTDGenHuge {
 			case FORMAT_WIN_1258:
 				return offset - 1;
 			case FORMAT_UTF_16LE :
-			    temp= (xb.byteAt(offset)&0xff) << 8 | (xb.byteAt(offset + 1)&0xff);
+			    temp= (byteAt(offset)&0xff) << 8 | (byteAt(offset + 1)&0xff);
 				if (temp < 0xd800 || temp > 0xdfff) {
 					return offset - 2;
 				} else
 					return offset - 4;
 			case FORMAT_UTF_16BE :
-			    temp =(xb.byteAt(offset)&0xff) << 8 | (xb.byteAt(offset + 1)&0xff);
+			    temp =(byteAt(offset)&0xff) << 8 | (byteAt(offset + 1)&0xff);
 				if (temp < 0xd800 || temp > 0xdfff) {
 					return offset - 2;
 				} else
@@ -1209,36 +1286,36 @@ public class VTDGenHuge {
 	private void decide_encoding() throws EncodingExceptionHuge,ParseExceptionHuge {
 	    if (xb.length()==0)
 	        throw new EncodingExceptionHuge("Document is zero sized ");
-		if (xb.byteAt(offset) == -2) {
+		if (byteAt(offset) == -2) {
 			increment = 2;
-			if (xb.byteAt(offset+1) == -1) {
+			if (byteAt(offset+1) == -1) {
 				offset += 2;
 				encoding = FORMAT_UTF_16BE;
 				BOM_detected = true;
 				r = new UTF16BEReader();
 			} else
 				throw new EncodingExceptionHuge("Unknown Character encoding: should be 0xff 0xfe");
-		} else if (xb.byteAt(offset) == -1) {
+		} else if (byteAt(offset) == -1) {
 			increment = 2;
-			if (xb.byteAt(offset+1) == -2) {
+			if (byteAt(offset+1) == -2) {
 				offset += 2;
 				encoding = FORMAT_UTF_16LE;
 				BOM_detected = true;
 				r = new UTF16LEReader();
 			} else
 				throw new EncodingExceptionHuge("Unknown Character encoding: not UTF-16LE");
-		} else if (xb.byteAt(offset) == -17){
-		    if (xb.byteAt(offset+1) == -69 && xb.byteAt(offset+2)==-65){
+		} else if (byteAt(offset) == -17){
+		    if (byteAt(offset+1) == -69 && byteAt(offset+2)==-65){
 		      offset +=3;
 		      must_utf_8= true;
 		    }
 		    else 
 		    	throw new EncodingExceptionHuge("Unknown Character encoding: not UTF-8");
 		}
-		else if (xb.byteAt(offset)==0){
-			if (xb.byteAt(offset+1) == 0x3c 
-					&& xb.byteAt(offset+2)== 0 
-					&& xb.byteAt(offset+3)== 0x3f){
+		else if (byteAt(offset)==0){
+			if (byteAt(offset+1) == 0x3c 
+					&& byteAt(offset+2)== 0 
+					&& byteAt(offset+3)== 0x3f){
 				encoding = FORMAT_UTF_16BE;
 				increment = 2;
 				r = new UTF16BEReader();
@@ -1246,10 +1323,10 @@ public class VTDGenHuge {
 			else
 				throw new EncodingExceptionHuge("Unknown Character encoding: not UTF-16BE");
 		}
-		else if (xb.byteAt(offset)==0x3c){
-			if (xb.byteAt(offset+1) == 0 
-					&& xb.byteAt(offset+2) == 0x3f 
-					&& xb.byteAt(offset+3) == 0){
+		else if (byteAt(offset)==0x3c){
+			if (byteAt(offset+1) == 0 
+					&& byteAt(offset+2) == 0x3f 
+					&& byteAt(offset+3) == 0){
 				increment = 2;
 				encoding = FORMAT_UTF_16LE;				
 				r = new UTF16LEReader();
@@ -1279,12 +1356,16 @@ public class VTDGenHuge {
 	public boolean parseFile(String fileName, boolean ns, int mode){
 	    //FileInputStream fis = null;
 	    //File f = null;
+	    XMLBuffer b = null;
+	    boolean ok = false;
 	    try{
 	        if (mode == IN_MEMORY){
-	            XMLBuffer xb = new XMLBuffer();
-	            xb.readFile(fileName);
-	            this.setDoc(xb);
+	            // parsing starts while the rest of the file is being read
+	            b = new XMLBuffer();
+	            b.readFileAsync(fileName);
+	            this.setDoc(b);
 	            this.parse(ns);  // set namespace awareness to true
+	            ok = true;
 	            return true;
 	        } else if (mode == MEM_MAPPED) {
 	            XMLMemMappedBuffer xmb = new XMLMemMappedBuffer();
@@ -1296,8 +1377,13 @@ public class VTDGenHuge {
 	        return false;
 	    }catch(java.io.IOException e){    
 	    }catch (ParseExceptionHuge e){
+	    }catch (IllegalStateException e){
+	        // the document failed to load
 	    }
 	    finally{
+	        // don't keep reading a document that failed to parse
+	        if (!ok && b != null)
+	            b.close();
 	    }
 	    return false;	    
 	}
@@ -1314,6 +1400,103 @@ public class VTDGenHuge {
 	    return parseFile(fileName, ns, IN_MEMORY);
 	}
 	
+	/**
+	 * Write the VTD and LCs (but not XML) of the parsed document into an
+	 * OutputStream, see VTDNavHuge.writeSeparateIndex()
+	 * @param os
+	 * @throws IOException
+	 * @throws IndexWriteExceptionHuge
+	 *
+	 */
+	public void writeSeparateIndex(OutputStream os) throws IOException, IndexWriteExceptionHuge{
+	    IndexHandlerHuge.writeSeparateIndex(encoding,
+	            ns,
+	            VTDDepth,
+	            rootIndex,
+	            xb,
+	            VTDBuffer,
+	            l1Buffer,
+	            l2Buffer,
+	            l3Buffer,
+	            lenOverflow,
+	            depthOverflow,
+	            os);
+	}
+	
+	/**
+	 * Write the VTD and LCs (but not XML) of the parsed document into a file
+	 * @param fileName
+	 * @throws IOException
+	 * @throws IndexWriteExceptionHuge
+	 *
+	 */
+	public void writeSeparateIndex(String fileName) throws IOException, IndexWriteExceptionHuge{
+	    IndexHandlerHuge.writeSeparateIndex(encoding,
+	            ns,
+	            VTDDepth,
+	            rootIndex,
+	            xb,
+	            VTDBuffer,
+	            l1Buffer,
+	            l2Buffer,
+	            l3Buffer,
+	            lenOverflow,
+	            depthOverflow,
+	            fileName);
+	}
+	
+	/**
+	 * Load the separate index written by writeSeparateIndex() together with
+	 * its XML file, both memory mapped. Neither is parsed nor read in
+	 * full, the index is only checked against the size and the first and
+	 * last 64KB of the XML file
+	 * @param XMLFileName name of xml file
+	 * @param indexName name of the index file
+	 * @return VTDNavHuge object
+	 * @throws IOException
+	 * @throws IndexReadExceptionHuge
+	 *
+	 */
+	public VTDNavHuge loadSeparateIndex(String XMLFileName, String indexName) throws IOException, IndexReadExceptionHuge{
+	    return loadSeparateIndex(XMLFileName, indexName, MEM_MAPPED, false);
+	}
+	
+	/**
+	 * Load the separate index written by writeSeparateIndex() together with
+	 * its XML file
+	 * @param XMLFileName name of xml file
+	 * @param indexName name of the index file
+	 * @param mode IN_MEMORY or MEM_MAPPED, how the XML file is loaded
+	 * @param verify whether to read the VTD and LCs to verify their checksums
+	 * @return VTDNavHuge object
+	 * @throws IOException
+	 * @throws IndexReadExceptionHuge
+	 *
+	 */
+	public VTDNavHuge loadSeparateIndex(String XMLFileName, String indexName, int mode, boolean verify) throws IOException, IndexReadExceptionHuge{
+	    IByteBuffer x;
+	    try{
+	        if (mode == IN_MEMORY){
+	            XMLBuffer b = new XMLBuffer();
+	            b.readFile(XMLFileName);
+	            x = b;
+	        } else if (mode == MEM_MAPPED){
+	            XMLMemMappedBuffer b = new XMLMemMappedBuffer();
+	            b.readFile(XMLFileName);
+	            x = b;
+	        } else
+	            throw new IllegalArgumentException("Invalid mode for loadSeparateIndex()");
+	    }catch(ParseExceptionHuge e){
+	        throw new IndexReadExceptionHuge(e.getMessage());
+	    }
+	    try{
+	        return IndexHandlerHuge.mapSeparateIndex(x, indexName, verify);
+	    }finally{
+	        // the mapped pages remain valid
+	        x.close();
+	    }
+	}
+	
 	
 	
 	/**
@@ -1327,23 +1510,72 @@ public class VTDGenHuge {
 	public void parse(boolean NS)
 		throws EncodingExceptionHuge, EOFExceptionHuge, EntityExceptionHuge, ParseExceptionHuge {
 
-		// define internal variables	
 		ns = NS;
+		encoding = FORMAT_UTF8;
+
+		// first check first several bytes to figure out the encoding
+		decide_encoding();
+		if (sp != null) {
+			// records are discarded as parsing goes, use small pages
+			VTDBuffer = new FastLongBuffer(12);
+			sp.start(this);
+		}
+		// the side tables are indexed by the position of the record,
+		// which streaming doesn't keep
+		ext = extended && sp == null;
+		maxTokenLength = ext ? Integer.MAX_VALUE : MAX_TOKEN_LENGTH;
+
+		writeVTD(0,0,TOKEN_DOCUMENT,depth);
+		try {
+			if (parseThreads > 1 && sp == null)
+				parseParallel();
+			else
+				tokenize(STATE_DOC_START);
+		} finally {
+			closeStorage();
+		}
+	}
+	
+	/**
+	 * Release the temporary files of FILE_STORAGE, the buffers
+	 * don't grow once parsing is over
+	 */
+	private void closeStorage() {
+		if (VTDBuffer instanceof OffHeapLongBuffer)
+			((OffHeapLongBuffer) VTDBuffer).close();
+		if (l1Buffer instanceof OffHeapLongBuffer)
+			((OffHeapLongBuffer) l1Buffer).close();
+		if (l2Buffer instanceof OffHeapLongBuffer)
+			((OffHeapLongBuffer) l2Buffer).close();
+		if (l3Buffer instanceof OffHeapIntBuffer)
+			((OffHeapIntBuffer) l3Buffer).close();
+	}
+	
+	/**
+	 * The main finite state machine, from parser_state on. It returns true
+	 * when it stops at the first starting tag in the root element at or after
+	 * stopOffset, with offset right after its '<' so that it resumes
+	 * with STATE_LT_SEEN; false at the end of the document.
+	 * @param parser_state int
+	 * @return boolean
+	 * @throws ParseExceptionHuge Super class for any exceptions during parsing.     
+	 * @throws EOFExceptionHuge End of file exception.    
+	 * @throws EntityExceptionHuge Entity resolution exception.
+	 * @throws EncodingExceptionHuge UTF/native encoding exception.
+	 */
+	private boolean tokenize(int parser_state)
+		throws EncodingExceptionHuge, EOFExceptionHuge, EntityExceptionHuge, ParseExceptionHuge {
+
+		// define internal variables	
 		long length1 = 0, length2 = 0;
 		int attr_count = 0 /*, ch = 0, ch_temp = 0*/;
-		int parser_state = STATE_DOC_START;
 		//boolean has_amp = false; 
 		boolean is_ns = false;
-		encoding = FORMAT_UTF8;
 		boolean helper=false;
 		//boolean docEnd = false;
 
-		// first check first several bytes to figure out the encoding
-		decide_encoding();
-
 		// enter the main finite state machine
 		try {
-			writeVTD(0,0,TOKEN_DOCUMENT,depth);
 			while (true) {
 				switch (parser_state) {
 					case STATE_LT_SEEN : //if (depth < -1)
@@ -1351,6 +1583,12 @@ public class VTDGenHuge {
 						temp_offset = offset;
 						ch = r.getChar();
 						if (XMLChar.isNameStartChar(ch)) {
+							if (temp_offset - increment >= stopOffset && depth >= 0) {
+								offset = temp_offset;
+								return true;
+							}
+							if (frags != null && frags.cancelled)
+								throw new ParseExceptionHuge("Other error: parse cancelled");
 							depth++;
 							parser_state = STATE_START_TAG;
 						} else {
@@ -1384,9 +1622,15 @@ public class VTDGenHuge {
 						}
 						length1 = offset - temp_offset - increment;
 						if (depth > MAX_DEPTH) {
-							throw new ParseExceptionHuge(
-								"Other Error: Depth exceeds MAX_DEPTH"
-									+ formatLineNumber());
+							if (!ext)
+								throw new ParseExceptionHuge(
+									"Other Error: Depth exceeds MAX_DEPTH"
+										+ formatLineNumber());
+							if (depth == tag_stack.length) {
+								long[] t = new long[depth << 1];
+								System.arraycopy(tag_stack, 0, t, 0, depth);
+								tag_stack = t;
+							}
 						}
 						//writeVTD(offset, TOKEN_STARTING_TAG, length2:length1, depth)
 						long x = ((long) length1 << 38) |temp_offset;
@@ -1438,6 +1682,8 @@ public class VTDGenHuge {
 							ch = r.getChar();
 						}
 						if (ch == '>') {
+						if (sp != null && !helper)
+							sp.endElement(offset);
 						if (depth != -1) {
 							temp_offset = offset;
 							ch = getCharAfterSe(); // consume WSs
@@ -1496,25 +1742,40 @@ public class VTDGenHuge {
 
 					case STATE_END_TAG :
 						temp_offset = offset;
-						long sos =  tag_stack[depth] & 0x1fffffffffL;
-						int sl = (int) (tag_stack[depth] >> 38);
+						if (depth == 0 && fragCloses != null) {
+							// the element was opened before the fragment,
+							// its name is checked by merge()
+							do {
+								ch = r.getChar();
+							} while (XMLChar.isNameChar(ch));
+							fragCloses.append(((offset - increment - temp_offset) << 38)
+									| temp_offset);
+							shift++;
+							if (XMLChar.isSpaceChar(ch))
+								ch = getCharAfterS();
+						} else {
+							long sos =  tag_stack[depth] & 0x1fffffffffL;
+							int sl = (int) (tag_stack[depth] >> 38);
 						
-						offset = temp_offset+sl;
+							offset = temp_offset+sl;
 						
-						if (offset>= endOffset)
-							throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
-						for (int i = 0; i < sl; i++) {
-							if (xb.byteAt(sos + i) != xb.byteAt(temp_offset + i))
-								throw new ParseExceptionHuge(
-									"Ending tag error: Start/ending tag mismatch"
-									+ formatLineNumber());
+							if (offset>= endOffset)
+								throw new EOFExceptionHuge("permature EOF reached, XML document incomplete");
+							for (int i = 0; i < sl; i++) {
+								if (byteAt(sos + i) != byteAt(temp_offset + i))
+									throw new ParseExceptionHuge(
+										"Ending tag error: Start/ending tag mismatch"
+										+ formatLineNumber());
+							}
+							depth--;
+							ch = getCharAfterS();
 						}
-						depth--;
-						ch = getCharAfterS();
 						if(ch != '>')
 							throw new ParseExceptionHuge(
 								"Ending tag error: Invalid char in ending tag "
 								+ formatLineNumber()); 
+						if (sp != null)
+							sp.endElement(offset);
 						
 						if (depth != -1) {
 							temp_offset = offset;
@@ -1582,8 +1843,8 @@ public class VTDGenHuge {
 								long prevOffset =
 									 (attr_name_array[i] >> 17);
 								for (int j = 0; j < prevLen; j++) {
-									if (xb.byteAt(prevOffset + j)
-										!= xb.byteAt(temp_offset + j)) {
+									if (byteAt(prevOffset + j)
+										!= byteAt(temp_offset + j)) {
 										unequal = true;
 										break;
 									}
@@ -1715,7 +1976,7 @@ public class VTDGenHuge {
 
 						length1 = offset - temp_offset - increment;
 						if (encoding < FORMAT_UTF_16BE){
-							if (length1 > MAX_TOKEN_LENGTH)
+							if (length1 > maxTokenLength)
 								  throw new ParseExceptionHuge("Token Length Error:"
 											  +" Attr val too long (>0xfffff)"
 											  + formatLineNumber());
@@ -1726,7 +1987,7 @@ public class VTDGenHuge {
 								depth);
 						}
 						else{
-							if (length1 > (MAX_TOKEN_LENGTH <<1))
+							if (length1 > (maxTokenLength <<1))
 								  throw new ParseExceptionHuge("Token Length Error:"
 											  +" Attr val too long (>0xfffff)"
 											  + formatLineNumber());
@@ -1754,6 +2015,8 @@ public class VTDGenHuge {
 
 						if (ch == '>') {
 							attr_count = 0;
+							if (sp != null && !helper)
+								sp.endElement(offset);
 							if (depth != -1) {
 								temp_offset = offset;
 								ch = getCharAfterSe();
@@ -1910,6 +2173,317 @@ public class VTDGenHuge {
 				throw e;
 			finishUp();
 		}
+		return false;
+	}
+	
+	/**
+	 * Parse with parseThreads threads, see setParseThreads()
+	 * @throws ParseExceptionHuge Super class for any exceptions during parsing.     
+	 * @throws EOFExceptionHuge End of file exception.    
+	 * @throws EntityExceptionHuge Entity resolution exception.
+	 * @throws EncodingExceptionHuge UTF/native encoding exception.
+	 */
+	private void parseParallel()
+		throws EncodingExceptionHuge, EOFExceptionHuge, EntityExceptionHuge, ParseExceptionHuge {
+		// up to the first child of the root, the encoding is known from there on
+		stopOffset = 0;
+		if (!tokenize(STATE_DOC_START))
+			return;
+		int e = MIN_SEG_EXP;
+		while (e < MAX_SEG_EXP && (docLen >> (e + 1)) >= (long) parseThreads << 2)
+			e++;
+		long seg = 1L << e;
+		int count = (int) ((docLen + seg - 1) >> e);
+		// the first segment and the last one are tokenized by this thread
+		int t = Math.max(0, Math.min(parseThreads - 1, count - 2));
+		fragments f = new fragments(seg, count, parseThreads << 1);
+		Thread[] ths = new Thread[t];
+		for (int i = 0; i < t; i++) {
+			ths[i] = new Thread(new fragmentParser(f), "VTDGenHuge parser " + i);
+			ths[i].setDaemon(true);
+			ths[i].start();
+		}
+		try {
+			stopOffset = seg;
+			if (!tokenize(STATE_LT_SEEN))
+				return;
+			for (int k = 1; k < count - 1; k++) {
+				long p = offset - increment;
+				VTDGenHuge w = f.take(k);
+				if (w == null || w.fragStart != p)
+					// the guess was wrong, start where the previous one stopped
+					w = fragment(p, seg * (k + 1), false, null);
+				if (w.fragError != null || !merge(w))
+					break; // the sequential parse takes over from p
+				offset = w.offset;
+			}
+		} finally {
+			// the workers stop at their next starting tag, don't let them
+			// run on once the parse falls back or fails
+			f.cancel();
+			stopOffset = Long.MAX_VALUE;
+			join(ths);
+		}
+		tokenize(STATE_LT_SEEN);
+	}
+	
+	private static void join(Thread[] ths) {
+		for (int i = 0; i < ths.length; i++) {
+			try {
+				ths[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Tokenize the fragment from the starting tag at start, or the first
+	 * one found from there when guess is true, to the first starting
+	 * tag from stop, with a new VTDGenHuge over the same document.
+	 * Errors are kept in its fragError. A worker passes its fragments
+	 * to give up once they are cancelled.
+	 * @param start long
+	 * @param stop long
+	 * @param guess boolean
+	 * @param f fragments
+	 * @return VTDGenHuge
+	 */
+	private VTDGenHuge fragment(long start, long stop, boolean guess, fragments f) {
+		VTDGenHuge w = new VTDGenHuge();
+		w.frags = f;
+		w.xb = xb;
+		w.paged = paged;
+		w.encoding = encoding;
+		w.increment = increment;
+		w.ns = ns;
+		w.ext = ext;
+		w.maxTokenLength = maxTokenLength;
+		w.docOffset = docOffset;
+		w.docLen = docLen;
+		w.endOffset = endOffset;
+		w.r = w.newReader(encoding);
+		w.depth = 0;
+		w.stopOffset = stop;
+		w.fragStart = -1;
+		try {
+			w.VTDBuffer = new FastLongBuffer(16);
+			w.fragDepths = new FastIntBuffer(16);
+			w.fragCloses = new FastLongBuffer(6);
+			w.fragStart = guess ? w.findStart(start, stop) : start;
+			if (w.fragStart >= 0) {
+				w.offset = w.fragStart + increment;
+				w.tokenize(STATE_LT_SEEN);
+			}
+		} catch (Throwable e) {
+			w.fragError = e;
+		}
+		return w;
+	}
+	
+	/**
+	 * Find the first '<' followed by a name start char from start and
+	 * before stop, -1 if there is none
+	 * @param start long
+	 * @param stop long
+	 * @return long
+	 */
+	private long findStart(long start, long stop) {
+		long p = start;
+		if (increment == 2)
+			p = (p + 1) & ~1L;
+		for (; p < stop && p + increment < endOffset; p += increment) {
+			boolean lt;
+			if (encoding == FORMAT_UTF_16BE)
+				lt = byteAt(p) == 0 && byteAt(p + 1) == '<';
+			else if (encoding == FORMAT_UTF_16LE)
+				lt = byteAt(p) == '<' && byteAt(p + 1) == 0;
+			else
+				lt = byteAt(p) == '<';
+			if (lt) {
+				offset = p + increment;
+				try {
+					if (XMLChar.isNameStartChar(r.getChar()))
+						return p;
+				} catch (ParseExceptionHuge e) {
+				}
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Append the records of fragment w, which starts where this
+	 * VTDGenHuge stopped, and take its state over. It returns false
+	 * and changes nothing if w closes the root element, an ending tag of w
+	 * doesn't match, or the depth goes over MAX_DEPTH without extended
+	 * records, all of which are left to the sequential parse.
+	 * @param w VTDGenHuge
+	 * @return boolean
+	 */
+	private boolean merge(VTDGenHuge w) {
+		int a = depth;
+		int nc = w.fragCloses.size();
+		if (nc > a || (!ext && a + w.maxRel > MAX_DEPTH))
+			return false;
+		for (int j = 0; j < nc; j++) {
+			long c = w.fragCloses.longAt(j), x = tag_stack[a - j];
+			int l = (int) (x >> 38);
+			if ((int) (c >> 38) != l)
+				return false;
+			long o1 = c & 0x3fffffffffL, o2 = x & 0x3fffffffffL;
+			for (int i = 0; i < l; i++)
+				if (byteAt(o1 + i) != byteAt(o2 + i))
+					return false;
+		}
+		FastLongBuffer v = w.VTDBuffer;
+		FastIntBuffer d = w.fragDepths;
+		FastLongBuffer lo = w.lenOverflow;
+		int n = v.size(), j = 0;
+		for (int i = 0; i < n; i++) {
+			long l = v.longAt(i);
+			int k = a + d.intAt(i);
+			int type = (int) (l >>> 60);
+			if (lo != null && j < lo.size() && (int) (lo.longAt(j) >>> 32) == i)
+				appendVTD(l & 0x3fffffffffL, lo.longAt(j++) & 0xffffffffL, type, k);
+			else if (k > MAX_DEPTH)
+				appendVTD(l & 0x3fffffffffL, (l >> 38) & MAX_TOKEN_LENGTH, type, k);
+			else
+				VTDBuffer.append(l | ((long) k << 55));
+			if (type == TOKEN_STARTING_TAG)
+				updateLC(k);
+		}
+		if (a + w.maxRel > VTDDepth)
+			VTDDepth = a + w.maxRel;
+		// the elements open at the end of w
+		int b = a - nc;
+		if (b + w.depth >= tag_stack.length) {
+			long[] ts = new long[Math.max(b + w.depth + 1, tag_stack.length << 1)];
+			System.arraycopy(tag_stack, 0, ts, 0, b + 1);
+			tag_stack = ts;
+		}
+		System.arraycopy(w.tag_stack, 1, tag_stack, b + 1, w.depth);
+		depth = b + w.depth;
+		return true;
+	}
+	
+	/**
+	 * Create the reader of the encoding
+	 * @param enc int
+	 * @return IReader
+	 */
+	private IReader newReader(int enc) {
+		switch (enc) {
+		case FORMAT_ASCII: return new ASCIIReader();
+		case FORMAT_ISO_8859_1: return new ISO8859_1Reader();
+		case FORMAT_ISO_8859_2: return new ISO8859_2Reader();
+		case FORMAT_ISO_8859_3: return new ISO8859_3Reader();
+		case FORMAT_ISO_8859_4: return new ISO8859_4Reader();
+		case FORMAT_ISO_8859_5: return new ISO8859_5Reader();
+		case FORMAT_ISO_8859_6: return new ISO8859_6Reader();
+		case FORMAT_ISO_8859_7: return new ISO8859_7Reader();
+		case FORMAT_ISO_8859_8: return new ISO8859_8Reader();
+		case FORMAT_ISO_8859_9: return new ISO8859_9Reader();
+		case FORMAT_ISO_8859_10: return new ISO8859_10Reader();
+		case FORMAT_ISO_8859_11: return new ISO8859_11Reader();
+		case FORMAT_ISO_8859_13: return new ISO8859_13Reader();
+		case FORMAT_ISO_8859_14: return new ISO8859_14Reader();
+		case FORMAT_ISO_8859_15: return new ISO8859_15Reader();
+		case FORMAT_WIN_1250: return new WIN1250Reader();
+		case FORMAT_WIN_1251: return new WIN1251Reader();
+		case FORMAT_WIN_1252: return new WIN1252Reader();
+		case FORMAT_WIN_1253: return new WIN1253Reader();
+		case FORMAT_WIN_1254: return new WIN1254Reader();
+		case FORMAT_WIN_1255: return new WIN1255Reader();
+		case FORMAT_WIN_1256: return new WIN1256Reader();
+		case FORMAT_WIN_1257: return new WIN1257Reader();
+		case FORMAT_WIN_1258: return new WIN1258Reader();
+		case FORMAT_UTF_16BE: return new UTF16BEReader();
+		case FORMAT_UTF_16LE: return new UTF16LEReader();
+		default: return new UTF8Reader();
+		}
+	}
+	
+	/**
+	 * The fragments of a parallel parse, handed from the worker threads
+	 * to the merge in segment order. The workers don't get more than
+	 * lookahead segments ahead of the merge, so that the records waiting
+	 * to be merged stay bounded.
+	 */
+	class fragments {
+		final long seg;
+		final VTDGenHuge[] done;
+		final int lookahead;
+		int next = 1; // the last segment is left to the sequential parse
+		int merged = 0;
+		volatile boolean cancelled;
+		boolean failed; // a worker thread died
+		fragments(long seg, int count, int lookahead) {
+			this.seg = seg;
+			done = new VTDGenHuge[count - 1];
+			this.lookahead = lookahead;
+		}
+		// the next segment to tokenize, -1 when there is none
+		synchronized int next() {
+			while (!cancelled && next < done.length && next > merged + lookahead) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return -1;
+				}
+			}
+			if (cancelled || next >= done.length)
+				return -1;
+			return next++;
+		}
+		synchronized void put(int k, VTDGenHuge w) {
+			done[k] = w;
+			if (w == null)
+				failed = true;
+			notifyAll();
+		}
+		// wait for segment k, null if it won't come
+		synchronized VTDGenHuge take(int k) throws ParseExceptionHuge {
+			while (done[k] == null && !failed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ParseExceptionHuge("Other error: parse interrupted");
+				}
+			}
+			VTDGenHuge w = done[k];
+			done[k] = null;
+			merged = k;
+			notifyAll();
+			return w;
+		}
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * tokenizes the segments it takes from fragments
+	 */
+	class fragmentParser implements Runnable {
+		fragments f;
+		fragmentParser(fragments f) {
+			this.f = f;
+		}
+		public void run() {
+			int k;
+			while ((k = f.next()) >= 0) {
+				VTDGenHuge w = null;
+				try {
+					w = fragment(f.seg * k, f.seg * (k + 1), true, f);
+				} finally {
+					f.put(k, w);
+				}
+			}
+		}
 	}
 	private void matchCPEncoding()throws ParseExceptionHuge{
 	    if ((r.skipChar('p') || r.skipChar('P')) && r.skipChar('1')
@@ -2613,7 +3187,7 @@ public class VTDGenHuge {
 		        + " PI Target "
 		        + depth); */
 		if (encoding < FORMAT_UTF_16BE){
-			if (length1 > MAX_TOKEN_LENGTH)
+			if (length1 > maxTokenLength)
 				  throw new ParseExceptionHuge("Token Length Error:"
 							  +" PI name too long (>0xfffff)"
 							  + formatLineNumber());
@@ -2624,7 +3198,7 @@ public class VTDGenHuge {
 				depth);
 		}
 		else{
-			if(length1 > (MAX_TOKEN_LENGTH<<1))
+			if(length1 > (maxTokenLength<<1))
 				throw new ParseExceptionHuge("Token Length Error:"
 							+" PI name too long (>0xfffff)"
 							+ formatLineNumber());
@@ -2716,7 +3290,7 @@ public class VTDGenHuge {
 		        + " PI val "
 		        + depth);*/
 		if (encoding < FORMAT_UTF_16BE){
-			if (length1 > MAX_TOKEN_LENGTH)
+			if (length1 > maxTokenLength)
 				  throw new ParseExceptionHuge("Token Length Error:"
 							  +"PI VAL too long (>0xfffff)"
 							  + formatLineNumber());
@@ -2726,7 +3300,7 @@ public class VTDGenHuge {
 					depth);
 		}
 		else{
-			if (length1 > (MAX_TOKEN_LENGTH<<1))
+			if (length1 > (maxTokenLength<<1))
 				  throw new ParseExceptionHuge("Token Length Error:"
 							  +"PI VAL too long (>0xfffff)"
 							  + formatLineNumber());
@@ -3090,7 +3664,7 @@ public class VTDGenHuge {
 		/*System.out.println(
 		    " " + (temp_offset) + " " + length1 + " DOCTYPE val " + depth);*/
 		if (encoding < FORMAT_UTF_16BE){
-			if (length1 > MAX_TOKEN_LENGTH)
+			if (length1 > maxTokenLength)
 				  throw new ParseExceptionHuge("Token Length Error:"
 							  +" DTD val too long (>0xfffff)"
 							  + formatLineNumber());
@@ -3101,7 +3675,7 @@ public class VTDGenHuge {
 				depth);
 		}
 		else{
-			if (length1 > (MAX_TOKEN_LENGTH<<1))
+			if (length1 > (maxTokenLength<<1))
 				  throw new ParseExceptionHuge("Token Length Error:"
 							  +" DTD val too long (>0xfffff)"
 							  + formatLineNumber());
@@ -3163,7 +3737,7 @@ public class VTDGenHuge {
 			        + " PI Target "
 			        + depth);*/
 			if (encoding < FORMAT_UTF_16BE){
-				if (length1 > MAX_TOKEN_LENGTH)
+				if (length1 > maxTokenLength)
 					  throw new ParseExceptionHuge("Token Length Error:"
 								  +"PI name too long (>0xfffff)"
 								  + formatLineNumber());
@@ -3174,7 +3748,7 @@ public class VTDGenHuge {
 					depth);
 			}
 			else{
-				if (length1 > (MAX_TOKEN_LENGTH<<1))
+				if (length1 > (maxTokenLength<<1))
 				  throw new ParseExceptionHuge("Token Length Error:"
 						  +"PI name too long (>0xfffff)"
 						  + formatLineNumber());
@@ -3207,7 +3781,7 @@ public class VTDGenHuge {
 				}
 				length1 = offset - temp_offset - (increment<<1);
 				if (encoding < FORMAT_UTF_16BE){
-					if (length1 > MAX_TOKEN_LENGTH)
+					if (length1 > maxTokenLength)
 						  throw new ParseExceptionHuge("Token Length Error:"
 									  +"PI val too long (>0xfffff)"
 									  + formatLineNumber());
@@ -3218,7 +3792,7 @@ public class VTDGenHuge {
 						depth);
 				}
 				else{
-					if (length1 > (MAX_TOKEN_LENGTH<<1))
+					if (length1 > (maxTokenLength<<1))
 						  throw new ParseExceptionHuge("Token Length Error:"
 									  +"PI val too long (>0xfffff)"
 									  + formatLineNumber());
@@ -3287,12 +3861,87 @@ public class VTDGenHuge {
 				+ formatLineNumber());
 	
 	}
+	/**
+	 * Enable (or disable with null) the streaming evaluation of a forward-only
+	 * XPath expression for the following parse() calls. In streaming mode
+	 * matches are delivered while parsing and VTD records are discarded as
+	 * soon as they can't be part of a match, so no VTDNavHuge is available
+	 * afterwards; call clear() once done.
+	 * @param sp1 com.ximpleware.extended.StreamPilotHuge
+	 */
+	public void setStreamPilot(StreamPilotHuge sp1) {
+		sp = sp1;
+	}
+	/**
+	 * Enable or disable (the default) the extended records of the following
+	 * parse() calls. A VTD record has 17 bits for the token length and
+	 * 5 for the depth; extended records keep the length of longer attribute
+	 * values, PIs and DTDs, and the depth of elements nested deeper than
+	 * MAX_DEPTH, in side tables, instead of failing the parse. Text, CDATA
+	 * and comments longer than MAX_TOKEN_LENGTH become a single token
+	 * rather than several tokens of MAX_TOKEN_LENGTH. Documents that
+	 * need neither produce the same records either way. Streaming
+	 * evaluation (setStreamPilot()) always uses the plain records.
+	 * @param b boolean
+	 */
+	public void enableExtendedRecords(boolean b) {
+		extended = b;
+	}
+	/**
+	 * Set the number of threads of the following parse() calls, 1 (the
+	 * default) being the sequential parse. With more threads the document
+	 * is cut in segments of up to 1GB, the pages of XMLBuffer, about
+	 * 4 per thread. Each segment is tokenized from its first starting tag
+	 * by a worker thread, the calling thread merges their records in
+	 * document order and builds the location caches. The guessed start
+	 * of a segment is checked against where the previous one stopped;
+	 * if it was wrong, e.g. inside a comment or CDATA, that segment is
+	 * tokenized again from the right place, and an error of a worker
+	 * hands the rest of the document over to the sequential parse, so the
+	 * result and the exceptions thrown are those of the sequential parse.
+	 * The records of the segments waiting to be merged take memory
+	 * on the heap in addition to the index storage.
+	 * Streaming evaluation (setStreamPilot()) is always sequential.
+	 * @param n int
+	 */
+	public void setParseThreads(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("the number of threads must be at least 1");
+		parseThreads = n;
+	}
+	/**
+	 * Select where the VTD records and the location caches of the following
+	 * parse() calls are kept: HEAP_STORAGE (the default) keeps them on the
+	 * Java heap, DIRECT_STORAGE in direct memory (bounded by
+	 * -XX:MaxDirectMemorySize) and FILE_STORAGE in a temporary file mapped
+	 * into memory, so that the index of a huge document is bounded by disk
+	 * space rather than -Xmx. Off-heap storage is released when the
+	 * VTDNavHuge and its buffers are garbage collected.
+	 * @param s int
+	 */
+	public void selectIndexStorage(int s) {
+		selectIndexStorage(s, null);
+	}
+	/**
+	 * Select the storage of VTD records and location caches, with the
+	 * directory of the temporary file of FILE_STORAGE
+	 * @param s int
+	 * @param dir the directory, null for the default temporary directory
+	 */
+	public void selectIndexStorage(int s, java.io.File dir) {
+		if (s < HEAP_STORAGE || s > FILE_STORAGE)
+			throw new IllegalArgumentException("Invalid index storage");
+		storage = s;
+		storageDir = dir;
+	}
 	/**
 	 * Set the XMLDoc container.
 	 * @param XMLBuffer xb1
 	 */
 	public void setDoc(IByteBuffer xb1) {
 	    xb = xb1;
+	    paged = xb1 instanceof XMLBuffer;
+	    winLen = 0;
 	    
 		int a;
 		br = false;
@@ -3308,6 +3957,7 @@ public class VTDGenHuge {
 		docLen = xb.length();
 		endOffset = xb.length();
 		last_l1_index= last_l2_index = last_l3_index = last_depth =0;
+		lenOverflow = depthOverflow = null;
 		int i1=7,i2=9,i3=11;
 		if (docLen <= 1024) {
 			//a = 1024; //set the floor
@@ -3335,10 +3985,67 @@ public class VTDGenHuge {
 		    a = 23;
 		}
 		
-		VTDBuffer = new FastLongBuffer(a, (int) (xb.length()>> (a+1)));
-		l1Buffer = new FastLongBuffer(i1);
-		l2Buffer = new FastLongBuffer(i2);
-		l3Buffer = new FastIntBuffer(i3);
+		if (storage == HEAP_STORAGE){
+			VTDBuffer = new FastLongBuffer(a, (int) (xb.length()>> (a+1)));
+			l1Buffer = new FastLongBuffer(i1);
+			l2Buffer = new FastLongBuffer(i2);
+			l3Buffer = new FastIntBuffer(i3);
+		} else {
+			// off-heap pages are never smaller than 64K entries
+			a = Math.max(a, 16);
+			i1 = Math.max(i1, 16);
+			i2 = Math.max(i2, 16);
+			i3 = Math.max(i3, 16);
+			if (storage == DIRECT_STORAGE){
+				VTDBuffer = new OffHeapLongBuffer(a);
+				l1Buffer = new OffHeapLongBuffer(i1);
+				l2Buffer = new OffHeapLongBuffer(i2);
+				l3Buffer = new OffHeapIntBuffer(i3);
+			} else {
+				VTDBuffer = new OffHeapLongBuffer(a, storageDir);
+				l1Buffer = new OffHeapLongBuffer(i1, storageDir);
+				l2Buffer = new OffHeapLongBuffer(i2, storageDir);
+				l3Buffer = new OffHeapIntBuffer(i3, storageDir);
+			}
+		}
+	}
+	/**
+	 * Append a VTD record. A length over MAX_TOKEN_LENGTH or a depth
+	 * over MAX_DEPTH, which only extended records have, saturates its
+	 * field and goes into the side table instead, keyed by the index
+	 * of the record.
+	 * @param offset long
+	 * @param length long
+	 * @param token_type int
+	 * @param depth int
+	 */
+	private void appendVTD(long offset, long length, int token_type, int depth) {
+		if (fragDepths != null) {
+			// the depth is only known relative to the start of the fragment
+			depth -= shift;
+			fragDepths.append(depth);
+			if (depth > maxRel)
+				maxRel = depth;
+			depth = 0;
+		}
+		if (length > MAX_TOKEN_LENGTH || depth > MAX_DEPTH) {
+			long index = VTDBuffer.size();
+			if (length > MAX_TOKEN_LENGTH) {
+				if (lenOverflow == null)
+					lenOverflow = new FastLongBuffer(10);
+				lenOverflow.append((index << 32) | length);
+				length = MAX_TOKEN_LENGTH;
+			}
+			if (depth > MAX_DEPTH) {
+				if (depthOverflow == null)
+					depthOverflow = new FastLongBuffer(10);
+				depthOverflow.append((index << 32) | depth);
+				depth = MAX_DEPTH;
+			}
+		}
+		VTDBuffer.append(((long) ((token_type << 22)
+				| ((depth & 0x1f) << 17) | length) << 38)
+				| offset);
 	}
 	/**
 	 * Write the VTD and LC into their storage container.
@@ -3346,8 +4053,12 @@ public class VTDGenHuge {
 	 * @param length int
 	 * @param token_type int
 	 * @param depth int
+	 * @throws ParseExceptionHuge when streaming XPath evaluation fails
 	 */
-	private void writeVTD(long offset, long length, int token_type, int depth) {
+	private void writeVTD(long offset, long length, int token_type, int depth)
+		throws ParseExceptionHuge {
+		if (sp != null)
+			sp.token(token_type);
 	    /*System.out.print(" type "+token_type);
 	    System.out.print(" length "+ Long.toHexString(length)+" length "+length);
 	    System.out.print(" prefix length " + (length>>10));
@@ -3359,87 +4070,73 @@ public class VTDGenHuge {
 			case TOKEN_CDATA_VAL:
 			case TOKEN_COMMENT:
 
-			if (length > MAX_TOKEN_LENGTH) {
+			if (length > maxTokenLength) {
+				// split into several tokens, of MAX_TOKEN_LENGTH each
+				// unless the records are extended
 				long k;
 				long r_offset = offset;
-				for (k = length; k > MAX_TOKEN_LENGTH; k = k - MAX_TOKEN_LENGTH) {
-					VTDBuffer.append(((long) ((token_type << 22)
-							| ((depth & 0x1f) << 17) | MAX_TOKEN_LENGTH) << 38)
-							| r_offset);
-					/*VTDBuffer.append(((long) ((token_type << 28)
-							| ((depth & 0xff) << 20) | MAX_TOKEN_LENGTH) << 32)
-							| r_offset);*/
-					r_offset += MAX_TOKEN_LENGTH;
+				for (k = length; k > maxTokenLength; k = k - maxTokenLength) {
+					appendVTD(r_offset, maxTokenLength, token_type, depth);
+					r_offset += maxTokenLength;
 				}
-				VTDBuffer.append(((long) ((token_type << 22)
-						| ((depth & 0x1f) << 17) | k) << 38)
-						| r_offset);
-				/*VTDBuffer.append(((long) ((token_type << 28)
-						| ((depth & 0xff) << 20) | k) << 32)
-						| r_offset);*/
+				appendVTD(r_offset, k, token_type, depth);
 			} else {
-				VTDBuffer.append(((long) ((token_type << 22)
-						| ((depth & 0x1f) << 17) | length) << 38)
-						| offset);
-				/*VTDBuffer.append(((long) ((token_type << 28)
-						| ((depth & 0xff) << 20) | length) << 32)
-						| offset);*/
+				appendVTD(offset, length, token_type, depth);
 			}
 			break;
 			
 			//case TOKEN_ENDING_TAG: break;
 		default:
-			VTDBuffer.append(((long) ((token_type << 22)
-					| ((depth & 0x1f) << 17) | length) << 38)
-					| offset);
+			appendVTD(offset, length, token_type, depth);
 			/*VTDBuffer.append(((long) ((token_type << 28)
 			        | ((depth & 0xff) << 20) | length) << 32)
 			        | offset);*/
 		}
+		if (sp != null || fragDepths != null)
+			return; // no LC in streaming mode, nor in a fragment
+		if (token_type == TOKEN_STARTING_TAG)
+			updateLC(depth);
+	}
+	/**
+	 * Update the LCs with the starting tag just appended to VTDBuffer.
+	 * @param depth int
+	 */
+	private void updateLC(int depth) {
 		// remember VTD depth start from zero
-		if (token_type == TOKEN_STARTING_TAG) {
-			switch (depth) {
-			case 0:
-				rootIndex = VTDBuffer.size() - 1;
-				break;
-			case 1:
-				if (last_depth == 1) {
-					l1Buffer.append(((long) last_l1_index << 32) | 0xffffffffL);
-				} else if (last_depth == 2) {
-					l2Buffer.append(((long) last_l2_index << 32) | 0xffffffffL);
-				}
-				last_l1_index = VTDBuffer.size() - 1;
-				last_depth = 1;
-				break;
-			case 2:
-				if (last_depth == 1) {
-					l1Buffer.append(((long) last_l1_index << 32)
-							+ l2Buffer.size());
-				} else if (last_depth == 2) {
-					l2Buffer.append(((long) last_l2_index << 32) | 0xffffffffL);
-				}
-				last_l2_index = VTDBuffer.size() - 1;
-				last_depth = 2;
-				break;
-
-			case 3:
-				l3Buffer.append(VTDBuffer.size() - 1);
-				if (last_depth == 2) {
-					l2Buffer.append(((long) last_l2_index << 32)
-							+ l3Buffer.size() - 1);
-				}
-				last_depth = 3;
-				break;
-			default:
-			//rootIndex = VTDBuffer.size() - 1;
-			}
-
-		} /*else if (token_type == TOKEN_ENDING_TAG && (depth == 0)) {
+		switch (depth) {
+		case 0:
+			rootIndex = VTDBuffer.size() - 1;
+			break;
+		case 1:
 			if (last_depth == 1) {
 				l1Buffer.append(((long) last_l1_index << 32) | 0xffffffffL);
 			} else if (last_depth == 2) {
 				l2Buffer.append(((long) last_l2_index << 32) | 0xffffffffL);
 			}
-		}*/
+			last_l1_index = VTDBuffer.size() - 1;
+			last_depth = 1;
+			break;
+		case 2:
+			if (last_depth == 1) {
+				l1Buffer.append(((long) last_l1_index << 32)
+						+ l2Buffer.size());
+			} else if (last_depth == 2) {
+				l2Buffer.append(((long) last_l2_index << 32) | 0xffffffffL);
+			}
+			last_l2_index = VTDBuffer.size() - 1;
+			last_depth = 2;
+			break;
+
+		case 3:
+			l3Buffer.append(VTDBuffer.size() - 1);
+			if (last_depth == 2) {
+				l2Buffer.append(((long) last_l2_index << 32)
+						+ l3Buffer.size() - 1);
+			}
+			last_depth = 3;
+			break;
+		default:
+		//rootIndex = VTDBuffer.size() - 1;
+		}
 	}
 }
@@ -145,6 +145,10 @@ public class VTDNavHuge {
 	protected ILongBuffer l2Buffer;
 	protected IIntBuffer l3Buffer;
 	protected IByteBuffer XMLDoc;
+	// side tables of extended records, null when the document has none,
+	// see VTDGenHuge.enableExtendedRecords()
+	protected ILongBuffer lenOverflow;
+	protected ILongBuffer depthOverflow;
 
 	//private int recentNS; // most recently visited NS node, experiment for now
 	// Hierarchical representation is an array of integers addressing elements tokens 
@@ -342,7 +346,7 @@ public class VTDNavHuge {
      * @exception IllegalArguementException if s is null
      */
     public int getAttrValNS(String URL, String ln) throws NavExceptionHuge {
-    	if (ns == false)
+    	if (ns == false || context[0]==-1)
     		return -1;
     	if (URL == null)
     		return getAttrVal(ln);
@@ -1022,10 +1026,57 @@ public class VTDNavHuge {
 	 * @param index int
 	 */
 	final public int getTokenDepth(int index) {
-		int i = (int) ((vtdBuffer.longAt(index) & MASK_TOKEN_DEPTH) >> 55);
-		if (i != 31)
-			return i;
-		return -1;
+		return getTokenDepth(vtdBuffer.longAt(index), index);
+	}
+	/**
+	 * Get the depth value of the record l at the given index, a
+	 * saturated depth field is looked up in the side table
+	 * @return int
+	 * @param l long
+	 * @param index int
+	 */
+	final private int getTokenDepth(long l, int index) {
+		int i = (int) ((l & MASK_TOKEN_DEPTH) >> 55);
+		if (i == 31)
+			return -1;
+		if (i == VTDGenHuge.MAX_DEPTH && depthOverflow != null)
+			return overflowAt(depthOverflow, index, i);
+		return i;
+	}
+	/**
+	 * Get the length field of the token at the given index, a
+	 * saturated length field is looked up in the side table
+	 * @return int
+	 * @param index int
+	 */
+	final int getRawLength(int index) {
+		int i = (int) ((vtdBuffer.longAt(index) & MASK_TOKEN_FULL_LEN) >> 38);
+		if (i == VTDGenHuge.MAX_TOKEN_LENGTH && lenOverflow != null)
+			return overflowAt(lenOverflow, index, i);
+		return i;
+	}
+	/**
+	 * Binary search the side table t, sorted by token index, for the
+	 * value of the token at index; v when it isn't there
+	 * @return int
+	 * @param t com.ximpleware.extended.ILongBuffer
+	 * @param index int
+	 * @param v int
+	 */
+	final static int overflowAt(ILongBuffer t, int index, int v) {
+		int lo = 0, hi = t.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long l = t.longAt(mid);
+			int i = (int) (l >>> 32);
+			if (i < index)
+				lo = mid + 1;
+			else if (i > index)
+				hi = mid - 1;
+			else
+				return (int) l;
+		}
+		return v;
 	}
 	/**
 	 * Get the token length at the given index value
@@ -1060,10 +1111,9 @@ public class VTDNavHuge {
 			case TOKEN_COMMENT: // make sure this is total length
 				depth = getTokenDepth(index);
 				do{
-					len = len +  (int)
-					((vtdBuffer.longAt(index)& MASK_TOKEN_FULL_LEN) >> 38);
-					 temp =  getTokenOffset(index)+(int)
-					 ((vtdBuffer.longAt(index)& MASK_TOKEN_FULL_LEN) >> 38);
+					int k = getRawLength(index);
+					len = len + k;
+					temp = getTokenOffset(index) + k;
 					index++;		
 					}
 				while(index < vtdSize && depth == getTokenDepth(index) 
@@ -1072,8 +1122,7 @@ public class VTDNavHuge {
 				//if (int k=0)
 				return len;
 			default :
-				return (int)
-					((vtdBuffer.longAt(index) & MASK_TOKEN_FULL_LEN) >> 38);
+				return getRawLength(index);
 		}
 	}
 	/**
@@ -2751,7 +2800,7 @@ public class VTDNavHuge {
 
 								if (token_type == TOKEN_STARTING_TAG) {
 									int depth =
-										(int) ((MASK_TOKEN_DEPTH & temp) >> 55);
+										getTokenDepth(temp, index);
 									if (depth <= context[0]) {
 										return false;
 									} else if (depth == (context[0] + 1)) {
@@ -2771,7 +2820,7 @@ public class VTDNavHuge {
 							while (index < size) {
 								long temp = vtdBuffer.longAt(index);
 								int depth =
-									(int) ((MASK_TOKEN_DEPTH & temp) >> 55);
+									getTokenDepth(temp, index);
 								int token_type =
 									(int) ((MASK_TOKEN_TYPE & temp) >> 60)
 										& 0xf;
@@ -2860,7 +2909,7 @@ public class VTDNavHuge {
 
 								if (token_type == TOKEN_STARTING_TAG) {
 									int depth =
-										(int) ((MASK_TOKEN_DEPTH & temp) >> 55);
+										getTokenDepth(temp, index);
 									if (depth < context[0]) {
 										return false;
 									} else if (depth == (context[0])) {
@@ -2882,7 +2931,7 @@ public class VTDNavHuge {
 
 								if (token_type == TOKEN_STARTING_TAG) {
 									int depth =
-										(int) ((MASK_TOKEN_DEPTH & temp) >> 55);
+										getTokenDepth(temp, index);
 									/*if (depth < context[0]) {
 									    return false;
 									} else */
@@ -4307,4 +4356,49 @@ public class VTDNavHuge {
 		return l;
 	}
 	
+	/**
+	 * Write VTDNavHuge's VTD and LCs into an OutputStream (XML not written out),
+	 * the index can be loaded by VTDGenHuge.loadSeparateIndex()
+	 * @param os
+	 * @throws IndexWriteExceptionHuge
+	 * @throws java.io.IOException
+	 *
+	 */
+	public void writeSeparateIndex(java.io.OutputStream os) throws IndexWriteExceptionHuge, java.io.IOException{
+	    IndexHandlerHuge.writeSeparateIndex(this.encoding,
+	            this.ns,
+	            this.nestingLevel-1,
+	            this.rootIndex,
+	            this.XMLDoc,
+	            this.vtdBuffer,
+	            this.l1Buffer,
+	            this.l2Buffer,
+	            this.l3Buffer,
+	            this.lenOverflow,
+	            this.depthOverflow,
+	            os);
+	}
+	
+	/**
+	 * Write VTDNavHuge's VTD and LCs (but not XML) into a file
+	 * @param fileName
+	 * @throws IndexWriteExceptionHuge
+	 * @throws java.io.IOException
+	 *
+	 */
+	public void writeSeparateIndex(String fileName) throws IndexWriteExceptionHuge, java.io.IOException{
+	    IndexHandlerHuge.writeSeparateIndex(this.encoding,
+	            this.ns,
+	            this.nestingLevel-1,
+	            this.rootIndex,
+	            this.XMLDoc,
+	            this.vtdBuffer,
+	            this.l1Buffer,
+	            this.l2Buffer,
+	            this.l3Buffer,
+	            this.lenOverflow,
+	            this.depthOverflow,
+	            fileName);
+	}
+	
 }
@@ -18,15 +18,36 @@
 /*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
 package com.ximpleware.extended;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 /**
  * XMLBuffer is a class that reads in an XML doc into chunk-based memory buffers
  * the file size is equal to n*1GB + m (where m < 1GB)
- * 
+ * <p>
+ * The file is read by a few loader threads with positional reads, each
+ * taking the next 16MB segment in document order, so that
+ * readFileAsync() can return before the document is in. Bytes of a page
+ * are available up to loadedLength() of the page, waitFor() blocks until
+ * a given byte is loaded; VTDGenHuge does so when it parses the buffer,
+ * so that tokenizing overlaps with reading. byteAt() doesn't wait.
+ * close() stops the loaders, e.g. when parsing fails early.
+ * </p>
  */
 
 public class XMLBuffer implements IByteBuffer {
     byte[][] bufferArray;
     long length;
+    // loading state, guarded by this
+    private final static int SEG_EXP = 24;
+    private final static int CHUNK_SIZE = 1<<20;
+    private int[] segLoaded; // bytes loaded of each segment
+    private int[] prefix; // bytes of each page loaded from its start
+    private int nextSeg, loaders;
+    private boolean cancelled;
+    private IOException error;
+    private RandomAccessFile raf;
+    private volatile boolean complete = true;
+    
     public XMLBuffer(){
         //ArrayList al = new ArrayList();
     }
@@ -41,57 +62,235 @@ public class XMLBuffer implements IByteBuffer {
     	length = ba.length;
     }
     /**
-     * 
+     * Read the whole file in, see readFileAsync()
      * @param fileName
      * @throws java.io.IOException
      * @throws ParseException
      *
      */
     public void readFile(String fileName) throws java.io.IOException, ParseExceptionHuge {
+        readFileAsync(fileName);
+        waitForAll();
+    }
+    
+    /**
+     * Start reading the file with as many loader threads as there are
+     * processors (up to 4), and return once the pages are allocated
+     * @param fileName
+     * @throws java.io.IOException
+     * @throws ParseExceptionHuge
+     */
+    public void readFileAsync(String fileName) throws java.io.IOException, ParseExceptionHuge {
+        readFileAsync(fileName, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+    
+    /**
+     * Start reading the file with the given number of loader threads, and
+     * return once the pages are allocated
+     * @param fileName
+     * @param threads
+     * @throws java.io.IOException
+     * @throws ParseExceptionHuge
+     */
+    public void readFileAsync(String fileName, int threads) throws java.io.IOException, ParseExceptionHuge {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
         // get file size
         File f = new File(fileName);
-        long l = f.length();
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        long l = r.length();
         //System.out.println("length ==>"+l);
-        length = l;
         if (l>= (1L<< 38)){
+            r.close();
             throw new ParseExceptionHuge("document too big > 256 Gbyte");
         }
         // calculate # of buffers needed and each buffer size
         int pageNumber = (int)(l>>30)+(((l & 0x3fffffffL)==0)?0:1);
-        
-        bufferArray = new byte[pageNumber][];
-        
-        //fill the buffers with doc content
-        FileInputStream fis = new FileInputStream(f);
-        int byteArrayLen = 0;
-        
-        for (int i=0;i<pageNumber;i++){
-            if (l > (1<<30)){
-                bufferArray[i] = new byte[1<<30];
-                byteArrayLen = 1<<30;
+        int segNumber = (int)(l>>SEG_EXP)+(((l & ((1<<SEG_EXP)-1))==0)?0:1);
+        byte[][] ba = new byte[pageNumber][];
+        try{
+            for (int i=0;i<pageNumber;i++)
+                ba[i] = new byte[(int)Math.min(l - ((long)i<<30), 1<<30)];
+        }catch(OutOfMemoryError e){
+            r.close();
+            throw e;
+        }
+        // loaders drops as the threads finish, start them all the same
+        int n = Math.min(threads, segNumber);
+        synchronized(this){
+            bufferArray = ba;
+            length = l;
+            segLoaded = new int[segNumber];
+            prefix = new int[pageNumber];
+            nextSeg = 0;
+            cancelled = false;
+            error = null;
+            raf = r;
+            loaders = n;
+            complete = n == 0;
+        }
+        if (complete){
+            r.close();
+            return;
+        }
+        for (int i=0;i<n;i++){
+            Thread t = new Thread(new loader(r.getChannel()), "XMLBuffer loader "+i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    /**
+     * Get the number of 1GB pages
+     * @return int
+     */
+    public int getPageCount(){
+        return bufferArray == null ? 0 : bufferArray.length;
+    }
+    
+    /**
+     * Get the number of bytes of the page loaded from its start
+     * @param page
+     * @return int
+     */
+    public int loadedLength(int page){
+        if (complete)
+            return bufferArray[page].length;
+        synchronized(this){
+            return prefix[page];
+        }
+    }
+    
+    /**
+     * Tell whether the page is completely loaded
+     * @param page
+     * @return boolean
+     */
+    public boolean isPageLoaded(int page){
+        return loadedLength(page) == bufferArray[page].length;
+    }
+    
+    /**
+     * Block until the byte at index is loaded
+     * @param index
+     * @return the number of bytes of its page loaded from the page's start
+     * @throws IOException when reading the file failed
+     */
+    public int waitFor(long index) throws IOException {
+        int page = (int)(index>>30);
+        if (complete)
+            return bufferArray[page].length;
+        int p = (int)(index & 0x3fffffff);
+        synchronized(this){
+            while (prefix[page] <= p){
+                if (error != null)
+                    throw error;
+                if (cancelled)
+                    throw new IOException("loading the document was cancelled");
+                try{
+                    wait();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while loading the document");
+                }
             }
-            else{
-                bufferArray[i] = new byte[(int)l];
-                byteArrayLen = (int)l;
+            return prefix[page];
+        }
+    }
+    
+    /**
+     * Block until the whole document is loaded
+     * @throws IOException when reading the file failed
+     */
+    public void waitForAll() throws IOException {
+        if (!complete && length > 0)
+            waitFor(length-1);
+    }
+    
+    private boolean allLoaded(){
+        for (int i = 0; i < prefix.length; i++)
+            if (prefix[i] < bufferArray[i].length)
+                return false;
+        return true;
+    }
+    
+    // the next segment to read, or -1 when all are taken
+    private synchronized int next(){
+        if (error != null || cancelled || nextSeg == segLoaded.length)
+            return -1;
+        return nextSeg++;
+    }
+    
+    // record n more bytes of segment s, return false if loading is cancelled
+    private synchronized boolean progress(int s, int n){
+        segLoaded[s] += n;
+        int page = s >> (30 - SEG_EXP);
+        int first = page << (30 - SEG_EXP);
+        int k = first + (prefix[page] >>> SEG_EXP);
+        int l = prefix[page];
+        while (k < segLoaded.length && k < first + (1 << (30 - SEG_EXP))){
+            l = ((k - first) << SEG_EXP) + segLoaded[k];
+            if (segLoaded[k] < (int)Math.min(length - ((long)k<<SEG_EXP), 1<<SEG_EXP))
+                break;
+            k++;
+        }
+        prefix[page] = l;
+        notifyAll();
+        return !cancelled;
+    }
+    
+    private synchronized void done(IOException e){
+        if (e != null && error == null)
+            error = e;
+        if (--loaders == 0){
+            try{
+                raf.close();
+            }catch(IOException e2){
             }
-            int offset = 0;
-            int numRead = 0;
-            int numOfBytes = 1048576;//I choose this value randomly, 
-            //any other (not too big) value also can be here.
-            if (byteArrayLen-offset<numOfBytes)
-            	{numOfBytes=byteArrayLen-offset;}
-            while (offset < byteArrayLen
-                   && (numRead=fis.read(bufferArray[i], offset, numOfBytes)) >= 0) 
-            {
-                offset += numRead;
-                if (byteArrayLen-offset<numOfBytes) 
-                {
-                	numOfBytes=byteArrayLen-offset;
-                }        
+            if (error == null && allLoaded())
+                complete = true;
+        }
+        notifyAll();
+    }
+    
+    /**
+     * reads the segments it takes with positional reads of CHUNK_SIZE
+     */
+    class loader implements Runnable {
+        FileChannel fc;
+        loader(FileChannel fc){
+            this.fc = fc;
+        }
+        public void run(){
+            IOException ex = null;
+            boolean ok = false;
+            try{
+                int s;
+                while ((s = next()) >= 0){
+                    long pos = (long)s<<SEG_EXP;
+                    byte[] b = bufferArray[(int)(pos>>30)];
+                    int start = (int)(pos & 0x3fffffff);
+                    int end = (int)Math.min(start + (1L<<SEG_EXP), b.length);
+                    for (int off = start; off < end;){
+                        ByteBuffer bb = ByteBuffer.wrap(b, off, Math.min(CHUNK_SIZE, end - off));
+                        while (bb.hasRemaining()){
+                            if (fc.read(bb, pos + (bb.position() - start)) < 0)
+                                throw new EOFException("the document was truncated while loading");
+                        }
+                        if (!progress(s, bb.position() - off))
+                            break;
+                        off = bb.position();
+                    }
+                }
+                ok = true;
+            }catch(IOException e){
+                ex = e;
+            }finally{
+                if (!ok && ex == null)
+                    ex = new IOException("failed to load the document");
+                done(ex);
             }
-            //fis.read(bufferArray[i]);
-            l = l -(1<<30);
-        }        
+        }
     }
 
     /**
@@ -124,6 +323,7 @@ public class XMLBuffer implements IByteBuffer {
 	
 	public void writeToFileOutputStream(java.io.FileOutputStream ost, long os, long len) 
 	throws java.io.IOException{
+		waitForAll();
 		//page size is 1<<30
 		// then find the remainder
 		//ost's page #
@@ -152,5 +352,17 @@ public class XMLBuffer implements IByteBuffer {
     	return;
 	}
 	
-	public void close(){};
+	/**
+	 * Stop loading the file if it is still being read, the loader threads
+	 * finish the chunk they are reading and close the file. The bytes
+	 * already loaded stay readable, waitFor() fails for the others.
+	 */
+	public void close(){
+		synchronized(this){
+			if (complete || cancelled || allLoaded())
+				return;
+			cancelled = true;
+			notifyAll();
+		}
+	}
 }
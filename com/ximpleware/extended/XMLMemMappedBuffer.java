@@ -100,8 +100,30 @@ public class XMLMemMappedBuffer implements IByteBuffer {
 	throws java.io.IOException{
     	
     	FileChannel ostChannel = ost.getChannel();
-    	
-    	fc.transferTo(os, len, ostChannel);
+    	if (!fc.isOpen()) {
+    		// VTDGenHuge closes the file once parsing is done, the mapped
+    		// pages remain valid and are written without a heap copy
+    		while (len > 0) {
+    			ByteBuffer bb = input[(int) (os >> 30)].duplicate();
+    			int p = (int) (os & 0x3fffffff);
+    			int l = (int) Math.min(len, bb.limit() - p);
+    			bb.limit(p + l);
+    			bb.position(p);
+    			while (bb.hasRemaining())
+    				ostChannel.write(bb);
+    			os += l;
+    			len -= l;
+    		}
+    		return;
+    	}
+    	// transferTo may transfer fewer bytes than requested
+    	while (len > 0) {
+    		long l = fc.transferTo(os, len, ostChannel);
+    		if (l <= 0 && os >= fc.size())
+    			throw new java.io.EOFException("segment beyond the end of the document");
+    		os += l;
+    		len -= l;
+    	}
     	
 	}
     public void close(){
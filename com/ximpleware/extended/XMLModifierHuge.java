@@ -0,0 +1,478 @@
+/* 
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+import java.io.*;
+
+/**
+ * XMLModifierHuge is the counterpart of com.ximpleware.XMLModifier for
+ * documents parsed by VTDGenHuge, either loaded in memory (XMLBuffer)
+ * or memory mapped (XMLMemMappedBuffer). Edits are recorded with 64-bit
+ * offsets; the output is composed by writing the unchanged segments of
+ * the master document with IByteBuffer.writeToFileOutputStream(), which
+ * transfers them with FileChannel.transferTo() when the document is
+ * memory mapped, so they never go through the Java heap.
+ * 
+ * The same rules as XMLModifier apply: there can be only one deletion
+ * and one insertion per offset, deletions can't partially overlap each
+ * other, and edits inside a deleted segment are ignored.
+ */
+public class XMLModifierHuge {
+    protected VTDNavHuge md; // master document
+    protected String charSet;
+    int encoding;
+    // the edits, deletions have a null content
+    private long[] offsets;
+    private long[] lengths;
+    private byte[][] contents;
+    private int size;
+    private boolean sorted;
+
+    /**
+     * Constructor for XMLModifierHuge that takes VTDNavHuge object as the master document
+     * @param masterDocument is the document on which the modification is applied
+     */
+    public XMLModifierHuge(VTDNavHuge masterDocument) throws ModifyExceptionHuge{
+        bind(masterDocument);
+    }
+
+    /**
+     * Argument-less constructor for XMLModifierHuge,
+     * needs to call bind to attach the master document
+     */
+    public XMLModifierHuge(){
+        md = null;
+    }
+
+    /**
+     * Attach master document to this instance of XMLModifierHuge
+     * @param masterDocument
+     */
+    public void bind(VTDNavHuge masterDocument) throws ModifyExceptionHuge{
+        if (masterDocument == null)
+            throw new IllegalArgumentException("MasterDocument can't be null");
+        md = masterDocument;
+        offsets = new long[16];
+        lengths = new long[16];
+        contents = new byte[16][];
+        size = 0;
+        sorted = true;
+        encoding = md.getEncoding();
+        switch(encoding){
+            case VTDNavHuge.FORMAT_ASCII: charSet = "ASCII"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_1: charSet = "ISO8859_1"; break;
+            case VTDNavHuge.FORMAT_UTF8: charSet = "UTF8"; break;
+            case VTDNavHuge.FORMAT_UTF_16BE: charSet = "UnicodeBigUnmarked"; break;
+            case VTDNavHuge.FORMAT_UTF_16LE: charSet = "UnicodeLittleUnmarked"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_2: charSet = "ISO8859_2"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_3: charSet = "ISO8859_3"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_4: charSet = "ISO8859_4"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_5: charSet = "ISO8859_5"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_6: charSet = "ISO8859_6"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_7: charSet = "ISO8859_7"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_8: charSet = "ISO8859_8"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_9: charSet = "ISO8859_9"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_10: charSet = "ISO8859_10"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_11: charSet = "x-iso-8859-11"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_12: charSet = "ISO8859_12"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_13: charSet = "ISO8859_13"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_14: charSet = "ISO8859_14"; break;
+            case VTDNavHuge.FORMAT_ISO_8859_15: charSet = "ISO8859_15"; break;
+            case VTDNavHuge.FORMAT_WIN_1250: charSet = "Cp1250"; break;
+            case VTDNavHuge.FORMAT_WIN_1251: charSet = "Cp1251"; break;
+            case VTDNavHuge.FORMAT_WIN_1252: charSet = "Cp1252"; break;
+            case VTDNavHuge.FORMAT_WIN_1253: charSet = "Cp1253"; break;
+            case VTDNavHuge.FORMAT_WIN_1254: charSet = "Cp1254"; break;
+            case VTDNavHuge.FORMAT_WIN_1255: charSet = "Cp1255"; break;
+            case VTDNavHuge.FORMAT_WIN_1256: charSet = "Cp1256"; break;
+            case VTDNavHuge.FORMAT_WIN_1257: charSet = "Cp1257"; break;
+            case VTDNavHuge.FORMAT_WIN_1258: charSet = "Cp1258"; break;
+            default:
+                throw new ModifyExceptionHuge
+                ("Master document encoding not yet supported by XML modifier");
+        }
+    }
+
+    /**
+     * Removes content from the master XML document 
+     * It first calls getCurrentIndex() if the result is 
+     * a starting tag, then the entire element referred to
+     * by the starting tag is removed
+     * If the result is an attribute name or ns node, then 
+     * the corresponding attribute name/value pair is removed
+     * If the token type is one of text, CDATA or commment,
+     * then the entire node, including the starting and ending 
+     * delimiting text surrounding the content, is removed
+     */
+    public void remove() throws NavExceptionHuge,ModifyExceptionHuge{
+        int i = md.getCurrentIndex();
+        int type = md.getTokenType(i);
+        if (type==VTDNavHuge.TOKEN_STARTING_TAG){
+            long[] l = md.getElementFragment();
+            removeContent(l[0], l[1]);
+        } else if (type == VTDNavHuge.TOKEN_ATTR_NAME 
+                || type==VTDNavHuge.TOKEN_ATTR_NS){
+            removeAttribute(i);
+        } else {
+            removeToken(i);
+        }
+    }
+
+    /**
+     * Remove the token content. If the token type is text, CDATA
+     * or comment, then the entire node, including the starting and 
+     * ending delimiting text, will be removed as well
+     * @param i the index for the content
+     */
+    public void removeToken(int i) throws ModifyExceptionHuge{
+        int type = md.getTokenType(i);
+        long os = md.getTokenOffset(i);
+        int len =
+            (type == VTDNavHuge.TOKEN_STARTING_TAG
+                || type == VTDNavHuge.TOKEN_ATTR_NAME
+                || type == VTDNavHuge.TOKEN_ATTR_NS)
+                ? md.getTokenLength(i) & 0xffff
+                : md.getTokenLength(i);
+        switch(type){
+            case VTDNavHuge.TOKEN_CDATA_VAL:
+                removeChars(os - 9, len + 12);
+                return;
+            case VTDNavHuge.TOKEN_COMMENT:
+                removeChars(os - 4, len + 7);
+                return;
+            default:
+                removeChars(os, len);
+        }
+    }
+
+    /**
+     * Remove an attribute name value pair from the master document.
+     * @param attrNameIndex
+     */
+    public void removeAttribute(int attrNameIndex) throws ModifyExceptionHuge{
+        int type = md.getTokenType(attrNameIndex);
+        if (type != VTDNavHuge.TOKEN_ATTR_NAME && type != VTDNavHuge.TOKEN_ATTR_NS)
+            throw new ModifyExceptionHuge("token type should be attribute name");
+        long os1 = md.getTokenOffset(attrNameIndex);
+        long os2 = md.getTokenOffset(attrNameIndex+1);
+        int len2 = md.getTokenLength(attrNameIndex+1);
+        removeChars(os1, os2 + len2 - os1 + 1);
+    }
+
+    /**
+     * Remove a segment of byte content from master XML doc.
+     * The segment is denoted by its offset and len, in bytes
+     * @param offset
+     * @param len
+     */
+    public void removeContent(long offset, long len) throws ModifyExceptionHuge{
+        if (offset < md.docOffset || len < 0
+                || offset + len > md.docOffset + md.docLen)
+            throw new ModifyExceptionHuge("Invalid offset or length for removeContent");
+        add(offset, len, null);
+    }
+
+    /**
+     * insert the byte content into XML
+     * @param offset in bytes
+     * @param content
+     */
+    public void insertBytesAt(long offset, byte[] content) throws ModifyExceptionHuge{
+        if (content == null)
+            throw new IllegalArgumentException("content can't be null");
+        if (offset < md.docOffset || offset > md.docOffset + md.docLen)
+            throw new ModifyExceptionHuge("Invalid offset for insertBytesAt");
+        add(offset, 0, content);
+    }
+
+    /**
+     * Update the token with the given string value,
+     * notice that string will be converted into byte array
+     * according to the encoding of the master document
+     * @param index
+     * @param newContent
+     */
+    public void updateToken(int index, String newContent) 
+        throws ModifyExceptionHuge,UnsupportedEncodingException{
+        if (newContent==null)
+            throw new IllegalArgumentException
+            ("String newContent can't be null");
+        updateToken(index, newContent.getBytes(charSet));
+    }
+
+    /**
+     * Update the token with the given byte array content,
+     * which must be in the encoding of the master document
+     * @param index
+     * @param newContent
+     */
+    public void updateToken(int index, byte[] newContent) throws ModifyExceptionHuge{
+        if (newContent==null)
+            throw new IllegalArgumentException
+            ("newContent can't be null");
+        long offset = md.getTokenOffset(index);
+        switch(md.getTokenType(index)){
+            case VTDNavHuge.TOKEN_CDATA_VAL:
+                offset -= 9;
+                break;
+            case VTDNavHuge.TOKEN_COMMENT:
+                offset -= 4;
+                break;
+        }
+        insertBytesAt(encoding < VTDNavHuge.FORMAT_UTF_16BE ? offset : offset << 1,
+                newContent);
+        removeToken(index);
+    }
+
+    /**
+     * This method will first call getCurrentIndex() to get the cursor index value
+     * then insert the byte value of s after the element
+     * @param s
+     */
+    public void insertAfterElement(String s)
+        throws ModifyExceptionHuge,UnsupportedEncodingException,NavExceptionHuge{
+        insertAfterElement(s.getBytes(charSet));
+    }
+
+    /**
+     * This method will first call getCurrentIndex() to get the cursor index value
+     * then insert the byte array b after the element
+     * @param b
+     */
+    public void insertAfterElement(byte[] b)
+        throws ModifyExceptionHuge,NavExceptionHuge{
+        checkStartingTag();
+        long[] l = md.getElementFragment();
+        insertBytesAt(l[0] + l[1], b);
+    }
+
+    /**
+     * This method will first call getCurrentIndex() to get the cursor index value
+     * then insert the byte value of s before the element
+     * @param s
+     */
+    public void insertBeforeElement(String s)
+        throws ModifyExceptionHuge,UnsupportedEncodingException{
+        insertBeforeElement(s.getBytes(charSet));
+    }
+
+    /**
+     * This method will first call getCurrentIndex() to get the cursor index value
+     * then insert the byte array b before the element
+     * @param b
+     */
+    public void insertBeforeElement(byte[] b) throws ModifyExceptionHuge{
+        long offset = md.getTokenOffset(checkStartingTag()) - 1;
+        insertBytesAt(encoding < VTDNavHuge.FORMAT_UTF_16BE ? offset : offset << 1, b);
+    }
+
+    /**
+     * Insert an attribute after the starting tag
+     * @param attr e.g. " attrName='attrVal' ",notice the starting and ending 
+     * white space
+     */
+    public void insertAttribute(String attr)
+        throws ModifyExceptionHuge,UnsupportedEncodingException{
+        insertAttribute(attr.getBytes(charSet));
+    }
+
+    /**
+     * Insert the byte content of an attribute after the starting tag
+     * @param b
+     */
+    public void insertAttribute(byte[] b) throws ModifyExceptionHuge{
+        int i = checkStartingTag();
+        long offset = md.getTokenOffset(i) + (md.getTokenLength(i) & 0xffff);
+        insertBytesAt(encoding < VTDNavHuge.FORMAT_UTF_16BE ? offset : offset << 1, b);
+    }
+
+    /**
+     * Compute the size of the updated XML document without composing it
+     * @return updated document size
+     */
+    public long getUpdatedDocumentSize() throws ModifyExceptionHuge{
+        check();
+        long docSize = md.docLen;
+        for (int i = 0; i < size; i++){
+            if (offsets[i] < 0)
+                continue;
+            if (contents[i] == null)
+                docSize -= lengths[i];
+            else
+                docSize += contents[i].length;
+        }
+        return docSize;
+    }
+
+    /**
+     * This method applies the modification to the XML document
+     * and writes the output to a file output stream; the unchanged
+     * segments are transferred from the master document by
+     * IByteBuffer.writeToFileOutputStream()
+     * Notice that output is not guaranteed to be well-formed 
+     * @param fos
+     */
+    public void output(FileOutputStream fos) throws IOException,ModifyExceptionHuge{
+        if (fos == null)
+            throw new IllegalArgumentException("FileOutputStream can't be null");
+        check();
+        IByteBuffer xb = md.getXML();
+        long pos = md.docOffset;
+        for (int i = 0; i < size; i++){
+            long o = offsets[i];
+            if (o < 0)
+                continue; // nullified
+            if (o > pos){
+                xb.writeToFileOutputStream(fos, pos, o - pos);
+                pos = o;
+            }
+            if (contents[i] != null)
+                fos.write(contents[i]);
+            else
+                pos = o + lengths[i];
+        }
+        long end = md.docOffset + md.docLen;
+        if (end > pos)
+            xb.writeToFileOutputStream(fos, pos, end - pos);
+    }
+
+    /**
+     * Generate the updated output XML document and write it into 
+     * a file of given name
+     * @param fileName
+     */
+    public void output(String fileName) throws IOException,ModifyExceptionHuge{
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            output(fos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * This method resets the internal state of XMLModifierHuge so 
+     * it can be reused
+     */
+    public void reset(){
+        for (int i = 0; i < size; i++)
+            contents[i] = null;
+        size = 0;
+        sorted = true;
+    }
+
+    private int checkStartingTag() throws ModifyExceptionHuge{
+        int i = md.getCurrentIndex();
+        if (md.getTokenType(i) != VTDNavHuge.TOKEN_STARTING_TAG)
+            throw new ModifyExceptionHuge("Token type is not a starting tag");
+        return i;
+    }
+
+    /* remove a segment given in characters of the document encoding */
+    private void removeChars(long offset, long len) throws ModifyExceptionHuge{
+        if (encoding < VTDNavHuge.FORMAT_UTF_16BE)
+            removeContent(offset, len);
+        else
+            removeContent(offset << 1, len << 1);
+    }
+
+    private void add(long offset, long len, byte[] content){
+        if (size == offsets.length){
+            int n = size << 1;
+            long[] o = new long[n], l = new long[n];
+            byte[][] c = new byte[n][];
+            System.arraycopy(offsets, 0, o, 0, size);
+            System.arraycopy(lengths, 0, l, 0, size);
+            System.arraycopy(contents, 0, c, 0, size);
+            offsets = o;
+            lengths = l;
+            contents = c;
+        }
+        if (size > 0 && sorted && !before(size - 1, offset, content))
+            sorted = false;
+        offsets[size] = offset;
+        lengths[size] = len;
+        contents[size] = content;
+        size++;
+    }
+
+    /* whether edit i goes before an edit at offset o; at the same offset
+     * the insertion goes before the deletion. An edit nullified by check()
+     * keeps its place, so its real offset is compared */
+    private boolean before(int i, long o, byte[] c){
+        long oi = offsets[i] < 0 ? -1 - offsets[i] : offsets[i];
+        return oi < o || (oi == o && contents[i] != null && c == null);
+    }
+
+    /**
+     * Sort the edits (they are usually applied in document order, in which
+     * case there is nothing to do), then check them: there can be only one
+     * deletion and one insertion per offset, deletions can't partially
+     * overlap, and edits contained in a deletion are nullified
+     */
+    private void check() throws ModifyExceptionHuge{
+        if (!sorted){
+            quickSort(0, size - 1);
+            sorted = true;
+        }
+        long os1 = -1, os2 = -1; // the current deletion
+        for (int i = 0; i < size; i++){
+            long o = offsets[i];
+            if (o < 0)
+                continue;
+            if (i > 0 && offsets[i - 1] == o
+                    && (contents[i - 1] == null) == (contents[i] == null))
+                throw new ModifyExceptionHuge(contents[i] == null
+                        ? "There can be only one deletion per offset value"
+                        : "There can be only one insert per offset");
+            if (o > os1 && o <= os2){
+                if (contents[i] == null && o + lengths[i] - 1 > os2)
+                    throw new ModifyExceptionHuge
+                    ("Invalid insertion/deletion condition detected between offset "
+                            +os1 + " and offset "+os2);
+                // inside the current deletion
+                offsets[i] = -1 - o;
+                continue;
+            }
+            if (contents[i] == null && lengths[i] > 0){
+                os1 = o;
+                os2 = o + lengths[i] - 1;
+            }
+        }
+    }
+
+    private void quickSort(int lo, int hi){
+        int i = lo, j = hi;
+        long x = offsets[(lo + hi) >>> 1];
+        boolean xi = contents[(lo + hi) >>> 1] != null;
+        do {
+            while (offsets[i] < x || (offsets[i] == x && contents[i] != null && !xi)) i++;
+            while (offsets[j] > x || (offsets[j] == x && contents[j] == null && xi)) j--;
+            if (i <= j){
+                long t = offsets[i]; offsets[i] = offsets[j]; offsets[j] = t;
+                t = lengths[i]; lengths[i] = lengths[j]; lengths[j] = t;
+                byte[] c = contents[i]; contents[i] = contents[j]; contents[j] = c;
+                i++;
+                j--;
+            }
+        } while (i <= j);
+        if (lo < j) quickSort(lo, j);
+        if (i < hi) quickSort(i, hi);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum used by the sectioned index format,
+ * computed 8 bytes at a time with the slicing-by-8 tables.
+ * It doesn't depend on java.util.zip.CRC32C so that
+ * it is available on every supported JDK.
+ */
+class crc32c implements Checksum {
+    private final static int[][] T = new int[8][256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++)
+                c = ((c & 1) != 0) ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+            T[0][i] = c;
+        }
+        for (int i = 0; i < 256; i++) {
+            int c = T[0][i];
+            for (int k = 1; k < 8; k++) {
+                c = T[0][c & 0xff] ^ (c >>> 8);
+                T[k][i] = c;
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    public void update(int b) {
+        crc = T[0][(crc ^ b) & 0xff] ^ (crc >>> 8);
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        int[] t0 = T[0], t1 = T[1], t2 = T[2], t3 = T[3],
+            t4 = T[4], t5 = T[5], t6 = T[6], t7 = T[7];
+        while (end - off >= 8) {
+            int lo = c ^ ((b[off] & 0xff) | ((b[off + 1] & 0xff) << 8)
+                    | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24));
+            int hi = (b[off + 4] & 0xff) | ((b[off + 5] & 0xff) << 8)
+                    | ((b[off + 6] & 0xff) << 16) | (b[off + 7] << 24);
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff]
+                ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                ^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff]
+                ^ t1[(hi >>> 16) & 0xff] ^ t0[hi >>> 24];
+            off += 8;
+        }
+        while (off < end) {
+            c = t0[(c ^ b[off]) & 0xff] ^ (c >>> 8);
+            off++;
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return (~crc) & 0xffffffffL;
+    }
+
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
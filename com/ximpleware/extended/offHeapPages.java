@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+package com.ximpleware.extended;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Page allocator of OffHeapLongBuffer and OffHeapIntBuffer: pages are
+ * either direct byte buffers or consecutive regions of a temporary file
+ * mapped read-write. The temporary file is deleted as soon as it is
+ * opened, its space is given back once the mappings are garbage collected.
+ * close() releases the file handle, the pages mapped so far stay valid.
+ */
+class offHeapPages {
+    private boolean fileBacked;
+    private File dir;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+
+    offHeapPages(boolean fileBacked, File dir) {
+        this.fileBacked = fileBacked;
+        this.dir = dir;
+    }
+
+    /**
+     * Allocate the page at the given position (in bytes) of the storage
+     */
+    ByteBuffer allocate(long position, int bytes) {
+        ByteBuffer bb;
+        if (!fileBacked) {
+            bb = ByteBuffer.allocateDirect(bytes);
+        } else {
+            try {
+                if (fc == null) {
+                    File f = File.createTempFile("vtdhuge", ".idx", dir);
+                    raf = new RandomAccessFile(f, "rw");
+                    if (!f.delete())
+                        f.deleteOnExit();
+                    fc = raf.getChannel();
+                }
+                bb = fc.map(FileChannel.MapMode.READ_WRITE, position, bytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't allocate off-heap page: " + e);
+            }
+        }
+        return bb.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Close the temporary file, a page allocated afterwards
+     * goes to a new one
+     */
+    void close() {
+        if (raf == null)
+            return;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // nothing is written through the channel
+        }
+        raf = null;
+        fc = null;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+
+/**
+ *
+ * This is an open-addressing hash set for non-negative integers
+ * (VTD indices and document offsets). It is a drop-in replacement of
+ * intHash used by XPath expressions and XMLModifier to check
+ * for uniqueness. Keys are kept in a single int array probed linearly,
+ * so there is no per-bucket buffer to scan; the table doubles once it
+ * is half full. Every slot carries a generation stamp so that reset()
+ * costs O(1) and never reallocates the table.
+ */
+class intOpenHash {
+    private int[] keys;
+    private int[] stamps;
+    private int mask;
+    private int shift;
+    private int size;
+    private int threshold;
+    private int generation;
+    protected int e;
+
+    /**
+     * Constructor
+     *
+     */
+    public intOpenHash(){
+        this(0);
+    }
+
+    /**
+     * Constructor with the same width exponent as accepted by
+     * intHash(int), i.e. the value returned by intHash.determineHashWidth();
+     * the initial table is capped at 64K slots and grows on demand
+     * @param hashWidthExpo
+     */
+    public intOpenHash(int hashWidthExpo){
+        e = hashWidthExpo;
+        allocate(Math.min(Math.max(hashWidthExpo,4),16));
+        generation = 1;
+    }
+
+    private void allocate(int bits){
+        int capacity = 1<<bits;
+        keys = new int[capacity];
+        stamps = new int[capacity];
+        mask = capacity -1;
+        shift = 32 - bits;
+        threshold = capacity >> 1;
+        size = 0;
+    }
+
+    /**
+     * fibonacci hashing spreads consecutive VTD indices as well as
+     * offsets sharing low-order bits evenly across the table
+     */
+    private int slot(int i){
+        return (i * 0x9e3779b9) >>> shift;
+    }
+
+    /**
+     * Test whether the input i is unique;
+     * if not, insert into the hash table and return false
+     * otherwise, return true
+     */
+    public boolean isUnique(int i){
+        int[] k = keys, s = stamps;
+        int g = generation, m = mask;
+        int p = slot(i);
+        while (s[p] == g) {
+            if (k[p] == i)
+                return false;
+            p = (p + 1) & m;
+        }
+        k[p] = i;
+        s[p] = g;
+        if (++size > threshold)
+            grow();
+        return true;
+    }
+
+    /**
+     * This function differs from isUnique(int i) in that it doesn't insert i into
+     * the hash table if it is unique, use to implement intersection or difference of nodesets
+     * @param i
+     * @return
+     */
+    public boolean _isUnique(int i){
+        int[] k = keys, s = stamps;
+        int g = generation, m = mask;
+        int p = slot(i);
+        while (s[p] == g) {
+            if (k[p] == i)
+                return false;
+            p = (p + 1) & m;
+        }
+        return true;
+    }
+
+    /**
+     * Remove i from the hash table if it is there; the entries
+     * following it in the probe sequence are shifted back so that
+     * lookups don't stop at the emptied slot
+     * @param i
+     */
+    public void remove(int i){
+        int[] k = keys, s = stamps;
+        int g = generation, m = mask;
+        int p = slot(i);
+        while (s[p] == g) {
+            if (k[p] == i)
+                break;
+            p = (p + 1) & m;
+        }
+        if (s[p] != g)
+            return;
+        int q = p;
+        while (true) {
+            q = (q + 1) & m;
+            if (s[q] != g)
+                break;
+            int h = slot(k[q]);
+            // move k[q] back unless its home slot lies in (p, q]
+            if (p <= q ? (h <= p || h > q) : (h <= p && h > q)) {
+                k[p] = k[q];
+                p = q;
+            }
+        }
+        s[p] = g - 1;
+        size--;
+    }
+
+    /**
+     * Clear all entries in the hash table
+     * The table is retained, so it can be reused without
+     * any additional allocation
+     */
+    final public void reset(){
+        size = 0;
+        generation++;
+        if (generation == 0) {
+            // stamps wrapped around, wipe them once
+            java.util.Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Return the number of entries in the hash table
+     * @return int
+     */
+    final public int size(){
+        return size;
+    }
+
+    /**
+     * Return the number of slots currently allocated
+     * @return int
+     */
+    final public int getCapacity(){
+        return keys.length;
+    }
+
+    private void grow(){
+        int[] ok = keys, os = stamps;
+        int g = generation;
+        allocate(33 - shift);
+        int[] k = keys, s = stamps;
+        int m = mask;
+        for (int j=0;j<ok.length;j++){
+            if (os[j] == g){
+                int p = slot(ok[j]);
+                while (s[p] == 1)
+                    p = (p + 1) & m;
+                k[p] = ok[j];
+                s[p] = 1;
+                size++;
+            }
+        }
+        generation = 1;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2002-2013 XimpleWare, info@ximpleware.com
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+/*VTD-XML is protected by US patent 7133857, 7260652, an 7761459*/
+/*All licenses to any parties in litigation with XimpleWare have been expressly terminated. No new license, and no renewal of any revoked license,
+ * is granted to those parties as a result of re-downloading software from this or any other website*/
+package com.ximpleware;
+import java.nio.ByteBuffer;
+
+/**
+ * An IByteBuffer over the XML section of a memory-mapped index file, so
+ * that a VTDNav can be created without reading the XML into the heap.
+ * getBytes() has to return an array, it copies the XML into the heap on
+ * its first call and the buffer reads from that copy from then on, so
+ * that in-place updates of VTDNav are seen by byteAt().
+ */
+class mappedXMLBuffer implements IByteBuffer {
+    private ByteBuffer bb;
+    private byte[] copy;
+    private int length;
+
+    mappedXMLBuffer(ByteBuffer b) {
+        bb = b;
+        length = b.limit();
+    }
+
+    public final byte byteAt(int index) {
+        return bb.get(index);
+    }
+
+    public byte[] getBytes(int offset, int len) {
+        byte[] b = new byte[len];
+        ByteBuffer d = bb.duplicate();
+        d.position(offset);
+        d.get(b, 0, len);
+        return b;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte[] getBytes() {
+        if (copy == null) {
+            copy = getBytes(0, length);
+            bb = ByteBuffer.wrap(copy);
+        }
+        return copy;
+    }
+}